@@ -15,6 +15,7 @@
 
 package com.fastbootmobile.encore.api.chartlyrics;
 
+import com.fastbootmobile.encore.api.common.HttpClient;
 import com.fastbootmobile.encore.api.common.HttpGet;
 import com.fastbootmobile.encore.api.common.RateLimitException;
 
@@ -27,12 +28,16 @@ public class ChartLyricsClient {
     private static final String TAG = "ChartLyricsClient";
     private static final String BASE_URL = "http://api.chartlyrics.com/apiv1.asmx/SearchLyricDirect";
 
+    private static final long DAY = 24L * 3600 * 1000;
+    private static final HttpClient.Endpoint ENDPOINT = new HttpClient.Endpoint("chartlyrics",
+            30 * DAY, 90 * DAY, 4 * 1024 * 1024);
+
     private static final Pattern PATTERN_LYRICS = Pattern.compile("<Lyric>(.*)</Lyric>", Pattern.MULTILINE | Pattern.DOTALL);
     private static final Pattern PATTERN_SONG = Pattern.compile("<LyricSong>(.*)</LyricSong>", Pattern.MULTILINE | Pattern.DOTALL);
     private static final Pattern PATTERN_ARTIST = Pattern.compile("<LyricArtist>(.*)</LyricArtist>", Pattern.MULTILINE | Pattern.DOTALL);
 
     public static LyricsResponse getSongLyrics(String artist, String title) throws IOException, RateLimitException {
-        String lyricsXml = HttpGet.get(BASE_URL, "artist=" + URLEncoder.encode(artist, "UTF-8") + "&song=" + URLEncoder.encode(title, "UTF-8"), true);
+        String lyricsXml = HttpGet.get(ENDPOINT, BASE_URL, "artist=" + URLEncoder.encode(artist, "UTF-8") + "&song=" + URLEncoder.encode(title, "UTF-8"));
 
         Matcher matcher_song = PATTERN_SONG.matcher(lyricsXml);
         Matcher matcher_artist = PATTERN_ARTIST.matcher(lyricsXml);
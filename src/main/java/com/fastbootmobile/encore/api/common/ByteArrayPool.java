@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Pool of byte arrays used to read HTTP responses, so that each request doesn't allocate and
+ * grow its own buffers. The pool holds at most a given number of bytes; the least recently
+ * returned buffers are dropped first.
+ */
+class ByteArrayPool {
+    private static final Comparator<byte[]> BUF_COMPARATOR = new Comparator<byte[]>() {
+        @Override
+        public int compare(byte[] lhs, byte[] rhs) {
+            return lhs.length - rhs.length;
+        }
+    };
+
+    // Buffers by last use, and by size
+    private final List<byte[]> mBuffersByLastUse = new LinkedList<>();
+    private final List<byte[]> mBuffersBySize = new ArrayList<>();
+    private final int mMaxBytes;
+    private int mCurrentBytes;
+
+    /**
+     * @param maxBytes The maximum number of bytes kept in the pool
+     */
+    ByteArrayPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a buffer from the pool if one is available, or allocates a new one
+     * @param length The minimum size of the buffer
+     * @return A buffer of at least the requested size. Its content is undefined.
+     */
+    synchronized byte[] getBuf(int length) {
+        int index = Collections.binarySearch(mBuffersBySize, new byte[length], BUF_COMPARATOR);
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        if (index < mBuffersBySize.size()) {
+            final byte[] buf = mBuffersBySize.remove(index);
+            mBuffersByLastUse.remove(buf);
+            mCurrentBytes -= buf.length;
+            return buf;
+        }
+
+        return new byte[length];
+    }
+
+    /**
+     * Gives a buffer back to the pool
+     * @param buf The buffer, which must not be used by the caller afterwards
+     */
+    synchronized void returnBuf(byte[] buf) {
+        if (buf == null || buf.length > mMaxBytes) {
+            return;
+        }
+
+        mBuffersByLastUse.add(buf);
+        int index = Collections.binarySearch(mBuffersBySize, buf, BUF_COMPARATOR);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        mBuffersBySize.add(index, buf);
+        mCurrentBytes += buf.length;
+
+        while (mCurrentBytes > mMaxBytes) {
+            final byte[] oldest = mBuffersByLastUse.remove(0);
+            mBuffersBySize.remove(oldest);
+            mCurrentBytes -= oldest.length;
+        }
+    }
+
+    /**
+     * ByteArrayOutputStream whose internal buffer comes from the pool, and goes back to it when
+     * the stream is closed
+     */
+    static class PoolingOutputStream extends ByteArrayOutputStream {
+        private static final int DEFAULT_SIZE = 4096;
+        private final ByteArrayPool mPool;
+
+        PoolingOutputStream(ByteArrayPool pool, int expectedSize) {
+            mPool = pool;
+            buf = mPool.getBuf(Math.max(expectedSize, DEFAULT_SIZE));
+        }
+
+        @Override
+        public void close() {
+            mPool.returnBuf(buf);
+            buf = null;
+        }
+
+        private void expand(int length) {
+            if (count + length <= buf.length) {
+                return;
+            }
+
+            final byte[] newBuf = mPool.getBuf((count + length) * 2);
+            System.arraycopy(buf, 0, newBuf, 0, count);
+            mPool.returnBuf(buf);
+            buf = newBuf;
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int len) {
+            expand(len);
+            super.write(buffer, offset, len);
+        }
+
+        @Override
+        public synchronized void write(int oneByte) {
+            expand(1);
+            super.write(oneByte);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Partition of the HTTP cache, in its own directory. Each response is stored in one file along
+ * with its validators (ETag and Last-Modified), so that it can be revalidated with a conditional
+ * request once it's no longer fresh. When the partition grows over its budget, the least
+ * recently used responses are deleted.
+ * {@link MetadataCache} also uses it as a key/value store, with its keys in place of the URLs.
+ */
+class HttpCache {
+    private static final String TAG = "HttpCache";
+
+    private static final int MAGIC = 0x48435031; // HCP1
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private long mSize = -1;
+
+    /**
+     * A cached response
+     */
+    static class Entry {
+        long storedAt;
+        String etag;
+        String lastModified;
+        byte[] body;
+    }
+
+    HttpCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @param url The URL of the request
+     * @return The cached response, or null if none is available
+     */
+    synchronized Entry get(String url) {
+        final File file = getFile(url);
+        if (!file.exists()) {
+            return null;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || !url.equals(in.readUTF())) {
+                return null;
+            }
+
+            final Entry entry = new Entry();
+            entry.storedAt = in.readLong();
+            entry.etag = emptyToNull(in.readUTF());
+            entry.lastModified = emptyToNull(in.readUTF());
+            entry.body = new byte[in.readInt()];
+            in.readFully(entry.body);
+
+            // Keep track of the use for the LRU trimming
+            file.setLastModified(System.currentTimeMillis());
+            return entry;
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable cache entry for " + url);
+            deleteFile(file);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Stores a response, replacing the previous one for the same URL
+     * @param url The URL of the request
+     * @param entry The response
+     */
+    synchronized void put(String url, Entry entry) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            Log.e(TAG, "Cannot create cache directory " + mDirectory);
+            return;
+        }
+
+        final File file = getFile(url);
+        final File tmp = new File(file.getPath() + TMP_SUFFIX);
+        final long previousLength = file.length();
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeUTF(url);
+            out.writeLong(entry.storedAt);
+            out.writeUTF(entry.etag != null ? entry.etag : "");
+            out.writeUTF(entry.lastModified != null ? entry.lastModified : "");
+            out.writeInt(entry.body.length);
+            out.write(entry.body);
+            out.close();
+            out = null;
+
+            final long length = tmp.length();
+            if (!tmp.renameTo(file)) {
+                Log.e(TAG, "Cannot rename " + tmp);
+                deleteFile(tmp);
+                return;
+            }
+
+            if (mSize >= 0) {
+                mSize += length - previousLength;
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write cache entry for " + url, e);
+            deleteFile(tmp);
+        } finally {
+            closeQuietly(out);
+        }
+
+        trimToSize();
+    }
+
+    private void trimToSize() {
+        if (mSize < 0) {
+            // First write since the start, compute the current size
+            mSize = 0;
+            final File[] files = mDirectory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    if (file.getName().endsWith(TMP_SUFFIX)) {
+                        deleteFile(file);
+                    } else {
+                        mSize += file.length();
+                    }
+                }
+            }
+        }
+
+        if (mSize <= mMaxBytes) {
+            return;
+        }
+
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        // Delete the least recently used files until we're well under the budget, so that we
+        // don't have to list the directory again on the next write
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                final long diff = lhs.lastModified() - rhs.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+
+        final long target = mMaxBytes * 3 / 4;
+        for (File file : files) {
+            if (mSize <= target) {
+                break;
+            }
+            final long length = file.length();
+            if (deleteFile(file)) {
+                mSize -= length;
+            }
+        }
+    }
+
+    private File getFile(String url) {
+        try {
+            final byte[] hash = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            final StringBuilder name = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                name.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
+            }
+            return new File(mDirectory, name.toString());
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Both are always available on Android
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+
+    private static boolean deleteFile(File file) {
+        if (!file.delete() && file.exists()) {
+            Log.e(TAG, "Cannot delete " + file);
+            return false;
+        }
+        return true;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,396 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fastbootmobile.encore.framework.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * HTTP layer shared by the Web API clients. Requests are made to an {@link Endpoint}, which
+ * defines how its responses are cached:
+ * - Responses are stored in a cache partition per endpoint, so that large or frequent responses
+ *   of an API don't evict the responses of another one.
+ * - A response is served from the cache without any network access while it's fresh. Once it's
+ *   not, it's revalidated with its ETag or Last-Modified date, and a 304 answer serves the cached
+ *   body again.
+ * - If the network fails, a stale response is served as long as it's not too old.
+ * Connections are kept alive and reused by HttpURLConnection, as long as the responses are read
+ * to the end. The number of concurrent requests per host is bounded, and responses are read into
+ * pooled buffers.
+ */
+public class HttpClient {
+    private static final String TAG = "HttpClient";
+    private static final boolean DEBUG = false;
+
+    private static final String USER_AGENT = "OmniMusic/1.0-dev (http://www.omnirom.org)";
+    private static final int CONNECT_TIMEOUT = 15000;
+    private static final int READ_TIMEOUT = 20000;
+    private static final int MAX_REDIRECTS = 5;
+    private static final int MAX_REQUESTS_PER_HOST = 4;
+    private static final int BUFFER_POOL_SIZE = 512 * 1024;
+    private static final int READ_CHUNK_SIZE = 8192;
+
+    private static final HttpClient INSTANCE = new HttpClient();
+
+    private final Map<String, Semaphore> mHostPermits = new HashMap<>();
+    private final ByteArrayPool mBufferPool = new ByteArrayPool(BUFFER_POOL_SIZE);
+    private File mCacheDir;
+
+    /**
+     * A Web API endpoint, with its cache policy and its statistics
+     */
+    public static class Endpoint {
+        private final String mName;
+        private final long mMaxAge;
+        private final long mMaxStale;
+        private final long mCacheSize;
+        private final Stats mStats = new Stats();
+        private HttpCache mCache;
+
+        /**
+         * @param name      The name of the endpoint, also used as the name of its cache partition
+         * @param maxAge    The time during which a response is served without revalidation, in ms
+         * @param maxStale  The maximum age of a response served when the network fails, in ms
+         * @param cacheSize The size of the cache partition, in bytes. 0 to not store responses.
+         */
+        public Endpoint(String name, long maxAge, long maxStale, long cacheSize) {
+            mName = name;
+            mMaxAge = maxAge;
+            mMaxStale = Math.max(maxAge, maxStale);
+            mCacheSize = cacheSize;
+            Metrics.getDefault().registerStats("http." + name, mStats);
+        }
+
+        /**
+         * Creates an endpoint whose responses aren't stored, eg. images that are cached by the
+         * caller
+         */
+        public static Endpoint uncached(String name) {
+            return new Endpoint(name, 0, 0, 0);
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public Stats getStats() {
+            return mStats;
+        }
+
+        private synchronized HttpCache getCache(File cacheDir) {
+            if (mCache == null && mCacheSize > 0 && cacheDir != null) {
+                mCache = new HttpCache(new File(cacheDir, mName), mCacheSize);
+            }
+            return mCache;
+        }
+    }
+
+    /**
+     * Counters of the requests made to an endpoint
+     */
+    public static class Stats {
+        private final AtomicLong mRequests = new AtomicLong();
+        private final AtomicLong mCacheHits = new AtomicLong();
+        private final AtomicLong mRevalidated = new AtomicLong();
+        private final AtomicLong mStaleServed = new AtomicLong();
+        private final AtomicLong mFailures = new AtomicLong();
+        private final AtomicLong mBytesDownloaded = new AtomicLong();
+        private final AtomicLong mNetworkTime = new AtomicLong();
+
+        /**
+         * @return The number of requests made to the endpoint
+         */
+        public long getRequests() {
+            return mRequests.get();
+        }
+
+        /**
+         * @return The number of requests served from the cache without network access
+         */
+        public long getCacheHits() {
+            return mCacheHits.get();
+        }
+
+        /**
+         * @return The number of cached responses the server confirmed as unchanged
+         */
+        public long getRevalidated() {
+            return mRevalidated.get();
+        }
+
+        /**
+         * @return The number of stale responses served because the network failed
+         */
+        public long getStaleServed() {
+            return mStaleServed.get();
+        }
+
+        /**
+         * @return The number of requests that failed
+         */
+        public long getFailures() {
+            return mFailures.get();
+        }
+
+        /**
+         * @return The number of body bytes downloaded
+         */
+        public long getBytesDownloaded() {
+            return mBytesDownloaded.get();
+        }
+
+        /**
+         * @return The total time spent on the network, in milliseconds
+         */
+        public long getNetworkTime() {
+            return mNetworkTime.get();
+        }
+
+        @Override
+        public String toString() {
+            return "requests=" + mRequests + " cacheHits=" + mCacheHits
+                    + " revalidated=" + mRevalidated + " staleServed=" + mStaleServed
+                    + " failures=" + mFailures + " bytes=" + mBytesDownloaded
+                    + " networkTime=" + mNetworkTime + "ms";
+        }
+    }
+
+    /**
+     * @return The default instance of this class
+     */
+    public static HttpClient getDefault() {
+        return INSTANCE;
+    }
+
+    private HttpClient() {
+    }
+
+    /**
+     * Sets up the cache directory. Until this is called, responses aren't cached.
+     * @param ctx A valid context
+     */
+    public void initialize(Context ctx) {
+        mCacheDir = new File(ctx.getCacheDir(), "api");
+    }
+
+    /**
+     * Downloads the data from the provided URL. This method is synchronous and must be called
+     * from a Thread!
+     * @param endpoint The endpoint the URL belongs to
+     * @param url The URL to get from, with its query properly encoded
+     * @return The body of the response, or an empty array if the server couldn't provide it
+     */
+    public byte[] get(Endpoint endpoint, String url) throws IOException, RateLimitException {
+        final Stats stats = endpoint.mStats;
+        final HttpCache cache = endpoint.getCache(mCacheDir);
+        final HttpCache.Entry cached = cache != null ? cache.get(url) : null;
+        final long age = cached != null ? System.currentTimeMillis() - cached.storedAt : -1;
+
+        stats.mRequests.incrementAndGet();
+
+        if (cached != null && age >= 0 && age < endpoint.mMaxAge) {
+            if (DEBUG) Log.d(TAG, endpoint.mName + ": cache hit for " + url);
+            stats.mCacheHits.incrementAndGet();
+            return cached.body;
+        }
+
+        final long startTime = SystemClock.elapsedRealtime();
+        try {
+            final Response response = fetch(endpoint, url, cached);
+
+            if (response.notModified) {
+                stats.mRevalidated.incrementAndGet();
+                cached.storedAt = System.currentTimeMillis();
+                cache.put(url, cached);
+                return cached.body;
+            }
+
+            stats.mBytesDownloaded.addAndGet(response.body.length);
+            if (cache != null && response.cacheable) {
+                final HttpCache.Entry entry = new HttpCache.Entry();
+                entry.storedAt = System.currentTimeMillis();
+                entry.etag = response.etag;
+                entry.lastModified = response.lastModified;
+                entry.body = response.body;
+                cache.put(url, entry);
+            }
+            return response.body;
+        } catch (InterruptedIOException e) {
+            stats.mFailures.incrementAndGet();
+            throw e;
+        } catch (IOException e) {
+            if (cached != null && age >= 0 && age < endpoint.mMaxStale) {
+                Log.w(TAG, endpoint.mName + ": network error, serving stale response for " + url);
+                stats.mStaleServed.incrementAndGet();
+                return cached.body;
+            }
+            stats.mFailures.incrementAndGet();
+            throw e;
+        } catch (RateLimitException e) {
+            stats.mFailures.incrementAndGet();
+            throw e;
+        } finally {
+            stats.mNetworkTime.addAndGet(SystemClock.elapsedRealtime() - startTime);
+        }
+    }
+
+    /**
+     * Result of a request sent to the network
+     */
+    private static class Response {
+        boolean notModified;
+        boolean cacheable;
+        String etag;
+        String lastModified;
+        byte[] body;
+    }
+
+    private Response fetch(Endpoint endpoint, String inUrl, HttpCache.Entry cached)
+            throws IOException, RateLimitException {
+        String currentUrl = inUrl;
+
+        // HttpURLConnection only follows redirects within the same protocol, follow the other
+        // ones here
+        for (int redirects = 0; redirects <= MAX_REDIRECTS; ++redirects) {
+            final URL url = new URL(currentUrl);
+            final Semaphore permits = getHostPermits(url.getHost());
+            try {
+                permits.acquire();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for " + url.getHost());
+            }
+
+            HttpURLConnection connection = null;
+            boolean reusable = false;
+            try {
+                connection = (HttpURLConnection) url.openConnection();
+                connection.setRequestProperty("User-Agent", USER_AGENT);
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(READ_TIMEOUT);
+                // Caching is done by the endpoints, not by the global response cache
+                connection.setUseCaches(false);
+                connection.setInstanceFollowRedirects(true);
+
+                if (cached != null) {
+                    if (cached.etag != null) {
+                        connection.setRequestProperty("If-None-Match", cached.etag);
+                    }
+                    if (cached.lastModified != null) {
+                        connection.setRequestProperty("If-Modified-Since", cached.lastModified);
+                    }
+                }
+
+                final int status = connection.getResponseCode();
+                if (DEBUG) Log.d(TAG, endpoint.mName + ": " + status + " for " + currentUrl);
+
+                final Response response = new Response();
+                if (status == HttpURLConnection.HTTP_OK) {
+                    response.body = readBody(connection);
+                    response.etag = connection.getHeaderField("ETag");
+                    response.lastModified = connection.getHeaderField("Last-Modified");
+                    final String cacheControl = connection.getHeaderField("Cache-Control");
+                    response.cacheable = cacheControl == null
+                            || !cacheControl.toLowerCase().contains("no-store");
+                    reusable = true;
+                    return response;
+                } else if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+                    response.notModified = true;
+                    reusable = true;
+                    return response;
+                } else if (status == HttpURLConnection.HTTP_NOT_FOUND
+                        || status == HttpURLConnection.HTTP_FORBIDDEN) {
+                    response.body = new byte[]{};
+                    return response;
+                } else if (status == HttpURLConnection.HTTP_UNAVAILABLE) {
+                    // MusicBrainz returns 503 Unavailable on rate limit errors
+                    throw new RateLimitException();
+                } else if (status == HttpURLConnection.HTTP_MOVED_TEMP
+                        || status == HttpURLConnection.HTTP_MOVED_PERM
+                        || status == 307 /* HTTP/1.1 TEMPORARY REDIRECT */
+                        || status == HttpURLConnection.HTTP_SEE_OTHER) {
+                    final String location = connection.getHeaderField("Location");
+                    if (location == null) {
+                        throw new IOException("Redirect without location from " + currentUrl);
+                    }
+                    Log.d(TAG, "Redirected to: " + location);
+                    currentUrl = new URL(url, location).toString();
+                } else {
+                    Log.e(TAG, "Error when fetching: " + currentUrl + " (" + status + ")");
+                    response.body = new byte[]{};
+                    return response;
+                }
+            } finally {
+                // Only drop the connection if it can't be reused for the next request
+                if (connection != null && !reusable) {
+                    connection.disconnect();
+                }
+                permits.release();
+            }
+        }
+
+        throw new IOException("Too many redirects for " + inUrl);
+    }
+
+    /**
+     * Reads the whole body of the response, so that the connection can be reused
+     */
+    private byte[] readBody(HttpURLConnection connection) throws IOException {
+        final ByteArrayPool.PoolingOutputStream out = new ByteArrayPool.PoolingOutputStream(
+                mBufferPool, connection.getContentLength());
+        final byte[] chunk = mBufferPool.getBuf(READ_CHUNK_SIZE);
+        InputStream in = null;
+
+        try {
+            in = connection.getInputStream();
+            int read;
+            while ((read = in.read(chunk, 0, chunk.length)) != -1) {
+                out.write(chunk, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            mBufferPool.returnBuf(chunk);
+            out.close();
+        }
+    }
+
+    private Semaphore getHostPermits(String host) {
+        synchronized (mHostPermits) {
+            Semaphore permits = mHostPermits.get(host);
+            if (permits == null) {
+                permits = new Semaphore(MAX_REQUESTS_PER_HOST, true);
+                mHostPermits.put(host, permits);
+            }
+            return permits;
+        }
+    }
+}
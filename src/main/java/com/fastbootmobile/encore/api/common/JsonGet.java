@@ -38,4 +38,17 @@ public class JsonGet {
             throws IOException, JSONException, RateLimitException {
         return new JSONObject(HttpGet.get(url, query, cached));
     }
+
+    /**
+     * Downloads a JSON object from the provided URL, using the cache policy of the endpoint.
+     * @param endpoint The endpoint the URL belongs to
+     * @param url The URL to get from
+     * @param query The query field. '?' + query will be appended automatically, and the query data
+     *              will be encoded properly.
+     * @return A json object
+     */
+    public static JSONObject getObject(HttpClient.Endpoint endpoint, String url, String query)
+            throws IOException, JSONException, RateLimitException {
+        return new JSONObject(HttpGet.get(endpoint, url, query));
+    }
 }
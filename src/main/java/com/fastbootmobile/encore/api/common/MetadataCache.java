@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.fastbootmobile.encore.framework.Metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of the metadata parsed from the Web APIs (biographies, similar artists, album info...).
+ * Values are kept in a bounded LRU in memory, and written to a disk partition so that they
+ * survive restarts. Both expire after a given time to live.
+ * Values are stored on disk through a {@link Codec}, and the disk is only accessed on a memory
+ * miss, so lookups must be done from a background thread.
+ * @param <V> The type of the cached values
+ */
+public class MetadataCache<V> {
+    private static final String TAG = "MetadataCache";
+    private static final boolean DEBUG = false;
+
+    private static File sCacheDir;
+
+    private final String mName;
+    private final long mTimeToLive;
+    private final long mDiskSize;
+    private final Codec<V> mCodec;
+    private final LruCache<String, Entry<V>> mMemory;
+    private final Stats mStats = new Stats();
+    private HttpCache mDisk;
+
+    /**
+     * Converts the values to bytes and back, for the disk storage
+     */
+    public interface Codec<V> {
+        byte[] encode(V value) throws IOException;
+
+        V decode(byte[] data) throws IOException;
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long storedAt;
+
+        Entry(V value, long storedAt) {
+            this.value = value;
+            this.storedAt = storedAt;
+        }
+    }
+
+    /**
+     * Counters of the lookups made in a cache
+     */
+    public static class Stats {
+        private final AtomicLong mMemoryHits = new AtomicLong();
+        private final AtomicLong mDiskHits = new AtomicLong();
+        private final AtomicLong mMisses = new AtomicLong();
+        private final AtomicLong mExpired = new AtomicLong();
+
+        /**
+         * @return The number of lookups served from memory
+         */
+        public long getMemoryHits() {
+            return mMemoryHits.get();
+        }
+
+        /**
+         * @return The number of lookups served from the disk
+         */
+        public long getDiskHits() {
+            return mDiskHits.get();
+        }
+
+        /**
+         * @return The number of lookups that found no value, including the expired ones
+         */
+        public long getMisses() {
+            return mMisses.get();
+        }
+
+        /**
+         * @return The number of lookups that found an expired value
+         */
+        public long getExpired() {
+            return mExpired.get();
+        }
+
+        /**
+         * @return The ratio of lookups that found a value, between 0 and 1
+         */
+        public float getHitRate() {
+            final long hits = mMemoryHits.get() + mDiskHits.get();
+            final long total = hits + mMisses.get();
+            return total == 0 ? 0 : (float) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return "memoryHits=" + mMemoryHits + " diskHits=" + mDiskHits + " misses=" + mMisses
+                    + " expired=" + mExpired + " hitRate=" + getHitRate();
+        }
+    }
+
+    /**
+     * Sets up the directory of the disk partitions. Until this is called, values are only cached
+     * in memory.
+     * @param ctx A valid context
+     */
+    public static void initialize(Context ctx) {
+        sCacheDir = new File(ctx.getCacheDir(), "metadata");
+    }
+
+    /**
+     * @param name The name of the cache, also used as the name of its disk partition
+     * @param maxEntries The maximum number of values kept in memory
+     * @param timeToLive The time after which a value expires, in milliseconds
+     * @param diskSize The size of the disk partition, in bytes
+     * @param codec The codec used to store the values on disk
+     */
+    public MetadataCache(String name, int maxEntries, long timeToLive, long diskSize,
+                         Codec<V> codec) {
+        mName = name;
+        mTimeToLive = timeToLive;
+        mDiskSize = diskSize;
+        mCodec = codec;
+        mMemory = new LruCache<>(maxEntries);
+        Metrics.getDefault().registerStats("metadata." + name, mStats);
+    }
+
+    /**
+     * Returns the value cached for a key, looking in memory then on disk
+     * @param key The key
+     * @return The value, or null if none is cached or if it expired
+     */
+    public V get(String key) {
+        final long now = System.currentTimeMillis();
+
+        Entry<V> entry = mMemory.get(key);
+        if (entry != null) {
+            if (now - entry.storedAt < mTimeToLive) {
+                mStats.mMemoryHits.incrementAndGet();
+                return entry.value;
+            }
+            mMemory.remove(key);
+            mStats.mExpired.incrementAndGet();
+            mStats.mMisses.incrementAndGet();
+            return null;
+        }
+
+        final HttpCache disk = getDisk();
+        final HttpCache.Entry stored = disk != null ? disk.get(key) : null;
+        if (stored != null) {
+            if (now - stored.storedAt < mTimeToLive) {
+                try {
+                    final V value = mCodec.decode(stored.body);
+                    mMemory.put(key, new Entry<>(value, stored.storedAt));
+                    mStats.mDiskHits.incrementAndGet();
+                    return value;
+                } catch (IOException e) {
+                    Log.w(TAG, mName + ": cannot decode the value of " + key, e);
+                }
+            } else {
+                mStats.mExpired.incrementAndGet();
+            }
+        }
+
+        if (DEBUG) Log.d(TAG, mName + ": miss for " + key);
+        mStats.mMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches a value in memory and on disk
+     * @param key The key
+     * @param value The value, which must not be null
+     */
+    public void put(String key, V value) {
+        final long now = System.currentTimeMillis();
+        mMemory.put(key, new Entry<>(value, now));
+
+        final HttpCache disk = getDisk();
+        if (disk != null) {
+            try {
+                final HttpCache.Entry stored = new HttpCache.Entry();
+                stored.storedAt = now;
+                stored.body = mCodec.encode(value);
+                disk.put(key, stored);
+            } catch (IOException e) {
+                Log.w(TAG, mName + ": cannot encode the value of " + key, e);
+            }
+        }
+    }
+
+    /**
+     * @return The lookup statistics of this cache
+     */
+    public Stats getStats() {
+        return mStats;
+    }
+
+    private synchronized HttpCache getDisk() {
+        if (mDisk == null && sCacheDir != null) {
+            mDisk = new HttpCache(new File(sCacheDir, mName), mDiskSize);
+        }
+        return mDisk;
+    }
+}
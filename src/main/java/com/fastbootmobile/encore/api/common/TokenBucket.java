@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import android.os.SystemClock;
+
+/**
+ * Token bucket limiting the rate of requests sent to a Web API. Each request takes a token, and
+ * tokens are given back at a fixed rate up to the capacity of the bucket, so that short bursts
+ * are allowed but the sustained rate stays under the limit. When the API reports that we're
+ * rate limited, the bucket can be emptied and blocked for a while with {@link #backOff(long)}.
+ */
+public class TokenBucket {
+    private final int mCapacity;
+    private final long mRefillInterval;
+    private double mTokens;
+    private long mLastRefill;
+    private long mBlockedUntil;
+
+    /**
+     * @param capacity       The maximum number of requests that can be sent in a burst
+     * @param refillInterval The time after which a token is given back, in milliseconds
+     */
+    public TokenBucket(int capacity, long refillInterval) {
+        mCapacity = capacity;
+        mRefillInterval = refillInterval;
+        mTokens = capacity;
+        mLastRefill = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Takes a token, waiting for one to be available if needed. This method blocks and must be
+     * called from a Thread!
+     * @param maxWait The maximum time to wait for a token, in milliseconds
+     * @return true if a token has been taken, false if none would be available in time
+     */
+    public boolean acquire(long maxWait) {
+        final long deadline = SystemClock.elapsedRealtime() + maxWait;
+
+        while (true) {
+            final long wait;
+            synchronized (this) {
+                final long now = SystemClock.elapsedRealtime();
+                refill(now);
+
+                if (now >= mBlockedUntil && mTokens >= 1) {
+                    mTokens -= 1;
+                    return true;
+                }
+
+                final long nextToken = Math.max(mBlockedUntil,
+                        now + (long) ((1 - mTokens) * mRefillInterval));
+                if (nextToken > deadline) {
+                    return false;
+                }
+                wait = nextToken - now;
+            }
+
+            try {
+                Thread.sleep(Math.max(wait, 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Empties the bucket and blocks it, eg. after the API reported that we're rate limited
+     * @param duration The time during which no token will be given, in milliseconds
+     */
+    public synchronized void backOff(long duration) {
+        final long now = SystemClock.elapsedRealtime();
+        mTokens = 0;
+        mLastRefill = now + duration;
+        mBlockedUntil = Math.max(mBlockedUntil, now + duration);
+    }
+
+    /**
+     * @return true if the bucket is blocked after a call to {@link #backOff(long)}
+     */
+    public synchronized boolean isBlocked() {
+        return SystemClock.elapsedRealtime() < mBlockedUntil;
+    }
+
+    private void refill(long now) {
+        if (now > mLastRefill) {
+            mTokens = Math.min(mCapacity, mTokens + (double) (now - mLastRefill) / mRefillInterval);
+            mLastRefill = now;
+        }
+    }
+}
@@ -17,6 +17,7 @@ package com.fastbootmobile.encore.api.echonest;
 
 import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
 
 import com.echonest.api.v4.Artist;
 import com.echonest.api.v4.Biography;
@@ -32,32 +33,198 @@ import com.echonest.api.v4.PlaylistParams;
 import com.echonest.api.v4.SongCatalogItem;
 
 import com.fastbootmobile.encore.api.common.APIKeys;
+import com.fastbootmobile.encore.api.common.MetadataCache;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 /**
  * EchoNest Glue class between jEN and the data we use in OmniMusic
- * TODO: Cache artist info on disk
  */
 public class EchoNest {
     private static final String TAG = "EchoNest";
     private static final boolean DEBUG = false;
 
+    private static final long DAY = 24L * 3600 * 1000;
+    private static final int MAX_ARTISTS_IN_MEMORY = 64;
+
     private EchoNestAPI mEchoNest;
-    private static final Map<String, Artist> sArtistSearchCache = new HashMap<>();
-    private static final Map<Artist, Biography> sArtistBiographyCache = new HashMap<>();
-    private static final Map<Artist, Map<String, String>> sArtistUrlsCache = new HashMap<>();
-    private static final Map<Artist, List<Artist>> sArtistSimilarCache = new HashMap<>();
-    private static final Map<Artist, Map<String, String>> sArtistForeignIDs = new HashMap<>();
+
+    // jEN artists can't be rebuilt without a network request, so they're only kept in memory.
+    // The data we show from them is cached on disk below.
+    private static final LruCache<String, Artist> sArtistSearchCache
+            = new LruCache<>(MAX_ARTISTS_IN_MEMORY);
+    private static final LruCache<Artist, Map<String, String>> sArtistUrlsCache
+            = new LruCache<>(MAX_ARTISTS_IN_MEMORY);
+
+    // Lookup key -> lookup running for that key
+    private static final Map<String, FutureTask<?>> sRunningLookups = new HashMap<>();
+
+    private static final MetadataCache<ArtistBiography> sArtistBiographyCache
+            = new MetadataCache<>("echonest_bio", MAX_ARTISTS_IN_MEMORY, 30 * DAY,
+            2 * 1024 * 1024, new MetadataCache.Codec<ArtistBiography>() {
+        @Override
+        public byte[] encode(ArtistBiography value) throws IOException {
+            try {
+                final JSONObject object = new JSONObject();
+                object.put("text", value.getText());
+                object.put("site", value.getSite());
+                object.put("url", value.getURL());
+                object.put("license_type", value.getLicenseType());
+                object.put("license_attribution", value.getLicenseAttribution());
+                return object.toString().getBytes("UTF-8");
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public ArtistBiography decode(byte[] data) throws IOException {
+            try {
+                final JSONObject object = new JSONObject(new String(data, "UTF-8"));
+                return new ArtistBiography(object.optString("text", null),
+                        object.optString("site", null), object.optString("url", null),
+                        object.optString("license_type", null),
+                        object.optString("license_attribution", null));
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+    });
+
+    private static final MetadataCache<List<SimilarArtist>> sArtistSimilarCache
+            = new MetadataCache<>("echonest_similar", MAX_ARTISTS_IN_MEMORY, 14 * DAY,
+            1024 * 1024, new MetadataCache.Codec<List<SimilarArtist>>() {
+        @Override
+        public byte[] encode(List<SimilarArtist> value) throws IOException {
+            try {
+                final JSONArray array = new JSONArray();
+                for (SimilarArtist similar : value) {
+                    final JSONObject object = new JSONObject();
+                    object.put("id", similar.getID());
+                    object.put("name", similar.getName());
+                    object.put("foreign_ids", new JSONObject(similar.mForeignIDs));
+                    array.put(object);
+                }
+                return array.toString().getBytes("UTF-8");
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public List<SimilarArtist> decode(byte[] data) throws IOException {
+            try {
+                final JSONArray array = new JSONArray(new String(data, "UTF-8"));
+                final List<SimilarArtist> result = new ArrayList<>(array.length());
+                for (int i = 0; i < array.length(); ++i) {
+                    final JSONObject object = array.getJSONObject(i);
+                    final SimilarArtist similar = new SimilarArtist(object.optString("id", null),
+                            object.optString("name", null));
+                    final JSONObject foreignIDs = object.getJSONObject("foreign_ids");
+                    final Iterator<String> prefixes = foreignIDs.keys();
+                    while (prefixes.hasNext()) {
+                        final String prefix = prefixes.next();
+                        similar.mForeignIDs.put(prefix, foreignIDs.getString(prefix));
+                    }
+                    result.add(similar);
+                }
+                return result;
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+    });
+
+    /**
+     * Biography of an artist, as shown in the artist page
+     */
+    public static class ArtistBiography {
+        private final String mText;
+        private final String mSite;
+        private final String mUrl;
+        private final String mLicenseType;
+        private final String mLicenseAttribution;
+
+        ArtistBiography(String text, String site, String url, String licenseType,
+                        String licenseAttribution) {
+            mText = text;
+            mSite = site;
+            mUrl = url;
+            mLicenseType = licenseType;
+            mLicenseAttribution = licenseAttribution;
+        }
+
+        public String getText() {
+            return mText;
+        }
+
+        public String getSite() {
+            return mSite;
+        }
+
+        public String getURL() {
+            return mUrl;
+        }
+
+        public String getLicenseType() {
+            return mLicenseType;
+        }
+
+        public String getLicenseAttribution() {
+            return mLicenseAttribution;
+        }
+    }
+
+    /**
+     * An artist similar to another one, with its rosetta stone IDs for linking to the providers
+     */
+    public static class SimilarArtist {
+        private final String mID;
+        private final String mName;
+        private final Map<String, String> mForeignIDs = new HashMap<>();
+
+        SimilarArtist(String id, String name) {
+            mID = id;
+            mName = name;
+        }
+
+        /**
+         * @return The EchoNest ID of the artist
+         */
+        public String getID() {
+            return mID;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        /**
+         * @param prefix The rosetta prefix (e.g. "spotify")
+         * @return The rosetta ID of the artist, or null if the artist has none for this prefix
+         */
+        public String getForeignID(String prefix) {
+            return mForeignIDs.get(prefix);
+        }
+    }
 
     /**
      * Initializes an EchoNest API client with the EchoNest API key
@@ -75,6 +242,20 @@ public class EchoNest {
         return mEchoNest;
     }
 
+    /**
+     * @return The lookup statistics of the biographies cache
+     */
+    public static MetadataCache.Stats getBiographyCacheStats() {
+        return sArtistBiographyCache.getStats();
+    }
+
+    /**
+     * @return The lookup statistics of the similar artists cache
+     */
+    public static MetadataCache.Stats getSimilarCacheStats() {
+        return sArtistSimilarCache.getStats();
+    }
+
     /**
      * Returns whether or not the provided artist name is in cache for searchArtistByName
      * @param name The artist name
@@ -82,9 +263,7 @@ public class EchoNest {
      * query, false otherwise
      */
     public boolean hasArtistInCache(String name) {
-        synchronized (sArtistSearchCache) {
-            return sArtistSearchCache.containsKey(name);
-        }
+        return sArtistSearchCache.get(name) != null;
     }
 
     /**
@@ -95,10 +274,7 @@ public class EchoNest {
      */
     public Artist searchArtistByName(String name) throws EchoNestException {
         // First look in the cache
-        Artist result;
-        synchronized (sArtistSearchCache) {
-            result = sArtistSearchCache.get(name);
-        }
+        Artist result = sArtistSearchCache.get(name);
 
         if (result == null) {
             // We don't have this artist cached, so let's look it up on EchoNest
@@ -109,9 +285,7 @@ public class EchoNest {
             List<Artist> results = mEchoNest.searchArtists(p);
             if (results.size() > 0) {
                 result = results.get(0);
-                synchronized (sArtistSearchCache) {
-                    sArtistSearchCache.put(name, result);
-                }
+                sArtistSearchCache.put(name, result);
             }
         }
 
@@ -120,49 +294,71 @@ public class EchoNest {
 
     /**
      * Returns whether or not the biography for the provided artist exists in the cache (ie.
-     * a call to {@link #getArtistBiography(com.echonest.api.v4.Artist)} won't do any network
-     * operation.
-     * @param artist The artist for which we want the biography
+     * a call to {@link #getArtistBiography(String)} won't do any network operation. This
+     * method may read the disk.
+     * @param artistName The name of the artist for which we want the biography
      * @return True if the biography is cached, false otherwise
      */
-    public boolean hasArtistBiographyCached(Artist artist) {
-        synchronized (sArtistBiographyCache) {
-            return sArtistBiographyCache.containsKey(artist);
-        }
+    public boolean hasArtistBiographyCached(String artistName) {
+        return sArtistBiographyCache.get(artistName) != null;
     }
 
     /**
      * Fetches and return the artist biography for the provided artist. This method is doing
      * network operations if the biography is not already cached.
-     * @param artist The artist for which we want the biography
-     * @return A {@link com.echonest.api.v4.Biography}, or null if none available
+     * @param artistName The name of the artist for which we want the biography
+     * @return An {@link ArtistBiography}, or null if none available
      * @throws EchoNestException
      */
-    public Biography getArtistBiography(Artist artist) throws EchoNestException {
-        Biography result;
-
+    public ArtistBiography getArtistBiography(final String artistName) throws EchoNestException {
         // First, look in the cache
-        synchronized (sArtistBiographyCache) {
-            result = sArtistBiographyCache.get(artist);
-        }
+        ArtistBiography result = sArtistBiographyCache.get(artistName);
 
         if (result == null) {
-            List<Biography> results = artist.getBiographies(0, 10);
-
-            // We prefer wikipedia, and otherwise the longest one
-            for (Biography bio : results) {
-                if (bio.getSite().equals("wikipedia")) {
-                    result = bio;
-                    break;
-                } else if (result == null || result.getText().length() < bio.getText().length()) {
-                    result = bio;
+            result = runLookup("bio:" + artistName, new Callable<ArtistBiography>() {
+                @Override
+                public ArtistBiography call() throws EchoNestException {
+                    return fetchArtistBiography(artistName);
                 }
+            });
+        }
+
+        return result;
+    }
+
+    private ArtistBiography fetchArtistBiography(String artistName) throws EchoNestException {
+        // Another lookup might have fetched it while we were waiting
+        ArtistBiography result = sArtistBiographyCache.get(artistName);
+        if (result != null) {
+            return result;
+        }
+
+        final Artist artist = searchArtistByName(artistName);
+        if (artist == null) {
+            return null;
+        }
+
+        List<Biography> results = artist.getBiographies(0, 10);
+
+        // We prefer wikipedia, and otherwise the longest one
+        Biography selection = null;
+        for (Biography bio : results) {
+            if (bio.getSite().equals("wikipedia")) {
+                selection = bio;
+                break;
+            } else if (selection == null
+                    || selection.getText().length() < bio.getText().length()) {
+                selection = bio;
             }
+        }
+
+        if (selection != null) {
+            result = new ArtistBiography(selection.getText(), selection.getSite(),
+                    selection.getURL(), selection.getLicenseType(),
+                    selection.getLicenseAttribution());
 
             // Cache it
-            synchronized (sArtistBiographyCache) {
-                sArtistBiographyCache.put(artist, result);
-            }
+            sArtistBiographyCache.put(artistName, result);
         }
 
         return result;
@@ -175,14 +371,11 @@ public class EchoNest {
      * @throws EchoNestException
      */
     public Map<String, String> getArtistUrls(Artist artist) throws EchoNestException {
-        Map<String, String> result;
-        synchronized (sArtistUrlsCache) {
-            result = sArtistUrlsCache.get(artist);
-        }
+        Map<String, String> result = sArtistUrlsCache.get(artist);
 
         if (result == null) {
             result = artist.getUrls();
-            synchronized (sArtistUrlsCache) {
+            if (result != null) {
                 sArtistUrlsCache.put(artist, result);
             }
         }
@@ -192,79 +385,138 @@ public class EchoNest {
 
     /**
      * Returns whether or not the similar artists for the provided artists are in cache (ie. a call
-     * to {@link #getArtistSimilar(com.echonest.api.v4.Artist)} won't do any network operation)
-     * @param artist The artist for which get similar results
+     * to {@link #getArtistSimilar(String)} won't do any network operation). This method may read
+     * the disk.
+     * @param artistName The name of the artist for which get similar results
      * @return True if in cache, false otherwise
      */
-    public boolean hasArtistSimilarCached(Artist artist) {
-        synchronized (sArtistSimilarCache) {
-            return sArtistSimilarCache.containsKey(artist);
-        }
+    public boolean hasArtistSimilarCached(String artistName) {
+        return sArtistSimilarCache.get(getSimilarCacheKey(artistName)) != null;
     }
 
     /**
-     * Returns a list of similar artists for the provided artist
-     * @param artist The artist for which get similar results
-     * @return A list of artists similar to the artist provided
+     * Returns a list of similar artists for the provided artist, with their rosetta stone IDs for
+     * the providers currently available
+     * @param artistName The name of the artist for which get similar results
+     * @return A list of artists similar to the artist provided, or null if the artist isn't
+     * known by EchoNest
      * @throws EchoNestException
      */
-    public List<Artist> getArtistSimilar(Artist artist) throws EchoNestException {
-        List<Artist> result;
-        synchronized (sArtistSimilarCache) {
-            result = sArtistSimilarCache.get(artist);
-        }
+    public List<SimilarArtist> getArtistSimilar(final String artistName)
+            throws EchoNestException {
+        final String key = getSimilarCacheKey(artistName);
+        List<SimilarArtist> result = sArtistSimilarCache.get(key);
 
         if (result == null) {
-            // Get similar artists
-            result = artist.getSimilar(6);
-            synchronized (sArtistSimilarCache) {
-                sArtistSimilarCache.put(artist, result);
-            }
-
-            // Put rosetta stone IDs for each for linking
-            List<String> rosettaPrefixes = ProviderAggregator.getDefault().getRosettaStonePrefix();
-            for (Artist similar : result) {
-                Map<String, String> linksMap;
-                synchronized (sArtistForeignIDs) {
-                    linksMap = sArtistForeignIDs.get(similar);
-                    if (linksMap == null) {
-                        linksMap = new HashMap<>();
-                        sArtistForeignIDs.put(similar, linksMap);
-                    }
+            result = runLookup("similar:" + key, new Callable<List<SimilarArtist>>() {
+                @Override
+                public List<SimilarArtist> call() throws EchoNestException {
+                    return fetchArtistSimilar(artistName, key);
                 }
+            });
+        }
 
-                for (String prefix : rosettaPrefixes) {
-                    try {
-                        String rosettaLink = similar.getForeignID(prefix);
-                        synchronized (sArtistForeignIDs) {
-                            linksMap.put(prefix, rosettaLink);
-                        }
-                    } catch (Exception ignore) { }
-                }
+        return result;
+    }
+
+    private List<SimilarArtist> fetchArtistSimilar(String artistName, String key)
+            throws EchoNestException {
+        // Another lookup might have fetched them while we were waiting
+        List<SimilarArtist> result = sArtistSimilarCache.get(key);
+        if (result != null) {
+            return result;
+        }
+
+        final Artist artist = searchArtistByName(artistName);
+        if (artist == null) {
+            return null;
+        }
+
+        // Get similar artists
+        List<Artist> similars = artist.getSimilar(6);
+        result = new ArrayList<>(similars.size());
+
+        // Put rosetta stone IDs for each for linking
+        List<String> rosettaPrefixes = ProviderAggregator.getDefault().getRosettaStonePrefix();
+        for (Artist similar : similars) {
+            SimilarArtist entry = new SimilarArtist(similar.getID(), similar.getName());
+            for (String prefix : rosettaPrefixes) {
+                try {
+                    String rosettaLink = similar.getForeignID(prefix);
+                    if (rosettaLink != null) {
+                        entry.mForeignIDs.put(prefix, rosettaLink);
+                    }
+                } catch (Exception ignore) { }
             }
+            result.add(entry);
         }
 
+        sArtistSimilarCache.put(key, result);
         return result;
     }
 
     /**
-     * Returns the Rosetta ID for the provided artist and the provided rosetta prefix. This only
-     * works for artists retrieved in getArtistSimilar.
-     *
-     * @param artist The artist for which get the foreign ID
-     * @param prefix The rosetta prefix (e.g. "spotify")
-     * @return The rosetta ID of the artist
+     * Runs a lookup, or waits for the result of the same lookup if another thread is already
+     * running it (eg. an artist page opened while its data is being prefetched)
+     * @param key The key identifying the lookup
+     * @param lookup The lookup
+     * @return The result of the lookup
+     * @throws EchoNestException If the lookup failed
      */
-    public String getArtistForeignID(Artist artist, String prefix) {
-        synchronized (sArtistForeignIDs) {
-            Map<String, String> rosettaMap = sArtistForeignIDs.get(artist);
-            if (rosettaMap != null) {
-                return rosettaMap.get(prefix);
+    @SuppressWarnings("unchecked")
+    private static <V> V runLookup(String key, Callable<V> lookup) throws EchoNestException {
+        FutureTask<V> task;
+        boolean owner = false;
+        synchronized (sRunningLookups) {
+            task = (FutureTask<V>) sRunningLookups.get(key);
+            if (task == null) {
+                task = new FutureTask<>(lookup);
+                sRunningLookups.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (sRunningLookups) {
+                    sRunningLookups.remove(key);
+                }
             }
+        } else if (DEBUG) {
+            Log.d(TAG, "Waiting for running lookup " + key);
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new EchoNestException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof EchoNestException) {
+                throw (EchoNestException) e.getCause();
+            }
+            throw new EchoNestException(e.getCause());
         }
-        return null;
     }
 
+    /**
+     * The foreign IDs of the similar artists depend on the rosetta providers available, so they
+     * are part of the cache key: results fetched before a provider connected are not reused once
+     * it's there.
+     */
+    private static String getSimilarCacheKey(String artistName) {
+        final List<String> prefixes
+                = new ArrayList<>(ProviderAggregator.getDefault().getRosettaStonePrefix());
+        Collections.sort(prefixes);
+
+        final StringBuilder key = new StringBuilder(artistName);
+        for (String prefix : prefixes) {
+            key.append('|').append(prefix);
+        }
+        return key.toString();
+    }
 
     /**
      * Creates a dynamic playlist based on user preferences. All parameters may be used, however
@@ -20,6 +20,7 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import com.fastbootmobile.encore.api.common.HttpClient;
 import com.fastbootmobile.encore.api.common.JsonGet;
 import com.fastbootmobile.encore.api.common.RateLimitException;
 
@@ -36,6 +37,10 @@ public class FreeBaseClient {
     private static final String TOPIC_ENDPOINT = "https://www.googleapis.com/freebase/v1/topic";
     private static final String IMAGE_ENDPOINT = "https://usercontent.googleapis.com/freebase/v1/image";
 
+    private static final long DAY = 24L * 3600 * 1000;
+    private static final HttpClient.Endpoint ENDPOINT = new HttpClient.Endpoint("freebase",
+            7 * DAY, 28 * DAY, 2 * 1024 * 1024);
+
     /**
      * Fetches an Artist Image URL
      * @param artist The name of the artist
@@ -54,9 +59,8 @@ public class FreeBaseClient {
         final String ecFilter = URLEncoder.encode("(all type:/music/artist)", "UTF-8");
         final String ecArtist = URLEncoder.encode(artist, "UTF-8");
 
-        JSONObject object = JsonGet.getObject(API_ENDPOINT,
-                "query=" + ecArtist + "&filter=" + ecFilter + "&limit=1",
-                true);
+        JSONObject object = JsonGet.getObject(ENDPOINT, API_ENDPOINT,
+                "query=" + ecArtist + "&filter=" + ecFilter + "&limit=1");
 
         JSONArray result = object.getJSONArray("result");
         if (result.length() > 0) {
@@ -67,7 +71,8 @@ public class FreeBaseClient {
             // for that topic. We do one more query to not end up with an ugly "NO IMAGE" result.
             // We do take the risk however by allowing the image anyway if we go above the rate limit
             // of Google's API, as the topic endpoint is rate-limited and we're not using any API key.
-            object = JsonGet.getObject(TOPIC_ENDPOINT + metaId, "filter=/common/topic/image&limit=1", true);
+            object = JsonGet.getObject(ENDPOINT, TOPIC_ENDPOINT + metaId,
+                    "filter=/common/topic/image&limit=1");
 
             if (object.has("property") || object.has("error")) {
                 return IMAGE_ENDPOINT + metaId + "?maxwidth=800&maxheight=800";
@@ -20,6 +20,7 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import com.fastbootmobile.encore.api.common.HttpClient;
 import com.fastbootmobile.encore.api.common.JsonGet;
 import com.fastbootmobile.encore.api.common.RateLimitException;
 
@@ -33,6 +34,10 @@ import java.net.URLEncoder;
 public class GoogleImagesClient {
     private static final String TAG = "GoogleImagesClient";
 
+    private static final long DAY = 24L * 3600 * 1000;
+    private static final HttpClient.Endpoint ENDPOINT = new HttpClient.Endpoint("gimages",
+            7 * DAY, 28 * DAY, 2 * 1024 * 1024);
+
     public static String getImageUrl(String query) throws IOException, JSONException, RateLimitException {
         if (query == null) {
             Log.e(TAG, "Null query!");
@@ -42,7 +47,7 @@ public class GoogleImagesClient {
         String queryUrl = "https://ajax.googleapis.com/ajax/services/search/images?v=1.0&q="
                 + URLEncoder.encode(query, "UTF-8") + "&imgsz=large";
 
-        JSONObject obj = JsonGet.getObject(queryUrl, "", true);
+        JSONObject obj = JsonGet.getObject(ENDPOINT, queryUrl, "");
         JSONArray results = obj.getJSONObject("responseData").getJSONArray("results");
 
         if (results.length() > 0) {
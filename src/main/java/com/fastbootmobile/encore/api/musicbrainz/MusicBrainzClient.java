@@ -20,14 +20,13 @@ import android.util.Log;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
+import com.fastbootmobile.encore.api.common.HttpClient;
 import com.fastbootmobile.encore.api.common.JsonGet;
-import com.fastbootmobile.encore.api.common.Pair;
+import com.fastbootmobile.encore.api.common.MetadataCache;
 import com.fastbootmobile.encore.api.common.RateLimitException;
 
 import java.io.IOException;
 import java.net.URLEncoder;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * MusicBrainz API Client
@@ -38,9 +37,78 @@ public class MusicBrainzClient {
     private static final String MAIN_EP = "http://musicbrains.org/ws/2";
     private static final String COVER_EP = "http://coverartarchive.org/release/";
 
-    private static final Map<Pair<String, String>, AlbumInfo[]> mAlbumInfoCache
-            = new HashMap<>();
-    private static final Map<String, String> mAlbumArtCache = new HashMap<>();
+    private static final long DAY = 24L * 3600 * 1000;
+    private static final HttpClient.Endpoint ENDPOINT_MAIN = new HttpClient.Endpoint(
+            "musicbrainz", 7 * DAY, 28 * DAY, 4 * 1024 * 1024);
+    private static final HttpClient.Endpoint ENDPOINT_COVER = new HttpClient.Endpoint(
+            "coverartarchive", 7 * DAY, 28 * DAY, 2 * 1024 * 1024);
+
+    // Releases of an artist and album. Searches without results are cached as empty arrays.
+    private static final MetadataCache<AlbumInfo[]> sAlbumInfoCache = new MetadataCache<>(
+            "musicbrainz_albums", 256, 30 * DAY, 1024 * 1024,
+            new MetadataCache.Codec<AlbumInfo[]>() {
+                @Override
+                public byte[] encode(AlbumInfo[] value) throws IOException {
+                    try {
+                        final JSONArray array = new JSONArray();
+                        for (AlbumInfo info : value) {
+                            final JSONObject object = new JSONObject();
+                            object.put("id", info.id);
+                            object.put("track_count", info.track_count);
+                            array.put(object);
+                        }
+                        return array.toString().getBytes("UTF-8");
+                    } catch (JSONException e) {
+                        throw new IOException(e);
+                    }
+                }
+
+                @Override
+                public AlbumInfo[] decode(byte[] data) throws IOException {
+                    try {
+                        final JSONArray array = new JSONArray(new String(data, "UTF-8"));
+                        final AlbumInfo[] value = new AlbumInfo[array.length()];
+                        for (int i = 0; i < value.length; ++i) {
+                            final JSONObject object = array.getJSONObject(i);
+                            value[i] = new AlbumInfo();
+                            value[i].id = object.getString("id");
+                            value[i].track_count = object.optInt("track_count");
+                        }
+                        return value;
+                    } catch (JSONException e) {
+                        throw new IOException(e);
+                    }
+                }
+            });
+
+    // Album art URL of a release. Releases without art are cached as empty URLs.
+    private static final MetadataCache<String> sAlbumArtCache = new MetadataCache<>(
+            "musicbrainz_art", 256, 30 * DAY, 512 * 1024,
+            new MetadataCache.Codec<String>() {
+                @Override
+                public byte[] encode(String value) throws IOException {
+                    return value.getBytes("UTF-8");
+                }
+
+                @Override
+                public String decode(byte[] data) throws IOException {
+                    return new String(data, "UTF-8");
+                }
+            });
+
+    /**
+     * @return The lookup statistics of the album info cache
+     */
+    public static MetadataCache.Stats getAlbumInfoCacheStats() {
+        return sAlbumInfoCache.getStats();
+    }
+
+    /**
+     * @return The lookup statistics of the album art URLs cache
+     */
+    public static MetadataCache.Stats getAlbumArtCacheStats() {
+        return sAlbumArtCache.getStats();
+    }
 
     /**
      * Retrieves the album information from MusicBrainz. This method is synchronous and must be
@@ -51,14 +119,16 @@ public class MusicBrainzClient {
      * from musicbrainz, or null in case of error
      */
     public static AlbumInfo[] getAlbum(String artist, String album) throws RateLimitException {
-        if (mAlbumInfoCache.containsKey(Pair.create(artist, album))) {
-            return mAlbumInfoCache.get(Pair.create(artist, album));
-        }
-
         if (artist == null && album == null) {
             return null;
         }
 
+        final String cacheKey = artist + "\n" + album;
+        final AlbumInfo[] cached = sAlbumInfoCache.get(cacheKey);
+        if (cached != null) {
+            return cached.length > 0 ? cached : null;
+        }
+
         try {
             String query = "";
             if (artist != null) {
@@ -67,7 +137,8 @@ public class MusicBrainzClient {
             if (album != null && !album.isEmpty()) {
                 query += URLEncoder.encode(" AND release:\"" + album + "\"", "UTF-8");
             }
-            JSONObject object = JsonGet.getObject(MAIN_EP + "/release/", "fmt=json&query=" + query, true);
+            JSONObject object = JsonGet.getObject(ENDPOINT_MAIN, MAIN_EP + "/release/",
+                    "fmt=json&query=" + query);
 
             if (object.has("releases")) {
                 JSONArray releases = object.getJSONArray("releases");
@@ -91,7 +162,7 @@ public class MusicBrainzClient {
                         infoArray[i] = info;
                     }
 
-                    mAlbumInfoCache.put(Pair.create(artist, album), infoArray);
+                    sAlbumInfoCache.put(cacheKey, infoArray);
                     return infoArray;
                 }
             } else if (object.has("error")) {
@@ -100,7 +171,7 @@ public class MusicBrainzClient {
             }
 
             // AlbumArtCache will retry with something else if needed
-            mAlbumInfoCache.put(Pair.create(artist, album), null);
+            sAlbumInfoCache.put(cacheKey, new AlbumInfo[0]);
             return null;
         } catch (IOException e) {
             Log.e(TAG, "Unable to get album info (rate limit?)", e);
@@ -119,12 +190,13 @@ public class MusicBrainzClient {
      * @return An album art URL, or null if none found
      */
     public static String getAlbumArtUrl(String albumId) throws RateLimitException {
-        if (mAlbumArtCache.containsKey(albumId)) {
-            return mAlbumArtCache.get(albumId);
+        final String cached = sAlbumArtCache.get(albumId);
+        if (cached != null) {
+            return cached.isEmpty() ? null : cached;
         }
 
         try {
-            JSONObject object = JsonGet.getObject(COVER_EP + albumId, "", true);
+            JSONObject object = JsonGet.getObject(ENDPOINT_COVER, COVER_EP + albumId, "");
 
             // We take the very first art here, no matter if it's front or back. Eventually some
             // day, we might filter only front art.
@@ -132,13 +204,13 @@ public class MusicBrainzClient {
             JSONObject image = images.getJSONObject(0);
 
             String output = image.getJSONObject("thumbnails").getString("large");
-            mAlbumArtCache.put(albumId, output);
+            sAlbumArtCache.put(albumId, output);
             return output;
         } catch (IOException e) {
-            mAlbumArtCache.put(albumId, null);
+            // Network error, don't remember it as the release having no art
             return null;
         } catch (JSONException e) {
-            mAlbumArtCache.put(albumId, null);
+            sAlbumArtCache.put(albumId, "");
             return null;
         }
     }
@@ -539,6 +539,10 @@ public class DriveModeActivity extends AppActivity implements ILocalCallback,
     public void onPlaylistRemoved(String ref) {
     }
 
+    @Override
+    public void onEntitiesRemoved(List<String> refs) {
+    }
+
     @Override
     public void onArtistUpdate(List<Artist> a) {
         final Song currentTrack = PlaybackProxy.getCurrentTrack();
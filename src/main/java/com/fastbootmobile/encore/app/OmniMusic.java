@@ -21,6 +21,8 @@ import android.net.http.HttpResponseCache;
 import android.os.Build;
 import android.util.Log;
 
+import com.fastbootmobile.encore.api.common.HttpClient;
+import com.fastbootmobile.encore.api.common.MetadataCache;
 import com.fastbootmobile.encore.api.echonest.AutoMixManager;
 import com.fastbootmobile.encore.art.ImageCache;
 import com.fastbootmobile.encore.framework.PluginsLookup;
@@ -98,11 +100,13 @@ public class OmniMusic extends Application {
              * Note about the cache and EchoNest: The HTTP cache would sometimes cache request
              * we didn't want (such as status query for Taste Profile update). We're using
              * a hacked jEN library that doesn't cache these requests.
+             * Our own API clients go through HttpClient, which has its own cache partitions, so
+             * this cache only holds the EchoNest responses.
              */
             // Setup network cache
             try {
                 final File httpCacheDir = new File(getCacheDir(), "http");
-                final long httpCacheSize = 100 * 1024 * 1024; // 100 MiB
+                final long httpCacheSize = 32 * 1024 * 1024; // 32 MiB
                 final HttpResponseCache cache = HttpResponseCache.install(httpCacheDir, httpCacheSize);
 
                 Log.i(TAG, "HTTP Cache size: " + cache.size() / 1024 / 1024 + "MB");
@@ -110,6 +114,10 @@ public class OmniMusic extends Application {
                 Log.w(TAG, "HTTP response cache installation failed", e);
             }
 
+            // Setup API clients cache
+            HttpClient.getDefault().initialize(getApplicationContext());
+            MetadataCache.initialize(getApplicationContext());
+
             // Setup image cache
             ImageCache.getDefault().initialize(getApplicationContext());
 
@@ -17,7 +17,6 @@ package com.fastbootmobile.encore.app.adapters;
 
 import android.content.Context;
 import android.content.res.Resources;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
@@ -34,6 +33,8 @@ import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.utils.Utils;
 import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
+import com.fastbootmobile.encore.art.ArtBackfillQueue;
+import com.fastbootmobile.encore.art.RecyclingBitmapDrawable;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 
@@ -41,7 +42,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 /**
  * Adapter for ListView to show a list of albums
@@ -53,10 +57,11 @@ public class AlbumsAdapter extends BaseAdapter {
 
     private AlbumArtImageView.OnArtLoadedListener mArtListener = new AlbumArtImageView.OnArtLoadedListener() {
         @Override
-        public void onArtLoaded(final AlbumArtImageView view, final BitmapDrawable drawable) {
+        public void onArtLoaded(final AlbumArtImageView view, final RecyclingBitmapDrawable drawable) {
             Palette.from(drawable.getBitmap()).generate(new Palette.PaletteAsyncListener() {
                 @Override
                 public void onGenerated(final Palette palette) {
+                    drawable.setIsShared(false);
                     final Palette.Swatch darkVibrantColor = palette.getDarkVibrantSwatch();
                     final Palette.Swatch darkMutedColor = palette.getDarkMutedSwatch();
 
@@ -188,6 +193,9 @@ public class AlbumsAdapter extends BaseAdapter {
             mAlbums.addAll(ps);
             sortListLocked();
         }
+
+        // Fetch the art of the items that aren't on screen yet when the device is idle
+        ArtBackfillQueue.getDefault().enqueueAll(ps);
     }
 
     /**
@@ -214,6 +222,28 @@ public class AlbumsAdapter extends BaseAdapter {
         return didChange;
     }
 
+    /**
+     * Removes the albums of the provided references
+     * @param refs The references of the albums to remove
+     * @return True if at least one item has been removed
+     */
+    public boolean removeAll(Collection<String> refs) {
+        final Set<String> refSet = new HashSet<>(refs);
+        boolean didChange = false;
+
+        synchronized (mAlbums) {
+            Iterator<Album> it = mAlbums.iterator();
+            while (it.hasNext()) {
+                if (refSet.contains(it.next().getRef())) {
+                    it.remove();
+                    didChange = true;
+                }
+            }
+        }
+
+        return didChange;
+    }
+
     /**
      * Returns whether or not the adapter contains the provided album
      * @param p The album
@@ -38,6 +38,9 @@ import android.widget.TextView;
 import com.fastbootmobile.encore.app.ArtistActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
+import com.fastbootmobile.encore.art.ArtBackfillQueue;
+import com.fastbootmobile.encore.art.RecyclingBitmapDrawable;
+import com.fastbootmobile.encore.framework.ArtistPrefetcher;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.utils.Utils;
 
@@ -45,7 +48,10 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
 
 
 /**
@@ -61,6 +67,7 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
         public final AlbumArtImageView ivCover;
         public final TextView tvTitle;
         public Bitmap srcBitmap;
+        public RecyclingBitmapDrawable srcDrawable;
         public int position;
         public Artist artist;
         public int itemColor;
@@ -98,13 +105,20 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
         }
     };
 
-
-
+    private final View.OnLongClickListener mItemLongClickListener = new View.OnLongClickListener() {
+        @Override
+        public boolean onLongClick(View v) {
+            final ArtistsAdapter.ViewHolder tag = (ArtistsAdapter.ViewHolder) v.getTag();
+            // The artist is likely to be opened when the press is released, get its page ready
+            ArtistPrefetcher.getDefault().onArtistPressed(v.getResources(), tag.artist);
+            return false;
+        }
+    };
 
     private final AlbumArtImageView.OnArtLoadedListener mAlbumArtListener
             = new AlbumArtImageView.OnArtLoadedListener() {
         @Override
-        public void onArtLoaded(final AlbumArtImageView view, final BitmapDrawable drawable) {
+        public void onArtLoaded(final AlbumArtImageView view, final RecyclingBitmapDrawable drawable) {
             final Resources res = view.getResources();
 
             Palette.from(drawable.getBitmap()).generate(new Palette.PaletteAsyncListener() {
@@ -134,6 +148,12 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
                         @Override
                         public void run() {
                             final ViewHolder holder = (ViewHolder) view.getTag();
+
+                            // Keep our share for as long as the holder uses the bitmap
+                            if (holder.srcDrawable != null) {
+                                holder.srcDrawable.setIsShared(false);
+                            }
+                            holder.srcDrawable = drawable;
                             holder.srcBitmap = drawable.getBitmap();
                             holder.itemColor = finalColor;
                             if (finalColor != defaultColor) {
@@ -212,6 +232,9 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
             mArtists.addAll(ps);
             sortList();
         }
+
+        // Fetch the art of the items that aren't on screen yet when the device is idle
+        ArtBackfillQueue.getDefault().enqueueAll(ps);
     }
 
     /**
@@ -234,6 +257,28 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
         }
     }
 
+    /**
+     * Removes the artists of the provided references
+     * @param refs The references of the artists to remove
+     * @return True if at least one item has been removed
+     */
+    public boolean removeAll(Collection<String> refs) {
+        final Set<String> refSet = new HashSet<>(refs);
+        boolean didChange = false;
+
+        synchronized (mArtists) {
+            Iterator<Artist> it = mArtists.iterator();
+            while (it.hasNext()) {
+                if (refSet.contains(it.next().getRef())) {
+                    it.remove();
+                    didChange = true;
+                }
+            }
+        }
+
+        return didChange;
+    }
+
     /**
      * Returns whether or not the adapter contains the provided artist
      * @param p The artist to check
@@ -296,6 +341,7 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
 
         // Set the event listener
         tag.llRoot.setOnClickListener(mItemClickListener);
+        tag.llRoot.setOnLongClickListener(mItemLongClickListener);
 
         // Load the artist art
         final Resources res = tag.llRoot.getResources();
@@ -305,9 +351,18 @@ public class ArtistsAdapter extends RecyclerView.Adapter<ArtistsAdapter.ViewHold
         tag.itemColor = defaultColor;
         if (artist.getName() != null) {
             tag.ivCover.loadArtForArtist(artist);
+            ArtistPrefetcher.getDefault().onArtistVisible(res, artist);
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onViewRecycled(ViewHolder holder) {
+        ArtistPrefetcher.getDefault().cancel(holder.artist);
+    }
+
     /**
      * {@inheritDoc}
      */
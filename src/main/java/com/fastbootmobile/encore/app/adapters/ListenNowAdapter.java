@@ -18,7 +18,6 @@ package com.fastbootmobile.encore.app.adapters;
 import android.app.Activity;
 import android.app.ActivityOptions;
 import android.content.Intent;
-import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.ColorDrawable;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.TransitionDrawable;
@@ -43,6 +42,7 @@ import com.fastbootmobile.encore.app.PlaylistActivity;
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
 import com.fastbootmobile.encore.app.ui.MaterialTransitionDrawable;
+import com.fastbootmobile.encore.art.RecyclingBitmapDrawable;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.BoundEntity;
@@ -514,11 +514,12 @@ public class ListenNowAdapter extends BaseAdapter {
 
             ivAlbumArt.setOnArtLoadedListener(new AlbumArtImageView.OnArtLoadedListener() {
                 @Override
-                public void onArtLoaded(AlbumArtImageView view, BitmapDrawable drawable) {
+                public void onArtLoaded(AlbumArtImageView view, final RecyclingBitmapDrawable drawable) {
                     if (drawable != null) {
                         Palette.from(drawable.getBitmap()).generate(new Palette.PaletteAsyncListener() {
                             @Override
                             public void onGenerated(Palette palette) {
+                                drawable.setIsShared(false);
                                 int color = palette.getDarkMutedColor(0xFF333333);
                                 TransitionDrawable td = new TransitionDrawable(new Drawable[] {
                                         llLnItemCard.getBackground(),
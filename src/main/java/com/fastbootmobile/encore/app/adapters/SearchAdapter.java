@@ -36,6 +36,7 @@ import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.fragments.PlaylistChooserFragment;
 import com.fastbootmobile.encore.app.fragments.SearchFragment;
 import com.fastbootmobile.encore.app.ui.AlbumArtImageView;
+import com.fastbootmobile.encore.framework.ArtistPrefetcher;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.art.RecyclingBitmapDrawable;
@@ -87,6 +88,8 @@ public class SearchAdapter extends BaseExpandableListAdapter {
         public void onClick(View v) {
             ViewHolder vh = (ViewHolder) v.getTag();
             Artist artist = (Artist) vh.content;
+            // Opening the artist page is one of the choices, get it ready
+            ArtistPrefetcher.getDefault().onArtistPressed(v.getResources(), artist);
             showArtistOverflow(v.getContext(), v, artist);
         }
     };
@@ -206,6 +209,17 @@ public class SearchAdapter extends BaseExpandableListAdapter {
         return mMaxCount[group];
     }
 
+    /**
+     * Replaces the current results of the adapter with the provided ones. The number of displayed
+     * entries per group is kept.
+     *
+     * @param searchResults The new results
+     */
+    public void setResults(List<SearchResult> searchResults) {
+        clear();
+        appendResults(searchResults);
+    }
+
     /**
      * Add the results to the current adapter's results
      *
@@ -576,10 +590,16 @@ public class SearchAdapter extends BaseExpandableListAdapter {
             return;
         }
 
+        if (tag.content instanceof Artist) {
+            // The view is reused for another entry
+            ArtistPrefetcher.getDefault().cancel((Artist) tag.content);
+        }
+
         if (artist != null && (artist.isLoaded() || artist.getName() != null)) {
             tag.tvTitle.setText(artist.getName());
             tag.tvSubtitle.setText(null);
             tag.albumArtImageView.loadArtForArtist(artist);
+            ArtistPrefetcher.getDefault().onArtistVisible(tag.vRoot.getResources(), artist);
             tag.content = artist;
             tag.sourceLogo = PluginsLookup.getDefault().getCachedLogo(tag.vRoot.getResources(), artist);
             tag.ivSource.setImageDrawable(tag.sourceLogo);
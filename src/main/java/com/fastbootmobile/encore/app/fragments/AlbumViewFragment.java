@@ -59,6 +59,7 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.UpdateFilters;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
 import com.fastbootmobile.encore.utils.Utils;
@@ -290,7 +291,8 @@ public class AlbumViewFragment extends MaterialReelBaseFragment implements ILoca
     @Override
     public void onResume() {
         super.onResume();
-        ProviderAggregator.getDefault().addUpdateCallback(this);
+        ProviderAggregator.getDefault().addUpdateCallback(this,
+                mAlbum != null ? UpdateFilters.forAlbum(mAlbum.getRef()) : null);
         PlaybackProxy.addCallback(mPlaybackCallback);
 
         // Current track might have changed, so update it
@@ -614,6 +616,10 @@ public class AlbumViewFragment extends MaterialReelBaseFragment implements ILoca
     public void onPlaylistRemoved(String ref) {
     }
 
+    @Override
+    public void onEntitiesRemoved(List<String> refs) {
+    }
+
     /**
      * {@inheritDoc}
      */
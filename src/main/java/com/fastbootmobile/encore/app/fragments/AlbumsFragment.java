@@ -179,6 +179,21 @@ public class AlbumsFragment extends Fragment implements ILocalCallback, Provider
     public void onPlaylistRemoved(String ref) {
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onEntitiesRemoved(List<String> refs) {
+        if (mAdapter.removeAll(refs)) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mAdapter.notifyDataSetChanged();
+                }
+            });
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
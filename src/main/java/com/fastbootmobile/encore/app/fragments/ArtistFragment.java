@@ -49,7 +49,6 @@ import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.TextView;
 
-import com.echonest.api.v4.Biography;
 import com.echonest.api.v4.EchoNestException;
 import com.fastbootmobile.encore.api.echonest.EchoNest;
 import com.fastbootmobile.encore.app.AppActivity;
@@ -76,6 +75,7 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.UpdateFilters;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
@@ -254,14 +254,18 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
          * {@inheritDoc}
          */
         @Override
-        public void onArtLoaded(AlbumArtImageView view, BitmapDrawable drawable) {
-            if (drawable == null || drawable.getBitmap() == null) {
+        public void onArtLoaded(AlbumArtImageView view, final RecyclingBitmapDrawable drawable) {
+            if (drawable == null) {
+                return;
+            } else if (drawable.getBitmap() == null) {
+                drawable.setIsShared(false);
                 return;
             }
 
             Palette.from(drawable.getBitmap()).generate(new Palette.PaletteAsyncListener() {
                 @Override
                 public void onGenerated(Palette palette) {
+                    drawable.setIsShared(false);
                     Palette.Swatch vibrant = palette.getVibrantSwatch();
 
                     if (vibrant != null && mRootView != null) {
@@ -646,7 +650,16 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
 
         // Register for updates
         PlaybackProxy.addCallback(mPlaybackCallback);
-        ProviderAggregator.getDefault().addUpdateCallback(this);
+        // All the artist updates are needed to refresh the similar artists
+        final ProviderAggregator.UpdateFilter artistFilter
+                = UpdateFilters.forArtist(mArtist.getRef());
+        ProviderAggregator.getDefault().addUpdateCallback(this,
+                new ProviderAggregator.UpdateFilter() {
+                    @Override
+                    public boolean accept(BoundEntity entity) {
+                        return entity instanceof Artist || artistFilter.accept(entity);
+                    }
+                });
     }
 
     /**
@@ -804,6 +817,10 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
     public void onPlaylistRemoved(String ref) {
     }
 
+    @Override
+    public void onEntitiesRemoved(List<String> refs) {
+    }
+
     @Override
     public void onArtistUpdate(final List<Artist> a) {
         if (a.contains(mArtist)) {
@@ -1485,26 +1502,24 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
         private void loadBiographySync() {
             final EchoNest echoNest = new EchoNest();
             try {
-                com.echonest.api.v4.Artist enArtist = echoNest.searchArtistByName(mArtist.getName());
-                if (enArtist != null) {
-                    final Biography bio = echoNest.getArtistBiography(enArtist);
-                    mHandler.post(new Runnable() {
-                        @Override
-                        public void run() {
-                            if (mLoadingSpinner != null && mArtistInfo != null && !isDetached()) {
-                                mLoadingSpinner.setVisibility(View.GONE);
+                final EchoNest.ArtistBiography bio
+                        = echoNest.getArtistBiography(mArtist.getName());
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mLoadingSpinner != null && mArtistInfo != null && !isDetached()) {
+                            mLoadingSpinner.setVisibility(View.GONE);
 
-                                if (bio != null) {
-                                    mArtistInfo.setText(getString(R.string.biography_format,
-                                            bio.getText(), bio.getSite(), bio.getURL(),
-                                            bio.getLicenseType(), bio.getLicenseAttribution()));
-                                } else {
-                                    mArtistInfo.setText(getString(R.string.no_bio_available));
-                                }
+                            if (bio != null) {
+                                mArtistInfo.setText(getString(R.string.biography_format,
+                                        bio.getText(), bio.getSite(), bio.getURL(),
+                                        bio.getLicenseType(), bio.getLicenseAttribution()));
+                            } else {
+                                mArtistInfo.setText(getString(R.string.no_bio_available));
                             }
                         }
-                    });
-                }
+                    }
+                });
             } catch (Exception e) {
                 Log.e(TAG, "Unable to get artist information", e);
                 mHandler.post(new Runnable() {
@@ -1610,9 +1625,8 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
         public void loadSimilarSync() {
             EchoNest echoNest = new EchoNest();
             try {
-                com.echonest.api.v4.Artist enArtist = echoNest.searchArtistByName(mArtist.getName());
-                if (enArtist != null) {
-                    List<com.echonest.api.v4.Artist> similars = echoNest.getArtistSimilar(enArtist);
+                List<EchoNest.SimilarArtist> similars = echoNest.getArtistSimilar(mArtist.getName());
+                if (similars != null) {
 
                     // Retrieve the rosetta stone prefix
                     String rosettaPreferred = ProviderAggregator.getDefault().getPreferredRosettaStonePrefix();
@@ -1622,9 +1636,9 @@ public class ArtistFragment extends Fragment implements ILocalCallback {
                     }
 
                     // For each similar artist, get the rosetta stone ID, and add it to the adapter
-                    for (com.echonest.api.v4.Artist similar : similars) {
+                    for (EchoNest.SimilarArtist similar : similars) {
                         if (rosettaPreferred != null) {
-                            String ref = echoNest.getArtistForeignID(similar, rosettaPreferred);
+                            String ref = similar.getForeignID(rosettaPreferred);
                             if (ref != null) {
                                 Artist artist = ProviderAggregator.getDefault().retrieveArtist(ref, rosettaProvider);
                                 if (artist != null) {
@@ -139,6 +139,21 @@ public class ArtistsListFragment extends Fragment implements ILocalCallback {
     public void onPlaylistRemoved(String ref) {
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onEntitiesRemoved(final List<String> refs) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mAdapter.removeAll(refs)) {
+                    mAdapter.notifyDataSetChanged();
+                }
+            }
+        });
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -116,6 +116,10 @@ public class HistoryFragment extends Fragment implements ILocalCallback {
     public void onPlaylistRemoved(String ref) {
     }
 
+    @Override
+    public void onEntitiesRemoved(List<String> refs) {
+    }
+
     @Override
     public void onArtistUpdate(List<Artist> a) {
         mHandler.post(new Runnable() {
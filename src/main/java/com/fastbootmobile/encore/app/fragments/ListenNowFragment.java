@@ -22,7 +22,6 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.TransactionTooLargeException;
 import android.support.v4.app.Fragment;
 import android.support.v7.app.ActionBar;
 import android.support.v7.widget.CardView;
@@ -56,6 +55,7 @@ import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.LibraryStream;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.utils.Utils;
@@ -296,35 +296,19 @@ public class ListenNowFragment extends Fragment implements ILocalCallback {
                 // Get the list of songs first
                 final List<ProviderConnection> providers = plugins.getAvailableProviders();
                 for (ProviderConnection provider : providers) {
-                    int limit = 50;
-                    int offset = 0;
-
-                    while (!isInterrupted()) {
-                        try {
-                            List<Song> providerSongs = provider.getBinder().getSongs(offset, limit);
+                    if (isInterrupted()) {
+                        break;
+                    }
 
-                            if (providerSongs != null) {
+                    try {
+                        LibraryStream.readSongs(provider, new LibraryStream.SongListener() {
+                            @Override
+                            public void onSongs(List<Song> providerSongs) {
                                 songs.addAll(providerSongs);
-                                offset += providerSongs.size();
-
-                                if (providerSongs.size() < limit) {
-                                    if (DEBUG) Log.d(TAG, "Got " + providerSongs.size() + " instead of " + limit + ", assuming end of list");
-                                    break;
-                                }
-                            } else {
-                                break;
-                            }
-                        } catch (TransactionTooLargeException e) {
-                            limit -= 5;
-                            if (limit <= 0) {
-                                Log.e(TAG, "Error getting songs from " + provider.getProviderName()
-                                        + ": transaction too large even with limit = 5");
-                                break;
                             }
-                        } catch (Exception e) {
-                            Log.e(TAG, "Error getting songs from " + provider.getProviderName() + ": " + e.getMessage());
-                            break;
-                        }
+                        });
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error getting songs from " + provider.getProviderName() + ": " + e.getMessage());
                     }
                 }
 
@@ -589,6 +573,10 @@ public class ListenNowFragment extends Fragment implements ILocalCallback {
     public void onPlaylistRemoved(String ref) {
     }
 
+    @Override
+    public void onEntitiesRemoved(List<String> refs) {
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -32,10 +32,9 @@ import com.fastbootmobile.encore.api.chartlyrics.ChartLyricsClient;
 import com.fastbootmobile.encore.api.common.RateLimitException;
 import com.fastbootmobile.encore.app.MainActivity;
 import com.fastbootmobile.encore.app.R;
+import com.fastbootmobile.encore.framework.LyricsManager;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
-import com.fastbootmobile.encore.model.Artist;
 import com.fastbootmobile.encore.model.Song;
-import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
 
 import java.io.IOException;
@@ -142,38 +141,13 @@ public class LyricsFragment extends Fragment {
         @Override
         protected ChartLyricsClient.LyricsResponse doInBackground(Song... params) {
             mSong = params[0];
-            Artist artist = ProviderAggregator.getDefault().retrieveArtist(mSong.getArtist(), mSong.getProvider());
-
-            ChartLyricsClient.LyricsResponse lyrics = null;
-            if (artist != null) {
-                boolean resetByPeer = true;
-
-                while (resetByPeer && !isCancelled()) {
-                    try {
-                        lyrics = ChartLyricsClient.getSongLyrics(artist.getName(), mSong.getTitle());
-                        resetByPeer = false;
-                    } catch (IOException e) {
-                        if (e.getMessage().contains("Connection reset by peer")) {
-                            // ChartLyrics API resets connection to throttle fetching. Retry every few
-                            // seconds until we get them.
-                            try {
-                                Thread.sleep(3000);
-                            } catch (InterruptedException e1) {
-                                break;
-                            }
-                            resetByPeer = true;
-                        } else {
-                            Log.e(TAG, "Cannot get lyrics", e);
-                            resetByPeer = false;
-                        }
-                    } catch (RateLimitException e) {
-                        Log.e(TAG, "Cannot get lyrics", e);
-                        resetByPeer = false;
-                    }
-                }
-            }
 
-            return lyrics;
+            try {
+                return LyricsManager.getDefault().getLyrics(mSong);
+            } catch (IOException | RateLimitException e) {
+                Log.e(TAG, "Cannot get lyrics", e);
+                return null;
+            }
         }
 
         @Override
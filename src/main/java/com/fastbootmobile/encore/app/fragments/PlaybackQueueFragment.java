@@ -166,6 +166,10 @@ public class PlaybackQueueFragment extends Fragment {
         public void onPlaylistRemoved(String ref) {
         }
 
+        @Override
+        public void onEntitiesRemoved(List<String> refs) {
+        }
+
         @Override
         public void onArtistUpdate(List<Artist> a) {
             boolean contains = false;
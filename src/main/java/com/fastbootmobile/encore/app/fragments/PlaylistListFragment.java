@@ -294,6 +294,10 @@ public class PlaylistListFragment extends Fragment implements ILocalCallback {
         }
     }
 
+    @Override
+    public void onEntitiesRemoved(List<String> refs) {
+    }
+
     @Override
     public void onArtistUpdate(List<Artist> a) {
     }
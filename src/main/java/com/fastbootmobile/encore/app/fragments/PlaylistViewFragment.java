@@ -67,6 +67,7 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.UpdateFilters;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
@@ -430,7 +431,8 @@ public class PlaylistViewFragment extends MaterialReelBaseFragment implements IL
     public void onResume() {
         super.onResume();
 
-        ProviderAggregator.getDefault().addUpdateCallback(PlaylistViewFragment.this);
+        ProviderAggregator.getDefault().addUpdateCallback(PlaylistViewFragment.this,
+                mPlaylist != null ? UpdateFilters.forPlaylist(mPlaylist) : null);
         PlaybackProxy.addCallback(mPlaybackCallback);
         updateFabStatus();
 
@@ -831,6 +833,10 @@ public class PlaylistViewFragment extends MaterialReelBaseFragment implements IL
     public void onPlaylistRemoved(String ref) {
     }
 
+    @Override
+    public void onEntitiesRemoved(List<String> refs) {
+    }
+
     @Override
     public void onArtistUpdate(List<Artist> a) {
         // We check if the artists belongs to this playlist
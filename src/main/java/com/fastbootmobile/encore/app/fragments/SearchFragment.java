@@ -71,7 +71,6 @@ public class SearchFragment extends Fragment implements ILocalCallback {
     private List<SearchResult> mSearchResults;
     private String mQuery;
     private ProgressBar mLoadingBar;
-    private int mNumProvidersResponse;
 
     private static class SearchHandler extends Handler {
         private WeakReference<SearchFragment> mParent;
@@ -155,7 +154,7 @@ public class SearchFragment extends Fragment implements ILocalCallback {
 
         // Restore previous search results, in case we're rotating
         if (mSearchResults != null) {
-            mAdapter.appendResults(mSearchResults);
+            mAdapter.setResults(mSearchResults);
             mAdapter.notifyDataSetChanged();
         }
 
@@ -344,6 +343,10 @@ public class SearchFragment extends Fragment implements ILocalCallback {
     public void onPlaylistRemoved(String ref) {
     }
 
+    @Override
+    public void onEntitiesRemoved(List<String> refs) {
+    }
+
     @Override
     public void onArtistUpdate(List<Artist> a) {
         if (mAdapter == null) {
@@ -365,11 +368,12 @@ public class SearchFragment extends Fragment implements ILocalCallback {
 
     @Override
     public void onSearchResult(final List<SearchResult> searchResults) {
+        // Results are merged across providers, each update replaces the previous one
         for (SearchResult searchResult : searchResults) {
             if (searchResult.getQuery().equals(mQuery)) {
                 mSearchResults = searchResults;
+                mHandler.removeMessages(MSG_UPDATE_RESULTS);
                 mHandler.sendEmptyMessage(MSG_UPDATE_RESULTS);
-                mNumProvidersResponse++;
                 break;
             }
         }
@@ -382,7 +386,7 @@ public class SearchFragment extends Fragment implements ILocalCallback {
             getActivity().setTitle("'" + mSearchResults.get(0).getQuery() + "'");
             getActivity().setProgressBarIndeterminateVisibility(false);
 
-            if (mNumProvidersResponse >= 2) {
+            if (!ProviderAggregator.getDefault().isSearchPending(mQuery)) {
                 mLoadingBar.setVisibility(View.GONE);
             }
         } else {
@@ -390,7 +394,7 @@ public class SearchFragment extends Fragment implements ILocalCallback {
         }
 
         if (mAdapter != null) {
-            mAdapter.appendResults(mSearchResults);
+            mAdapter.setResults(mSearchResults);
             mAdapter.notifyDataSetChanged();
         }
     }
@@ -21,6 +21,8 @@ import android.bluetooth.BluetoothDevice;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.graphics.Typeface;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.preference.CheckBoxPreference;
 import android.preference.ListPreference;
@@ -31,11 +33,14 @@ import android.support.v4.app.FragmentManager;
 import android.support.v4.app.FragmentTransaction;
 import android.support.v4.preference.PreferenceFragment;
 import android.webkit.WebView;
+import android.widget.ScrollView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.app.WelcomeActivity;
 import com.fastbootmobile.encore.art.AlbumArtCache;
+import com.fastbootmobile.encore.framework.Metrics;
 import com.fastbootmobile.encore.utils.SettingsKeys;
 
 import java.util.Set;
@@ -49,6 +54,7 @@ public class SettingsFragment extends PreferenceFragment {
     private static final String KEY_CLEAR_CACHES = "pref_clear_caches";
     private static final String KEY_OPEN_SETUP_WIZARD = "pref_open_setup_wizard";
     private static final String KEY_LICENSES = "pref_licenses";
+    private static final String KEY_METRICS = "pref_metrics";
     /**
      * Use this factory method to create a new instance of
      * this fragment
@@ -140,6 +146,10 @@ public class SettingsFragment extends PreferenceFragment {
                 openLicenses();
                 return true;
             }
+            case KEY_METRICS: {
+                openMetrics();
+                return true;
+            }
             case SettingsKeys.KEY_FREE_ART: {
                 AlbumArtCache.CREATIVE_COMMONS = ((CheckBoxPreference) preference).isChecked();
                 return true;
@@ -178,4 +188,42 @@ public class SettingsFragment extends PreferenceFragment {
 
         builder.show();
     }
+
+    private void openMetrics() {
+        AlertDialog.Builder builder = new AlertDialog.Builder(getActivity());
+
+        final int padding = getResources().getDimensionPixelSize(R.dimen.tile_text_padding);
+        final TextView text = new TextView(getActivity());
+        text.setTypeface(Typeface.MONOSPACE);
+        text.setTextIsSelectable(true);
+        text.setPadding(padding, padding, padding, padding);
+        text.setText(R.string.loading);
+
+        // Some gauges lock caches that may be busy, don't read them on the UI thread
+        new AsyncTask<Void, Void, String>() {
+            @Override
+            protected String doInBackground(Void... params) {
+                return Metrics.getDefault().dump();
+            }
+
+            @Override
+            protected void onPostExecute(String dump) {
+                text.setText(dump);
+            }
+        }.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+
+        ScrollView view = new ScrollView(getActivity());
+        view.addView(text);
+
+        builder.setTitle(R.string.settings_metrics_title);
+        builder.setView(view);
+        builder.setPositiveButton(android.R.string.ok, new DialogInterface.OnClickListener() {
+            @Override
+            public void onClick(DialogInterface dialog, int which) {
+                dialog.dismiss();
+            }
+        });
+
+        builder.show();
+    }
 }
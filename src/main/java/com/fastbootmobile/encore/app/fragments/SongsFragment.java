@@ -23,7 +23,6 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Process;
 import android.os.RemoteException;
-import android.os.TransactionTooLargeException;
 import android.support.v4.app.Fragment;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -37,7 +36,7 @@ import com.fastbootmobile.encore.app.adapters.SongsListAdapter;
 import com.fastbootmobile.encore.framework.PlaybackProxy;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Song;
-import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.LibraryStream;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
 import com.fastbootmobile.encore.utils.Utils;
@@ -136,52 +135,14 @@ public class SongsFragment extends Fragment {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
             List<ProviderConnection> providers = PluginsLookup.getDefault().getAvailableProviders();
-            final List<Song> songsToAdd = new ArrayList<>();
             for (ProviderConnection providerConnection : providers) {
                 try {
-                    IMusicProvider provider = providerConnection.getBinder();
-                    if (provider != null) {
-                        int limit = 100;
-                        int offset = 0;
-
-                        while (true) {
-                            try {
-                                List<Song> songs = provider.getSongs(offset, limit);
-
-                                if (songs == null || songs.size() == 0) {
-                                    // Null or empty list, stop here
-                                    break;
-                                }
-
-                                for (Song song : songs) {
-                                    if (song != null) {
-                                        songsToAdd.add(song);
-                                    }
-                                }
-
-                                publishProgress(new ArrayList<>(songsToAdd));
-                                songsToAdd.clear();
-
-                                if (songs.size() < limit) {
-                                    // Less songs than requested, assume we're at the end
-                                    Log.d(TAG, "Got " + songs.size() + " songs, limit="
-                                            + limit + ", assuming end of list");
-                                    break;
-                                } else {
-                                    offset += limit;
-                                }
-                            } catch (TransactionTooLargeException e) {
-                                limit -= 10;
-
-                                if (limit <= 0) {
-                                    Log.e(TAG, "Transaction failed even at limit = 0, bailing out", e);
-                                    break;
-                                }
-
-                                Log.w(TAG, "Transaction too large, reducing limit to " + limit);
-                            }
+                    LibraryStream.readSongs(providerConnection, new LibraryStream.SongListener() {
+                        @Override
+                        public void onSongs(List<Song> songs) {
+                            publishProgress(songs);
                         }
-                    }
+                    });
                 } catch (DeadObjectException e) {
                     Log.e(TAG, "Provider died while getting songs");
                 } catch (RemoteException e) {
@@ -189,7 +150,8 @@ public class SongsFragment extends Fragment {
                 }
             }
 
-            return songsToAdd;
+            // The songs have been delivered as progress
+            return new ArrayList<>();
         }
 
         @SafeVarargs
@@ -49,6 +49,7 @@ import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
+import com.fastbootmobile.encore.providers.LibraryStream;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
@@ -323,25 +324,10 @@ public class TvActivity extends Activity {
         }
 
         for (ProviderConnection provider : providers) {
-            IMusicProvider binder = provider.getBinder();
-            if (binder != null) {
-                int limit = 50;
-                int offset = 0;
-                boolean goAhead = true;
-                try {
-                    while (goAhead) {
-                        List<Song> songs = binder.getSongs(offset, limit);
-                        if (songs == null) {
-                            goAhead = false;
-                            continue;
-                        }
-
-                        if (songs.size() < limit) {
-                            goAhead = false;
-                        }
-
-                        offset += songs.size();
-
+            try {
+                LibraryStream.readSongs(provider, new LibraryStream.SongListener() {
+                    @Override
+                    public void onSongs(List<Song> songs) {
                         for (Song song : songs) {
                             Pair<String, ProviderIdentifier> pair = Pair.create(song.getRef(), song.getProvider());
                             if (!availableReferences.contains(pair)) {
@@ -349,8 +335,8 @@ public class TvActivity extends Activity {
                             }
                         }
                     }
-                } catch (RemoteException ignore) {
-                }
+                });
+            } catch (RemoteException ignore) {
             }
         }
 
@@ -491,6 +477,10 @@ public class TvActivity extends Activity {
 
         }
 
+        @Override
+        public void onEntitiesRemoved(List<String> refs) {
+        }
+
         @Override
         public void onArtistUpdate(List<Artist> a) {
             if (mRowsAdapter != null) {
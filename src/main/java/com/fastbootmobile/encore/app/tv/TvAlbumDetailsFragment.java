@@ -51,6 +51,7 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.UpdateFilters;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.service.BasePlaybackCallback;
 import com.fastbootmobile.encore.utils.Utils;
@@ -152,7 +153,8 @@ public class TvAlbumDetailsFragment extends DetailsFragment {
     public void onResume() {
         super.onResume();
         PlaybackProxy.addCallback(mPlaybackCallback);
-        ProviderAggregator.getDefault().addUpdateCallback(mCallback);
+        ProviderAggregator.getDefault().addUpdateCallback(mCallback,
+                UpdateFilters.forAlbum(mAlbum.getRef()));
         mSongRowPresenter.setCurrentSong(PlaybackProxy.getCurrentTrack());
         updateAdapter();
     }
@@ -329,6 +331,10 @@ public class TvAlbumDetailsFragment extends DetailsFragment {
 
         }
 
+        @Override
+        public void onEntitiesRemoved(List<String> refs) {
+        }
+
         @Override
         public void onArtistUpdate(List<Artist> a) {
 
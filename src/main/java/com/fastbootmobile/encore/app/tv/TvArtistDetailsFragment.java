@@ -59,6 +59,7 @@ import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ILocalCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.UpdateFilters;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 
 import java.util.List;
@@ -114,7 +115,8 @@ public class TvArtistDetailsFragment extends DetailsFragment {
     @Override
     public void onResume() {
         super.onResume();
-        ProviderAggregator.getDefault().addUpdateCallback(mCallback);
+        ProviderAggregator.getDefault().addUpdateCallback(mCallback,
+                UpdateFilters.forArtist(mArtist.getRef()));
     }
 
     @Override
@@ -127,7 +129,7 @@ public class TvArtistDetailsFragment extends DetailsFragment {
     public void onDestroy() {
         super.onDestroy();
         if (mArtTask != null) {
-            mArtTask.cancel(true);
+            mArtTask.cancelRequest();
         }
     }
 
@@ -308,6 +310,10 @@ public class TvArtistDetailsFragment extends DetailsFragment {
 
         }
 
+        @Override
+        public void onEntitiesRemoved(List<String> refs) {
+        }
+
         @Override
         public void onArtistUpdate(List<Artist> a) {
             mHandler.post(new Runnable() {
@@ -156,7 +156,7 @@ public class TvPlaylistDetailsFragment extends DetailsFragment {
     public void onDestroy() {
         super.onDestroy();
         if (mArtTask != null) {
-            mArtTask.cancel(true);
+            mArtTask.cancelRequest();
         }
     }
 
@@ -291,6 +291,10 @@ public class TvSearchFragment extends SearchFragment
         public void onPlaylistRemoved(String ref) {
         }
 
+        @Override
+        public void onEntitiesRemoved(List<String> refs) {
+        }
+
         @Override
         public void onArtistUpdate(List<Artist> a) {
             if (mRowsAdapter != null) {
@@ -37,7 +37,7 @@ import com.fastbootmobile.encore.providers.ProviderAggregator;
 /**
  * Square ImageView displaying album art automatically
  */
-public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper.AlbumArtListener {
+public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper.DisplayTrackingListener {
     private final String TAG = "AlbumArtImageView";
     private static final boolean DEBUG = false;
     private static final boolean STUB = false;
@@ -101,7 +101,7 @@ public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper
             mDrawable.setImmediateTo(getDefaultBitmap());
         }
         if (mTask != null && !mTask.isCancelled()) {
-            mTask.cancel(true);
+            mTask.cancelRequest();
             mTask = null;
         }
     }
@@ -149,7 +149,7 @@ public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper
         }
 
         if (mTask != null) {
-            mTask.cancel(true);
+            mTask.cancelRequest();
             mTask = null;
         }
         mDrawable.setImmediateTo(getDefaultBitmap());
@@ -217,7 +217,7 @@ public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper
         mRequestedEntity = ent;
 
         if (mTask != null) {
-            mTask.cancel(true);
+            mTask.cancelRequest();
         }
         if (mRunnable != null) {
             mRunnable.cancel();
@@ -279,6 +279,8 @@ public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper
             forceDrawableReload();
 
             if (mOnArtLoadedListener != null) {
+                // The listener releases its share once done with the bitmap
+                mCurrentBitmap.setIsShared(true);
                 mOnArtLoadedListener.onArtLoaded(this, mCurrentBitmap);
             }
 
@@ -300,7 +302,15 @@ public class AlbumArtImageView extends SquareImageView implements AlbumArtHelper
     }
 
     public interface OnArtLoadedListener {
-        void onArtLoaded(AlbumArtImageView view, BitmapDrawable drawable);
+        /**
+         * Called when the art is displayed. The bitmap won't be reused until the listener calls
+         * {@link RecyclingBitmapDrawable#setIsShared(boolean)} with false, which it must do once
+         * it no longer uses it.
+         *
+         * @param view The view displaying the art
+         * @param drawable The art, shared with the listener
+         */
+        void onArtLoaded(AlbumArtImageView view, RecyclingBitmapDrawable drawable);
     }
 
     private class TaskRunnable implements Runnable {
@@ -70,13 +70,17 @@ public class MaterialTransitionDrawable extends Drawable {
         mOfflineDrawable = offlineDrawable;
     }
 
+    /**
+     * Returns the drawable shown once the transition is over. As the caller may keep its bitmap
+     * (eg. for a shared element transition), the bitmap won't be reused by the image cache.
+     */
     public BitmapDrawable getFinalDrawable() {
         synchronized (mDrawLock) {
-            if (mTargetDrawable != null) {
-                return mTargetDrawable;
-            } else {
-                return mBaseDrawable;
+            final BitmapDrawable drawable = mTargetDrawable != null ? mTargetDrawable : mBaseDrawable;
+            if (drawable instanceof RecyclingBitmapDrawable) {
+                ((RecyclingBitmapDrawable) drawable).setIsShared(true);
             }
+            return drawable;
         }
     }
 
@@ -89,21 +93,25 @@ public class MaterialTransitionDrawable extends Drawable {
     public void setImmediateTo(BitmapDrawable drawable) {
         synchronized (mDrawLock) {
             // Cancel animation
+            if (mAnimating) {
+                mTargetDrawable.setIsDisplayed(false);
+            }
             mAnimating = false;
             mTargetDrawable = null;
             mShowOfflineOverdraw = false;
 
-            // Set new drawable as base and draw it
+            // Set new drawable as base and draw it. The new one is marked as displayed first, in
+            // case it's the same as the previous one.
+            if (drawable instanceof RecyclingBitmapDrawable) {
+                ((RecyclingBitmapDrawable) drawable).setIsDisplayed(true);
+            }
+
             if (mBaseDrawable != null && mBaseDrawable instanceof RecyclingBitmapDrawable) {
                 ((RecyclingBitmapDrawable) mBaseDrawable).setIsDisplayed(false);
             }
 
             mBaseDrawable = drawable;
             mBaseDrawable.setBounds(getBounds());
-
-            if (mBaseDrawable instanceof RecyclingBitmapDrawable) {
-                ((RecyclingBitmapDrawable) mBaseDrawable).setIsDisplayed(true);
-            }
         }
         invalidateSelf();
     }
@@ -111,8 +119,14 @@ public class MaterialTransitionDrawable extends Drawable {
     public void transitionTo(final RecyclingBitmapDrawable drawable) {
         synchronized (mDrawLock) {
             if (drawable != mTargetDrawable) {
+                // A target that didn't make it to the base is no longer displayed
+                if (mAnimating) {
+                    mTargetDrawable.setIsDisplayed(false);
+                }
+
                 mTargetDrawable = drawable;
                 mTargetDrawable.setBounds(getBounds());
+                mTargetDrawable.setIsDisplayed(true);
 
                 mStartTime = -1;
                 mAnimating = true;
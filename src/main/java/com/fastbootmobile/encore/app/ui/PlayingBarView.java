@@ -138,6 +138,10 @@ public class PlayingBarView extends RelativeLayout implements SharedPreferences.
         public void onPlaylistRemoved(String ref) {
         }
 
+        @Override
+        public void onEntitiesRemoved(List<String> refs) {
+        }
+
         @Override
         public void onArtistUpdate(List<Artist> a) {
             boolean contains = false;
@@ -19,14 +19,18 @@ import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
+import com.fastbootmobile.encore.api.common.HttpClient;
 import com.fastbootmobile.encore.api.common.HttpGet;
 import com.fastbootmobile.encore.api.common.RateLimitException;
+import com.fastbootmobile.encore.api.common.TokenBucket;
 import com.fastbootmobile.encore.api.freebase.FreeBaseClient;
 import com.fastbootmobile.encore.api.gimages.GoogleImagesClient;
 import com.fastbootmobile.encore.api.musicbrainz.AlbumInfo;
 import com.fastbootmobile.encore.api.musicbrainz.MusicBrainzClient;
+import com.fastbootmobile.encore.framework.Metrics;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -44,8 +48,9 @@ import org.json.JSONException;
 
 import java.io.IOException;
 import java.io.InterruptedIOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Cache downloading and handling album art
@@ -55,7 +60,32 @@ public class AlbumArtCache {
     private static final AlbumArtCache INSTANCE = new AlbumArtCache();
     public static boolean CREATIVE_COMMONS = true;
 
-    private final List<BoundEntity> mRunningQueries = new ArrayList<>();
+    /**
+     * Time after which a running query is considered lost, eg. a provider that never called back
+     */
+    private static final long QUERY_TIMEOUT = 10000;
+
+    /**
+     * Maximum time a lookup waits for an image source to accept a request. Past that, the source
+     * is skipped and the lookup is deferred to the background queue.
+     */
+    private static final long LIMITER_MAX_WAIT = 3000;
+
+    /**
+     * Time during which an image source isn't queried after it reported that we're rate limited
+     */
+    private static final long RATE_LIMIT_BACKOFF = 60000;
+
+    // Request rate limiters of the image sources
+    private static final TokenBucket GOOGLE_IMAGES_LIMITER = new TokenBucket(4, 1000);
+    private static final TokenBucket MUSICBRAINZ_LIMITER = new TokenBucket(1, 1000);
+    private static final TokenBucket FREEBASE_LIMITER = new TokenBucket(4, 500);
+
+    // Downloaded images are stored in the image cache, don't keep them in the HTTP cache too
+    private static final HttpClient.Endpoint IMAGES_ENDPOINT = HttpClient.Endpoint.uncached("art");
+
+    // Art key -> query running for that key
+    private final Map<String, RunningQuery> mRunningQueries = new HashMap<>();
 
     /**
      * The art is not in the cache
@@ -79,6 +109,22 @@ public class AlbumArtCache {
         return INSTANCE;
     }
 
+    /**
+     * A lookup running for an art key, and the listeners waiting for it along with the size they
+     * requested. The lookup itself runs for the size of the first request.
+     */
+    private static class RunningQuery {
+        final long startTime = SystemClock.elapsedRealtime();
+        final Resources res;
+        final int sizeBucket;
+        final Map<IAlbumArtCacheListener, Integer> listeners = new LinkedHashMap<>();
+
+        RunningQuery(Resources res, int requestedSize) {
+            this.res = res;
+            this.sizeBucket = ImageCache.getBucket(requestedSize);
+        }
+    }
+
     /**
      * Default constructor
      */
@@ -86,10 +132,11 @@ public class AlbumArtCache {
     }
 
     /**
-     * Empties the image cache
+     * Empties the image cache and forgets about the entities with no art
      */
     public void clear() {
         ImageCache.getDefault().clear();
+        ArtNegativeCache.getDefault().clear();
     }
 
     /**
@@ -121,8 +168,11 @@ public class AlbumArtCache {
     }
 
     /**
-     * Returns the art associated with the entity
+     * Returns the art associated with the entity. If the art isn't cached, only one lookup runs
+     * for a given art key at a time: the listeners of the other requests for that key are called
+     * when it completes.
      * @param ent The entity
+     * @return true if the listener has been or will be called, false if no art can be found
      */
     public boolean getArt(final Resources res, BoundEntity ent, final int requestedSize,
                           IAlbumArtCacheListener listener) {
@@ -130,10 +180,31 @@ public class AlbumArtCache {
         final ImageCache cache = ImageCache.getDefault();
         boolean result = false;
 
+        final Metrics metrics = Metrics.getDefault();
+
         if (cache.hasInMemory(key) || cache.hasOnDisk(key)) {
-            listener.onArtLoaded(ent, cache.get(res, key, requestedSize));
+            final long startTime = SystemClock.elapsedRealtime();
+            final RecyclingBitmapDrawable drawable = cache.get(res, key, requestedSize);
+            metrics.getHistogram("art.cached_load_ms").recordSince(startTime);
+            listener.onArtLoaded(ent, drawable);
             result = true;
         } else {
+            synchronized (mRunningQueries) {
+                RunningQuery query = mRunningQueries.get(key);
+                if (query != null
+                        && SystemClock.elapsedRealtime() - query.startTime < QUERY_TIMEOUT) {
+                    // Somebody is already looking for this art, wait for it
+                    query.listeners.put(listener, requestedSize);
+                    metrics.getCounter("art.coalesced_lookups").increment();
+                    return true;
+                }
+
+                query = new RunningQuery(res, requestedSize);
+                query.listeners.put(listener, requestedSize);
+                mRunningQueries.put(key, query);
+                listener = new QueryListener(key, query);
+            }
+
             if (CREATIVE_COMMONS) {
                 /*
                  * "Copyrighted images to demonstrate functionality, but do not intend to imply
@@ -142,7 +213,7 @@ public class AlbumArtCache {
                  * art in an app screenshot. Workaround: CC images in special build dedicated
                  * to screenshots.
                  */
-                getFreeArt(res, ent, listener);
+                result = getFreeArt(res, ent, listener);
             } else {
                 try {
                     if (ent instanceof Song) {
@@ -152,7 +223,7 @@ public class AlbumArtCache {
                     } else if (ent instanceof Album) {
                         result = getAlbumArt(res, (Album) ent, listener);
                     } else if (ent instanceof Playlist) {
-                        result = getPlaylistArt(res, (Playlist) ent, listener);
+                        result = getPlaylistArt(res, (Playlist) ent, requestedSize, listener);
                     } else {
                         throw new IllegalArgumentException("Entity is of an unknown class!");
                     }
@@ -160,11 +231,77 @@ public class AlbumArtCache {
                     Log.e(TAG, "Remote Exception while trying to get album art", e);
                 }
             }
+
+            if (!result) {
+                // No lookup could be started, release the waiting listeners
+                listener.onArtLoaded(ent, null);
+            }
         }
 
         return result;
     }
 
+    /**
+     * Detaches a listener from the query running for an entity. The query keeps running for its
+     * other listeners.
+     * @param ent The entity
+     * @param listener The listener passed to {@link #getArt}
+     */
+    public void cancelArtRequest(BoundEntity ent, IAlbumArtCacheListener listener) {
+        synchronized (mRunningQueries) {
+            final RunningQuery query = mRunningQueries.get(getEntityArtKey(ent));
+            if (query != null) {
+                query.listeners.remove(listener);
+            }
+        }
+    }
+
+    /**
+     * Listener of a running query, dispatching the result to all the listeners waiting for it
+     */
+    private class QueryListener implements IAlbumArtCacheListener {
+        private final String mKey;
+        private final RunningQuery mQuery;
+
+        QueryListener(String key, RunningQuery query) {
+            mKey = key;
+            mQuery = query;
+        }
+
+        @Override
+        public void onArtLoaded(BoundEntity ent, RecyclingBitmapDrawable result) {
+            final Map<IAlbumArtCacheListener, Integer> listeners;
+            synchronized (mRunningQueries) {
+                // The query may have timed out and been replaced by a new one in the meantime
+                if (mRunningQueries.get(mKey) == mQuery) {
+                    mRunningQueries.remove(mKey);
+                }
+                listeners = new LinkedHashMap<>(mQuery.listeners);
+                mQuery.listeners.clear();
+            }
+
+            final Metrics metrics = Metrics.getDefault();
+            metrics.getHistogram("art.lookup_ms").recordSince(mQuery.startTime);
+            if (result == null) {
+                metrics.getCounter("art.not_found").increment();
+            }
+
+            for (Map.Entry<IAlbumArtCacheListener, Integer> entry : listeners.entrySet()) {
+                RecyclingBitmapDrawable art = result;
+                if (result != null && ImageCache.getBucket(entry.getValue()) != mQuery.sizeBucket) {
+                    // The art was looked up for another size, decode it from the cache at the
+                    // size this listener asked for
+                    final RecyclingBitmapDrawable sized = ImageCache.getDefault()
+                            .get(mQuery.res, mKey, entry.getValue());
+                    if (sized != null) {
+                        art = sized;
+                    }
+                }
+                entry.getKey().onArtLoaded(ent, art);
+            }
+        }
+    }
+
     private boolean getFreeArt(final Resources res, final BoundEntity ent,
                                final IAlbumArtCacheListener listener) {
         new Thread() {
@@ -207,8 +344,7 @@ public class AlbumArtCache {
                     new Thread() {
                         public void run() {
                             if (bitmap != null) {
-                                RecyclingBitmapDrawable rfb
-                                        = ImageCache.getDefault().put(res, getEntityArtKey(song), bitmap);
+                                RecyclingBitmapDrawable rfb = putProviderArt(res, song, bitmap);
                                 listener.onArtLoaded(song, rfb);
                             } else {
                                 listener.onArtLoaded(song, null);
@@ -267,8 +403,7 @@ public class AlbumArtCache {
                     new Thread() {
                         public void run() {
                             if (bitmap != null) {
-                                RecyclingBitmapDrawable rcb
-                                        = ImageCache.getDefault().put(res, getEntityArtKey(album), bitmap);
+                                RecyclingBitmapDrawable rcb = putProviderArt(res, album, bitmap);
                                 listener.onArtLoaded(album, rcb);
                             } else {
                                 listener.onArtLoaded(album, null);
@@ -280,7 +415,13 @@ public class AlbumArtCache {
         }
 
         if (!providerprovides) {
+            if (isKnownWithoutArt(listenerRef, listener)) {
+                return true;
+            }
+
             String url = null;
+            // Whether a source couldn't be queried, in which case we can't tell there's no art
+            boolean deferred = binder == null;
             final String artistRef = (album.getSongsCount() > 0 ? Utils.getMainArtist(album) : null);
             final String albumName = album.getName();
             String artistName = (hintArtist != null ? hintArtist.getName() : null);
@@ -299,20 +440,28 @@ public class AlbumArtCache {
             }
 
             // Try to get from Google Images
-            try {
-                if (artistName != null && albumName != null) {
-                    url = GoogleImagesClient.getImageUrl("album " + artistName + " " + albumName);
-                } else if (artistName == null) {
-                    url = GoogleImagesClient.getImageUrl("album " + albumName);
-                } else {
-                    url = GoogleImagesClient.getImageUrl("album from " + artistName);
+            if (GOOGLE_IMAGES_LIMITER.acquire(LIMITER_MAX_WAIT)) {
+                try {
+                    if (artistName != null && albumName != null) {
+                        url = GoogleImagesClient.getImageUrl("album " + artistName + " " + albumName);
+                    } else if (artistName == null) {
+                        url = GoogleImagesClient.getImageUrl("album " + albumName);
+                    } else {
+                        url = GoogleImagesClient.getImageUrl("album from " + artistName);
+                    }
+                } catch (RateLimitException e) {
+                    Log.w(TAG, "Rate limit hit while getting image from Google Images");
+                    GOOGLE_IMAGES_LIMITER.backOff(RATE_LIMIT_BACKOFF);
+                    deferred = true;
+                } catch (JSONException e) {
+                    Log.e(TAG, "JSON Error while getting image from Google Images");
+                    deferred = true;
+                } catch (IOException e) {
+                    Log.e(TAG, "IO error while getting image from Google Images");
+                    deferred = true;
                 }
-            } catch (RateLimitException e) {
-                Log.w(TAG, "Rate limit hit while getting image from Google Images");
-            } catch (JSONException e) {
-                Log.e(TAG, "JSON Error while getting image from Google Images");
-            } catch (IOException e) {
-                Log.e(TAG, "IO error while getting image from Google Images");
+            } else {
+                deferred = true;
             }
 
             if (url == null) {
@@ -320,10 +469,16 @@ public class AlbumArtCache {
                 AlbumInfo[] albums = null;
 
                 // Query MusicBrainz
-                try {
-                    albums = MusicBrainzClient.getAlbum(artistName, albumName);
-                } catch (RateLimitException e) {
-                    Log.w(TAG, "Can't get from MusicBrainz, rate limited");
+                if (MUSICBRAINZ_LIMITER.acquire(LIMITER_MAX_WAIT)) {
+                    try {
+                        albums = MusicBrainzClient.getAlbum(artistName, albumName);
+                    } catch (RateLimitException e) {
+                        Log.w(TAG, "Can't get from MusicBrainz, rate limited");
+                        MUSICBRAINZ_LIMITER.backOff(RATE_LIMIT_BACKOFF);
+                        deferred = true;
+                    }
+                } else {
+                    deferred = true;
                 }
 
                 // If we have results, go and fetch one
@@ -342,10 +497,16 @@ public class AlbumArtCache {
                     }
 
                     // Get the URL
-                    try {
-                        url = MusicBrainzClient.getAlbumArtUrl(selection.id);
-                    } catch (RateLimitException e) {
-                        Log.w(TAG, "Can't get URL from MusicBrainz, rate limited");
+                    if (MUSICBRAINZ_LIMITER.acquire(LIMITER_MAX_WAIT)) {
+                        try {
+                            url = MusicBrainzClient.getAlbumArtUrl(selection.id);
+                        } catch (RateLimitException e) {
+                            Log.w(TAG, "Can't get URL from MusicBrainz, rate limited");
+                            MUSICBRAINZ_LIMITER.backOff(RATE_LIMIT_BACKOFF);
+                            deferred = true;
+                        }
+                    } else {
+                        deferred = true;
                     }
                 }
             }
@@ -354,7 +515,7 @@ public class AlbumArtCache {
             if (url != null) {
                 // Download it
                 try {
-                    byte[] imageData = HttpGet.getBytes(url, "", true);
+                    byte[] imageData = HttpGet.getBytes(IMAGES_ENDPOINT, url, "");
                     BitmapFactory.Options opts = new BitmapFactory.Options();
                     opts.inMutable = true;
                     Bitmap bitmap = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, opts);
@@ -365,11 +526,14 @@ public class AlbumArtCache {
                     }
                 } catch (IOException e) {
                     Log.e(TAG, "Error while downloading album art");
+                    ArtBackfillQueue.getDefault().enqueue(listenerRef);
                 } catch (RateLimitException e) {
                     Log.e(TAG, "Rate limited while downloading album art");
+                    ArtBackfillQueue.getDefault().enqueue(listenerRef);
                 }
             } else {
                 ImageCache.getDefault().put(res, getEntityArtKey(listenerRef), (RecyclingBitmapDrawable) null);
+                onNoArtFound(listenerRef, deferred);
                 listener.onArtLoaded(listenerRef, null);
                 result = true;
             }
@@ -393,7 +557,7 @@ public class AlbumArtCache {
                     new Thread() {
                         public void run() {
                             if (bitmap != null) {
-                                RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(artist), bitmap);
+                                RecyclingBitmapDrawable rcb = putProviderArt(res, artist, bitmap);
                                 listener.onArtLoaded(artist, rcb);
                             } else {
                                 listener.onArtLoaded(artist, null);
@@ -411,36 +575,56 @@ public class AlbumArtCache {
                 return false;
             }
 
+            if (isKnownWithoutArt(artist, listener)) {
+                return true;
+            }
+
             // Try to get it first from FreeBase, then from Google Image if none found or error
             // (Google Images might return some random/unwanted images, so prefer FreeBase first)
             String url = null;
+            boolean deferred = binder == null;
 
-            try {
-                url = FreeBaseClient.getArtistImageUrl(artist.getName());
-            } catch (JSONException e) {
-                Log.e(TAG, "JSON error while getting image from FreeBase");
-            } catch (RateLimitException e) {
-                Log.w(TAG, "Rate limit hit while getting image from FreeBase");
-            } catch (IOException e) {
-                Log.e(TAG, "IO error while getting image from FreeBase");
-            }
-
-            if (url == null) {
+            if (FREEBASE_LIMITER.acquire(LIMITER_MAX_WAIT)) {
                 try {
-                    url = GoogleImagesClient.getImageUrl("Music Band " + artist.getName());
-                } catch (RateLimitException e) {
-                    Log.w(TAG, "Rate limit hit while getting image from Google Images");
+                    url = FreeBaseClient.getArtistImageUrl(artist.getName());
                 } catch (JSONException e) {
-                    Log.e(TAG, "JSON Error while getting image from Google Images");
+                    Log.e(TAG, "JSON error while getting image from FreeBase");
+                    deferred = true;
+                } catch (RateLimitException e) {
+                    Log.w(TAG, "Rate limit hit while getting image from FreeBase");
+                    FREEBASE_LIMITER.backOff(RATE_LIMIT_BACKOFF);
+                    deferred = true;
                 } catch (IOException e) {
-                    Log.e(TAG, "IO error while getting image from Google Images (" + e.getMessage() + ")");
+                    Log.e(TAG, "IO error while getting image from FreeBase");
+                    deferred = true;
                 }
+            } else {
+                deferred = true;
+            }
 
+            if (url == null) {
+                if (GOOGLE_IMAGES_LIMITER.acquire(LIMITER_MAX_WAIT)) {
+                    try {
+                        url = GoogleImagesClient.getImageUrl("Music Band " + artist.getName());
+                    } catch (RateLimitException e) {
+                        Log.w(TAG, "Rate limit hit while getting image from Google Images");
+                        GOOGLE_IMAGES_LIMITER.backOff(RATE_LIMIT_BACKOFF);
+                        deferred = true;
+                    } catch (JSONException e) {
+                        Log.e(TAG, "JSON Error while getting image from Google Images");
+                        deferred = true;
+                    } catch (IOException e) {
+                        Log.e(TAG, "IO error while getting image from Google Images (" + e.getMessage() + ")");
+                        deferred = true;
+                    }
+                } else {
+                    deferred = true;
+                }
             }
 
             if (url != null) {
                 try {
-                    byte[] imageData = HttpGet.getBytes(url, "", true);
+                    byte[] imageData = HttpGet.getBytes(IMAGES_ENDPOINT, url, "");
                     BitmapFactory.Options opts = new BitmapFactory.Options();
                     opts.inMutable = true;
                     Bitmap image = BitmapFactory.decodeByteArray(imageData, 0, imageData.length, opts);
@@ -452,11 +636,14 @@ public class AlbumArtCache {
                 } catch (InterruptedIOException ignore) {
                 } catch (IOException e) {
                     Log.e(TAG, "Failed to download album art image");
+                    ArtBackfillQueue.getDefault().enqueue(artist);
                 } catch (RateLimitException e) {
                     Log.w(TAG, "Rate limited while getting image");
+                    ArtBackfillQueue.getDefault().enqueue(artist);
                 }
             } else {
                 ImageCache.getDefault().put(res, getEntityArtKey(artist), (RecyclingBitmapDrawable) null);
+                onNoArtFound(artist, deferred);
                 listener.onArtLoaded(artist, null);
                 result = true;
             }
@@ -465,7 +652,19 @@ public class AlbumArtCache {
         return result;
     }
 
-    private boolean getPlaylistArt(final Resources res, final Playlist playlist, final IAlbumArtCacheListener listener) throws RemoteException {
+    private boolean getPlaylistArt(final Resources res, final Playlist playlist,
+                                   final int requestedSize,
+                                   final IAlbumArtCacheListener listener) throws RemoteException {
+        // Mosaics are cached under a key depending on their sources instead of the playlist key,
+        // so that they're rebuilt when the playlist changes. We only build one when the provider
+        // has no art for the playlist, so a cached mosaic means there's no need to ask again.
+        final String mosaicKey = PlaylistArtBuilder.getMosaicKey(playlist);
+        final ImageCache cache = ImageCache.getDefault();
+        if (mosaicKey != null && (cache.hasInMemory(mosaicKey) || cache.hasOnDisk(mosaicKey))) {
+            listener.onArtLoaded(playlist, cache.get(res, mosaicKey, requestedSize));
+            return true;
+        }
+
         // Try to get the art from the provider first
         final ProviderIdentifier id = playlist.getProvider();
         final IMusicProvider binder = safeGetBinder(id);
@@ -480,7 +679,7 @@ public class AlbumArtCache {
                     new Thread() {
                         public void run() {
                             if (bitmap != null) {
-                                RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(playlist), bitmap);
+                                RecyclingBitmapDrawable rcb = putProviderArt(res, playlist, bitmap);
                                 listener.onArtLoaded(playlist, rcb);
                             } else {
                                 listener.onArtLoaded(playlist, null);
@@ -494,19 +693,19 @@ public class AlbumArtCache {
 
         if (!providerprovides) {
             // Build our own art
-            final PlaylistArtBuilder builder = new PlaylistArtBuilder();
-            builder.start(res, playlist, new IArtCallback.Stub() {
-                @Override
-                public void onArtLoaded(final Bitmap bitmap) throws RemoteException {
-                    if (bitmap == null) return;
+            if (mosaicKey == null) {
+                // No tracks, no art
+                return false;
+            }
 
-                    new Thread() {
-                        public void run() {
-                            RecyclingBitmapDrawable rcb = ImageCache.getDefault().put(res, getEntityArtKey(playlist), bitmap);
-                            listener.onArtLoaded(playlist, rcb);
-                            builder.freeMemory();
-                        }
-                    }.start();
+            PlaylistArtBuilder.build(res, playlist, mosaicKey, new PlaylistArtBuilder.Callback() {
+                @Override
+                public void onMosaicBuilt(Bitmap composite) {
+                    if (composite != null) {
+                        listener.onArtLoaded(playlist, cache.put(res, mosaicKey, composite));
+                    } else {
+                        listener.onArtLoaded(playlist, null);
+                    }
                 }
             });
             result = true;
@@ -515,44 +714,52 @@ public class AlbumArtCache {
         return result;
     }
 
-    private IMusicProvider safeGetBinder(final ProviderIdentifier id) {
-        final ProviderConnection conn = PluginsLookup.getDefault().getProvider(id);
-        if (conn != null) {
-            return conn.getBinder();
-        } else {
-            return null;
-        }
+    /**
+     * Caches the art a provider returned for an entity. The image sources may have had none for
+     * it the last time they were queried, so the entity is no longer remembered as having no art.
+     */
+    private RecyclingBitmapDrawable putProviderArt(final Resources res, final BoundEntity ent,
+                                                   final Bitmap bitmap) {
+        final String key = getEntityArtKey(ent);
+        ArtNegativeCache.getDefault().remove(key);
+        return ImageCache.getDefault().put(res, key, bitmap);
     }
 
     /**
-     * Returns whether or not a query is currently running for the provided song
-     * @param song The song for which we need the album art
-     * @return true if a request is currently running, false if nothing is currently looking for
-     * that song's art
+     * Checks whether the image sources recently had no art for an entity, in which case they
+     * aren't queried again and the listener is called with no art
+     * @return true if the entity is known to have no art
      */
-    public boolean isQueryRunning(final BoundEntity song) {
-        synchronized (mRunningQueries) {
-            return mRunningQueries.contains(song);
+    private boolean isKnownWithoutArt(final BoundEntity ent,
+                                      final IAlbumArtCacheListener listener) {
+        if (!ArtNegativeCache.getDefault().isNegative(getEntityArtKey(ent))) {
+            return false;
         }
+
+        Metrics.getDefault().getCounter("art.negative_hits").increment();
+        listener.onArtLoaded(ent, null);
+        return true;
     }
 
     /**
-     * Notifies an async task has started processing the art for the provided entity
-     * @param song The song for which we need the album art
+     * Called when the image sources returned no art for an entity. If all of them could be
+     * queried, the entity is remembered as having no art; otherwise the lookup is retried later
+     * in the background.
      */
-    public void notifyQueryRunning(final BoundEntity song) {
-        synchronized (mRunningQueries) {
-            mRunningQueries.add(song);
+    private void onNoArtFound(BoundEntity ent, boolean deferred) {
+        if (deferred) {
+            ArtBackfillQueue.getDefault().enqueue(ent);
+        } else {
+            ArtNegativeCache.getDefault().put(getEntityArtKey(ent));
         }
     }
 
-    /**
-     * Notifies that the async task that started processing the art for the entity has done
-     * @param song The song for which we need the album art
-     */
-    public void notifyQueryStopped(final BoundEntity song) {
-        synchronized (mRunningQueries) {
-            mRunningQueries.remove(song);
+    private IMusicProvider safeGetBinder(final ProviderIdentifier id) {
+        final ProviderConnection conn = PluginsLookup.getDefault().getProvider(id);
+        if (conn != null) {
+            return conn.getBinder();
+        } else {
+            return null;
         }
     }
 
@@ -22,13 +22,15 @@ import android.support.annotation.NonNull;
 
 import com.fastbootmobile.encore.model.BoundEntity;
 
-import java.util.concurrent.BlockingQueue;
+import java.util.Iterator;
 import java.util.concurrent.Executor;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Helper class allowing to easily download and fetch an album art or artist art
@@ -36,11 +38,9 @@ import java.util.concurrent.atomic.AtomicInteger;
 public class AlbumArtHelper {
     private static final String TAG = "AlbumArtHelper";
 
-    private static final int CORE_POOL_SIZE = 2;
-    private static final int PRI_CORE_POOL_SIZE = 2;
-    private static final int MAXIMUM_POOL_SIZE = 6;
-    private static final int PRI_MAXIMUM_POOL_SIZE = 3;
+    private static final int POOL_SIZE = 4;
     private static final int KEEP_ALIVE = 10;
+    private static final int MAX_QUEUED_BEFORE_PURGE = 64;
     private static final ThreadFactory sThreadFactory = new ThreadFactory() {
         private final AtomicInteger mCount = new AtomicInteger(1);
 
@@ -48,28 +48,104 @@ public class AlbumArtHelper {
             return new Thread(r, "Art AsyncTask #" + mCount.getAndIncrement());
         }
     };
-    private static final BlockingQueue<Runnable> sPoolWorkQueue =
-            new LinkedBlockingQueue<>(64);
-    private static final BlockingQueue<Runnable> sPriorityPoolWorkQueue =
-            new LinkedBlockingQueue<>(32);
+    private static final PriorityBlockingQueue<Runnable> sPoolWorkQueue =
+            new PriorityBlockingQueue<>();
+    private static final AtomicLong sSequence = new AtomicLong();
 
-    static final Executor ART_POOL_EXECUTOR
-            = new ThreadPoolExecutor(CORE_POOL_SIZE, MAXIMUM_POOL_SIZE, KEEP_ALIVE,
+    private static final ThreadPoolExecutor sArtPool
+            = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE,
             TimeUnit.SECONDS, sPoolWorkQueue, sThreadFactory);
-    static final Executor PRIORITY_ART_POOL_EXECUTOR
-            = new ThreadPoolExecutor(PRI_CORE_POOL_SIZE, PRI_MAXIMUM_POOL_SIZE, KEEP_ALIVE,
-            TimeUnit.SECONDS, sPriorityPoolWorkQueue, sThreadFactory);
+
+    static {
+        sArtPool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Executor for the requests of views displayed right now
+     */
+    static final Executor PRIORITY_ART_POOL_EXECUTOR = new PrioritizedExecutor(true);
+
+    /**
+     * Executor for the other requests
+     */
+    static final Executor ART_POOL_EXECUTOR = new PrioritizedExecutor(false);
 
     public interface AlbumArtListener {
         void onArtLoaded(RecyclingBitmapDrawable output, BoundEntity request);
     }
 
-    public static class BackgroundResult {
-        public BoundEntity request;
-        public RecyclingBitmapDrawable bitmap;
-        public boolean retry;
-        public AlbumArtListener listener;
-        public int size;
+    /**
+     * Listener that doesn't keep the art past {@link #onArtLoaded}, other than through drawables
+     * calling {@link RecyclingBitmapDrawable#setIsDisplayed(boolean)}, so that the bitmap can be
+     * reused once it's no longer displayed. The art given to other listeners is never reused.
+     */
+    public interface DisplayTrackingListener extends AlbumArtListener {
+    }
+
+    /**
+     * Queues tasks in the art pool with a priority. Immediate requests run first, then the most
+     * recent requests: when scrolling quickly, the views on screen are the ones that were bound
+     * last, so their requests take over the ones of the views that scrolled away instead of
+     * waiting behind them.
+     */
+    private static class PrioritizedExecutor implements Executor {
+        private final boolean mImmediate;
+
+        PrioritizedExecutor(boolean immediate) {
+            mImmediate = immediate;
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            if (sPoolWorkQueue.size() >= MAX_QUEUED_BEFORE_PURGE) {
+                purgeCancelled();
+            }
+            sArtPool.execute(new PrioritizedRunnable(command, mImmediate));
+        }
+    }
+
+    private static class PrioritizedRunnable implements Runnable, Comparable<PrioritizedRunnable> {
+        private final Runnable mRunnable;
+        private final boolean mImmediate;
+        private final long mSequence;
+
+        PrioritizedRunnable(Runnable runnable, boolean immediate) {
+            mRunnable = runnable;
+            mImmediate = immediate;
+            mSequence = sSequence.incrementAndGet();
+        }
+
+        boolean isCancelled() {
+            return mRunnable instanceof Future && ((Future) mRunnable).isCancelled();
+        }
+
+        @Override
+        public void run() {
+            mRunnable.run();
+        }
+
+        @Override
+        public int compareTo(@NonNull PrioritizedRunnable another) {
+            if (mImmediate != another.mImmediate) {
+                return mImmediate ? -1 : 1;
+            }
+            // Most recent first
+            return mSequence > another.mSequence ? -1 : (mSequence == another.mSequence ? 0 : 1);
+        }
+    }
+
+    /**
+     * Removes the tasks cancelled while queued, eg. the ones of views that have been recycled
+     */
+    private static void purgeCancelled() {
+        final Iterator<Runnable> it = sPoolWorkQueue.iterator();
+        while (it.hasNext()) {
+            final Runnable runnable = it.next();
+            if (runnable instanceof PrioritizedRunnable
+                    && ((PrioritizedRunnable) runnable).isCancelled()) {
+                it.remove();
+            }
+        }
     }
 
     public static AlbumArtTask retrieveAlbumArt(Resources res, AlbumArtListener listener,
@@ -85,19 +161,8 @@ public class AlbumArtHelper {
         // pool, as the custom one causes the app to just crash without any kind of error message
         // for no reason (at least in the emulator).
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
-            if (immediate) {
-                if (sPriorityPoolWorkQueue.remainingCapacity() == 0) {
-                    // Release a previous work to free up space in the queue
-                    sPriorityPoolWorkQueue.remove(sPriorityPoolWorkQueue.iterator().next());
-                }
-                task.executeOnExecutor(PRIORITY_ART_POOL_EXECUTOR, requestStructure);
-            } else {
-                if (sPoolWorkQueue.remainingCapacity() == 0) {
-                    // Release a previous work to free up space in the queue
-                    sPoolWorkQueue.remove(sPoolWorkQueue.iterator().next());
-                }
-                task.executeOnExecutor(ART_POOL_EXECUTOR, requestStructure);
-            }
+            task.executeOnExecutor(immediate ? PRIORITY_ART_POOL_EXECUTOR : ART_POOL_EXECUTOR,
+                    requestStructure);
         } else {
             task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, requestStructure);
         }
@@ -106,10 +171,16 @@ public class AlbumArtHelper {
     }
 
     public static void clearAlbumArtRequests() {
-        sPriorityPoolWorkQueue.clear();
         sPoolWorkQueue.clear();
     }
 
+    /**
+     * @return true if no art request is running or queued in the art pool
+     */
+    static boolean isIdle() {
+        return sArtPool.getActiveCount() == 0 && sPoolWorkQueue.isEmpty();
+    }
+
 
     static class AlbumArtRequest {
         Resources res;
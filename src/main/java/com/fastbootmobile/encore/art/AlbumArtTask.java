@@ -15,42 +15,47 @@
 
 package com.fastbootmobile.encore.art;
 
-import android.content.res.Resources;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Process;
-import android.util.Log;
 
 import com.fastbootmobile.encore.model.BoundEntity;
 
-import java.util.concurrent.RejectedExecutionException;
-
 /**
- * AsyncTask downloading the album art
+ * AsyncTask downloading the album art. Tasks requesting the art of the same entity share the
+ * same lookup (see {@link AlbumArtCache#getArt}), so the result is delivered to the listener from
+ * the main thread when that lookup completes, not from onPostExecute.
  */
-public class AlbumArtTask extends AsyncTask<AlbumArtHelper.AlbumArtRequest, Void, AlbumArtHelper.BackgroundResult> {
+public class AlbumArtTask extends AsyncTask<AlbumArtHelper.AlbumArtRequest, Void, Void> {
     private static final String TAG = "AlbumArtTask";
 
-    private static final int DELAY_BEFORE_RETRY = 500;
+    private static final int RESULT_TIMEOUT = 6000;
     private static final Object sPauseWorkLock = new Object();
     private static boolean sPauseWork = false;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private volatile AlbumArtHelper.AlbumArtRequest mRequest;
+    private boolean mDelivered;
 
-    private RecyclingBitmapDrawable mArtBitmap;
-    private AlbumArtCache.IAlbumArtCacheListener mCacheListener = new AlbumArtCache.IAlbumArtCacheListener() {
+    private final AlbumArtCache.IAlbumArtCacheListener mCacheListener = new AlbumArtCache.IAlbumArtCacheListener() {
         @Override
         public void onArtLoaded(BoundEntity ent, RecyclingBitmapDrawable result) {
-            synchronized (AlbumArtTask.this) {
-                if (!isCancelled()) {
-                    mArtBitmap = result;
-                }
-                AlbumArtTask.this.notify();
-            }
+            deliver(result);
+        }
+    };
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            deliverImpl(null);
         }
     };
 
     @Override
-    protected AlbumArtHelper.BackgroundResult doInBackground(AlbumArtHelper.AlbumArtRequest... params) {
+    protected Void doInBackground(AlbumArtHelper.AlbumArtRequest... params) {
         android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
-        AlbumArtHelper.AlbumArtRequest request = params[0];
+        final AlbumArtHelper.AlbumArtRequest request = params[0];
 
         // Wait here if work is paused and the task is not cancelled
         synchronized (sPauseWorkLock) {
@@ -65,85 +70,70 @@ public class AlbumArtTask extends AsyncTask<AlbumArtHelper.AlbumArtRequest, Void
             return null;
         }
 
-        AlbumArtHelper.BackgroundResult output = new AlbumArtHelper.BackgroundResult();
-        output.request = request.entity;
-        output.listener = request.listener;
-        output.size = request.requestedSize;
-
-        final AlbumArtCache artCache = AlbumArtCache.getDefault();
-
-        if (artCache.isQueryRunning(request.entity)) {
-            output.retry = true;
-        } else {
-            // Notify other potential tasks we're processing this entity
-            artCache.notifyQueryRunning(request.entity);
-
-            // Get from the cache
-            synchronized (this) {
-                if (AlbumArtCache.getDefault().getArt(request.res, request.entity,
-                        request.requestedSize, mCacheListener)) {
-                    // Wait for the result
-                    if (mArtBitmap == null) {
-                        try {
-                            wait(6000);
-                        } catch (InterruptedException e) {
-                            // Interrupted, cancel
-                            cancel(true);
-                            return output;
-                        }
-                    }
-                }
-            }
+        mRequest = request;
 
-            // In all cases, we tell that this entity is loaded
-            artCache.notifyQueryStopped(request.entity);
+        // Don't wait forever for providers that never call back
+        sMainHandler.postDelayed(mTimeoutRunnable, RESULT_TIMEOUT);
 
-            // We now have a bitmap to display, so let's put it!
-            if (mArtBitmap != null) {
-                output.bitmap = mArtBitmap;
-                output.retry = false;
-            } else {
-                output.bitmap = null;
-                output.retry = false;
-            }
+        // Get from the cache, or join the lookup running for the same entity
+        if (!AlbumArtCache.getDefault().getArt(request.res, request.entity,
+                request.requestedSize, mCacheListener)) {
+            deliver(null);
+        } else if (isCancelled()) {
+            // Cancelled while we were joining the lookup
+            AlbumArtCache.getDefault().cancelArtRequest(request.entity, mCacheListener);
         }
 
-        return output;
+        return null;
     }
 
-    @Override
-    protected void onCancelled(AlbumArtHelper.BackgroundResult result) {
-        final AlbumArtCache artCache = AlbumArtCache.getDefault();
-        if (result != null) {
-            artCache.notifyQueryStopped(result.request);
+    /**
+     * Cancels the task. The task is done running as soon as the art lookup is started, so
+     * {@link #cancel(boolean)} alone doesn't stop it from waiting for the lookup: this detaches
+     * it from the lookup too, which keeps running for the other tasks.
+     */
+    public void cancelRequest() {
+        cancel(true);
+        sMainHandler.removeCallbacks(mTimeoutRunnable);
+
+        final AlbumArtHelper.AlbumArtRequest request = mRequest;
+        if (request != null) {
+            AlbumArtCache.getDefault().cancelArtRequest(request.entity, mCacheListener);
+        }
+    }
 
-            if (result.listener != null) {
-                result.listener.onArtLoaded(null, result.request);
+    private void deliver(final RecyclingBitmapDrawable result) {
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                deliverImpl(result);
             }
-        }
+        });
     }
 
-    @Override
-    protected void onPostExecute(final AlbumArtHelper.BackgroundResult result) {
-        super.onPostExecute(result);
-
-        if (!isCancelled() && result != null && result.listener != null) {
-            if (result.retry) {
-                // We retry to get it in a bit
-                final AlbumArtTask task = new AlbumArtTask();
-                AlbumArtHelper.AlbumArtRequest request = new AlbumArtHelper.AlbumArtRequest();
-                request.listener = result.listener;
-                request.entity = result.request;
-                request.requestedSize = result.size;
-                request.res = Resources.getSystem();
+    private void deliverImpl(RecyclingBitmapDrawable result) {
+        if (mDelivered) {
+            return;
+        }
 
-                try {
-                    task.executeOnExecutor(AlbumArtHelper.ART_POOL_EXECUTOR, request);
-                } catch (RejectedExecutionException e) {
-                    Log.w(TAG, "Request restart has been denied", e);
+        mDelivered = true;
+        sMainHandler.removeCallbacks(mTimeoutRunnable);
+
+        final AlbumArtHelper.AlbumArtRequest request = mRequest;
+        if (!isCancelled() && request != null && request.listener != null) {
+            final boolean tracking =
+                    request.listener instanceof AlbumArtHelper.DisplayTrackingListener;
+            if (result != null) {
+                // Don't let the bitmap be reused while the listener handles it. We can't know
+                // when the other listeners stop using it, so they keep their share.
+                result.setIsShared(true);
+            }
+            try {
+                request.listener.onArtLoaded(result, request.entity);
+            } finally {
+                if (result != null && tracking) {
+                    result.setIsShared(false);
                 }
-            } else {
-                result.listener.onArtLoaded(result.bitmap, result.request);
             }
         }
     }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.res.Resources;
+import android.os.BatteryManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.BoundEntity;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+/**
+ * Queue of entities whose art should be fetched in the background, eg. the ones of a list that
+ * aren't on screen yet, or lookups that have been deferred because an image source was rate
+ * limiting us. The queue is only drained while the device is charging and no art is being loaded
+ * for the UI, one entity at a time, so that it doesn't compete with what the user is looking at.
+ */
+public class ArtBackfillQueue {
+    private static final String TAG = "ArtBackfillQueue";
+    private static final boolean DEBUG = false;
+
+    private static final int MAX_PENDING = 500;
+    private static final long ITEM_DELAY = 2000;
+    private static final long BUSY_DELAY = 5000;
+
+    private static final ArtBackfillQueue INSTANCE = new ArtBackfillQueue();
+
+    private final LinkedHashSet<BoundEntity> mPending = new LinkedHashSet<>();
+    private Handler mHandler;
+    private Resources mResources;
+    private volatile boolean mCharging;
+    private volatile BoundEntity mCurrent;
+
+    private final BroadcastReceiver mPowerReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            mCharging = Intent.ACTION_POWER_CONNECTED.equals(intent.getAction());
+            if (DEBUG) Log.d(TAG, "Charging: " + mCharging);
+            if (mCharging) {
+                schedule(ITEM_DELAY);
+            } else {
+                mHandler.removeCallbacks(mProcessRunnable);
+            }
+        }
+    };
+
+    private final Runnable mProcessRunnable = new Runnable() {
+        @Override
+        public void run() {
+            processNext();
+        }
+    };
+
+    /**
+     * @return The default instance of this class
+     */
+    public static ArtBackfillQueue getDefault() {
+        return INSTANCE;
+    }
+
+    private ArtBackfillQueue() {
+    }
+
+    /**
+     * Starts the worker thread and starts listening for the power state
+     * @param ctx A valid context
+     */
+    public void initialize(Context ctx) {
+        if (mHandler != null) {
+            return;
+        }
+
+        HandlerThread thread = new HandlerThread(TAG, Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+        mResources = ctx.getResources();
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_POWER_CONNECTED);
+        filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+        ctx.registerReceiver(mPowerReceiver, filter);
+
+        // ACTION_BATTERY_CHANGED is sticky, which gives us the current state right away
+        Intent battery = ctx.registerReceiver(null,
+                new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        mCharging = battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+    /**
+     * Queues an entity whose art should be fetched when the device is idle
+     * @param ent The entity
+     */
+    public void enqueue(BoundEntity ent) {
+        if (ent == null || ent == mCurrent) {
+            return;
+        }
+
+        synchronized (mPending) {
+            addLocked(ent);
+        }
+        schedule(ITEM_DELAY);
+    }
+
+    /**
+     * Queues entities whose art should be fetched when the device is idle
+     * @param entities The entities
+     */
+    public void enqueueAll(Collection<? extends BoundEntity> entities) {
+        synchronized (mPending) {
+            for (BoundEntity ent : entities) {
+                if (ent != null) {
+                    addLocked(ent);
+                }
+            }
+        }
+        schedule(ITEM_DELAY);
+    }
+
+    private void addLocked(BoundEntity ent) {
+        if (mPending.size() >= MAX_PENDING && !mPending.contains(ent)) {
+            // Drop the oldest entry, the newest ones are more likely to be looked at soon
+            final Iterator<BoundEntity> it = mPending.iterator();
+            it.next();
+            it.remove();
+        }
+        mPending.add(ent);
+    }
+
+    private void schedule(long delay) {
+        if (mHandler != null && mCharging) {
+            mHandler.removeCallbacks(mProcessRunnable);
+            mHandler.postDelayed(mProcessRunnable, delay);
+        }
+    }
+
+    private void processNext() {
+        if (!mCharging) {
+            return;
+        }
+
+        if (!AlbumArtHelper.isIdle()) {
+            // The UI is loading art, try again later
+            schedule(BUSY_DELAY);
+            return;
+        }
+
+        final AlbumArtCache cache = AlbumArtCache.getDefault();
+        BoundEntity ent = null;
+        synchronized (mPending) {
+            final Iterator<BoundEntity> it = mPending.iterator();
+            while (it.hasNext() && ent == null) {
+                final BoundEntity candidate = it.next();
+                it.remove();
+
+                // Skip what has been fetched since it has been queued
+                if (cache.getCacheStatus(candidate) == AlbumArtCache.CACHE_STATUS_UNAVAILABLE
+                        && !ArtNegativeCache.getDefault()
+                        .isNegative(cache.getEntityArtKey(candidate))) {
+                    ent = candidate;
+                }
+            }
+        }
+
+        if (ent == null) {
+            return;
+        }
+
+        if (DEBUG) Log.d(TAG, "Fetching art for " + ent.getRef());
+
+        // The lookup runs synchronously on this thread when the art comes from the web. Lookups
+        // deferred again while it runs aren't queued back, they'll be retried when the entity
+        // is displayed.
+        mCurrent = ent;
+        try {
+            cache.getArt(mResources, ent, 0, new IAlbumArtCacheListener() {
+                @Override
+                public void onArtLoaded(BoundEntity ent, RecyclingBitmapDrawable result) {
+                    // Nothing to do, the art is in the cache now
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Error while fetching art in the background", e);
+        } finally {
+            mCurrent = null;
+        }
+
+        schedule(ITEM_DELAY);
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Persistent list of the art keys for which no art could be found online, so that the image
+ * sources aren't queried again for them on every scroll. Entries expire after a while, as the
+ * sources may have art for them later on.
+ */
+class ArtNegativeCache {
+    private static final String TAG = "ArtNegativeCache";
+    private static final boolean DEBUG = false;
+
+    private static final String PREFS_NAME = "art_negative";
+    private static final long EXPIRATION_TIME = 3 * 24 * 60 * 60 * 1000L;
+    private static final int MAX_ENTRIES = 2000;
+
+    private static final ArtNegativeCache INSTANCE = new ArtNegativeCache();
+
+    // Art key -> time at which the lookup failed
+    private final Map<String, Long> mEntries = new HashMap<>();
+    private SharedPreferences mPrefs;
+    private boolean mLoaded;
+
+    /**
+     * @return The default instance of this class
+     */
+    static ArtNegativeCache getDefault() {
+        return INSTANCE;
+    }
+
+    private ArtNegativeCache() {
+    }
+
+    /**
+     * Opens the backing preferences file. Entries are loaded on first access.
+     * @param ctx A valid context
+     */
+    synchronized void initialize(Context ctx) {
+        mPrefs = ctx.getSharedPreferences(PREFS_NAME, 0);
+    }
+
+    /**
+     * @param key The art key
+     * @return true if a lookup for that key recently found no art
+     */
+    synchronized boolean isNegative(String key) {
+        ensureLoaded();
+
+        final Long time = mEntries.get(key);
+        if (time == null) {
+            return false;
+        } else if (System.currentTimeMillis() - time > EXPIRATION_TIME) {
+            remove(key);
+            return false;
+        } else {
+            return true;
+        }
+    }
+
+    /**
+     * Records that no art could be found for a key
+     * @param key The art key
+     */
+    synchronized void put(String key) {
+        ensureLoaded();
+
+        if (mEntries.size() >= MAX_ENTRIES) {
+            prune(true);
+        }
+
+        final long now = System.currentTimeMillis();
+        mEntries.put(key, now);
+        if (mPrefs != null) {
+            mPrefs.edit().putLong(key, now).apply();
+        }
+    }
+
+    /**
+     * Forgets about a key, eg. once a provider returned art for it
+     * @param key The art key
+     */
+    synchronized void remove(String key) {
+        ensureLoaded();
+
+        if (mEntries.remove(key) != null && mPrefs != null) {
+            mPrefs.edit().remove(key).apply();
+        }
+    }
+
+    /**
+     * Removes all the entries
+     */
+    synchronized void clear() {
+        mEntries.clear();
+        if (mPrefs != null) {
+            mPrefs.edit().clear().apply();
+        }
+    }
+
+    private void ensureLoaded() {
+        if (mLoaded || mPrefs == null) {
+            return;
+        }
+
+        for (Map.Entry<String, ?> entry : mPrefs.getAll().entrySet()) {
+            if (entry.getValue() instanceof Long) {
+                mEntries.put(entry.getKey(), (Long) entry.getValue());
+            }
+        }
+        mLoaded = true;
+
+        prune(false);
+        if (DEBUG) Log.d(TAG, "Loaded " + mEntries.size() + " negative entries");
+    }
+
+    /**
+     * Removes the expired entries
+     * @param evictOldest If true and no entry expired, the oldest entry is removed as well
+     */
+    private void prune(boolean evictOldest) {
+        final long now = System.currentTimeMillis();
+        final SharedPreferences.Editor editor = mPrefs != null ? mPrefs.edit() : null;
+        String oldestKey = null;
+        long oldestTime = Long.MAX_VALUE;
+        boolean removed = false;
+
+        final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            if (now - entry.getValue() > EXPIRATION_TIME) {
+                it.remove();
+                removed = true;
+                if (editor != null) {
+                    editor.remove(entry.getKey());
+                }
+            } else if (entry.getValue() < oldestTime) {
+                oldestTime = entry.getValue();
+                oldestKey = entry.getKey();
+            }
+        }
+
+        if (!removed && evictOldest && oldestKey != null) {
+            mEntries.remove(oldestKey);
+            removed = true;
+            if (editor != null) {
+                editor.remove(oldestKey);
+            }
+        }
+
+        if (removed && editor != null) {
+            editor.apply();
+        }
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+
+import com.fastbootmobile.encore.utils.Utils;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of bitmaps that are no longer used and can be reused to decode or draw art, instead of
+ * allocating new ones. Bitmaps are indexed by size class so that finding one is O(1):
+ * - From KitKat onward, a bitmap can be reused for any image that fits in its allocation, so
+ *   bitmaps are grouped by power of two of their allocation size, and per config.
+ * - Before KitKat, the dimensions must match exactly, so bitmaps are grouped by width, height
+ *   and config.
+ * The pool holds at most a given number of bytes; the least recently added bitmaps are dropped
+ * first.
+ */
+class BitmapPool {
+    private final long mMaxBytes;
+    private long mCurrentBytes;
+
+    // Size class key -> bitmaps of that class, most recently added last
+    private final Map<Long, ArrayDeque<Bitmap>> mClasses = new HashMap<>();
+    // All the bitmaps of the pool, least recently added first
+    private final LinkedHashSet<Bitmap> mOrder = new LinkedHashSet<>();
+
+    private final Stats mStats = new Stats();
+
+    /**
+     * Counters of the pool activity
+     */
+    public static class Stats {
+        private final AtomicLong mHits = new AtomicLong();
+        private final AtomicLong mMisses = new AtomicLong();
+        private final AtomicLong mPuts = new AtomicLong();
+        private final AtomicLong mEvictions = new AtomicLong();
+
+        /**
+         * @return The number of requests that got a bitmap from the pool
+         */
+        public long getHits() {
+            return mHits.get();
+        }
+
+        /**
+         * @return The number of requests for which no bitmap could be reused
+         */
+        public long getMisses() {
+            return mMisses.get();
+        }
+
+        /**
+         * @return The number of bitmaps given back to the pool
+         */
+        public long getPuts() {
+            return mPuts.get();
+        }
+
+        /**
+         * @return The number of bitmaps dropped to stay within the budget
+         */
+        public long getEvictions() {
+            return mEvictions.get();
+        }
+
+        /**
+         * @return The ratio of requests that got a bitmap from the pool, between 0 and 1
+         */
+        public float getHitRate() {
+            final long hits = mHits.get();
+            final long total = hits + mMisses.get();
+            return total == 0 ? 0 : (float) hits / total;
+        }
+
+        @Override
+        public String toString() {
+            return "hits=" + mHits + " misses=" + mMisses + " hitRate="
+                    + Math.round(getHitRate() * 100) + "% puts=" + mPuts
+                    + " evictions=" + mEvictions;
+        }
+    }
+
+    /**
+     * @param maxBytes The maximum number of bytes of bitmaps kept in the pool
+     */
+    BitmapPool(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return The counters of the pool
+     */
+    Stats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Gives a bitmap that is no longer used to the pool. The caller must not use it afterwards.
+     * @param bitmap The bitmap
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable()
+                || bitmap.getConfig() == null || mOrder.contains(bitmap)) {
+            return;
+        }
+
+        final int size = getAllocationSize(bitmap);
+        if (size > mMaxBytes) {
+            return;
+        }
+
+        final Long key = getKey(bitmap);
+        ArrayDeque<Bitmap> bitmaps = mClasses.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayDeque<>();
+            mClasses.put(key, bitmaps);
+        }
+
+        bitmaps.addLast(bitmap);
+        mOrder.add(bitmap);
+        mCurrentBytes += size;
+        mStats.mPuts.incrementAndGet();
+
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Returns a bitmap of the provided dimensions and config, to draw into. Its content is
+     * undefined.
+     * @return A bitmap from the pool, or null if none can be reused
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        Bitmap bitmap;
+        if (Utils.hasKitKat()) {
+            bitmap = takeFitting(width * height * getBytesPerPixel(config), config);
+            if (bitmap != null) {
+                bitmap.reconfigure(width, height, config);
+            }
+        } else {
+            bitmap = take(getExactKey(width, height, config));
+        }
+
+        countRequest(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Returns a bitmap that can be used as inBitmap to decode an image
+     * @param options Options of the decoding, with the out* fields and inSampleSize set
+     * @return A bitmap from the pool, or null if none can be reused
+     */
+    synchronized Bitmap getForDecode(BitmapFactory.Options options) {
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        final int width = options.outWidth / sampleSize;
+        final int height = options.outHeight / sampleSize;
+        final Bitmap.Config config = options.inPreferredConfig != null
+                ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+
+        Bitmap bitmap;
+        if (Utils.hasKitKat()) {
+            // Decoders may round the size up when subsampling, leave a row and a column of margin
+            final int margin = sampleSize > 1 ? 1 : 0;
+            bitmap = takeFitting((width + margin) * (height + margin) * getBytesPerPixel(config),
+                    config);
+        } else if (sampleSize == 1) {
+            bitmap = take(getExactKey(width, height, config));
+        } else {
+            bitmap = null;
+        }
+
+        countRequest(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Drops all the bitmaps of the pool
+     */
+    synchronized void clear() {
+        trimToSize(0);
+    }
+
+    private void countRequest(Bitmap bitmap) {
+        if (bitmap != null) {
+            mStats.mHits.incrementAndGet();
+        } else {
+            mStats.mMisses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Takes a bitmap whose allocation is at least the provided size. Bitmaps of the class of that
+     * size may be too small, so only the most recent one is checked; bitmaps of the next class
+     * are always large enough.
+     */
+    private Bitmap takeFitting(int bytes, Bitmap.Config config) {
+        final ArrayDeque<Bitmap> sameClass = mClasses.get(getClassKey(bytes, config));
+        if (sameClass != null && !sameClass.isEmpty()
+                && getAllocationSize(sameClass.peekLast()) >= bytes) {
+            return remove(sameClass.pollLast());
+        }
+
+        return take(getClassKey(bytes * 2, config));
+    }
+
+    private Bitmap take(Long key) {
+        final ArrayDeque<Bitmap> bitmaps = mClasses.get(key);
+        if (bitmaps == null || bitmaps.isEmpty()) {
+            return null;
+        }
+        return remove(bitmaps.pollLast());
+    }
+
+    private Bitmap remove(Bitmap bitmap) {
+        mOrder.remove(bitmap);
+        mCurrentBytes -= getAllocationSize(bitmap);
+        return bitmap;
+    }
+
+    private void trimToSize(long maxBytes) {
+        final Iterator<Bitmap> it = mOrder.iterator();
+        while (mCurrentBytes > maxBytes && it.hasNext()) {
+            final Bitmap bitmap = it.next();
+            it.remove();
+            mCurrentBytes -= getAllocationSize(bitmap);
+            mStats.mEvictions.incrementAndGet();
+
+            final Long key = getKey(bitmap);
+            final ArrayDeque<Bitmap> bitmaps = mClasses.get(key);
+            if (bitmaps != null) {
+                // The oldest bitmap of the pool is the oldest of its class too
+                bitmaps.pollFirst();
+                if (bitmaps.isEmpty()) {
+                    mClasses.remove(key);
+                }
+            }
+        }
+    }
+
+    private static Long getKey(Bitmap bitmap) {
+        return Utils.hasKitKat() ? getClassKey(getAllocationSize(bitmap), bitmap.getConfig())
+                : getExactKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+    }
+
+    private static Long getClassKey(int bytes, Bitmap.Config config) {
+        // Power of two of the size, rounded down
+        final int sizeClass = 31 - Integer.numberOfLeadingZeros(Math.max(bytes, 1));
+        return ((long) config.ordinal() << 32) | sizeClass;
+    }
+
+    private static Long getExactKey(int width, int height, Bitmap.Config config) {
+        return ((long) config.ordinal() << 56) | ((long) width << 28) | height;
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private static int getAllocationSize(Bitmap bitmap) {
+        return Utils.hasKitKat() ? bitmap.getAllocationByteCount() : bitmap.getByteCount();
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        } else {
+            return 1;
+        }
+    }
+}
@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Disk cache of images with a byte budget and LRU eviction. Each key can be stored in several
+ * size buckets, each bucket being a separate file, so that small views don't have to decode a
+ * large image.
+ *
+ * The index of the cache is kept in a journal file, replayed on startup instead of listing the
+ * cache directory. Each line of the journal is one of:
+ * <ul>
+ *     <li>CLEAN name bytes width height time: The file "name" has been written</li>
+ *     <li>READ name: The file "name" has been accessed</li>
+ *     <li>REMOVE name: The file "name" has been deleted</li>
+ * </ul>
+ * The journal is compacted once it contains too many redundant lines.
+ */
+class DiskArtCache {
+    private static final String TAG = "DiskArtCache";
+
+    private static final String JOURNAL_FILE = "journal";
+    private static final String JOURNAL_FILE_TMP = "journal.tmp";
+    private static final String JOURNAL_HEADER = "encore.art.journal 1";
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final int mBucketCount;
+    // File name -> entry, least recently used first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(0, 0.75f, true);
+    private long mSize;
+    private int mRedundantOpCount;
+    private Writer mJournalWriter;
+
+    /**
+     * A cached image file
+     */
+    static class Entry {
+        final String name;
+        final long bytes;
+        // Dimensions of the image, or 0 if they're unknown
+        final int width;
+        final int height;
+        final long time;
+
+        Entry(String name, long bytes, int width, int height, long time) {
+            this.name = name;
+            this.bytes = bytes;
+            this.width = width;
+            this.height = height;
+            this.time = time;
+        }
+    }
+
+    /**
+     * @param directory   The directory of the cache
+     * @param maxSize     The maximum number of bytes used by the cache files
+     * @param bucketCount The number of size buckets for each key
+     */
+    DiskArtCache(File directory, long maxSize, int bucketCount) {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        mBucketCount = bucketCount;
+    }
+
+    /**
+     * Loads the index of the cache from the journal. If there is no journal yet, the files of the
+     * directory are imported as the largest bucket.
+     */
+    synchronized void open() {
+        final File journal = new File(mDirectory, JOURNAL_FILE);
+        boolean valid = false;
+        if (journal.exists()) {
+            try {
+                readJournal(journal);
+                mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(journal, true), "UTF-8"));
+                valid = true;
+            } catch (IOException e) {
+                Log.w(TAG, "Corrupted journal, dropping the cache", e);
+                deleteContents();
+            }
+        } else {
+            importDirectory();
+        }
+
+        if (!valid) {
+            // Temporary files may be left over if the app died while writing
+            deleteTemporaryFiles();
+            rebuildJournal();
+        }
+        trimToSize();
+    }
+
+    private void readJournal(File journal) throws IOException {
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+        try {
+            if (!JOURNAL_HEADER.equals(reader.readLine())) {
+                throw new IOException("Unexpected journal header");
+            }
+
+            int lineCount = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                readJournalLine(line);
+                lineCount++;
+            }
+            mRedundantOpCount = lineCount - mEntries.size();
+        } finally {
+            reader.close();
+        }
+    }
+
+    private void readJournalLine(String line) {
+        final String[] parts = line.split(" ");
+
+        // The last line may have been partially written, so unexpected lines are skipped
+        try {
+            if (CLEAN.equals(parts[0]) && parts.length == 6) {
+                final Entry entry = new Entry(parts[1], Long.parseLong(parts[2]),
+                        Integer.parseInt(parts[3]), Integer.parseInt(parts[4]),
+                        Long.parseLong(parts[5]));
+                final Entry previous = mEntries.put(entry.name, entry);
+                if (previous != null) {
+                    mSize -= previous.bytes;
+                }
+                mSize += entry.bytes;
+            } else if (READ.equals(parts[0]) && parts.length == 2) {
+                mEntries.get(parts[1]);
+            } else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+                final Entry previous = mEntries.remove(parts[1]);
+                if (previous != null) {
+                    mSize -= previous.bytes;
+                }
+            } else {
+                Log.w(TAG, "Unexpected journal line: " + line);
+            }
+        } catch (NumberFormatException e) {
+            Log.w(TAG, "Unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * Imports the files written before the journal existed, as the largest bucket. Their
+     * dimensions aren't known.
+     */
+    private void importDirectory() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final int bucket = mBucketCount - 1;
+        for (File file : files) {
+            final String fileName = file.getName();
+            if (fileName.startsWith(JOURNAL_FILE)) {
+                continue;
+            }
+
+            final String name = getFileName(fileName, bucket);
+            final long bytes = file.length();
+            final long time = file.lastModified();
+            if (file.renameTo(new File(mDirectory, name))) {
+                mEntries.put(name, new Entry(name, bytes, 0, 0, time));
+                mSize += bytes;
+            } else if (!file.delete()) {
+                Log.e(TAG, "Cannot import " + file.getPath());
+            }
+        }
+    }
+
+    private void deleteTemporaryFiles() {
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (file.getName().endsWith(".tmp") && !file.delete()) {
+                Log.e(TAG, "Cannot delete " + file.getPath());
+            }
+        }
+    }
+
+    /**
+     * Writes a new journal containing only the current entries
+     */
+    private void rebuildJournal() {
+        closeJournal();
+
+        final File journalTmp = new File(mDirectory, JOURNAL_FILE_TMP);
+        try {
+            Writer writer = new BufferedWriter(
+                    new OutputStreamWriter(new FileOutputStream(journalTmp), "UTF-8"));
+            try {
+                writer.write(JOURNAL_HEADER);
+                writer.write('\n');
+                for (Entry entry : mEntries.values()) {
+                    writeCleanLine(writer, entry);
+                }
+            } finally {
+                writer.close();
+            }
+
+            if (!journalTmp.renameTo(new File(mDirectory, JOURNAL_FILE))) {
+                throw new IOException("Cannot rename the journal");
+            }
+
+            mJournalWriter = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(mDirectory, JOURNAL_FILE), true), "UTF-8"));
+            mRedundantOpCount = 0;
+        } catch (IOException e) {
+            // We keep working without a journal, the cache will be imported again next time
+            Log.e(TAG, "Cannot write the journal", e);
+            mJournalWriter = null;
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournalWriter != null) {
+            try {
+                mJournalWriter.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot close the journal", e);
+            }
+            mJournalWriter = null;
+        }
+    }
+
+    private static void writeCleanLine(Writer writer, Entry entry) throws IOException {
+        writer.write(CLEAN + ' ' + entry.name + ' ' + entry.bytes + ' ' + entry.width + ' '
+                + entry.height + ' ' + entry.time + '\n');
+    }
+
+    private void journal(String op, Entry entry, boolean flush) {
+        if (mJournalWriter == null) {
+            return;
+        }
+
+        try {
+            if (CLEAN.equals(op)) {
+                writeCleanLine(mJournalWriter, entry);
+            } else {
+                mJournalWriter.write(op + ' ' + entry.name + '\n');
+            }
+
+            if (flush) {
+                mJournalWriter.flush();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot write to the journal", e);
+        }
+
+        if (++mRedundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && mRedundantOpCount >= mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    private static String getFileName(String key, int bucket) {
+        return key + '.' + bucket;
+    }
+
+    /**
+     * @param key The key of the image
+     * @return true if the image is stored in at least one bucket
+     */
+    synchronized boolean contains(String key) {
+        for (int i = 0; i < mBucketCount; ++i) {
+            if (mEntries.containsKey(getFileName(key, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the closest stored variant of an image: the requested bucket if available, then
+     * larger buckets, then smaller ones.
+     *
+     * @param key    The key of the image
+     * @param bucket The bucket wanted
+     * @return The entry, or null if the image isn't stored
+     */
+    synchronized Entry get(String key, int bucket) {
+        Entry entry = null;
+        for (int i = bucket; i < mBucketCount && entry == null; ++i) {
+            entry = mEntries.get(getFileName(key, i));
+        }
+        for (int i = bucket - 1; i >= 0 && entry == null; --i) {
+            entry = mEntries.get(getFileName(key, i));
+        }
+
+        if (entry != null) {
+            journal(READ, entry, false);
+        }
+        return entry;
+    }
+
+    /**
+     * @param entry An entry returned by {@link #get(String, int)}
+     * @return The file of the entry
+     */
+    File getFile(Entry entry) {
+        return new File(mDirectory, entry.name);
+    }
+
+    /**
+     * Stores an image in a bucket
+     *
+     * @param key    The key of the image
+     * @param bucket The bucket
+     * @param bitmap The image, already scaled for the bucket
+     * @param format The format of the file
+     * @return true if the image has been stored
+     */
+    boolean put(String key, int bucket, Bitmap bitmap, Bitmap.CompressFormat format) {
+        final String name = getFileName(key, bucket);
+
+        // Compress outside of the lock, to a temporary file that is renamed once complete
+        final File tmp = new File(mDirectory, name + "." + Thread.currentThread().getId() + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                bitmap.compress(format, 90, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to write the file to cache", e);
+            if (!tmp.delete()) {
+                Log.e(TAG, "Cannot delete " + tmp.getPath());
+            }
+            return false;
+        }
+
+        final long bytes = tmp.length();
+        synchronized (this) {
+            if (!tmp.renameTo(new File(mDirectory, name))) {
+                Log.e(TAG, "Cannot rename " + tmp.getPath());
+                if (!tmp.delete()) {
+                    Log.e(TAG, "Cannot delete " + tmp.getPath());
+                }
+                return false;
+            }
+
+            final Entry entry = new Entry(name, bytes, bitmap.getWidth(), bitmap.getHeight(),
+                    System.currentTimeMillis());
+            final Entry previous = mEntries.put(name, entry);
+            if (previous != null) {
+                mSize -= previous.bytes;
+            }
+            mSize += entry.bytes;
+
+            journal(CLEAN, entry, true);
+            trimToSize();
+        }
+
+        return true;
+    }
+
+    /**
+     * Removes all the variants of an image
+     *
+     * @param key The key of the image
+     */
+    synchronized void remove(String key) {
+        for (int i = 0; i < mBucketCount; ++i) {
+            final Entry entry = mEntries.get(getFileName(key, i));
+            if (entry != null) {
+                removeEntry(entry);
+            }
+        }
+    }
+
+    /**
+     * Removes the images whose key contains the provided string and that are older than maxAge
+     *
+     * @param keyPart The string to look for in the keys
+     * @param maxAge  The maximum age, in milliseconds
+     */
+    synchronized void expire(String keyPart, long maxAge) {
+        final long now = System.currentTimeMillis();
+        final List<Entry> expired = new ArrayList<>();
+
+        for (Entry entry : mEntries.values()) {
+            if (now - entry.time > maxAge && entry.name.contains(keyPart)) {
+                expired.add(entry);
+            }
+        }
+
+        for (Entry entry : expired) {
+            removeEntry(entry);
+        }
+    }
+
+    /**
+     * Removes all the images
+     */
+    synchronized void clear() {
+        deleteContents();
+        rebuildJournal();
+    }
+
+    private void deleteContents() {
+        mEntries.clear();
+        mSize = 0;
+
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            if (!file.getName().startsWith(JOURNAL_FILE) && !file.delete()) {
+                Log.e(TAG, "Cannot delete " + file.getPath());
+            }
+        }
+    }
+
+    private void removeEntry(Entry entry) {
+        final File file = getFile(entry);
+        if (file.exists() && !file.delete()) {
+            Log.e(TAG, "Cannot delete " + file.getPath());
+        }
+
+        mEntries.remove(entry.name);
+        mSize -= entry.bytes;
+        journal(REMOVE, entry, true);
+    }
+
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Entry>> it = mEntries.entrySet().iterator();
+        final List<Entry> evicted = new ArrayList<>();
+        long size = mSize;
+
+        while (size > mMaxSize && it.hasNext()) {
+            final Entry entry = it.next().getValue();
+            evicted.add(entry);
+            size -= entry.bytes;
+        }
+
+        for (Entry entry : evicted) {
+            removeEntry(entry);
+        }
+    }
+}
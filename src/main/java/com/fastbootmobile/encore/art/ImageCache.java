@@ -20,27 +20,25 @@ import android.content.SharedPreferences;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.graphics.drawable.BitmapDrawable;
 import android.util.Log;
 import android.util.LruCache;
 
 import com.fastbootmobile.encore.app.R;
+import com.fastbootmobile.encore.framework.Metrics;
 import com.fastbootmobile.encore.utils.ImageUtils;
 import com.fastbootmobile.encore.utils.SettingsKeys;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.lang.ref.SoftReference;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Image cache in the cache directory on internal storage
+ * Image cache in memory and in the cache directory on internal storage. Images are stored on disk
+ * in several sizes (see {@link #BUCKET_SIZES}), so that small views decode a small file.
  */
 @SuppressWarnings("SynchronizeOnNonFinalField")
 public class ImageCache {
@@ -48,14 +46,22 @@ public class ImageCache {
     private static final ImageCache INSTANCE = new ImageCache();
     private static final long EXPIRATION_TIME = TimeUnit.DAYS.toMillis(7);
 
+    private static final long DISK_CACHE_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * Size of the shortest side of the images stored on disk: thumbnails, list items, and full
+     * size art.
+     */
+    private static final int[] BUCKET_SIZES = {128, 320, 800};
+
     private static final boolean USE_MEMORY_CACHE = true;
 
-    private final ArrayList<String> mEntries;
-    private File mCacheDir;
+    private DiskArtCache mDiskCache;
     private Bitmap mDefaultArt;
 
     private final LruCache<String, RecyclingBitmapDrawable> mMemoryCache;
-    private Set<SoftReference<Bitmap>> mReusableBitmaps;
+    private final BitmapPool mBitmapPool;
+    private final Paint mScalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
     /**
      * @return The default instance
@@ -68,24 +74,16 @@ public class ImageCache {
      * Default constructor, creates an LRU cache of the specified size
      */
     public ImageCache() {
-        mEntries = new ArrayList<>();
-
         // A third of the max heap memory, or 39MB, whichever is lowest
         final int memoryCacheSize = Math.min(30000,
                 (int) (Runtime.getRuntime().maxMemory() / 1024 / 3));
         Log.d(TAG, "Maximum image cache memory: " + memoryCacheSize + " KB (maxMemory=" + (Runtime.getRuntime().maxMemory() / 1024) + "KB)");
 
-        // We create a set of reusable bitmaps that can be
-        // populated into the inBitmap field of BitmapFactory.Options. Note that the set is
-        // of SoftReferences which will actually not be very effective due to the garbage
-        // collector being aggressive clearing Soft/SoftReferences. A better approach
-        // would be to use a strongly references bitmaps, however this would require some
-        // balancing of memory usage between this set and the bitmap LruCache. It would also
-        // require knowledge of the expected size of the bitmaps. From Honeycomb to JellyBean
-        // the size would need to be precise, from KitKat onward the size would just need to
-        // be the upper bound (due to changes in how inBitmap can re-use bitmaps).
-        mReusableBitmaps =
-                Collections.synchronizedSet(new HashSet<SoftReference<Bitmap>>());
+        // Bitmaps that are no longer displayed nor cached are kept in a pool, to be reused by the
+        // next decodes instead of allocating new ones. The pool holds strong references, so its
+        // budget is taken from the memory cache budget.
+        mBitmapPool = new BitmapPool(memoryCacheSize * 1024L / 4);
+        Metrics.getDefault().registerStats("art.bitmap_pool", mBitmapPool.getStats());
 
 
         if (USE_MEMORY_CACHE) {
@@ -99,15 +97,8 @@ public class ImageCache {
                 @Override
                 protected void entryRemoved(boolean evicted, String key,
                                             final RecyclingBitmapDrawable oldBitmap, RecyclingBitmapDrawable newBitmap) {
-                    if (newBitmap != null) {
-                        newBitmap.setIsCached(true);
-                    }
-
+                    // The bitmap goes back to the pool once it's no longer displayed either
                     oldBitmap.setIsCached(false);
-
-                    synchronized (mReusableBitmaps) {
-                        mReusableBitmaps.add(new SoftReference<>(oldBitmap.getBitmap()));
-                    }
                 }
             };
         } else {
@@ -120,26 +111,19 @@ public class ImageCache {
      * @param ctx A valid context
      */
     public void initialize(Context ctx) {
-        mCacheDir = new File(ctx.getCacheDir(), "albumart");
-        if (!mCacheDir.exists() && !mCacheDir.mkdir()) {
-            Log.e(TAG, "Cannot mkdir the cache dir " + mCacheDir.getPath());
+        File cacheDir = new File(ctx.getCacheDir(), "albumart");
+        if (!cacheDir.exists() && !cacheDir.mkdir()) {
+            Log.e(TAG, "Cannot mkdir the cache dir " + cacheDir.getPath());
         }
 
-        File[] entries = mCacheDir.listFiles();
-        if (entries != null) {
-            for (File entry : entries) {
-                if (System.currentTimeMillis() - entry.lastModified() > EXPIRATION_TIME
-                        && entry.getName().contains("playlist")) {
-                    // Expire playlist art regularly
-                    if (!entry.delete()) {
-                        // Couldn't delete the art... Let's load it anyway then
-                        mEntries.add(entry.getName());
-                    }
-                } else {
-                    mEntries.add(entry.getName());
-                }
-            }
-        }
+        mDiskCache = new DiskArtCache(cacheDir, DISK_CACHE_SIZE, BUCKET_SIZES.length);
+        mDiskCache.open();
+
+        // Expire playlist art regularly
+        mDiskCache.expire("playlist", EXPIRATION_TIME);
+
+        ArtNegativeCache.getDefault().initialize(ctx);
+        ArtBackfillQueue.getDefault().initialize(ctx);
 
         mDefaultArt = ((BitmapDrawable) ctx.getResources()
                 .getDrawable(R.drawable.album_placeholder)).getBitmap();
@@ -158,16 +142,7 @@ public class ImageCache {
             }
         }
 
-        synchronized (mEntries) {
-            mEntries.clear();
-        }
-
-        File[] cacheFiles = mCacheDir.listFiles();
-        for (File file : cacheFiles) {
-            if (!file.delete()) {
-                Log.e(TAG, "Cannot delete " + file.getPath());
-            }
-        }
+        mDiskCache.clear();
     }
 
     /**
@@ -180,7 +155,8 @@ public class ImageCache {
                 mMemoryCache.evictAll();
             }
         }
-        mReusableBitmaps.clear();
+        Log.d(TAG, "Bitmap pool: " + mBitmapPool.getStats());
+        mBitmapPool.clear();
     }
 
     /**
@@ -204,9 +180,7 @@ public class ImageCache {
      * @return true if the image is cached on the disk (well, flash storage)
      */
     public boolean hasOnDisk(final String key) {
-        synchronized (mEntries) {
-            return mEntries.contains(sanitizeKey(key));
-        }
+        return mDiskCache.contains(sanitizeKey(key));
     }
 
     /**
@@ -221,12 +195,7 @@ public class ImageCache {
 
         final String cleanKey = sanitizeKey(key);
 
-        boolean contains;
-        synchronized (mEntries) {
-            contains = mEntries.contains(cleanKey);
-        }
-
-        if (contains) {
+        if (mDiskCache.contains(cleanKey)) {
             RecyclingBitmapDrawable item;
             synchronized (mMemoryCache) {
                 // Check if we have it in memory
@@ -234,29 +203,49 @@ public class ImageCache {
             }
 
             if (item == null) {
-                final String filePath = mCacheDir.getAbsolutePath() + "/" + cleanKey;
+                final DiskArtCache.Entry entry = mDiskCache.get(cleanKey, getBucket(reqSz));
+                if (entry == null) {
+                    return null;
+                }
 
+                final String filePath = mDiskCache.getFile(entry).getAbsolutePath();
                 BitmapFactory.Options opts = new BitmapFactory.Options();
-                opts.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(filePath, opts);
+                int width = entry.width;
+                int height = entry.height;
+
+                if (width <= 0 || height <= 0) {
+                    // Art cached before dimensions were recorded
+                    opts.inJustDecodeBounds = true;
+                    BitmapFactory.decodeFile(filePath, opts);
+                    opts.inJustDecodeBounds = false;
+                    width = opts.outWidth;
+                    height = opts.outHeight;
+                } else {
+                    opts.outWidth = width;
+                    opts.outHeight = height;
+                }
 
-                opts.inJustDecodeBounds = false;
-                ImageUtils.addInBitmapOptions(opts, this, reqSz, opts.outWidth, opts.outHeight);
+                ImageUtils.addInBitmapOptions(opts, this, reqSz, width, height);
 
                 try {
-                    Bitmap bmp = BitmapFactory.decodeFile(filePath, opts);
+                    Bitmap bmp;
+                    try {
+                        bmp = BitmapFactory.decodeFile(filePath, opts);
+                    } catch (IllegalArgumentException e) {
+                        // The pooled bitmap couldn't be used after all, decode without it
+                        opts.inBitmap = null;
+                        bmp = BitmapFactory.decodeFile(filePath, opts);
+                    }
+
                     if (bmp != null) {
                         item = new RecyclingBitmapDrawable(res, bmp);
 
                         if (USE_MEMORY_CACHE) {
-                            mMemoryCache.put(cleanKey + '_' + reqSz, item);
+                            putInMemory(cleanKey + '_' + reqSz, item);
                         }
                     } else {
-                        mEntries.remove(cleanKey);
-                        File f = new File(filePath);
-                        if (!f.delete()) {
-                            Log.e(TAG, "Cannot delete corrupted art at " + filePath);
-                        }
+                        Log.e(TAG, "Removing corrupted art at " + filePath);
+                        mDiskCache.remove(cleanKey);
                     }
                 } catch (OutOfMemoryError e) {
                     Log.e(TAG, "OutOfMemory when decoding input file", e);
@@ -270,39 +259,54 @@ public class ImageCache {
         }
     }
 
+    /**
+     * Returns the smallest size bucket large enough for the requested size
+     * @param reqSz The requested size, in pixels
+     * @return The index of the bucket in {@link #BUCKET_SIZES}
+     */
+    static int getBucket(int reqSz) {
+        for (int i = 0; i < BUCKET_SIZES.length; ++i) {
+            if (reqSz <= BUCKET_SIZES[i]) {
+                return i;
+            }
+        }
+        return BUCKET_SIZES.length - 1;
+    }
+
     /**
      * @param options - BitmapFactory.Options with out* options populated
      * @return Bitmap that case be used for inBitmap
      */
     public Bitmap getBitmapFromReusableSet(BitmapFactory.Options options) {
-        Bitmap bitmap = null;
-
-        if (mReusableBitmaps != null && !mReusableBitmaps.isEmpty()) {
-            synchronized (mReusableBitmaps) {
-                final Iterator<SoftReference<Bitmap>> iterator = mReusableBitmaps.iterator();
-                Bitmap item;
+        return mBitmapPool.getForDecode(options);
+    }
 
-                while (iterator.hasNext()) {
-                    item = iterator.next().get();
+    /**
+     * Puts a drawable in the memory cache. Its bitmap may be reused once it leaves the cache
+     * and is no longer displayed.
+     */
+    private void putInMemory(final String key, final RecyclingBitmapDrawable drawable) {
+        drawable.setPool(mBitmapPool);
+        drawable.setIsCached(true);
+        mMemoryCache.put(key, drawable);
+    }
 
-                    if (null != item && item.isMutable()) {
-                        // Check to see it the item can be used for inBitmap
-                        if (ImageUtils.canUseForInBitmap(item, options)) {
-                            bitmap = item;
+    /**
+     * Scales a bitmap down into a bitmap from the pool if possible
+     */
+    private Bitmap getScaledBitmap(final Bitmap source, final int width, final int height) {
+        final Bitmap.Config config = source.getConfig() != null
+                ? source.getConfig() : Bitmap.Config.ARGB_8888;
 
-                            // Remove from reusable set so it can't be used again
-                            iterator.remove();
-                            break;
-                        }
-                    } else {
-                        // Remove from the set if the reference has been cleared.
-                        iterator.remove();
-                    }
-                }
-            }
+        Bitmap scaled = mBitmapPool.get(width, height, config);
+        if (scaled == null) {
+            scaled = Bitmap.createBitmap(width, height, config);
         }
 
-        return bitmap;
+        scaled.eraseColor(Color.TRANSPARENT);
+        final Canvas canvas = new Canvas(scaled);
+        canvas.drawBitmap(source, null, new Rect(0, 0, width, height), mScalePaint);
+        return scaled;
     }
 
     /**
@@ -354,42 +358,34 @@ public class ImageCache {
         }
 
         if (USE_MEMORY_CACHE) {
-            mMemoryCache.put(cleanKey, bmp);
+            putInMemory(cleanKey, bmp);
         }
 
         if (!isDefaultArt) {
-            try {
-                FileOutputStream out = new FileOutputStream(mCacheDir.getAbsolutePath() + "/" + cleanKey);
-                Bitmap bitmap = bmp.getBitmap();
+            final Bitmap bitmap = bmp.getBitmap();
+            final Bitmap.CompressFormat format = asPNG ? Bitmap.CompressFormat.PNG
+                    : Bitmap.CompressFormat.JPEG;
 
-                boolean shouldRecycle = false;
-                final float maxSize = 800;
+            // Store a scaled down copy for each bucket smaller than the image, and the image
+            // itself in the first bucket that is large enough for it
+            for (int i = 0; i < BUCKET_SIZES.length; ++i) {
+                final float bucketSize = BUCKET_SIZES[i];
 
-                if (bitmap.getWidth() > maxSize && bitmap.getHeight() > maxSize) {
+                if (bitmap.getWidth() > bucketSize && bitmap.getHeight() > bucketSize) {
                     float ratio = (bitmap.getWidth() < bitmap.getHeight()) ?
-                            bitmap.getWidth() / maxSize : bitmap.getHeight() / maxSize;
+                            bitmap.getWidth() / bucketSize : bitmap.getHeight() / bucketSize;
                     final int sWidth = (int) (bitmap.getWidth() / ratio);
                     final int sHeight = (int) (bitmap.getHeight() / ratio);
 
-                    bitmap = Bitmap.createScaledBitmap(bitmap, sWidth, sHeight, true);
-                    shouldRecycle = true;
+                    final Bitmap scaled = getScaledBitmap(bitmap, sWidth, sHeight);
+                    mDiskCache.put(cleanKey, i, scaled, format);
 
-                    Log.d(TAG, "Rescaled to " + sWidth + "x" + sHeight);
-                }
-
-                bitmap.compress(asPNG ? Bitmap.CompressFormat.PNG : Bitmap.CompressFormat.JPEG, 90, out);
-                out.close();
-
-                if (shouldRecycle) {
                     // Scaled image will be used on reload
-                    bitmap.recycle();
+                    mBitmapPool.put(scaled);
+                } else {
+                    mDiskCache.put(cleanKey, i, bitmap, format);
+                    break;
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Unable to write the file to cache", e);
-            }
-
-            synchronized (mEntries) {
-                mEntries.add(cleanKey);
             }
         }
     }
@@ -21,225 +21,298 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
-import android.os.RemoteException;
+import android.support.annotation.NonNull;
 import android.util.Log;
 
 import com.fastbootmobile.encore.app.BuildConfig;
 import com.fastbootmobile.encore.model.BoundEntity;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
-import com.fastbootmobile.encore.providers.IArtCallback;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Class creating a composite image for playlist cover art
+ * Creates composite images (mosaics) for playlist cover art, from the art of the first distinct
+ * songs of the playlist. A mosaic is identified by a hash of the art keys of its sources, which
+ * are the references of these songs (see {@link #getMosaicKey(Playlist)}). It can then be cached and
+ * reused as long as these songs don't change, and playlists starting with the same songs share
+ * the same mosaic.
+ * The sources are loaded through the art pool, and the mosaic is drawn once all of them arrived
+ * or after a deadline, on a small pool shared by all the playlists.
  */
 public class PlaylistArtBuilder {
     private static final String TAG = "PlaylistArtBuilder";
     private static final boolean DEBUG = BuildConfig.DEBUG;
 
-    private Bitmap mPlaylistComposite;
-    private final List<RecyclingBitmapDrawable> mPlaylistSource = new ArrayList<>();
-    private Paint mPlaylistPaint;
-    private List<AlbumArtTask> mCompositeTasks;
-    private List<BoundEntity> mCompositeRequests;
-    private int mNumComposite;
-    private Handler mHandler;
-    private Handler mMainHandler;
-    private HandlerThread mHandlerThread;
-    private IArtCallback mCallback;
-    private boolean mDone;
-
-    private Runnable mTimeoutWatchdog = new Runnable() {
-        @Override
-        public void run() {
-            if (DEBUG) Log.w(TAG, "Watchdog kicking " + mPlaylistSource.size() + " images");
+    private static final int COMPOSITE_SIZE = 600;
+    private static final int MAX_SOURCES = 4;
+    private static final long SOURCES_DEADLINE = 8000;
 
-            if (mPlaylistComposite != null && mPlaylistSource.size() > 0) {
-                try {
-                    mCallback.onArtLoaded(mPlaylistComposite.copy(Bitmap.Config.ARGB_8888, false));
-                } catch (RemoteException ignored) {
-                }
-            }
-        }
-    };
+    private static final int POOL_SIZE = 2;
+    private static final int KEEP_ALIVE = 10;
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
 
-    private Runnable mUpdatePlaylistCompositeRunnable = new Runnable() {
-        @Override
-        public void run() {
-            if (mPlaylistComposite == null || !mPlaylistComposite.isRecycled() && !mDone) {
-                makePlaylistComposite();
-            }
+        public Thread newThread(@NonNull Runnable r) {
+            return new Thread(r, "Mosaic renderer #" + mCount.getAndIncrement());
         }
     };
+    private static final ThreadPoolExecutor sRenderPool
+            = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, KEEP_ALIVE, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), sThreadFactory);
 
-    private AlbumArtHelper.AlbumArtListener mCompositeListener = new AlbumArtHelper.AlbumArtListener() {
-        @Override
-        public void onArtLoaded(RecyclingBitmapDrawable output, BoundEntity request) {
-            if (!mCompositeRequests.contains(request) || mDone) {
-                return;
-            }
+    static {
+        sRenderPool.allowCoreThreadTimeOut(true);
+    }
 
-            if (output != null) {
-                synchronized (mPlaylistSource) {
-                    mPlaylistSource.add(output);
-                    if (mPlaylistSource.size() < mNumComposite) {
-                        mHandler.removeCallbacks(mUpdatePlaylistCompositeRunnable);
-                        mHandler.postDelayed(mUpdatePlaylistCompositeRunnable, 200);
-                    } else {
-                        mHandler.removeCallbacks(mUpdatePlaylistCompositeRunnable);
-                        mHandler.post(mUpdatePlaylistCompositeRunnable);
-                    }
-                }
-            }
-        }
-    };
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
 
-    public PlaylistArtBuilder() {
-        mMainHandler = new Handler(Looper.getMainLooper());
+    // Mosaic key -> job building that mosaic. Only accessed from the main thread.
+    private static final Map<String, MosaicJob> sRunningJobs = new HashMap<>();
 
-        mHandlerThread = new HandlerThread("PlaylistArtBuilder");
-        mHandlerThread.start();
-        mHandler = new Handler(mHandlerThread.getLooper());
+    /**
+     * Receives the built mosaic
+     */
+    public interface Callback {
+        /**
+         * Called from a background thread once the mosaic is built
+         * @param composite The mosaic, or null if no source art could be loaded
+         */
+        void onMosaicBuilt(Bitmap composite);
     }
 
-    public void freeMemory() {
-        if (mPlaylistComposite != null) {
-            mPlaylistComposite.recycle();
-            mPlaylistComposite = null;
+    private PlaylistArtBuilder() {
+    }
+
+    /**
+     * Returns the key under which the mosaic of a playlist is cached
+     * @param playlist The playlist
+     * @return The key of the mosaic, or null if the playlist has no songs
+     */
+    public static String getMosaicKey(Playlist playlist) {
+        final List<String> refs = getSourceRefs(playlist);
+        if (refs.isEmpty()) {
+            return null;
         }
-        synchronized (mPlaylistSource) {
-            mPlaylistSource.clear();
+
+        final StringBuilder sources = new StringBuilder();
+        for (String ref : refs) {
+            sources.append(ref).append('\n');
         }
-        if (mCompositeTasks != null) {
-            for (AlbumArtTask task : mCompositeTasks) {
-                task.cancel(true);
+
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            final byte[] hash = digest.digest(sources.toString().getBytes("UTF-8"));
+            final StringBuilder key = new StringBuilder("mosaic_");
+            for (byte b : hash) {
+                key.append(Integer.toHexString((b & 0xFF) | 0x100).substring(1));
             }
-            mCompositeTasks.clear();
-            mCompositeTasks = null;
+            return key.toString();
+        } catch (NoSuchAlgorithmException | UnsupportedEncodingException e) {
+            // Both are always available on Android
+            throw new IllegalStateException(e);
         }
-        mHandlerThread.interrupt();
     }
 
+    /**
+     * Returns the references of the songs whose art make up the mosaic of a playlist: its first
+     * songs, each one only once so that a song listed several times doesn't fill several cells
+     */
+    private static List<String> getSourceRefs(Playlist playlist) {
+        final List<String> songs = playlist.songsList();
+        final Set<String> refs = new LinkedHashSet<>();
+        if (songs != null) {
+            for (String ref : songs) {
+                if (ref != null) {
+                    refs.add(ref);
+                    if (refs.size() == MAX_SOURCES) {
+                        break;
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(refs);
+    }
 
-    private void makePlaylistComposite() {
-        if (mPlaylistComposite == null) {
-            mPlaylistComposite = Bitmap.createBitmap(600, 600, Bitmap.Config.ARGB_8888);
+    /**
+     * Builds the mosaic of a playlist. If the same mosaic is already being built, the callback
+     * is called when it's done.
+     * @param res Resources used to load the source art
+     * @param playlist The playlist
+     * @param mosaicKey The key returned by {@link #getMosaicKey(Playlist)}
+     * @param callback The callback receiving the mosaic
+     */
+    public static void build(final Resources res, final Playlist playlist, final String mosaicKey,
+                             final Callback callback) {
+        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
+        final List<Song> sources = new ArrayList<>();
+        for (String ref : getSourceRefs(playlist)) {
+            final Song song = aggregator.retrieveSong(ref, playlist.getProvider());
+            if (song != null) {
+                sources.add(song);
+            }
         }
 
-        if (mPlaylistPaint == null) {
-            mPlaylistPaint = new Paint();
+        if (sources.isEmpty()) {
+            callback.onMosaicBuilt(null);
+            return;
         }
 
-        Canvas canvas = new Canvas(mPlaylistComposite);
-        final int numImages = mPlaylistSource.size();
-        final int compositeWidth = mPlaylistComposite.getWidth();
-        final int compositeHeight = mPlaylistComposite.getHeight();
-
-        if (numImages == 1) {
-            // If we expected only one image, return this result
-            if (mNumComposite == 1) {
-                mDone = true;
-                mHandler.removeCallbacks(mTimeoutWatchdog);
-                try {
-                    mCallback.onArtLoaded(mPlaylistSource.get(0).getBitmap());
-                } catch (RemoteException ignored) {
-                }
-                return;
-            }
-        } else if (numImages == 2 || numImages == 3) {
-            int i = 0;
-            synchronized (mPlaylistSource) {
-                for (RecyclingBitmapDrawable item : mPlaylistSource) {
-                    Bitmap itemBmp = item.getBitmap();
-
-                    Rect src = new Rect(0, 0, itemBmp.getWidth(), itemBmp.getHeight());
-                    Rect dst = new Rect(i * compositeWidth / numImages,
-                            0,
-                            i * compositeWidth / numImages + compositeWidth,
-                            compositeHeight);
-
-                    canvas.drawBitmap(itemBmp, src, dst, mPlaylistPaint);
-                    ++i;
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                MosaicJob job = sRunningJobs.get(mosaicKey);
+                if (job != null) {
+                    job.mCallbacks.add(callback);
+                    return;
                 }
-            }
-        } else {
-            for (int i = 0; i < 4; ++i) {
-                if (mPlaylistSource.size() > i) {
-                    RecyclingBitmapDrawable item = mPlaylistSource.get(i);
-                    Bitmap itemBmp = item.getBitmap();
 
-                    int row = (int) Math.floor(i / 2);
-                    int col = (i % 2);
+                if (DEBUG) Log.d(TAG, "Building mosaic for " + playlist.getName());
 
-                    Rect src = new Rect(0, 0, itemBmp.getWidth(), itemBmp.getHeight());
-                    Rect dst = new Rect(col * compositeWidth / 2,
-                            row * compositeHeight / 2,
-                            col * compositeWidth / 2 + compositeWidth / 2,
-                            row * compositeHeight / 2 + compositeHeight / 2);
+                job = new MosaicJob(mosaicKey, sources);
+                job.mCallbacks.add(callback);
+                sRunningJobs.put(mosaicKey, job);
+                job.start(res);
+            }
+        });
+    }
 
-                    canvas.drawBitmap(itemBmp, src, dst, mPlaylistPaint);
-                }
+    /**
+     * Loads the source art of a mosaic. Its state is only accessed from the main thread, where
+     * the art tasks deliver their results.
+     */
+    private static class MosaicJob implements AlbumArtHelper.AlbumArtListener, Runnable {
+        private final String mKey;
+        private final List<Song> mSources;
+        private final RecyclingBitmapDrawable[] mArt;
+        private final List<Callback> mCallbacks = new ArrayList<>();
+        private int mReceived;
+        private boolean mDone;
+
+        MosaicJob(String key, List<Song> sources) {
+            mKey = key;
+            mSources = sources;
+            mArt = new RecyclingBitmapDrawable[sources.size()];
+        }
+
+        void start(Resources res) {
+            for (Song song : mSources) {
+                AlbumArtHelper.retrieveAlbumArt(res, this, song, COMPOSITE_SIZE, false);
             }
+            sMainHandler.postDelayed(this, SOURCES_DEADLINE);
         }
 
-        if (DEBUG) Log.d(TAG, "Got image " + numImages + "/" + mNumComposite);
+        @Override
+        public void onArtLoaded(RecyclingBitmapDrawable output, BoundEntity request) {
+            final int index = mSources.indexOf(request);
+            if (mDone || index < 0) {
+                return;
+            }
 
-        if (numImages == mNumComposite) {
-            mDone = true;
-            mHandler.removeCallbacks(mTimeoutWatchdog);
-            try {
-                mCallback.onArtLoaded(mPlaylistComposite.copy(Bitmap.Config.ARGB_8888, false));
-            } catch (RemoteException ignored) {
+            mArt[index] = output;
+            if (++mReceived == mSources.size()) {
+                finish();
             }
         }
-    }
 
-    public void start(Resources res, Playlist playlist, IArtCallback callback) {
-        if (DEBUG) Log.d(TAG, "Starting to build playlist art for " + playlist.getName());
+        /**
+         * Called when the deadline is reached: render with what we got so far
+         */
+        @Override
+        public void run() {
+            if (DEBUG) Log.w(TAG, "Deadline reached with " + mReceived + "/" + mSources.size());
+            finish();
+        }
 
-        if (playlist.getSongsCount() == 0) {
-            Log.d(TAG, "Playlist " + playlist.getName() + " has no tracks, skipping art building");
+        private void finish() {
+            if (mDone) {
+                return;
+            }
             mDone = true;
-            try {
-                callback.onArtLoaded(null);
-            } catch (RemoteException ignore) {
+            sMainHandler.removeCallbacks(this);
+            sRunningJobs.remove(mKey);
+
+            final List<Bitmap> sources = new ArrayList<>(mArt.length);
+            for (RecyclingBitmapDrawable art : mArt) {
+                if (art != null && art.getBitmap() != null && !art.getBitmap().isRecycled()) {
+                    sources.add(art.getBitmap());
+                }
             }
-            return;
-        }
 
-        mDone = false;
-        mCallback = callback;
+            final List<Callback> callbacks = new ArrayList<>(mCallbacks);
+            sRenderPool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Bitmap composite = sources.isEmpty() ? null : render(sources);
+                    for (Callback callback : callbacks) {
+                        callback.onMosaicBuilt(composite);
+                    }
+                }
+            });
+        }
+    }
 
-        if (mCompositeTasks == null) {
-            mCompositeTasks = new ArrayList<>();
-        } else {
-            // Cancel the current tasks
-            for (AlbumArtTask task : mCompositeTasks) {
-                task.cancel(true);
+    /**
+     * Draws the mosaic: one image fills the whole mosaic, two or three images are drawn as
+     * vertical strips, four images as a grid.
+     */
+    private static Bitmap render(List<Bitmap> sources) {
+        final Bitmap composite = Bitmap.createBitmap(COMPOSITE_SIZE, COMPOSITE_SIZE,
+                Bitmap.Config.ARGB_8888);
+        final Canvas canvas = new Canvas(composite);
+        final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        final int count = sources.size();
+
+        for (int i = 0; i < count; ++i) {
+            final Rect dst;
+            if (count < MAX_SOURCES) {
+                dst = new Rect(i * COMPOSITE_SIZE / count, 0,
+                        (i + 1) * COMPOSITE_SIZE / count, COMPOSITE_SIZE);
+            } else {
+                final int row = i / 2;
+                final int col = i % 2;
+                dst = new Rect(col * COMPOSITE_SIZE / 2, row * COMPOSITE_SIZE / 2,
+                        (col + 1) * COMPOSITE_SIZE / 2, (row + 1) * COMPOSITE_SIZE / 2);
             }
-            mCompositeTasks.clear();
-        }
 
-        // Load 4 songs if possible and compose them into one picture
-        mPlaylistSource.clear();
-        mCompositeRequests = new ArrayList<>();
-        mNumComposite = Math.min(4, playlist.getSongsCount());
-        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
+            final Bitmap source = sources.get(i);
+            canvas.drawBitmap(source, getCenterCrop(source, dst), dst, paint);
+        }
 
-        for (int i = 0; i < mNumComposite; ++i) {
-            String entry = playlist.songsList().get(i);
-            Song song = aggregator.retrieveSong(entry, playlist.getProvider());
+        return composite;
+    }
 
-            mCompositeRequests.add(song);
-            mCompositeTasks.add(AlbumArtHelper.retrieveAlbumArt(res, mCompositeListener, song, 600, false));
+    /**
+     * @return The part of the source that has the aspect ratio of the destination, centered
+     */
+    private static Rect getCenterCrop(Bitmap source, Rect dst) {
+        final int width = source.getWidth();
+        final int height = source.getHeight();
+
+        if (width * dst.height() > height * dst.width()) {
+            // Source is wider than the destination
+            final int cropWidth = height * dst.width() / dst.height();
+            final int left = (width - cropWidth) / 2;
+            return new Rect(left, 0, left + cropWidth, height);
+        } else {
+            final int cropHeight = width * dst.height() / dst.width();
+            final int top = (height - cropHeight) / 2;
+            return new Rect(0, top, width, top + cropHeight);
         }
-
-        mHandler.postDelayed(mTimeoutWatchdog, 8000);
     }
 }
@@ -24,16 +24,19 @@ import com.fastbootmobile.encore.app.BuildConfig;
 
 /**
  * A BitmapDrawable that keeps track of whether it is being displayed or cached.
- * When the drawable is no longer being displayed or cached,
- * {@link android.graphics.Bitmap#recycle() recycle()} will be called on this drawable's bitmap.
+ * When the drawable is no longer being displayed or cached, its bitmap is given back to the
+ * {@link BitmapPool} it comes from, unless it's still shared with code that doesn't display it
+ * through a drawable (see {@link #setIsShared(boolean)}).
  */
 public class RecyclingBitmapDrawable extends BitmapDrawable {
     static final String TAG = "RecyclingBitmapDrawable";
 
     private int mCacheRefCount = 0;
     private int mDisplayRefCount = 0;
+    private int mSharedRefCount = 0;
 
     private boolean mHasBeenDisplayed;
+    private BitmapPool mPool;
 
     public RecyclingBitmapDrawable(Resources res, Bitmap bitmap) {
         super(res, bitmap);
@@ -79,21 +82,45 @@ public class RecyclingBitmapDrawable extends BitmapDrawable {
         checkState();
     }
 
+    /**
+     * Notify the drawable that its bitmap is used, or no longer used, outside of the display
+     * tracking, eg. kept for a notification or a palette. The bitmap isn't reused while it's
+     * shared. Internally a count is kept, so each share must be released once.
+     *
+     * @param isShared - Whether the bitmap is being shared or not
+     */
+    public void setIsShared(boolean isShared) {
+        synchronized (this) {
+            if (isShared) {
+                mSharedRefCount++;
+            } else {
+                mSharedRefCount--;
+            }
+        }
+
+        // Check to see if recycle() can be called
+        checkState();
+    }
+
+    /**
+     * Sets the pool to which the bitmap is given back once it's no longer displayed or cached
+     */
+    synchronized void setPool(BitmapPool pool) {
+        mPool = pool;
+    }
+
     private synchronized void checkState() {
-        // DISABLED FOR NOW - LEAVING DEFAULT BITMAPDRAWABLE BEHAVIOR, SINCE AS OF
-        // HONEYCOMB THIS SHOULD BE RECYCLED AUTOMATICALLY (SHOULD)
-        if (false) {
-            // If the drawable cache and display ref counts = 0, and this drawable
-            // has been displayed, then recycle
-            if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mHasBeenDisplayed
-                    && hasValidBitmap()) {
-                if (BuildConfig.DEBUG) {
-                    Log.d(TAG, "No longer being used or cached so recycling. "
-                            + toString());
-                }
-
-                getBitmap().recycle();
+        // If the drawable cache, display and share ref counts = 0, and this drawable
+        // has been displayed, then nobody uses the bitmap anymore and it can be reused. Don't
+        // recycle() it, as of Honeycomb the pixels are garbage collected anyway.
+        if (mCacheRefCount <= 0 && mDisplayRefCount <= 0 && mSharedRefCount <= 0
+                && mHasBeenDisplayed && mPool != null && hasValidBitmap()) {
+            if (BuildConfig.DEBUG) {
+                Log.d(TAG, "No longer being used or cached so pooling. " + toString());
             }
+
+            mPool.put(getBitmap());
+            mPool = null;
         }
     }
 
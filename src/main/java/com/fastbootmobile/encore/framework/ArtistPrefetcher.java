@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.framework;
+
+import android.content.res.Resources;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import com.echonest.api.v4.EchoNestException;
+import com.fastbootmobile.encore.api.common.TokenBucket;
+import com.fastbootmobile.encore.api.echonest.EchoNest;
+import com.fastbootmobile.encore.art.AlbumArtHelper;
+import com.fastbootmobile.encore.art.RecyclingBitmapDrawable;
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
+import com.fastbootmobile.encore.providers.ProviderAggregator;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Warms the data of the artist page (biography, similar artists, artist art and the art of the
+ * first albums) before the user opens it, so that the page shows up complete.
+ *
+ * Artists that stay visible for a little while are prefetched in the background, within a
+ * budget so that scrolling through a long list doesn't flood the Web APIs. Artists the user
+ * presses are prefetched right away. Prefetches are cancelled when their view is recycled.
+ *
+ * The data goes through the same caches as the artist page, and lookups running for the same
+ * artist are shared, so opening a page while it's being prefetched waits for the running
+ * requests instead of sending new ones.
+ *
+ * All the methods must be called from the main thread.
+ */
+public class ArtistPrefetcher {
+    private static final String TAG = "ArtistPrefetcher";
+    private static final boolean DEBUG = false;
+
+    private static final ArtistPrefetcher INSTANCE = new ArtistPrefetcher();
+
+    // Time an artist must stay visible before being prefetched
+    private static final long VISIBLE_DELAY = 750;
+    private static final int POOL_SIZE = 2;
+    private static final int MAX_QUEUED = 6;
+    private static final int MAX_ALBUM_ARTS = 3;
+    private static final int MAX_RECENT_ARTISTS = 64;
+
+    // Budget of the background prefetches: a burst of 8 artists, then one every 7.5 seconds
+    private static final int BUDGET_CAPACITY = 8;
+    private static final long BUDGET_REFILL_INTERVAL = 7500;
+
+    private static final ThreadFactory sThreadFactory = new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+
+        public Thread newThread(@NonNull Runnable r) {
+            return new Thread(r, "Artist prefetch #" + mCount.getAndIncrement());
+        }
+    };
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ThreadPoolExecutor mExecutor;
+    private final TokenBucket mBudget = new TokenBucket(BUDGET_CAPACITY, BUDGET_REFILL_INTERVAL);
+    private final AtomicLong mSequence = new AtomicLong();
+    private final Stats mStats = new Stats();
+
+    // Artist ref -> pending prefetch. Only accessed from the main thread.
+    private final Map<String, PrefetchTask> mTasks = new HashMap<>();
+    // Refs of the artists recently prefetched, which won't be prefetched again
+    private final Set<String> mRecentArtists = new LinkedHashSet<>();
+
+    /**
+     * Prefetching counters
+     */
+    public static class Stats {
+        private final AtomicLong mRequested = new AtomicLong();
+        private final AtomicLong mCompleted = new AtomicLong();
+        private final AtomicLong mFailed = new AtomicLong();
+        private final AtomicLong mCancelled = new AtomicLong();
+        private final AtomicLong mOverBudget = new AtomicLong();
+
+        /**
+         * @return The number of prefetches requested
+         */
+        public long getRequested() {
+            return mRequested.get();
+        }
+
+        /**
+         * @return The number of prefetches that ran to the end
+         */
+        public long getCompleted() {
+            return mCompleted.get();
+        }
+
+        /**
+         * @return The number of prefetches whose EchoNest lookups failed
+         */
+        public long getFailed() {
+            return mFailed.get();
+        }
+
+        /**
+         * @return The number of prefetches cancelled before they completed
+         */
+        public long getCancelled() {
+            return mCancelled.get();
+        }
+
+        /**
+         * @return The number of prefetches dropped because the budget was exhausted
+         */
+        public long getOverBudget() {
+            return mOverBudget.get();
+        }
+
+        @Override
+        public String toString() {
+            return "requested=" + getRequested() + " completed=" + getCompleted()
+                    + " failed=" + getFailed() + " cancelled=" + getCancelled()
+                    + " overBudget=" + getOverBudget();
+        }
+    }
+
+    /**
+     * Prefetch of one artist. Pressed artists run first, then the most recent requests, as the
+     * artists visible right now are the ones requested last.
+     */
+    private class PrefetchTask implements Runnable, Comparable<PrefetchTask> {
+        private final Resources mResources;
+        private final Artist mArtist;
+        private final boolean mImmediate;
+        private final long mSequenceId;
+        private volatile boolean mCancelled;
+        private volatile boolean mStarted;
+        private volatile boolean mRetryable;
+
+        PrefetchTask(Resources res, Artist artist, boolean immediate) {
+            mResources = res;
+            mArtist = artist;
+            mImmediate = immediate;
+            mSequenceId = mSequence.incrementAndGet();
+        }
+
+        void cancel() {
+            mCancelled = true;
+            mStats.mCancelled.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(@NonNull PrefetchTask another) {
+            if (mImmediate != another.mImmediate) {
+                return mImmediate ? -1 : 1;
+            }
+            return mSequenceId > another.mSequenceId ? -1 : (mSequenceId == another.mSequenceId ? 0 : 1);
+        }
+
+        @Override
+        public void run() {
+            mStarted = true;
+            try {
+                if (mCancelled) {
+                    return;
+                }
+
+                if (!mImmediate && !mBudget.acquire(0)) {
+                    if (DEBUG) Log.d(TAG, "Over budget, dropping " + mArtist.getName());
+                    mStats.mOverBudget.incrementAndGet();
+                    mRetryable = true;
+                    return;
+                }
+
+                if (DEBUG) Log.d(TAG, "Prefetching " + mArtist.getName());
+
+                // The art is loaded asynchronously by the art pool, whose tasks are started from
+                // the main thread
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (!mCancelled) {
+                            prefetchArt(mResources, mArtist);
+                        }
+                    }
+                });
+
+                final EchoNest echoNest = new EchoNest();
+                try {
+                    echoNest.getArtistBiography(mArtist.getName());
+                    if (mCancelled) {
+                        return;
+                    }
+                    echoNest.getArtistSimilar(mArtist.getName());
+                    mStats.mCompleted.incrementAndGet();
+                } catch (EchoNestException e) {
+                    Log.w(TAG, "Cannot prefetch artist information: " + e.getMessage());
+                    mStats.mFailed.incrementAndGet();
+                }
+            } finally {
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mTasks.get(mArtist.getRef()) == PrefetchTask.this) {
+                            mTasks.remove(mArtist.getRef());
+                        }
+                        if (mRetryable) {
+                            // Allow it to be prefetched again once the budget allows it
+                            mRecentArtists.remove(mArtist.getRef());
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    private static final AlbumArtHelper.AlbumArtListener sArtListener
+            = new AlbumArtHelper.DisplayTrackingListener() {
+        @Override
+        public void onArtLoaded(RecyclingBitmapDrawable output, BoundEntity request) {
+            // The art is now in the cache, nothing else to do. The bitmap isn't kept, so it
+            // can still be reused.
+        }
+    };
+
+    /**
+     * @return The default instance of this class
+     */
+    public static ArtistPrefetcher getDefault() {
+        return INSTANCE;
+    }
+
+    private ArtistPrefetcher() {
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 10, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), sThreadFactory);
+        mExecutor.allowCoreThreadTimeOut(true);
+        Metrics.getDefault().registerStats("artist_prefetch", mStats);
+    }
+
+    /**
+     * @return The prefetching counters
+     */
+    public Stats getStats() {
+        return mStats;
+    }
+
+    /**
+     * Notifies that an artist is displayed. It's prefetched if it's still displayed after a
+     * short delay, and if the budget allows it.
+     * @param res Resources used to load the art
+     * @param artist The artist
+     */
+    public void onArtistVisible(Resources res, Artist artist) {
+        schedule(res, artist, false);
+    }
+
+    /**
+     * Notifies that the user pressed an artist, which is likely to be opened. It's prefetched
+     * right away.
+     * @param res Resources used to load the art
+     * @param artist The artist
+     */
+    public void onArtistPressed(Resources res, Artist artist) {
+        schedule(res, artist, true);
+    }
+
+    /**
+     * Cancels the prefetch of an artist that is no longer displayed. The lookups that are
+     * already running complete, but the next ones are skipped.
+     * @param artist The artist
+     */
+    public void cancel(Artist artist) {
+        if (artist == null) {
+            return;
+        }
+
+        final PrefetchTask task = mTasks.remove(artist.getRef());
+        if (task != null) {
+            task.cancel();
+            mExecutor.remove(task);
+            if (!task.mStarted) {
+                // Allow it to be prefetched again if it shows up later
+                mRecentArtists.remove(artist.getRef());
+            }
+        }
+    }
+
+    /**
+     * Cancels all the pending prefetches
+     */
+    public void cancelAll() {
+        for (PrefetchTask task : mTasks.values()) {
+            task.cancel();
+            mExecutor.remove(task);
+            if (!task.mStarted) {
+                mRecentArtists.remove(task.mArtist.getRef());
+            }
+        }
+        mTasks.clear();
+    }
+
+    private void schedule(Resources res, Artist artist, boolean immediate) {
+        if (artist == null || artist.getName() == null
+                || ProviderAggregator.getDefault().isOfflineMode()) {
+            return;
+        }
+
+        final String ref = artist.getRef();
+        final PrefetchTask existing = mTasks.get(ref);
+        if (existing != null) {
+            if (!immediate || existing.mImmediate) {
+                return;
+            }
+            // Pressed while waiting as a visible artist, bump it
+            cancel(artist);
+        } else if (mRecentArtists.contains(ref)) {
+            return;
+        }
+
+        mRecentArtists.add(ref);
+        if (mRecentArtists.size() > MAX_RECENT_ARTISTS) {
+            Iterator<String> it = mRecentArtists.iterator();
+            it.next();
+            it.remove();
+        }
+
+        final PrefetchTask task = new PrefetchTask(res, artist, immediate);
+        mTasks.put(ref, task);
+        mStats.mRequested.incrementAndGet();
+
+        if (immediate) {
+            enqueue(task);
+        } else {
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    if (mTasks.get(ref) == task && !task.mCancelled) {
+                        enqueue(task);
+                    }
+                }
+            }, VISIBLE_DELAY);
+        }
+    }
+
+    private void enqueue(PrefetchTask task) {
+        // Only keep the most recent requests: drop the oldest background one when there are
+        // too many waiting
+        if (mExecutor.getQueue().size() >= MAX_QUEUED) {
+            PrefetchTask oldest = null;
+            for (Runnable queued : mExecutor.getQueue()) {
+                final PrefetchTask candidate = (PrefetchTask) queued;
+                if (!candidate.mImmediate
+                        && (oldest == null || candidate.mSequenceId < oldest.mSequenceId)) {
+                    oldest = candidate;
+                }
+            }
+            if (oldest != null) {
+                cancel(oldest.mArtist);
+            }
+        }
+
+        mExecutor.execute(task);
+    }
+
+    private static void prefetchArt(Resources res, Artist artist) {
+        AlbumArtHelper.retrieveAlbumArt(res, sArtListener, artist, -1, false);
+
+        final ProviderAggregator aggregator = ProviderAggregator.getDefault();
+        final Iterator<String> albums = artist.albums();
+        int count = 0;
+        while (albums.hasNext() && count < MAX_ALBUM_ARTS) {
+            final Album album = aggregator.retrieveAlbum(albums.next(), artist.getProvider());
+            if (album != null && album.isLoaded()) {
+                AlbumArtHelper.retrieveAlbumArt(res, sArtListener, album, -1, false);
+                ++count;
+            }
+        }
+    }
+}
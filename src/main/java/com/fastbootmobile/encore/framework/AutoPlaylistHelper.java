@@ -21,9 +21,13 @@ import com.fastbootmobile.encore.app.R;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.ProviderAggregator;
+import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -53,9 +57,11 @@ public class AutoPlaylistHelper {
         playlist.setOfflineStatus(Playlist.OFFLINE_STATUS_NO);
         playlist.setIsLoaded(true);
 
+        // Ensure the songs are cached as they're coming from multiple providers
+        final Set<String> available = retrieveEntries(aggregator, likes);
+
         for (ListenLogger.LogEntry like : likes) {
-            // Ensure the songs are cached as they're coming from multiple providers
-            if (aggregator.retrieveSong(like.getReference(), like.getIdentifier()) != null) {
+            if (available.contains(like.getReference())) {
                 playlist.addSong(like.getReference());
             }
         }
@@ -80,16 +86,16 @@ public class AutoPlaylistHelper {
         playlist.setOfflineStatus(Playlist.OFFLINE_STATUS_NO);
         playlist.setIsLoaded(true);
 
+        // Ensure the songs are cached as they're coming from multiple providers
+        final Set<String> available = retrieveEntries(aggregator, likes);
+
         HashMap<String, Integer> occurrences = new HashMap<>();
         for (ListenLogger.LogEntry like : likes) {
             final String ref = like.getReference();
 
-            // Ensure the songs are cached as they're coming from multiple providers
-            Song song = aggregator.retrieveSong(ref, like.getIdentifier());
-
-            // A null song indicates either the song has gone unavailable or the provider has been
-            // removed. We should not add it.
-            if (song != null) {
+            // A missing song indicates either the song has gone unavailable or the provider has
+            // been removed. We should not add it.
+            if (available.contains(ref)) {
                 if (occurrences.containsKey(like.getReference())) {
                     occurrences.put(ref, occurrences.get(ref) + 1);
                 } else {
@@ -117,6 +123,39 @@ public class AutoPlaylistHelper {
         return playlist;
     }
 
+    /**
+     * Retrieves the songs of the provided log entries, grouped by provider so that each provider
+     * is queried in bulk
+     * @param aggregator The provider aggregator
+     * @param entries The log entries
+     * @return The set of references that could be retrieved
+     */
+    private static Set<String> retrieveEntries(ProviderAggregator aggregator,
+                                               List<ListenLogger.LogEntry> entries) {
+        Map<ProviderIdentifier, Set<String>> refsPerProvider = new HashMap<>();
+        for (ListenLogger.LogEntry entry : entries) {
+            Set<String> refs = refsPerProvider.get(entry.getIdentifier());
+            if (refs == null) {
+                refs = new LinkedHashSet<>();
+                refsPerProvider.put(entry.getIdentifier(), refs);
+            }
+            refs.add(entry.getReference());
+        }
+
+        Set<String> available = new HashSet<>();
+        for (Map.Entry<ProviderIdentifier, Set<String>> group : refsPerProvider.entrySet()) {
+            List<Song> songs = aggregator.retrieveSongs(new ArrayList<>(group.getValue()),
+                    group.getKey());
+            for (Song song : songs) {
+                if (song != null) {
+                    available.add(song.getRef());
+                }
+            }
+        }
+
+        return available;
+    }
+
     private static class ValueComparator implements Comparator<String> {
         private Map<String, Integer> mBase;
 
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.framework;
+
+import android.util.Log;
+
+import com.fastbootmobile.encore.api.chartlyrics.ChartLyricsClient;
+import com.fastbootmobile.encore.api.chartlyrics.ChartLyricsClient.LyricsResponse;
+import com.fastbootmobile.encore.api.common.MetadataCache;
+import com.fastbootmobile.encore.api.common.RateLimitException;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.providers.ProviderAggregator;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+/**
+ * Fetches the lyrics of songs and keeps them in a local store, so that they show up instantly
+ * and offline once they've been fetched.
+ *
+ * Lyrics are stored by normalized artist and title, so that the different spellings of a song
+ * across providers ("Song (Remastered)", "Song - Live"...) share the same lyrics. Concurrent
+ * requests for the same song share a single fetch, and the lyrics of the upcoming tracks of the
+ * playback queue are fetched in the background (see {@link #prefetch(List)}).
+ *
+ * Songs without lyrics aren't stored here: ChartLyrics answers are cached by the HTTP layer, so
+ * asking again doesn't hit the network.
+ */
+public class LyricsManager {
+    private static final String TAG = "LyricsManager";
+    private static final boolean DEBUG = false;
+
+    private static final LyricsManager INSTANCE = new LyricsManager();
+
+    private static final long DAY = 24L * 3600 * 1000;
+    private static final int MAX_FETCH_ATTEMPTS = 4;
+    private static final long RESET_RETRY_DELAY = 3000;
+
+    private static final Pattern PATTERN_BRACKETS = Pattern.compile("[\\(\\[][^\\)\\]]*[\\)\\]]");
+    private static final Pattern PATTERN_SUFFIX
+            = Pattern.compile("\\s(-|feat\\.|ft\\.|featuring)\\s.*$");
+    private static final Pattern PATTERN_DIACRITICS = Pattern.compile("\\p{M}+");
+    private static final Pattern PATTERN_PUNCTUATION = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private final MetadataCache<LyricsResponse> mStore = new MetadataCache<>("lyrics", 32,
+            365 * DAY, 8 * 1024 * 1024, new MetadataCache.Codec<LyricsResponse>() {
+        @Override
+        public byte[] encode(LyricsResponse value) throws IOException {
+            try {
+                final JSONObject object = new JSONObject();
+                object.put("lyrics", value.lyrics);
+                object.put("artist", value.artist);
+                object.put("title", value.title);
+                return object.toString().getBytes("UTF-8");
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public LyricsResponse decode(byte[] data) throws IOException {
+            try {
+                final JSONObject object = new JSONObject(new String(data, "UTF-8"));
+                final LyricsResponse value = new LyricsResponse();
+                value.lyrics = object.optString("lyrics", null);
+                value.artist = object.optString("artist", null);
+                value.title = object.optString("title", null);
+                return value;
+            } catch (JSONException e) {
+                throw new IOException(e);
+            }
+        }
+    });
+
+    // Store key -> fetch running for that key
+    private final Map<String, FutureTask<LyricsResponse>> mRunningFetches = new HashMap<>();
+
+    // Prefetches run one at a time, as ChartLyrics throttles clients
+    private final ExecutorService mPrefetchExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger mPrefetchGeneration = new AtomicInteger();
+
+    /**
+     * @return The default instance of this class
+     */
+    public static LyricsManager getDefault() {
+        return INSTANCE;
+    }
+
+    private LyricsManager() {
+    }
+
+    /**
+     * @return The lookup statistics of the lyrics store
+     */
+    public MetadataCache.Stats getStats() {
+        return mStore.getStats();
+    }
+
+    /**
+     * Returns the lyrics of a song, from the store or from ChartLyrics. This method is
+     * synchronous and must be called from a Thread!
+     * @param song The song
+     * @return The lyrics, or null if the song has no artist. The lyrics field of the response is
+     * null if no lyrics were found.
+     */
+    public LyricsResponse getLyrics(Song song) throws IOException, RateLimitException {
+        final String artistName = getArtistName(song);
+        if (artistName == null || song.getTitle() == null) {
+            return null;
+        }
+
+        final String key = getStoreKey(artistName, song.getTitle());
+        final LyricsResponse stored = mStore.get(key);
+        if (stored != null) {
+            return stored;
+        }
+
+        return runFetch(key, artistName, song.getTitle());
+    }
+
+    /**
+     * Fetches in the background the lyrics of the provided songs that aren't stored yet,
+     * replacing the songs of the previous call
+     * @param songs The songs, in the order they'll be played. Null items are ignored.
+     */
+    public void prefetch(List<Song> songs) {
+        final int generation = mPrefetchGeneration.incrementAndGet();
+        final List<Song> pending = new ArrayList<>(songs);
+
+        mPrefetchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Song song : pending) {
+                    if (generation != mPrefetchGeneration.get()) {
+                        // The upcoming tracks changed
+                        return;
+                    }
+                    if (song == null) {
+                        continue;
+                    }
+
+                    try {
+                        getLyrics(song);
+                    } catch (IOException | RateLimitException e) {
+                        Log.w(TAG, "Cannot prefetch lyrics of " + song.getRef() + ": " + e);
+                        // Don't insist, we'll try again when the song plays
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Drops the prefetches that haven't run yet
+     */
+    public void cancelPrefetch() {
+        mPrefetchGeneration.incrementAndGet();
+    }
+
+    private LyricsResponse runFetch(final String key, final String artistName, final String title)
+            throws IOException, RateLimitException {
+        FutureTask<LyricsResponse> task;
+        boolean owner = false;
+        synchronized (mRunningFetches) {
+            task = mRunningFetches.get(key);
+            if (task == null) {
+                task = new FutureTask<>(new Callable<LyricsResponse>() {
+                    @Override
+                    public LyricsResponse call() throws Exception {
+                        return fetch(key, artistName, title);
+                    }
+                });
+                mRunningFetches.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            try {
+                task.run();
+            } finally {
+                synchronized (mRunningFetches) {
+                    mRunningFetches.remove(key);
+                }
+            }
+        } else if (DEBUG) {
+            Log.d(TAG, "Waiting for running fetch of " + key);
+        }
+
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RateLimitException) {
+                throw (RateLimitException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private LyricsResponse fetch(String key, String artistName, String title)
+            throws IOException, RateLimitException, InterruptedException {
+        for (int attempt = 1; ; ++attempt) {
+            try {
+                final LyricsResponse response = ChartLyricsClient.getSongLyrics(artistName, title);
+                if (response.lyrics != null) {
+                    mStore.put(key, response);
+                }
+                return response;
+            } catch (IOException e) {
+                // ChartLyrics API resets connection to throttle fetching. Retry a few seconds
+                // later.
+                if (attempt >= MAX_FETCH_ATTEMPTS || e.getMessage() == null
+                        || !e.getMessage().contains("Connection reset by peer")) {
+                    throw e;
+                }
+                Thread.sleep(RESET_RETRY_DELAY);
+            }
+        }
+    }
+
+    private static String getArtistName(Song song) {
+        if (song.getArtist() == null) {
+            return null;
+        }
+
+        final Artist artist = ProviderAggregator.getDefault().retrieveArtist(song.getArtist(),
+                song.getProvider());
+        return artist != null ? artist.getName() : null;
+    }
+
+    /**
+     * Builds the key of a song in the store: artist and title in lower case, without accents,
+     * punctuation, and the annotations of the title (between brackets or after a dash)
+     */
+    private static String getStoreKey(String artistName, String title) {
+        String cleanTitle = title.toLowerCase(Locale.ROOT);
+        cleanTitle = PATTERN_BRACKETS.matcher(cleanTitle).replaceAll(" ");
+        cleanTitle = normalize(PATTERN_SUFFIX.matcher(cleanTitle).replaceAll(""));
+        if (cleanTitle.isEmpty()) {
+            // The whole title is an annotation
+            cleanTitle = normalize(title);
+        }
+        return normalize(artistName) + "\n" + cleanTitle;
+    }
+
+    private static String normalize(String value) {
+        String result = Normalizer.normalize(value.toLowerCase(Locale.ROOT), Normalizer.Form.NFD);
+        result = PATTERN_DIACRITICS.matcher(result).replaceAll("");
+        result = PATTERN_PUNCTUATION.matcher(result).replaceAll(" ");
+        return result.trim();
+    }
+}
@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.framework;
+
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process registry of performance metrics: counters, latency histograms and gauges reading
+ * the statistics of the various caches. Metrics are created on first use by name, and can be
+ * dumped as text through {@link #dump(PrintWriter)} (dumpsys of PlaybackService and the debug
+ * dialog of the settings).
+ *
+ * Names are dot-separated, eg. "playback.skip_ms" or "provider.Spotify.ipc_ms", and durations
+ * are recorded in milliseconds.
+ */
+public class Metrics {
+    private static final Metrics INSTANCE = new Metrics();
+
+    // Number of most recent samples the percentiles of a histogram are computed on
+    private static final int HISTOGRAM_WINDOW = 256;
+
+    private final Map<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+    private final Map<String, Gauge> mGauges = new ConcurrentHashMap<>();
+    private final long mStartTime = SystemClock.elapsedRealtime();
+
+    /**
+     * A value read when the metrics are dumped
+     */
+    public interface Gauge {
+        /**
+         * @return The current value, reported with its toString()
+         */
+        Object getValue();
+    }
+
+    /**
+     * A monotonic counter
+     */
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(mValue.get());
+        }
+    }
+
+    /**
+     * A distribution of values. The count, mean and maximum cover all the recorded values, while
+     * the percentiles are computed on the most recent ones.
+     */
+    public static class Histogram {
+        private final long[] mWindow = new long[HISTOGRAM_WINDOW];
+        private long mCount;
+        private long mSum;
+        private long mMax;
+
+        /**
+         * Records a value
+         * @param value The value, usually a duration in milliseconds
+         */
+        public synchronized void record(long value) {
+            mWindow[(int) (mCount % HISTOGRAM_WINDOW)] = value;
+            ++mCount;
+            mSum += value;
+            mMax = Math.max(mMax, value);
+        }
+
+        /**
+         * Records the time elapsed since a point in time
+         * @param startTime The start time, from {@link SystemClock#elapsedRealtime()}
+         */
+        public void recordSince(long startTime) {
+            record(SystemClock.elapsedRealtime() - startTime);
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getMax() {
+            return mMax;
+        }
+
+        public synchronized long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        /**
+         * Returns a percentile of the most recent values
+         * @param percentile The percentile, between 0 and 100
+         * @return The value, or 0 if nothing has been recorded
+         */
+        public long getPercentile(int percentile) {
+            final long[] sorted = getSortedWindow();
+            return getPercentile(sorted, percentile);
+        }
+
+        private synchronized long[] getSortedWindow() {
+            final long[] sorted = Arrays.copyOf(mWindow, (int) Math.min(mCount, HISTOGRAM_WINDOW));
+            Arrays.sort(sorted);
+            return sorted;
+        }
+
+        private static long getPercentile(long[] sorted, int percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            final int index = (int) Math.ceil(sorted.length * percentile / 100.0) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+        }
+
+        @Override
+        public String toString() {
+            final long[] sorted = getSortedWindow();
+            return "count=" + getCount() + " mean=" + getMean()
+                    + " p50=" + getPercentile(sorted, 50) + " p90=" + getPercentile(sorted, 90)
+                    + " p99=" + getPercentile(sorted, 99) + " max=" + getMax();
+        }
+    }
+
+    /**
+     * @return The default instance of this class
+     */
+    public static Metrics getDefault() {
+        return INSTANCE;
+    }
+
+    private Metrics() {
+    }
+
+    /**
+     * Returns the counter of the provided name, creating it if needed
+     */
+    public Counter getCounter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            synchronized (mCounters) {
+                counter = mCounters.get(name);
+                if (counter == null) {
+                    counter = new Counter();
+                    mCounters.put(name, counter);
+                }
+            }
+        }
+        return counter;
+    }
+
+    /**
+     * Returns the histogram of the provided name, creating it if needed
+     */
+    public Histogram getHistogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            synchronized (mHistograms) {
+                histogram = mHistograms.get(name);
+                if (histogram == null) {
+                    histogram = new Histogram();
+                    mHistograms.put(name, histogram);
+                }
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, replacing the one previously registered with that name
+     */
+    public void registerGauge(String name, Gauge gauge) {
+        mGauges.put(name, gauge);
+    }
+
+    /**
+     * Registers a statistics object (eg. the Stats of a cache), reported with its toString()
+     */
+    public void registerStats(String name, final Object stats) {
+        registerGauge(name, new Gauge() {
+            @Override
+            public Object getValue() {
+                return stats;
+            }
+        });
+    }
+
+    public void unregisterGauge(String name) {
+        mGauges.remove(name);
+    }
+
+    /**
+     * Writes all the metrics, sorted by name, along with the device model so that dumps sent by
+     * users can be compared
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("Metrics: " + Build.MANUFACTURER + " " + Build.MODEL + ", Android "
+                + Build.VERSION.RELEASE + " (API " + Build.VERSION.SDK_INT + "), collected over "
+                + (SystemClock.elapsedRealtime() - mStartTime) / 1000 + "s");
+
+        pw.println("Counters:");
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(mCounters).entrySet()) {
+            pw.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+
+        pw.println("Histograms:");
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(mHistograms).entrySet()) {
+            pw.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+
+        pw.println("Gauges:");
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(mGauges).entrySet()) {
+            Object value;
+            try {
+                value = entry.getValue().getValue();
+            } catch (RuntimeException e) {
+                value = e;
+            }
+            pw.println("  " + entry.getKey() + ": " + value);
+        }
+
+        pw.flush();
+    }
+
+    /**
+     * @return The text dump of all the metrics
+     */
+    public String dump() {
+        final StringWriter writer = new StringWriter();
+        dump(new PrintWriter(writer));
+        return writer.toString();
+    }
+}
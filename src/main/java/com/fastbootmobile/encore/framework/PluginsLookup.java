@@ -39,6 +39,7 @@ import com.fastbootmobile.encore.providers.Constants;
 import com.fastbootmobile.encore.providers.DSPConnection;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.InjectedProviderConnection;
+import com.fastbootmobile.encore.providers.LibraryStream;
 import com.fastbootmobile.encore.providers.MultiProviderPlaylistProvider;
 import com.fastbootmobile.encore.providers.ProviderConnection;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
@@ -67,6 +68,7 @@ public class PluginsLookup {
     public static final String DATA_NAME = "name";
     public static final String DATA_AUTHOR = "author";
     public static final String DATA_CONFIGCLASS = "configclass";
+    public static final String DATA_LIBRARY_AUTHORITY = "library_authority";
 
     private static final String PREFS_PLUGINS = "plugins";
     private static final String PREF_KNOWN_PLUGINS = "known_plugins";
@@ -400,6 +402,8 @@ public class PluginsLookup {
                     item.put(DATA_NAME, sinfo.metaData.getString(Constants.METADATA_PROVIDER_NAME));
                     item.put(DATA_CONFIGCLASS, sinfo.metaData.getString(Constants.METADATA_CONFIG_CLASS));
                     item.put(DATA_AUTHOR, sinfo.metaData.getString(Constants.METADATA_PROVIDER_AUTHOR));
+                    item.put(DATA_LIBRARY_AUTHORITY,
+                            sinfo.metaData.getString(LibraryStream.METADATA_LIBRARY_AUTHORITY));
                 }
 
                 String providerName = item.get(DATA_NAME);
@@ -424,6 +428,7 @@ public class PluginsLookup {
                                 if (conn.getPackage().equals(sinfo.packageName)
                                         && conn.getServiceName().equals(sinfo.name)) {
                                     found = true;
+                                    conn.setLibraryAuthority(item.get(DATA_LIBRARY_AUTHORITY));
                                     conn.bindService();
                                     break;
                                 }
@@ -446,6 +451,7 @@ public class PluginsLookup {
                                     item.get(DATA_AUTHOR),
                                     item.get(DATA_PACKAGE), item.get(DATA_SERVICE),
                                     item.get(DATA_CONFIGCLASS));
+                            conn.setLibraryAuthority(item.get(DATA_LIBRARY_AUTHORITY));
                             conn.setListener(mProviderListener);
                             synchronized (mConnections) {
                                 mConnections.add(conn);
@@ -53,22 +53,26 @@ public class Suggestor {
         final List<Song> allSongs = new ArrayList<>();
         final ProviderAggregator aggregator = ProviderAggregator.getDefault();
 
-
-
         // List all tracks from all albums, get 100 random
         final List<String> albumReferences = artist.getAlbums();
-        for (String albumRef : albumReferences) {
-            Album album = aggregator.retrieveAlbum(albumRef, artist.getProvider());
+        final List<Album> albums = aggregator.retrieveAlbums(albumReferences, artist.getProvider());
+        final List<String> songReferences = new ArrayList<>();
+
+        for (Album album : albums) {
             if (album != null && album.isLoaded()) {
                 Iterator<String> songsIt = album.songs();
                 while (songsIt.hasNext()) {
-                    String songRef = songsIt.next();
-                    Song song = aggregator.retrieveSong(songRef, artist.getProvider());
-                    allSongs.add(song);
+                    songReferences.add(songsIt.next());
                 }
             }
         }
 
+        for (Song song : aggregator.retrieveSongs(songReferences, artist.getProvider())) {
+            if (song != null) {
+                allSongs.add(song);
+            }
+        }
+
         long seed = System.nanoTime();
         Collections.shuffle(allSongs, new Random(seed));
 
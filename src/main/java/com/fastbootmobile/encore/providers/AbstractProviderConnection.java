@@ -79,6 +79,13 @@ public abstract class AbstractProviderConnection implements ServiceConnection {
         mIdentifier = new ProviderIdentifier(mPackage, mServiceName, mProviderName);
     }
 
+    /**
+     * @return The context to which this connection is bound
+     */
+    protected Context getContext() {
+        return mContext;
+    }
+
     /**
      * Sets the listener for this provider connection
      * @param listener The listener
@@ -36,6 +36,12 @@ public interface ILocalCallback {
      */
     void onPlaylistRemoved(String ref);
 
+    /**
+     * Called when songs, albums or artists have been removed from the library of a provider
+     * @param refs The references of the entities that have been removed
+     */
+    void onEntitiesRemoved(List<String> refs);
+
     /**
      * Called when artist metadata has been updated
      * @param a The list of artists updated
@@ -0,0 +1,622 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Parcel;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.os.RemoteException;
+import android.os.TransactionTooLargeException;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.Song;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Bulk transfer of the library of a provider. Instead of paging through getSongs() with one
+ * binder transaction per page, a provider may export its whole catalog through a pipe opened
+ * from a ContentProvider, whose authority is declared in the meta-data of the provider service
+ * under {@link #METADATA_LIBRARY_AUTHORITY}. Opening the pipe is a single transaction, then the
+ * entities are streamed and handed to the app in batches as they are read.
+ *
+ * The stream is a header followed by records made of a type, a length and the parceled entity,
+ * and ends with an end record so that an interrupted transfer can be told from a complete one.
+ *
+ * Providers may also support delta syncs. The stream then starts with a sync record carrying a
+ * token identifying the state of the library being exported. When the app opens the stream again
+ * with that token as the {@link #QUERY_SINCE} parameter, a provider that still knows the token
+ * only sends the entities added or changed since then, followed by removal records for the
+ * references it no longer has, and flags the sync record as a delta. A provider that doesn't know
+ * the token just sends its whole library again. See {@link #fingerprint(Parcelable)} to tell
+ * which entities changed.
+ *
+ * Providers supporting delta syncs don't send their library changes one entity at a time through
+ * the binder callbacks. They notify a change of the {@link #PATH_LIBRARY} URI instead (see
+ * {@link #getUri(String, String)}), and the app reads the changes as a delta in one transfer.
+ *
+ * Providers may also export the entities of a list of references through the
+ * {@link #PATH_ENTITIES} stream, the references being passed in the {@link #EXTRA_REFS} option
+ * of the typed file opened. The app fetches the entities it's missing that way, in one transfer
+ * instead of one binder call per reference.
+ *
+ * Providers that don't declare an authority are paged through the binder as before.
+ */
+public class LibraryStream {
+    private static final String TAG = "LibraryStream";
+    private static final boolean DEBUG = false;
+
+    /**
+     * Meta-data of the provider service holding the authority of its library ContentProvider
+     */
+    public static final String METADATA_LIBRARY_AUTHORITY
+            = "com.fastbootmobile.encore.metadata.LIBRARY_AUTHORITY";
+
+    /**
+     * Path of the stream of the songs, albums and artists
+     */
+    public static final String PATH_LIBRARY = "library";
+
+    /**
+     * Path of the stream of the songs only
+     */
+    public static final String PATH_SONGS = "songs";
+
+    /**
+     * Path of the stream of the songs, albums and artists of the references in
+     * {@link #EXTRA_REFS}. The stream has no sync record, and leaves out unknown references.
+     */
+    public static final String PATH_ENTITIES = "entities";
+
+    /**
+     * Option of the {@link #PATH_ENTITIES} stream holding the list of references to export
+     */
+    public static final String EXTRA_REFS = "com.fastbootmobile.encore.extra.REFS";
+
+    /**
+     * Query parameter holding the sync token of the last library received by the app
+     */
+    public static final String QUERY_SINCE = "since";
+
+    public static final String MIME_TYPE = "application/vnd.fastbootmobile.encore.library";
+
+    /**
+     * Builds the URI of a library stream
+     * @param authority The authority of the library ContentProvider
+     * @param path One of {@link #PATH_LIBRARY}, {@link #PATH_SONGS} or {@link #PATH_ENTITIES}
+     * @return The URI of the stream, without sync token
+     */
+    public static Uri getUri(String authority, String path) {
+        return new Uri.Builder().scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(authority).appendPath(path).build();
+    }
+
+    private static final int MAGIC = 0x454c4942;
+    private static final int VERSION = 2;
+    private static final int MIN_VERSION = 1;
+
+    private static final int RECORD_END = 0;
+    private static final int RECORD_SONG = 1;
+    private static final int RECORD_ALBUM = 2;
+    private static final int RECORD_ARTIST = 3;
+    private static final int RECORD_SYNC = 4;
+    private static final int RECORD_REMOVED = 5;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final int BATCH_SIZE = 200;
+    private static final int PAGE_SIZE = 100;
+    private static final int PAGE_SIZE_STEP = 10;
+
+    /**
+     * Receives the entities read from a provider, in batches. Called on the reading thread.
+     */
+    public interface Listener {
+        void onSongs(List<Song> songs);
+
+        void onAlbums(List<Album> albums);
+
+        void onArtists(List<Artist> artists);
+
+        /**
+         * Called during delta syncs with the references of the entities the provider removed
+         */
+        void onRemoved(List<String> refs);
+    }
+
+    /**
+     * Outcome of a read
+     */
+    public static class Result {
+        private final boolean mComplete;
+        private final boolean mDelta;
+        private final String mSyncToken;
+
+        Result(boolean complete, boolean delta, String syncToken) {
+            mComplete = complete;
+            mDelta = delta;
+            mSyncToken = syncToken;
+        }
+
+        /**
+         * @return true if the whole library (or the whole delta) was read
+         */
+        public boolean isComplete() {
+            return mComplete;
+        }
+
+        /**
+         * @return true if only the changes since the requested token were received
+         */
+        public boolean isDelta() {
+            return mDelta;
+        }
+
+        /**
+         * @return The token of the library received, to pass to the next sync, or null if the
+         * provider doesn't support delta syncs
+         */
+        public String getSyncToken() {
+            return mSyncToken;
+        }
+    }
+
+    /**
+     * Listener for the readers only interested in songs
+     */
+    public static abstract class SongListener implements Listener {
+        @Override
+        public void onAlbums(List<Album> albums) {
+        }
+
+        @Override
+        public void onArtists(List<Artist> artists) {
+        }
+
+        @Override
+        public void onRemoved(List<String> refs) {
+        }
+    }
+
+    /**
+     * Writes the entities of a library to a stream, on the provider side
+     */
+    public static class Writer {
+        private final DataOutputStream mOut;
+        private final Parcel mParcel = Parcel.obtain();
+
+        public Writer(OutputStream out) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+        }
+
+        public void writeSong(Song song) throws IOException {
+            writeRecord(RECORD_SONG, song);
+        }
+
+        public void writeAlbum(Album album) throws IOException {
+            writeRecord(RECORD_ALBUM, album);
+        }
+
+        public void writeArtist(Artist artist) throws IOException {
+            writeRecord(RECORD_ARTIST, artist);
+        }
+
+        /**
+         * Writes the token of the library being exported. Must be written before any entity.
+         * @param token The token the app will send back on its next sync
+         * @param delta true if only the changes since the token requested by the app follow
+         */
+        public void writeSyncToken(String token, boolean delta) throws IOException {
+            mOut.writeByte(RECORD_SYNC);
+            mOut.writeUTF(token);
+            mOut.writeBoolean(delta);
+        }
+
+        /**
+         * Writes the reference of an entity removed since the token requested by the app. Only
+         * valid in a delta.
+         */
+        public void writeRemoved(String ref) throws IOException {
+            mOut.writeByte(RECORD_REMOVED);
+            mOut.writeUTF(ref);
+        }
+
+        /**
+         * Marks the end of the library and flushes the stream. The underlying stream isn't
+         * closed.
+         */
+        public void finish() throws IOException {
+            mOut.writeByte(RECORD_END);
+            mOut.flush();
+            mParcel.recycle();
+        }
+
+        private void writeRecord(int type, Parcelable entity) throws IOException {
+            if (entity == null) {
+                return;
+            }
+
+            mParcel.setDataPosition(0);
+            mParcel.setDataSize(0);
+            entity.writeToParcel(mParcel, 0);
+            final byte[] data = mParcel.marshall();
+
+            mOut.writeByte(type);
+            mOut.writeInt(data.length);
+            mOut.write(data);
+        }
+    }
+
+    /**
+     * Reads a library stream, delivering the entities to a listener in batches
+     */
+    private static class Reader {
+        private final DataInputStream mIn;
+        private final Listener mListener;
+        private final Parcel mParcel = Parcel.obtain();
+        private final List<Song> mSongs = new ArrayList<>();
+        private final List<Album> mAlbums = new ArrayList<>();
+        private final List<Artist> mArtists = new ArrayList<>();
+        private final List<String> mRemoved = new ArrayList<>();
+        private byte[] mBuffer = new byte[8192];
+        private int mDelivered;
+        private boolean mDelta;
+        private String mSyncToken;
+
+        Reader(InputStream in, Listener listener) {
+            mIn = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+            mListener = listener;
+        }
+
+        /**
+         * @return true if the end of the library was reached, false if the reading thread
+         * was interrupted
+         */
+        boolean read() throws IOException {
+            try {
+                if (mIn.readInt() != MAGIC) {
+                    throw new IOException("Not a library stream");
+                }
+                final int version = mIn.readInt();
+                if (version < MIN_VERSION || version > VERSION) {
+                    throw new IOException("Unsupported library stream version " + version);
+                }
+
+                while (true) {
+                    final int type = mIn.readByte();
+                    if (type == RECORD_END) {
+                        flush();
+                        return true;
+                    } else if (type == RECORD_SYNC) {
+                        mSyncToken = mIn.readUTF();
+                        mDelta = mIn.readBoolean();
+                        continue;
+                    } else if (type == RECORD_REMOVED) {
+                        mRemoved.add(mIn.readUTF());
+                        if (mRemoved.size() >= BATCH_SIZE) {
+                            flush();
+                        }
+                        continue;
+                    }
+
+                    final int length = mIn.readInt();
+                    if (length < 0 || length > MAX_RECORD_SIZE) {
+                        throw new IOException("Invalid record length " + length);
+                    }
+                    if (mBuffer.length < length) {
+                        mBuffer = new byte[Math.max(length, mBuffer.length * 2)];
+                    }
+                    mIn.readFully(mBuffer, 0, length);
+
+                    readRecord(type, length);
+
+                    if (mSongs.size() + mAlbums.size() + mArtists.size() >= BATCH_SIZE) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return false;
+                        }
+                        flush();
+                    }
+                }
+            } catch (EOFException e) {
+                throw new IOException("Library stream truncated after " + mDelivered
+                        + " entities", e);
+            } finally {
+                mParcel.recycle();
+            }
+        }
+
+        /**
+         * Unparcels the entity of a record from the buffer
+         */
+        private void readRecord(int type, int length) throws IOException {
+            try {
+                mParcel.unmarshall(mBuffer, 0, length);
+                mParcel.setDataPosition(0);
+
+                switch (type) {
+                    case RECORD_SONG:
+                        mSongs.add(Song.CREATOR.createFromParcel(mParcel));
+                        break;
+                    case RECORD_ALBUM:
+                        mAlbums.add(Album.CREATOR.createFromParcel(mParcel));
+                        break;
+                    case RECORD_ARTIST:
+                        mArtists.add(Artist.CREATOR.createFromParcel(mParcel));
+                        break;
+                    default:
+                        // Newer record type, skip it
+                        break;
+                }
+            } catch (RuntimeException e) {
+                // A malformed record is a broken stream, unlike the exceptions of the listener
+                throw new IOException("Invalid record of type " + type, e);
+            }
+        }
+
+        int getDelivered() {
+            return mDelivered;
+        }
+
+        boolean isDelta() {
+            return mDelta;
+        }
+
+        String getSyncToken() {
+            return mSyncToken;
+        }
+
+        private void flush() {
+            if (mSongs.size() > 0) {
+                mDelivered += mSongs.size();
+                mListener.onSongs(new ArrayList<>(mSongs));
+                mSongs.clear();
+            }
+            if (mAlbums.size() > 0) {
+                mDelivered += mAlbums.size();
+                mListener.onAlbums(new ArrayList<>(mAlbums));
+                mAlbums.clear();
+            }
+            if (mArtists.size() > 0) {
+                mDelivered += mArtists.size();
+                mListener.onArtists(new ArrayList<>(mArtists));
+                mArtists.clear();
+            }
+            if (mRemoved.size() > 0) {
+                mDelivered += mRemoved.size();
+                mListener.onRemoved(new ArrayList<>(mRemoved));
+                mRemoved.clear();
+            }
+        }
+    }
+
+    /**
+     * Reads all the songs, albums and artists of a provider. This method is synchronous and
+     * stops early if the calling thread is interrupted.
+     * @param conn The connection to the provider
+     * @param sinceToken The sync token of the last complete read of that provider, or null to
+     *                   read the whole library
+     * @param listener The listener receiving the entities
+     * @return The outcome of the read. If it is a delta, only the changes since sinceToken
+     * have been delivered.
+     */
+    public static Result readLibrary(ProviderConnection conn, String sinceToken,
+                                     Listener listener) throws RemoteException {
+        return read(conn, PATH_LIBRARY, sinceToken, listener);
+    }
+
+    /**
+     * Reads all the songs of a provider. See
+     * {@link #readLibrary(ProviderConnection, String, Listener)}.
+     * @param conn The connection to the provider
+     * @param listener The listener receiving the songs
+     * @return true if all the songs were read
+     */
+    public static boolean readSongs(ProviderConnection conn, Listener listener)
+            throws RemoteException {
+        return read(conn, PATH_SONGS, null, listener).isComplete();
+    }
+
+    /**
+     * Reads the songs, albums and artists of a list of references from a provider exporting
+     * them. Unlike the library, the entities aren't paged through the binder if the provider
+     * doesn't export them: the caller is expected to fetch them one by one instead.
+     * @param conn The connection to the provider
+     * @param refs The references to read
+     * @param listener The listener receiving the entities
+     * @return true if the provider exported the entities, false if it doesn't or the stream
+     * broke, in which case only part of the entities may have been delivered
+     */
+    public static boolean readEntities(ProviderConnection conn, List<String> refs,
+                                       Listener listener) {
+        final ParcelFileDescriptor pfd = conn.openEntitiesStream(refs);
+        if (pfd == null) {
+            return false;
+        }
+
+        final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+        final Reader reader = new Reader(in, listener);
+        try {
+            final boolean complete = reader.read();
+            if (DEBUG) Log.d(TAG, "Streamed " + reader.getDelivered() + "/" + refs.size()
+                    + " entities from " + conn.getProviderName());
+            return complete;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot stream entities from " + conn.getProviderName(), e);
+            return false;
+        } finally {
+            try {
+                in.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Reads a stream written by a {@link Writer}. The stream isn't closed.
+     * @param in The stream to read
+     * @param listener The listener receiving the entities
+     * @return The outcome of the read
+     * @throws IOException if the stream is broken or truncated
+     */
+    public static Result read(InputStream in, Listener listener) throws IOException {
+        final Reader reader = new Reader(in, listener);
+        final boolean complete = reader.read();
+        return new Result(complete, reader.isDelta(), reader.getSyncToken());
+    }
+
+    /**
+     * Computes a fingerprint of the parceled form of an entity. Providers supporting delta syncs
+     * may keep the fingerprints of the entities they exported to tell which ones changed since.
+     * @param entity The entity
+     * @return A 64 bits FNV-1a hash of the entity
+     */
+    public static long fingerprint(Parcelable entity) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            entity.writeToParcel(parcel, 0);
+            final byte[] data = parcel.marshall();
+
+            long hash = 0xcbf29ce484222325L;
+            for (byte b : data) {
+                hash ^= b & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Result read(ProviderConnection conn, String path, String sinceToken,
+                               Listener listener) throws RemoteException {
+        final ParcelFileDescriptor pfd = conn.openLibraryStream(path, sinceToken);
+        if (pfd != null) {
+            final InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(pfd);
+            final Reader reader = new Reader(in, listener);
+            try {
+                final boolean complete = reader.read();
+                if (DEBUG) Log.d(TAG, "Streamed " + reader.getDelivered()
+                        + (reader.isDelta() ? " changes" : " entities") + " from "
+                        + conn.getProviderName());
+                return new Result(complete, reader.isDelta(), reader.getSyncToken());
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot stream the library of " + conn.getProviderName(), e);
+                if (reader.getDelivered() > 0 || reader.isDelta()) {
+                    // Paging would deliver the same entities again, or the whole library on
+                    // top of a partial delta
+                    return new Result(false, reader.isDelta(), null);
+                }
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+
+        final IMusicProvider binder = conn.getBinder();
+        if (binder == null) {
+            return new Result(false, false, null);
+        }
+
+        boolean complete = pageSongs(conn, binder, listener);
+
+        if (PATH_LIBRARY.equals(path) && !Thread.currentThread().isInterrupted()) {
+            try {
+                final List<Album> albums = binder.getAlbums();
+                if (albums != null) {
+                    listener.onAlbums(albums);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Provider " + conn.getProviderName() + " threw an exception in getAlbums", e);
+                complete = false;
+            }
+
+            try {
+                final List<Artist> artists = binder.getArtists();
+                if (artists != null) {
+                    listener.onArtists(artists);
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Provider " + conn.getProviderName() + " threw an exception in getArtists", e);
+                complete = false;
+            }
+        }
+
+        return new Result(complete, false, null);
+    }
+
+    /**
+     * Pages through the songs of a provider that doesn't export its library, shrinking the pages
+     * when they don't fit in a binder transaction
+     */
+    private static boolean pageSongs(ProviderConnection conn, IMusicProvider binder,
+                                     Listener listener) throws RemoteException {
+        int offset = 0;
+        int limit = PAGE_SIZE;
+
+        while (!Thread.currentThread().isInterrupted()) {
+            final List<Song> songs;
+            try {
+                songs = binder.getSongs(offset, limit);
+            } catch (TransactionTooLargeException e) {
+                limit -= PAGE_SIZE_STEP;
+                if (limit <= 0) {
+                    Log.e(TAG, "Transaction too large even with a limit of " + PAGE_SIZE_STEP
+                            + ", bailing out of " + conn.getProviderName());
+                    return false;
+                }
+                Log.w(TAG, "Transaction too large, reducing limit to " + limit);
+                continue;
+            }
+
+            if (songs == null || songs.size() == 0) {
+                return true;
+            }
+
+            final List<Song> page = new ArrayList<>(songs.size());
+            for (Song song : songs) {
+                if (song != null) {
+                    page.add(song);
+                }
+            }
+            listener.onSongs(page);
+
+            if (songs.size() < limit) {
+                // Less songs than requested, we're at the end
+                return true;
+            }
+            offset += songs.size();
+        }
+
+        return false;
+    }
+}
@@ -22,24 +22,36 @@ import android.os.DeadObjectException;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.RemoteException;
-import android.os.TransactionTooLargeException;
+import android.os.SystemClock;
 import android.util.Log;
 import android.widget.Toast;
 
 import com.fastbootmobile.encore.app.R;
+import com.fastbootmobile.encore.framework.Metrics;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
 import com.fastbootmobile.encore.model.Genre;
 import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor;
 
@@ -49,22 +61,80 @@ import java.util.concurrent.ThreadPoolExecutor;
 public class ProviderAggregator extends IProviderCallback.Stub {
     private static final String TAG = "ProviderAggregator";
     private static final int PROPAGATION_DELAY = 200;
+    private static final int CACHE_SAVE_DELAY = 10000;
+    private static final int CACHE_SAVE_MAX_DELAY = 60000;
     private static final boolean DEBUG = false;
+    private static final int RETRIEVE_CHUNK_SIZE = 50;
+    private static final int RETRIEVE_STREAM_SIZE = 1000;
+    private static final int RETRIEVE_THREADS = 3;
 
-    private final Map<String, List<SearchResult>> mCachedSearches;
-    private final List<ILocalCallback> mUpdateCallbacks;
+    /**
+     * Interface fetching a single entity from a provider binder
+     */
+    private interface EntityFetcher<T> {
+        T fetch(IMusicProvider binder, String ref) throws RemoteException;
+
+        /**
+         * @return The class of the entities fetched, to pick them out of a library stream
+         */
+        Class<T> getType();
+    }
+
+    private static final EntityFetcher<Song> SONG_FETCHER = new EntityFetcher<Song>() {
+        @Override
+        public Song fetch(IMusicProvider binder, String ref) throws RemoteException {
+            return binder.getSong(ref);
+        }
+
+        @Override
+        public Class<Song> getType() {
+            return Song.class;
+        }
+    };
+
+    private static final EntityFetcher<Album> ALBUM_FETCHER = new EntityFetcher<Album>() {
+        @Override
+        public Album fetch(IMusicProvider binder, String ref) throws RemoteException {
+            return binder.getAlbum(ref);
+        }
+
+        @Override
+        public Class<Album> getType() {
+            return Album.class;
+        }
+    };
+
+    private static final EntityFetcher<Artist> ARTIST_FETCHER = new EntityFetcher<Artist>() {
+        @Override
+        public Artist fetch(IMusicProvider binder, String ref) throws RemoteException {
+            return binder.getArtist(ref);
+        }
+
+        @Override
+        public Class<Artist> getType() {
+            return Artist.class;
+        }
+    };
+
+    private final SearchCoordinator mSearchCoordinator;
+    private final List<CallbackRegistration> mUpdateCallbacks;
     private final List<ProviderConnection> mProviders;
     private ProviderCache mCache;
+    private ProviderCacheStore mCacheStore;
+    // Uptime at which the pending cache save must run at the latest, guarded by mSaveCacheRunnable
+    private long mCacheSaveDeadline;
     private Handler mMainHandler;
     private HandlerThread mBackHandlerThread;
     private Handler mBackHandler;
-    private final List<Song> mPostedUpdateSongs = new ArrayList<>();
-    private final List<Album> mPostedUpdateAlbums = new ArrayList<>();
-    private final List<Artist> mPostedUpdateArtists = new ArrayList<>();
-    private final List<Playlist> mPostedUpdatePlaylists = new ArrayList<>();
+    private final UpdateQueue.Stats mUpdateStats = new UpdateQueue.Stats();
+    private final UpdateQueue<Song> mPostedUpdateSongs = new UpdateQueue<>(mUpdateStats);
+    private final UpdateQueue<Album> mPostedUpdateAlbums = new UpdateQueue<>(mUpdateStats);
+    private final UpdateQueue<Artist> mPostedUpdateArtists = new UpdateQueue<>(mUpdateStats);
+    private final UpdateQueue<Playlist> mPostedUpdatePlaylists = new UpdateQueue<>(mUpdateStats);
     private List<String> mRosettaStonePrefix = new ArrayList<>();
     private Map<String, ProviderIdentifier> mRosettaStoneMap = new HashMap<>();
     private ThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(4);
+    private ExecutorService mRetrieveExecutor = Executors.newFixedThreadPool(RETRIEVE_THREADS);
     private Context mContext;
     private boolean mIsOfflineMode = false;
     private List<OfflineModeListener> mOfflineModeListeners = new ArrayList<>();
@@ -72,13 +142,16 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     private Runnable mPostSongsRunnable = new Runnable() {
         @Override
         public void run() {
-            synchronized (mPostedUpdateSongs) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onSongUpdate(new ArrayList<>(mPostedUpdateSongs));
-                    }
+            final List<Song> songs = mPostedUpdateSongs.drain();
+            if (songs.isEmpty()) {
+                return;
+            }
+
+            for (CallbackRegistration reg : mUpdateCallbacks) {
+                List<Song> filtered = reg.filter(songs, mUpdateStats);
+                if (!filtered.isEmpty()) {
+                    reg.callback.onSongUpdate(filtered);
                 }
-                mPostedUpdateSongs.clear();
             }
         }
     };
@@ -86,13 +159,16 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     private Runnable mPostAlbumsRunnable = new Runnable() {
         @Override
         public void run() {
-            synchronized (mPostedUpdateAlbums) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onAlbumUpdate(new ArrayList<>(mPostedUpdateAlbums));
-                    }
+            final List<Album> albums = mPostedUpdateAlbums.drain();
+            if (albums.isEmpty()) {
+                return;
+            }
+
+            for (CallbackRegistration reg : mUpdateCallbacks) {
+                List<Album> filtered = reg.filter(albums, mUpdateStats);
+                if (!filtered.isEmpty()) {
+                    reg.callback.onAlbumUpdate(filtered);
                 }
-                mPostedUpdateAlbums.clear();
             }
         }
     };
@@ -100,13 +176,16 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     private Runnable mPostArtistsRunnable = new Runnable() {
         @Override
         public void run() {
-            synchronized (mPostedUpdateArtists) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onArtistUpdate(new ArrayList<>(mPostedUpdateArtists));
-                    }
+            final List<Artist> artists = mPostedUpdateArtists.drain();
+            if (artists.isEmpty()) {
+                return;
+            }
+
+            for (CallbackRegistration reg : mUpdateCallbacks) {
+                List<Artist> filtered = reg.filter(artists, mUpdateStats);
+                if (!filtered.isEmpty()) {
+                    reg.callback.onArtistUpdate(filtered);
                 }
-                mPostedUpdateArtists.clear();
             }
         }
     };
@@ -114,17 +193,65 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     private Runnable mPostPlaylistsRunnable = new Runnable() {
         @Override
         public void run() {
-            synchronized (mPostedUpdatePlaylists) {
-                synchronized (mUpdateCallbacks) {
-                    for (ILocalCallback cb : mUpdateCallbacks) {
-                        cb.onPlaylistUpdate(new ArrayList<>(mPostedUpdatePlaylists));
-                    }
+            final List<Playlist> playlists = mPostedUpdatePlaylists.drain();
+            if (playlists.isEmpty()) {
+                return;
+            }
+
+            for (CallbackRegistration reg : mUpdateCallbacks) {
+                List<Playlist> filtered = reg.filter(playlists, mUpdateStats);
+                if (!filtered.isEmpty()) {
+                    reg.callback.onPlaylistUpdate(filtered);
                 }
-                mPostedUpdatePlaylists.clear();
             }
         }
     };
 
+    private Runnable mRestoreCacheRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mCacheStore.load(mCache)) {
+                return;
+            }
+
+            // Feed the restored entries to the callbacks so that lists can show up right away
+            final List<Song> songs = mCache.getAllSongs();
+            final List<Album> albums = mCache.getAllAlbums();
+            final List<Artist> artists = mCache.getAllArtists();
+            final List<Playlist> playlists = mCache.getAllPlaylists();
+
+            for (CallbackRegistration reg : mUpdateCallbacks) {
+                final List<Song> filteredSongs = reg.filter(songs, mUpdateStats);
+                if (!filteredSongs.isEmpty()) {
+                    reg.callback.onSongUpdate(filteredSongs);
+                }
+                final List<Album> filteredAlbums = reg.filter(albums, mUpdateStats);
+                if (!filteredAlbums.isEmpty()) {
+                    reg.callback.onAlbumUpdate(filteredAlbums);
+                }
+                final List<Artist> filteredArtists = reg.filter(artists, mUpdateStats);
+                if (!filteredArtists.isEmpty()) {
+                    reg.callback.onArtistUpdate(filteredArtists);
+                }
+                final List<Playlist> filteredPlaylists = reg.filter(playlists, mUpdateStats);
+                if (!filteredPlaylists.isEmpty()) {
+                    reg.callback.onPlaylistUpdate(filteredPlaylists);
+                }
+            }
+        }
+    };
+
+    private Runnable mSaveCacheRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (this) {
+                mCacheSaveDeadline = 0;
+            }
+            if (mCacheStore != null) {
+                mCacheStore.save(mCache);
+            }
+        }
+    };
 
     private Runnable mUpdatePlaylistsRunnable = new Runnable() {
         @Override
@@ -136,61 +263,44 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             }
 
             // Then we query the providers
-            for (ProviderConnection conn : providers) {
-                try {
-                    IMusicProvider binder = conn.getBinder();
-                    if (binder != null && binder.isSetup() && binder.isAuthenticated()) {
-                        List<Playlist> playlist = binder.getPlaylists();
-                        ensurePlaylistsSongsCached(conn, playlist);
-
-                        // Cache all songs in batch
-                        int offset = 0;
-                        int limit = 100;
-                        boolean goForIt = true;
-
-                        while (goForIt) {
-                            try {
-                                List<Song> songs = binder.getSongs(offset, limit);
-
-                                if (songs == null || songs.size() == 0) {
-                                    goForIt = false;
-                                } else {
-                                    cacheSongs(conn, songs);
+            for (final ProviderConnection conn : providers) {
+                syncProvider(conn);
+            }
+        }
+    };
 
-                                    if (songs.size() < limit) {
-                                        goForIt = false;
-                                    }
+    // Providers whose data must be synced again, see requestProviderSync(), and providers whose
+    // library only must be synced again, see onLibraryChanged(). Guarded by mPendingProviderSyncs.
+    private final Set<ProviderIdentifier> mPendingProviderSyncs = new HashSet<>();
+    private final Set<ProviderIdentifier> mPendingLibrarySyncs = new HashSet<>();
 
-                                    offset += limit;
-                                }
-                            } catch (TransactionTooLargeException ignore) {
-                                limit -= 10;
-                                Log.w(TAG, "Got transaction size error, reducing limit to " + limit);
-                            }
-                        }
+    private Runnable mSyncPendingProvidersRunnable = new Runnable() {
+        @Override
+        public void run() {
+            final Set<ProviderIdentifier> pending;
+            final Set<ProviderIdentifier> pendingLibraries;
+            synchronized (mPendingProviderSyncs) {
+                pending = new HashSet<>(mPendingProviderSyncs);
+                mPendingProviderSyncs.clear();
+                pendingLibraries = new HashSet<>(mPendingLibrarySyncs);
+                mPendingLibrarySyncs.clear();
+            }
 
-                        try {
-                            cacheAlbums(conn, binder.getAlbums());
-                        } catch (Exception e) {
-                            Log.e(TAG, "Provider " + conn.getProviderName() + " threw an exception in getAlbums", e);
-                        }
+            ArrayList<ProviderConnection> providers;
+            synchronized (mProviders) {
+                providers = new ArrayList<>(mProviders);
+            }
 
-                        try {
-                            cacheArtists(conn, binder.getArtists());
-                        } catch (Exception e) {
-                            Log.e(TAG, "Provider " + conn.getProviderName() + " threw an exception in getArtists", e);
-                        }
-                    } else if (conn.getBinder() != null) {
-                        Log.i(TAG, "Skipping a providers because it is not setup or authenticated" +
-                                " ==> binder=" + binder + " ; isSetup=" +
-                                binder.isSetup() + " ; isAuthenticated=" +
-                                binder.isAuthenticated());
-                    } else {
-                        unregisterProvider(conn);
+            for (ProviderConnection conn : providers) {
+                final ProviderIdentifier id = conn.getIdentifier();
+                if (pending.contains(id)) {
+                    syncProvider(conn);
+                } else if (pendingLibraries.contains(id)) {
+                    try {
+                        syncLibrary(conn);
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Unable to sync the library of " + conn.getProviderName(), e);
                     }
-                } catch (RemoteException e) {
-                    Log.e(TAG, "Unable to get data from " + conn.getProviderName(), e);
-                    unregisterProvider(conn);
                 }
             }
         }
@@ -207,14 +317,24 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * Default constructor
      */
     private ProviderAggregator() {
-        mUpdateCallbacks = new ArrayList<>();
+        mUpdateCallbacks = new CopyOnWriteArrayList<>();
         mProviders = new ArrayList<>();
         mCache = new ProviderCache();
         mMainHandler = new Handler();
-        mCachedSearches = new HashMap<>();
         mBackHandlerThread = new HandlerThread("ProviderAggregator");
         mBackHandlerThread.start();
         mBackHandler = new Handler(mBackHandlerThread.getLooper());
+        mSearchCoordinator = new SearchCoordinator(mExecutor, mBackHandler, mCache,
+                new SearchCoordinator.Listener() {
+                    @Override
+                    public void onSearchUpdate(String query, List<SearchResult> results) {
+                        for (CallbackRegistration reg : mUpdateCallbacks) {
+                            reg.callback.onSearchResult(results);
+                        }
+                    }
+                });
+
+        Metrics.getDefault().registerStats("aggregator.updates", mUpdateStats);
     }
 
     @Override
@@ -225,6 +345,208 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
     public void setContext(Context ctx) {
         mContext = ctx;
+
+        if (mCacheStore == null) {
+            // Restore the last known state of the library while providers are connecting
+            mCacheStore = new ProviderCacheStore(ctx);
+            mBackHandler.post(mRestoreCacheRunnable);
+        }
+    }
+
+    /**
+     * Schedules a save of the cache snapshot on disk. Successive calls are coalesced, but the
+     * save isn't pushed back more than CACHE_SAVE_MAX_DELAY after the first one, so that a
+     * steady stream of updates doesn't keep it from ever happening.
+     */
+    private void scheduleCacheSave() {
+        final long now = SystemClock.uptimeMillis();
+        synchronized (mSaveCacheRunnable) {
+            if (mCacheSaveDeadline == 0) {
+                mCacheSaveDeadline = now + CACHE_SAVE_MAX_DELAY;
+            }
+            mBackHandler.removeCallbacks(mSaveCacheRunnable);
+            mBackHandler.postAtTime(mSaveCacheRunnable,
+                    Math.min(now + CACHE_SAVE_DELAY, mCacheSaveDeadline));
+        }
+    }
+
+    /**
+     * Syncs the playlists and the library of a provider. Runs on the back handler thread.
+     *
+     * @param conn The provider to sync
+     */
+    private void syncProvider(final ProviderConnection conn) {
+        try {
+            IMusicProvider binder = conn.getBinder();
+            if (binder != null && binder.isSetup() && binder.isAuthenticated()) {
+                List<Playlist> playlist = binder.getPlaylists();
+                ensurePlaylistsSongsCached(conn, playlist);
+
+                syncLibrary(conn);
+            } else if (conn.getBinder() != null) {
+                Log.i(TAG, "Skipping a providers because it is not setup or authenticated" +
+                        " ==> binder=" + binder + " ; isSetup=" +
+                        binder.isSetup() + " ; isAuthenticated=" +
+                        binder.isAuthenticated());
+            } else {
+                unregisterProvider(conn);
+            }
+        } catch (RemoteException e) {
+            Log.e(TAG, "Unable to get data from " + conn.getProviderName(), e);
+            unregisterProvider(conn);
+        }
+    }
+
+    /**
+     * Schedules a sync of a single provider. Requests made before the sync runs are coalesced.
+     *
+     * @param provider The provider to sync
+     */
+    private void requestProviderSync(final ProviderIdentifier provider) {
+        synchronized (mPendingProviderSyncs) {
+            mPendingProviderSyncs.add(provider);
+        }
+        mBackHandler.removeCallbacks(mSyncPendingProvidersRunnable);
+        mBackHandler.post(mSyncPendingProvidersRunnable);
+    }
+
+    /**
+     * Called when a provider exporting its library notified that its library changed. The
+     * changes are read as a delta of the library stream, in a single transfer, instead of one
+     * callback per entity. Notifications made before the sync runs are coalesced.
+     *
+     * @param provider The provider whose library changed
+     * @see LibraryStream
+     */
+    void onLibraryChanged(final ProviderIdentifier provider) {
+        synchronized (mPendingProviderSyncs) {
+            mPendingLibrarySyncs.add(provider);
+        }
+        mBackHandler.removeCallbacks(mSyncPendingProvidersRunnable);
+        mBackHandler.post(mSyncPendingProvidersRunnable);
+    }
+
+    /**
+     * Caches the library of a provider, streamed if the provider supports it. If we have the
+     * token of a previous sync, only the changes since then are requested. Entities are applied
+     * on the calling thread, so that the new token is only recorded once all of them are in the
+     * cache. Runs on the back handler thread.
+     *
+     * @param conn The provider to sync
+     */
+    private void syncLibrary(final ProviderConnection conn) throws RemoteException {
+        final ProviderIdentifier id = conn.getIdentifier();
+        final String sinceToken = mCache.getSyncToken(id);
+        // Changes are propagated to the UI as they are read when we already have the library.
+        // A full sync fills the cache first, and the UI is updated once it's complete.
+        final boolean notify = sinceToken != null;
+        final int[] removedCount = new int[1];
+        final List<Song> reloadedSongs = new ArrayList<>();
+        final List<Album> reloadedAlbums = new ArrayList<>();
+        final Set<String> libraryRefs = new HashSet<>();
+
+        final LibraryStream.Result result = LibraryStream.readLibrary(conn, sinceToken,
+                new LibraryStream.Listener() {
+                    @Override
+                    public void onSongs(List<Song> songs) {
+                        for (Song song : songs) {
+                            libraryRefs.add(song.getRef());
+                            if (notify) {
+                                try {
+                                    onSongUpdate(id, song);
+                                } catch (RemoteException ignore) {
+                                }
+                            } else {
+                                mCache.putSong(id, song);
+                                reloadedSongs.add(song);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onAlbums(List<Album> albums) {
+                        for (Album album : albums) {
+                            libraryRefs.add(album.getRef());
+                            if (notify) {
+                                try {
+                                    onAlbumUpdate(id, album);
+                                } catch (RemoteException ignore) {
+                                }
+                            } else {
+                                if (album.getProvider() == null) {
+                                    Log.e(TAG, "Album " + album.getRef()
+                                            + " is being cached with a null provider!");
+                                }
+                                mCache.putAlbum(id, album);
+                                reloadedAlbums.add(album);
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onArtists(List<Artist> artists) {
+                        for (Artist artist : artists) {
+                            libraryRefs.add(artist.getRef());
+                            try {
+                                onArtistUpdate(id, artist);
+                            } catch (RemoteException ignore) {
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onRemoved(List<String> refs) {
+                        removedCount[0] += postRemoved(mCache.removeRefs(id, refs));
+                    }
+                });
+
+        if (!result.isComplete()) {
+            // Keep the previous token: the next sync will send again what we missed
+            return;
+        }
+
+        if (result.isDelta()) {
+            // Whatever the provider didn't mention is unchanged
+            mCache.confirmProviderLibrary(id);
+        } else {
+            if (result.getSyncToken() != null) {
+                // The provider exported its whole library, eg. because it didn't know our token
+                // anymore: drop everything it no longer has, not only the restored entries
+                removedCount[0] += postRemoved(mCache.retainProviderLibrary(id, libraryRefs));
+            }
+
+            // Screens already showing the cache must pick up the reloaded library
+            for (Song song : reloadedSongs) {
+                postSongForUpdate(song);
+            }
+            for (Album album : reloadedAlbums) {
+                postAlbumForUpdate(album);
+            }
+        }
+
+        // Drop the restored entries the provider didn't report again
+        final int droppedCount = mCache.dropUnconfirmedRestored(id);
+        if (droppedCount > 0 || removedCount[0] > 0) {
+            Log.d(TAG, "Dropped " + (droppedCount + removedCount[0]) + " stale entries of "
+                    + conn.getProviderName());
+        }
+
+        mCache.setSyncToken(id, result.getSyncToken());
+        scheduleCacheSave();
+    }
+
+    /**
+     * Tells the callbacks that entries have been removed from the cache
+     * @param refs The references of the entries removed
+     * @return The number of entries removed
+     */
+    private int postRemoved(final List<String> refs) {
+        if (!refs.isEmpty()) {
+            for (CallbackRegistration reg : mUpdateCallbacks) {
+                reg.callback.onEntitiesRemoved(refs);
+            }
+        }
+        return refs.size();
     }
 
     /**
@@ -241,9 +563,18 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * @param cb The callback to add
      */
     public void addUpdateCallback(ILocalCallback cb) {
-        synchronized (mUpdateCallbacks) {
-            mUpdateCallbacks.add(cb);
-        }
+        addUpdateCallback(cb, null);
+    }
+
+    /**
+     * Registers a LocalCallback class, which will only be notified of the entity updates that
+     * the provided filter accepts. Other events are delivered as usual.
+     *
+     * @param cb     The callback to add
+     * @param filter The filter of the entity updates, or null to receive all of them
+     */
+    public void addUpdateCallback(ILocalCallback cb, UpdateFilter filter) {
+        mUpdateCallbacks.add(new CallbackRegistration(cb, filter));
     }
 
     /**
@@ -252,11 +583,20 @@ public class ProviderAggregator extends IProviderCallback.Stub {
      * @param cb The callback to remove
      */
     public void removeUpdateCallback(ILocalCallback cb) {
-        synchronized (mUpdateCallbacks) {
-            mUpdateCallbacks.remove(cb);
+        for (CallbackRegistration reg : mUpdateCallbacks) {
+            if (reg.callback == cb) {
+                mUpdateCallbacks.remove(reg);
+            }
         }
     }
 
+    /**
+     * @return The counters of the entity updates propagation
+     */
+    public UpdateQueue.Stats getUpdateStats() {
+        return mUpdateStats;
+    }
+
     public void cacheSongs(final ProviderConnection provider, final List<Song> songs) {
         if (provider == null)
             return;
@@ -323,38 +663,42 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return null;
         }
 
-        // Try from cache
-        Song output = mCache.getSong(ref);
+        Song output = retrieveSongs(Collections.singletonList(ref), provider).get(0);
 
         if (output == null && provider != null) {
-            // Get from provider then
-            ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
-            if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
+            Log.d(TAG, "Unable to get song " + ref + " from " + provider.mName);
+        }
 
-                if (binder != null) {
-                    try {
-                        output = binder.getSong(ref);
-                        if (output != null) {
-                            onSongUpdate(provider, output);
-                        }
-                    } catch (DeadObjectException e) {
-                        Log.e(TAG, "Provider died while retrieving song");
-                        return null;
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Unable to retrieve the song", e);
-                        return null;
-                    }
-                } else {
-                    if (DEBUG) Log.e(TAG, "Binder null: provider not yet connected?");
+        return output;
+    }
+
+    /**
+     * Retrieves multiple songs at once. The cache is checked first in a single pass, and the
+     * references that are missing are requested from the provider: through its library stream
+     * if it exports one, otherwise in chunks of {@link #RETRIEVE_CHUNK_SIZE}, which are
+     * processed in parallel.
+     *
+     * @param refs     The references of the songs
+     * @param provider The provider from which retrieve the songs (may be null to query cache only)
+     * @return A list the same size as refs, in the same order, with null entries for the songs
+     * that couldn't be retrieved
+     */
+    public List<Song> retrieveSongs(final List<String> refs, final ProviderIdentifier provider) {
+        final List<Song> output = mCache.getSongs(refs);
+        final List<String> misses = collectMisses(refs, output);
+
+        if (misses.size() > 0 && provider != null) {
+            final Map<String, Song> fetched = fetchFromProvider(provider, misses, SONG_FETCHER);
+
+            for (Song song : fetched.values()) {
+                try {
+                    onSongUpdate(provider, song);
+                } catch (RemoteException e) {
+                    // Local call, cannot happen
                 }
-            } else {
-                Log.e(TAG, "Unknown provider identifier: " + provider);
             }
-        }
 
-        if (output == null && provider != null) {
-            Log.d(TAG, "Unable to get song " + ref + " from " + provider.mName);
+            fillMisses(refs, output, fetched);
         }
 
         return output;
@@ -378,26 +722,33 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return null;
         }
 
-        // Try from cache
-        Artist output = mCache.getArtist(ref);
-        if (output == null && provider != null) {
-            ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
-            if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
+        return retrieveArtists(Collections.singletonList(ref), provider).get(0);
+    }
 
-                if (binder != null) {
-                    try {
-                        output = binder.getArtist(ref);
-                        onArtistUpdate(provider, output);
-                    } catch (DeadObjectException e) {
-                        Log.e(TAG, "Provider died while retrieving artist");
-                        return null;
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Unable to retrieve the artist", e);
-                        return null;
-                    }
+    /**
+     * Retrieves multiple artists at once. See {@link #retrieveSongs(List, ProviderIdentifier)}.
+     *
+     * @param refs     The references of the artists
+     * @param provider The provider from which retrieve the artists (may be null)
+     * @return A list the same size as refs, with null entries for missing artists
+     */
+    public List<Artist> retrieveArtists(final List<String> refs,
+                                        final ProviderIdentifier provider) {
+        final List<Artist> output = mCache.getArtists(refs);
+        final List<String> misses = collectMisses(refs, output);
+
+        if (misses.size() > 0 && provider != null) {
+            final Map<String, Artist> fetched = fetchFromProvider(provider, misses, ARTIST_FETCHER);
+
+            for (Artist artist : fetched.values()) {
+                try {
+                    onArtistUpdate(provider, artist);
+                } catch (RemoteException e) {
+                    // Local call, cannot happen
                 }
             }
+
+            fillMisses(refs, output, fetched);
         }
 
         return output;
@@ -421,25 +772,238 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return null;
         }
 
-        // Try from cache
-        Album output = mCache.getAlbum(ref);
+        return retrieveAlbums(Collections.singletonList(ref), provider).get(0);
+    }
 
-        if (output == null && provider != null) {
-            ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
-            if (pc != null) {
-                IMusicProvider binder = pc.getBinder();
+    /**
+     * Retrieves multiple albums at once. See {@link #retrieveSongs(List, ProviderIdentifier)}.
+     *
+     * @param refs     The references of the albums
+     * @param provider The provider from which retrieve the albums (may be null)
+     * @return A list the same size as refs, with null entries for missing albums
+     */
+    public List<Album> retrieveAlbums(final List<String> refs, final ProviderIdentifier provider) {
+        final List<Album> output = mCache.getAlbums(refs);
+        final List<String> misses = collectMisses(refs, output);
 
-                if (binder != null) {
-                    try {
-                        output = binder.getAlbum(ref);
-                        onAlbumUpdate(provider, output);
-                    } catch (DeadObjectException e) {
-                        Log.e(TAG, "Provider died while retrieving album");
-                    } catch (RemoteException e) {
-                        Log.e(TAG, "Unable to retrieve the album", e);
+        if (misses.size() > 0 && provider != null) {
+            final Map<String, Album> fetched = fetchFromProvider(provider, misses, ALBUM_FETCHER);
+
+            for (Album album : fetched.values()) {
+                try {
+                    onAlbumUpdate(provider, album);
+                } catch (RemoteException e) {
+                    // Local call, cannot happen
+                }
+            }
+
+            fillMisses(refs, output, fetched);
+        }
+
+        return output;
+    }
+
+    /**
+     * Returns the histogram of the binder calls made to retrieve entities from a provider
+     */
+    private static Metrics.Histogram getIpcLatency(ProviderIdentifier provider) {
+        return Metrics.getDefault().getHistogram("provider." + provider.mName + ".ipc_ms");
+    }
+
+    private static Metrics.Counter getIpcErrors(ProviderIdentifier provider) {
+        return Metrics.getDefault().getCounter("provider." + provider.mName + ".ipc_errors");
+    }
+
+    /**
+     * Returns the (deduplicated) references for which the cache lookup returned nothing
+     */
+    private static <T> List<String> collectMisses(List<String> refs, List<T> cached) {
+        final Set<String> misses = new LinkedHashSet<>();
+        final int count = refs.size();
+        int hits = 0;
+        for (int i = 0; i < count; ++i) {
+            final String ref = refs.get(i);
+            if (ref != null) {
+                if (cached.get(i) == null) {
+                    misses.add(ref);
+                } else {
+                    ++hits;
+                }
+            }
+        }
+
+        final Metrics metrics = Metrics.getDefault();
+        metrics.getCounter("aggregator.cache_hits").add(hits);
+        metrics.getCounter("aggregator.cache_misses").add(misses.size());
+        return new ArrayList<>(misses);
+    }
+
+    /**
+     * Puts the entities fetched from the provider at their position in the output list
+     */
+    private static <T> void fillMisses(List<String> refs, List<T> output, Map<String, T> fetched) {
+        final int count = refs.size();
+        for (int i = 0; i < count; ++i) {
+            if (output.get(i) == null) {
+                final String ref = refs.get(i);
+                if (ref != null) {
+                    output.set(i, fetched.get(ref));
+                }
+            }
+        }
+    }
+
+    /**
+     * Fetches the provided references from a provider, without touching the cache. Providers
+     * exporting their library send the entities through their library stream, up to
+     * {@link #RETRIEVE_STREAM_SIZE} at a time. Otherwise, or for the references the stream left
+     * out, the references are split in chunks of {@link #RETRIEVE_CHUNK_SIZE}, which are fetched
+     * one by one in parallel on the retrieval executor, the calling thread taking care of the
+     * last chunk itself.
+     *
+     * @param provider The provider to query
+     * @param refs     The references to fetch
+     * @param fetcher  The fetcher for the kind of entity queried
+     * @return A map of reference to entity, containing only the entities that the provider
+     * returned
+     */
+    private <T> Map<String, T> fetchFromProvider(final ProviderIdentifier provider,
+                                                 final List<String> refs,
+                                                 final EntityFetcher<T> fetcher) {
+        final Map<String, T> output = new HashMap<>();
+
+        final ProviderConnection pc = PluginsLookup.getDefault().getProvider(provider);
+        if (pc == null) {
+            Log.e(TAG, "Unknown provider identifier: " + provider);
+            return output;
+        }
+
+        final IMusicProvider binder = pc.getBinder();
+        if (binder == null) {
+            if (DEBUG) Log.e(TAG, "Binder null: provider not yet connected?");
+            return output;
+        }
+
+        final List<String> pending = streamFromProvider(pc, refs, fetcher, output);
+
+        final List<Future<Map<String, T>>> futures = new ArrayList<>();
+        final int count = pending.size();
+        int start = 0;
+
+        while (count - start > RETRIEVE_CHUNK_SIZE) {
+            final List<String> chunk = pending.subList(start, start + RETRIEVE_CHUNK_SIZE);
+            futures.add(mRetrieveExecutor.submit(new Callable<Map<String, T>>() {
+                @Override
+                public Map<String, T> call() {
+                    return fetchChunk(provider, binder, chunk, fetcher);
+                }
+            }));
+            start += RETRIEVE_CHUNK_SIZE;
+        }
+
+        output.putAll(fetchChunk(provider, binder, pending.subList(start, count), fetcher));
+
+        for (Future<Map<String, T>> future : futures) {
+            try {
+                output.putAll(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Unable to retrieve a chunk of entities", e);
+            }
+        }
+
+        if (DEBUG) Log.d(TAG, "Fetched " + output.size() + "/" + refs.size() + " entities from "
+                + provider.mName + ", " + count + " of them in " + (futures.size() + 1)
+                + " chunks");
+
+        return output;
+    }
+
+    /**
+     * Reads the provided references through the library stream of a provider
+     *
+     * @param pc      The provider to query
+     * @param refs    The references to read
+     * @param fetcher The fetcher for the kind of entity queried
+     * @param output  The map receiving the entities read
+     * @return The references that still have to be fetched one by one
+     */
+    private <T> List<String> streamFromProvider(final ProviderConnection pc,
+                                                final List<String> refs,
+                                                final EntityFetcher<T> fetcher,
+                                                final Map<String, T> output) {
+        final Class<T> type = fetcher.getType();
+        final LibraryStream.Listener listener = new LibraryStream.Listener() {
+            @Override
+            public void onSongs(List<Song> songs) {
+                collect(songs);
+            }
+
+            @Override
+            public void onAlbums(List<Album> albums) {
+                collect(albums);
+            }
+
+            @Override
+            public void onArtists(List<Artist> artists) {
+                collect(artists);
+            }
+
+            @Override
+            public void onRemoved(List<String> removed) {
+            }
+
+            private void collect(List<? extends BoundEntity> entities) {
+                for (BoundEntity entity : entities) {
+                    if (type.isInstance(entity)) {
+                        output.put(entity.getRef(), type.cast(entity));
                     }
                 }
             }
+        };
+
+        final Metrics.Histogram latency = getIpcLatency(pc.getIdentifier());
+        final int count = refs.size();
+        int start = 0;
+
+        while (start < count) {
+            final long startTime = SystemClock.elapsedRealtime();
+            final int end = Math.min(start + RETRIEVE_STREAM_SIZE, count);
+            if (!LibraryStream.readEntities(pc, refs.subList(start, end), listener)) {
+                break;
+            }
+            latency.recordSince(startTime);
+            start = end;
+        }
+
+        // The stream leaves out the references the provider doesn't know, so only the ones that
+        // weren't streamed are left
+        return refs.subList(start, count);
+    }
+
+    private <T> Map<String, T> fetchChunk(ProviderIdentifier provider, IMusicProvider binder,
+                                          List<String> refs, EntityFetcher<T> fetcher) {
+        final Map<String, T> output = new HashMap<>();
+        final Metrics.Histogram latency = getIpcLatency(provider);
+
+        for (String ref : refs) {
+            final long startTime = SystemClock.elapsedRealtime();
+            try {
+                T entity = fetcher.fetch(binder, ref);
+                latency.recordSince(startTime);
+                if (entity != null) {
+                    output.put(ref, entity);
+                }
+            } catch (DeadObjectException e) {
+                Log.e(TAG, "Provider died while retrieving " + ref);
+                getIpcErrors(provider).increment();
+                break;
+            } catch (RemoteException e) {
+                Log.e(TAG, "Unable to retrieve " + ref, e);
+                getIpcErrors(provider).increment();
+            }
         }
 
         return output;
@@ -472,11 +1036,14 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 IMusicProvider binder = pc.getBinder();
 
                 if (binder != null) {
+                    final long startTime = SystemClock.elapsedRealtime();
                     try {
                         output = binder.getPlaylist(ref);
+                        getIpcLatency(provider).recordSince(startTime);
                         onPlaylistAddedOrUpdated(provider, output);
                     } catch (RemoteException e) {
                         Log.e(TAG, "Unable to retrieve the playlist", e);
+                        getIpcErrors(provider).increment();
                     }
                 }
             }
@@ -508,6 +1075,9 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     return;
                 }
 
+                // Gather the references of all the songs we don't have yet, for all playlists
+                final Set<String> missingRefs = new LinkedHashSet<>();
+
                 for (Playlist p : playlist) {
                     if (p == null || p.getName() == null) {
                         continue;
@@ -519,37 +1089,39 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
                     mCache.putPlaylist(provider.getIdentifier(), p);
 
-                    // Make sure we have references to all the songs in the playlist
-                    Iterator<String> songs = p.songs();
-                    while (songs.hasNext()) {
-                        String songRef = songs.next();
+                    final List<String> songRefs = p.songsList();
+                    final List<Song> cachedSongs = mCache.getSongs(songRefs);
+                    final int count = songRefs.size();
 
-                        // We first check that we don't already have the song in the cache
-                        Song cachedSong = mCache.getSong(songRef);
+                    for (int i = 0; i < count; ++i) {
+                        Song cachedSong = cachedSongs.get(i);
 
-                        if (cachedSong != null && cachedSong.isLoaded()) {
-                            // We already have that song, continue to the next one
-                            continue;
+                        // We only need songs we don't have, or that were not loaded yet
+                        if (cachedSong == null || !cachedSong.isLoaded()) {
+                            String songRef = songRefs.get(i);
+                            if (songRef != null) {
+                                missingRefs.add(songRef);
+                            }
                         }
+                    }
+                }
 
-                        // Get the song from the provider
-                        Song song = null;
-                        try {
-                            song = binder.getSong(songRef);
-                        } catch (RemoteException e) {
-                            // ignore, provider likely died, we just skip its song
-                        }
+                if (missingRefs.isEmpty()) {
+                    return;
+                }
 
-                        if (song != null) {
-                            mCache.putSong(provider.getIdentifier(), song);
+                // Get the songs from the provider in bulk
+                final Map<String, Song> songs = fetchFromProvider(provider.getIdentifier(),
+                        new ArrayList<>(missingRefs), SONG_FETCHER);
 
-                            // We call the songUpdate callback only if the track has been loaded.
-                            // If it's not, we assume that the provider will call songUpdated
-                            // here when it has the data for the track.
-                            if (song.isLoaded()) {
-                                postSongForUpdate(song);
-                            }
-                        }
+                for (Song song : songs.values()) {
+                    mCache.putSong(provider.getIdentifier(), song);
+
+                    // We call the songUpdate callback only if the track has been loaded.
+                    // If it's not, we assume that the provider will call songUpdated
+                    // here when it has the data for the track.
+                    if (song.isLoaded()) {
+                        postSongForUpdate(song);
                     }
                 }
             }
@@ -589,10 +1161,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                         }
 
                         // Notify subclasses of the new provider
-                        synchronized (mUpdateCallbacks) {
-                            for (ILocalCallback cb : mUpdateCallbacks) {
-                                cb.onProviderConnected(binder);
-                            }
+                        for (CallbackRegistration reg : mUpdateCallbacks) {
+                            reg.callback.onProviderConnected(binder);
                         }
                     }
                 } catch (RemoteException e) {
@@ -627,6 +1197,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                 }
 
                 mCache.purgeCacheForProvider(provider.getIdentifier());
+                scheduleCacheSave();
             }
         });
     }
@@ -693,23 +1264,22 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     }
 
     /**
-     * Starts a search. Results will be given in onSearchResults
+     * Starts a search on all the available providers. Results will be given in onSearchResults
+     * as soon as each provider answers, merged with the results of the other providers.
      * @param query The terms to look for
      */
     public void startSearch(final String query) {
-        List<ProviderConnection> providers = PluginsLookup.getDefault().getAvailableProviders();
-        for (ProviderConnection providerConnection : providers) {
-            try {
-                final IMusicProvider binder = providerConnection.getBinder();
-                if (binder != null) {
-                    binder.startSearch(query);
-                } else {
-                    Log.e(TAG, "Null binder, cannot search on " + providerConnection.getIdentifier());
-                }
-            } catch (RemoteException e) {
-                Log.e(TAG, "Cannot run search on a provider", e);
-            }
-        }
+        mSearchCoordinator.startSearch(query, PluginsLookup.getDefault().getAvailableProviders());
+    }
+
+    /**
+     * Returns whether or not providers are still expected to answer a search. Providers that
+     * don't answer in time are no longer waited for.
+     * @param query The terms of the search
+     * @return true if the search is still running
+     */
+    public boolean isSearchPending(final String query) {
+        return mSearchCoordinator.isSearchPending(query);
     }
 
     /**
@@ -730,35 +1300,31 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     }
 
     public void postSongForUpdate(Song s) {
+        mPostedUpdateSongs.post(s);
         mBackHandler.removeCallbacks(mPostSongsRunnable);
-        synchronized (mPostedUpdateSongs) {
-            mPostedUpdateSongs.add(s);
-        }
         mBackHandler.postDelayed(mPostSongsRunnable, PROPAGATION_DELAY);
+        scheduleCacheSave();
     }
 
     public void postAlbumForUpdate(Album a) {
+        mPostedUpdateAlbums.post(a);
         mBackHandler.removeCallbacks(mPostAlbumsRunnable);
-        synchronized (mPostedUpdateAlbums) {
-            mPostedUpdateAlbums.add(a);
-        }
         mBackHandler.postDelayed(mPostAlbumsRunnable, PROPAGATION_DELAY);
+        scheduleCacheSave();
     }
 
     public void postArtistForUpdate(Artist a) {
+        mPostedUpdateArtists.post(a);
         mBackHandler.removeCallbacks(mPostArtistsRunnable);
-        synchronized (mPostedUpdateArtists) {
-            mPostedUpdateArtists.add(a);
-        }
         mBackHandler.postDelayed(mPostArtistsRunnable, PROPAGATION_DELAY);
+        scheduleCacheSave();
     }
 
     public void postPlaylistForUpdate(Playlist p) {
+        mPostedUpdatePlaylists.post(p);
         mBackHandler.removeCallbacks(mPostPlaylistsRunnable);
-        synchronized (mPostedUpdatePlaylists) {
-            mPostedUpdatePlaylists.add(p);
-        }
         mBackHandler.postDelayed(mPostPlaylistsRunnable, PROPAGATION_DELAY);
+        scheduleCacheSave();
     }
 
     public List<String> getRosettaStonePrefix() {
@@ -794,9 +1360,8 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         // Request playlists if we logged in
         Log.d(TAG, "onLoggedIn(" + success + ")");
         if (success) {
-            // Cache data
-            mBackHandler.removeCallbacks(mUpdatePlaylistsRunnable);
-            mBackHandler.post(mUpdatePlaylistsRunnable);
+            // Cache the data of that provider
+            requestProviderSync(provider);
         } else {
             mMainHandler.post(new Runnable() {
                 @Override
@@ -832,6 +1397,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         try {
             // We compare the provided copy with the one we have in cache. We only notify the callbacks
             // if it indeed changed.
+            mCache.confirmRef(p.getRef());
             Playlist cached = mCache.getPlaylist(p.getRef());
 
             boolean notify;
@@ -879,11 +1445,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
                     public void run() {
                         // First, we try to check if we need information for some of the songs
                         // TODO(xplodwild): Is this really needed in a properly designed provider?
-                        Iterator<String> it = finalCachedPlaylist.songs();
-                        while (it.hasNext()) {
-                            String ref = it.next();
-                            retrieveSong(ref, provider);
-                        }
+                        retrieveSongs(new ArrayList<>(finalCachedPlaylist.songsList()), provider);
 
                         // Then we notify the callbacks
                         postPlaylistForUpdate(finalCachedPlaylist);
@@ -905,12 +1467,11 @@ public class ProviderAggregator extends IProviderCallback.Stub {
     public void onPlaylistRemoved(ProviderIdentifier provider, String ref) throws RemoteException {
         if (ref != null) {
             mCache.removePlaylist(ref);
+            scheduleCacheSave();
         }
 
-        synchronized (mUpdateCallbacks) {
-            for (ILocalCallback cb : mUpdateCallbacks) {
-                cb.onPlaylistRemoved(ref);
-            }
+        for (CallbackRegistration reg : mUpdateCallbacks) {
+            reg.callback.onPlaylistRemoved(ref);
         }
     }
 
@@ -925,6 +1486,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
         }
 
         try {
+            mCache.confirmRef(s.getRef());
             Song cached = mCache.getSong(s.getRef());
             boolean wasLoaded = false;
             boolean changed = false;
@@ -991,6 +1553,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return;
         }
 
+        mCache.confirmRef(a.getRef());
         Album cached = mCache.getAlbum(a.getRef());
         boolean modified = false;
 
@@ -1023,12 +1586,15 @@ public class ProviderAggregator extends IProviderCallback.Stub {
 
         if (modified) {
             // Add the album to each artist of the song (once)
-            Iterator<String> songs = a.songs();
+            final List<String> songRefs = new ArrayList<>();
+            Iterator<String> songsIt = a.songs();
+            while (songsIt.hasNext()) {
+                songRefs.add(songsIt.next());
+            }
 
-            while (songs.hasNext()) {
-                String songRef = songs.next();
-                Song song = retrieveSong(songRef, a.getProvider());
+            final List<Song> songs = retrieveSongs(songRefs, a.getProvider());
 
+            for (Song song : songs) {
                 if (song != null && song.isLoaded()) {
                     String artistRef = song.getArtist();
                     if (artistRef != null) {
@@ -1059,6 +1625,7 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return;
         }
 
+        mCache.confirmRef(a.getRef());
         Artist cached = mCache.getArtist(a.getRef());
 
         if (cached == null) {
@@ -1100,70 +1667,53 @@ public class ProviderAggregator extends IProviderCallback.Stub {
             return;
         }
 
-        Log.d(TAG, "Got new search results for '" + searchResult.getQuery()
+        if (DEBUG) Log.d(TAG, "Got new search results for '" + searchResult.getQuery()
                 + "' from " + searchResult.getIdentifier().mName);
 
-        final String query = searchResult.getQuery();
+        mSearchCoordinator.onSearchResult(searchResult);
+    }
+
+    /**
+     * Filter of the entity updates delivered to a local callback. See {@link UpdateFilters} for
+     * the filters of the screens showing a single entity.
+     */
+    public interface UpdateFilter {
+        /**
+         * @param entity The updated entity
+         * @return true if the callback should be notified of the update
+         */
+        boolean accept(BoundEntity entity);
+    }
 
-        if (!mCachedSearches.containsKey(query)) {
-            // No cached results for this query, add this one
-            Log.d(TAG, "New search cache for '" + query + "'");
-            List<SearchResult> results = new ArrayList<>();
-            results.add(searchResult);
-            mCachedSearches.put(query, results);
+    /**
+     * A registered local callback, along with its optional filter
+     */
+    private static class CallbackRegistration {
+        final ILocalCallback callback;
+        final UpdateFilter filter;
 
-            // Feed results to the callback
-            synchronized (mUpdateCallbacks) {
-                for (ILocalCallback cb : mUpdateCallbacks) {
-                    cb.onSearchResult(results);
-                }
-            }
-        } else {
-            // We already have cached results for this query, add new results
-            Log.d(TAG, "Updating search result for '" + query + "'");
-            List<SearchResult> cachedResults = mCachedSearches.get(query);
-
-            SearchResult cachedResult = null;
-            for (SearchResult tmpResult : cachedResults) {
-                if (tmpResult.getIdentifier().equals(searchResult.getIdentifier())) {
-                    cachedResult = tmpResult;
-                }
-            }
+        CallbackRegistration(ILocalCallback callback, UpdateFilter filter) {
+            this.callback = callback;
+            this.filter = filter;
+        }
 
-            if (cachedResult == null) {
-                cachedResults.add(searchResult);
-            } else {
-                cachedResult.setIdentifier(searchResult.getIdentifier());
-                for (String song : searchResult.getSongsList()) {
-                    if (!cachedResult.getSongsList().contains(song)) {
-                        cachedResult.getSongsList().add(song);
-                    }
-                }
-                for (String artist : searchResult.getArtistList()) {
-                    if (!cachedResult.getArtistList().contains(artist)) {
-                        cachedResult.getArtistList().add(artist);
-                    }
-                }
-                for (String album : searchResult.getAlbumsList()) {
-                    if (!cachedResult.getAlbumsList().contains(album)) {
-                        cachedResult.getAlbumsList().add(album);
-                    }
-                }
-                for (String playlist : searchResult.getPlaylistList()) {
-                    if (!cachedResult.getPlaylistList().contains(playlist)) {
-                        cachedResult.getPlaylistList().add(playlist);
-                    }
-                }
+        <T extends BoundEntity> List<T> filter(List<T> entities, UpdateQueue.Stats stats) {
+            if (filter == null) {
+                stats.onDispatched(entities.size());
+                return entities;
             }
 
-            // Feed updated results to the callbacks
-            synchronized (mUpdateCallbacks) {
-                for (ILocalCallback cb : mUpdateCallbacks) {
-                    cb.onSearchResult(cachedResults);
+            final List<T> output = new ArrayList<>();
+            for (T entity : entities) {
+                if (filter.accept(entity)) {
+                    output.add(entity);
                 }
             }
-        }
 
+            stats.onFiltered(entities.size() - output.size());
+            stats.onDispatched(output.size());
+            return output;
+        }
     }
 
     /**
@@ -6,116 +6,462 @@ import com.fastbootmobile.encore.model.Playlist;
 import com.fastbootmobile.encore.model.Song;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Caches information gotten by providers
+ * Caches information gotten by providers. All the maps are concurrent, so reads never lock.
+ * A per-provider index of references is maintained so that purging the entries of a provider
+ * only touches the entries of that provider.
  */
 public class ProviderCache {
-    private final Map<String, Playlist> mPlaylists;
-    private final Map<String, Song> mSongs;
+    private final ConcurrentMap<String, Playlist> mPlaylists;
+    private final ConcurrentMap<String, Song> mSongs;
     private final Map<String, ProviderIdentifier> mRefProvider;
-    private final Map<String, Album> mAlbums;
-    private final Map<String, Artist> mArtists;
+    private final ConcurrentMap<String, Album> mAlbums;
+    private final ConcurrentMap<String, Artist> mArtists;
+    private final ConcurrentHashMap<ProviderIdentifier, Set<String>> mProviderRefs;
     private final List<Playlist> mMultiProviderPlaylists;
+    private final Set<String> mRestoredRefs;
+    private final Map<ProviderIdentifier, String> mSyncTokens;
+
+    private final Snapshot<Song> mSongsSnapshot;
+    private final Snapshot<Album> mAlbumsSnapshot;
+    private final Snapshot<Artist> mArtistsSnapshot;
+
+    /**
+     * Lazily rebuilt read-only copy of the values of a map. The copy is only made again when the
+     * map has been modified since the last copy.
+     */
+    private static final class Snapshot<T> {
+        private final Map<String, T> mSource;
+        private final AtomicInteger mGeneration = new AtomicInteger();
+        private volatile Entry<T> mEntry;
+
+        private static final class Entry<T> {
+            final int generation;
+            final List<T> values;
+
+            Entry(int generation, List<T> values) {
+                this.generation = generation;
+                this.values = values;
+            }
+        }
+
+        Snapshot(Map<String, T> source) {
+            mSource = source;
+        }
+
+        void invalidate() {
+            mGeneration.incrementAndGet();
+        }
+
+        List<T> get() {
+            // Read the generation before copying: if a write happens while we copy, the stored
+            // generation will be stale and the next call will copy again.
+            final int generation = mGeneration.get();
+            Entry<T> entry = mEntry;
+
+            if (entry == null || entry.generation != generation) {
+                entry = new Entry<>(generation,
+                        Collections.unmodifiableList(new ArrayList<>(mSource.values())));
+                mEntry = entry;
+            }
+
+            return entry.values;
+        }
+    }
 
     /**
      * Default constructor
      */
     public ProviderCache() {
-        mPlaylists = new HashMap<>();
-        mSongs = new HashMap<>();
-        mRefProvider = new HashMap<>();
-        mAlbums = new HashMap<>();
-        mArtists = new HashMap<>();
-        mMultiProviderPlaylists = new ArrayList<>();
+        mPlaylists = new ConcurrentHashMap<>();
+        mSongs = new ConcurrentHashMap<>();
+        mRefProvider = new ConcurrentHashMap<>();
+        mAlbums = new ConcurrentHashMap<>();
+        mArtists = new ConcurrentHashMap<>();
+        mProviderRefs = new ConcurrentHashMap<>();
+        mMultiProviderPlaylists = new CopyOnWriteArrayList<>();
+        mRestoredRefs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        mSyncTokens = new ConcurrentHashMap<>();
+
+        mSongsSnapshot = new Snapshot<>(mSongs);
+        mAlbumsSnapshot = new Snapshot<>(mAlbums);
+        mArtistsSnapshot = new Snapshot<>(mArtists);
     }
 
     /**
      * Purges the cache in case the provider may change for the specified provider
      */
     public void purgeCacheForProvider(ProviderIdentifier id) {
-        List<String> keysToRemove;
+        if (id == null) {
+            return;
+        }
 
-        // Playlists
-        synchronized (mPlaylists) {
-            Set<Map.Entry<String, Playlist>> playlists = mPlaylists.entrySet();
-            keysToRemove = new ArrayList<>();
+        // The entries are gone, the next sync must be a full one
+        mSyncTokens.remove(id);
+
+        final Set<String> refs = mProviderRefs.remove(id);
+        if (refs == null) {
+            return;
+        }
 
-            for (Map.Entry<String, Playlist> item : playlists) {
-                if (item.getValue() == null || item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
+        for (String ref : refs) {
+            mPlaylists.remove(ref);
+            mSongs.remove(ref);
+            mAlbums.remove(ref);
+            mArtists.remove(ref);
+            mRefProvider.remove(ref);
+            mRestoredRefs.remove(ref);
+        }
+
+        mSongsSnapshot.invalidate();
+        mAlbumsSnapshot.invalidate();
+        mArtistsSnapshot.invalidate();
+    }
+
+    /**
+     * Records which provider a reference belongs to, both in the ref map and the provider index
+     */
+    private void indexRef(final ProviderIdentifier provider, final ProviderIdentifier fallback,
+                          final String ref) {
+        mRestoredRefs.remove(ref);
+        addToIndex(provider, fallback, ref);
+    }
+
+    private void addToIndex(final ProviderIdentifier provider, final ProviderIdentifier fallback,
+                            final String ref) {
+        final ProviderIdentifier owner = provider != null ? provider : fallback;
+        if (owner == null) {
+            return;
+        }
+
+        final ProviderIdentifier previous = mRefProvider.put(ref, owner);
+        if (previous != null && !previous.equals(owner)) {
+            Set<String> previousRefs = mProviderRefs.get(previous);
+            if (previousRefs != null) {
+                previousRefs.remove(ref);
+            }
+        }
+
+        Set<String> refs = mProviderRefs.get(owner);
+        if (refs == null) {
+            refs = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+            Set<String> existing = mProviderRefs.putIfAbsent(owner, refs);
+            if (existing != null) {
+                refs = existing;
             }
+        }
+        refs.add(ref);
+    }
+
+    /**
+     * Puts an entry restored from the on-disk snapshot and flags it as restored, unless its
+     * provider already reported it: the entry of the provider is more recent and is kept.
+     * @return true if the entry was restored
+     */
+    private <T> boolean restore(final ConcurrentMap<String, T> entries,
+                                final ProviderIdentifier provider,
+                                final ProviderIdentifier fallback,
+                                final String ref, final T entry) {
+        // Flagged before the entry is visible, so that a put racing with the restore always
+        // clears the flag
+        mRestoredRefs.add(ref);
+        if (entries.putIfAbsent(ref, entry) != null) {
+            mRestoredRefs.remove(ref);
+            return false;
+        }
+
+        addToIndex(provider, fallback, ref);
+        return true;
+    }
+
+    boolean restorePlaylist(final ProviderIdentifier provider, final Playlist pl) {
+        return pl != null && pl.getRef() != null
+                && restore(mPlaylists, provider, pl.getProvider(), pl.getRef(), pl);
+    }
 
+    boolean restoreSong(final ProviderIdentifier provider, final Song song) {
+        if (song == null || song.getRef() == null
+                || !restore(mSongs, provider, song.getProvider(), song.getRef(), song)) {
+            return false;
+        }
+        mSongsSnapshot.invalidate();
+        return true;
+    }
+
+    boolean restoreAlbum(final ProviderIdentifier provider, final Album album) {
+        if (album == null || album.getRef() == null
+                || !restore(mAlbums, provider, album.getProvider(), album.getRef(), album)) {
+            return false;
+        }
+        mAlbumsSnapshot.invalidate();
+        return true;
+    }
+
+    boolean restoreArtist(final ProviderIdentifier provider, final Artist artist) {
+        if (artist == null || artist.getRef() == null
+                || !restore(mArtists, provider, artist.getProvider(), artist.getRef(), artist)) {
+            return false;
+        }
+        mArtistsSnapshot.invalidate();
+        return true;
+    }
+
+    /**
+     * Notifies the cache that a provider reported an entry, even if it didn't change
+     * @param ref The reference of the entry
+     */
+    void confirmRef(final String ref) {
+        if (ref != null) {
+            mRestoredRefs.remove(ref);
+        }
+    }
 
-            for (String key : keysToRemove) {
-                mPlaylists.remove(key);
+    /**
+     * Removes the entries of a provider that were restored from the on-disk snapshot and
+     * haven't been reported again by the provider since then. This should be called once the
+     * provider has been fully synced. The songs listed in the playlists that were reported
+     * again, and their albums and artists, are kept even if the library sync didn't mention them.
+     * @param provider The provider
+     * @return The number of entries removed
+     */
+    int dropUnconfirmedRestored(final ProviderIdentifier provider) {
+        final Set<String> refs = provider != null ? mProviderRefs.get(provider) : null;
+        if (refs == null || mRestoredRefs.isEmpty()) {
+            return 0;
+        }
+
+        confirmPlaylistsSongs();
+
+        int count = 0;
+        for (String ref : refs) {
+            if (mRestoredRefs.remove(ref)) {
+                mPlaylists.remove(ref);
+                mSongs.remove(ref);
+                mAlbums.remove(ref);
+                mArtists.remove(ref);
+                mRefProvider.remove(ref);
+                refs.remove(ref);
+                ++count;
             }
         }
 
-        // Songs
-        synchronized (mSongs) {
-            Set<Map.Entry<String, Song>> songs = mSongs.entrySet();
-            keysToRemove.clear();
+        if (count > 0) {
+            mSongsSnapshot.invalidate();
+            mAlbumsSnapshot.invalidate();
+            mArtistsSnapshot.invalidate();
+        }
 
-            for (Map.Entry<String, Song> item : songs) {
-                if (item.getValue().getProvider() != null
-                        && item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
+        return count;
+    }
+
+    /**
+     * Confirms the songs referenced by the playlists that are confirmed, along with their
+     * albums and artists. Playlists may list songs that aren't part of the provider's library,
+     * and multi-provider playlists list songs of any provider.
+     */
+    private void confirmPlaylistsSongs() {
+        for (Map.Entry<String, Playlist> entry : mPlaylists.entrySet()) {
+            if (!mRestoredRefs.contains(entry.getKey())) {
+                confirmPlaylistSongs(entry.getValue());
             }
+        }
+        for (Playlist playlist : mMultiProviderPlaylists) {
+            confirmPlaylistSongs(playlist);
+        }
+    }
 
+    private void confirmPlaylistSongs(final Playlist playlist) {
+        final List<String> songRefs = playlist.songsList();
+        if (songRefs == null) {
+            return;
+        }
 
-            for (String key : keysToRemove) {
-                mSongs.remove(key);
+        for (String songRef : songRefs) {
+            if (songRef == null || !mRestoredRefs.remove(songRef)) {
+                continue;
+            }
+
+            final Song song = mSongs.get(songRef);
+            if (song != null) {
+                confirmRef(song.getAlbum());
+                confirmRef(song.getArtist());
             }
         }
+    }
 
-        // Albums
-        synchronized (mAlbums) {
-            Set<Map.Entry<String, Album>> albums = mAlbums.entrySet();
-            keysToRemove.clear();
+    /**
+     * Confirms all the songs, albums and artists of a provider, as if the provider reported
+     * them again. This is used after a delta sync, where the provider only sends what changed.
+     * Playlists are left out as they are synced separately.
+     * @param provider The provider
+     */
+    void confirmProviderLibrary(final ProviderIdentifier provider) {
+        final Set<String> refs = provider != null ? mProviderRefs.get(provider) : null;
+        if (refs == null || mRestoredRefs.isEmpty()) {
+            return;
+        }
 
-            for (Map.Entry<String, Album> item : albums) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
+        for (String ref : refs) {
+            if (!mPlaylists.containsKey(ref)) {
+                mRestoredRefs.remove(ref);
             }
-            for (String key : keysToRemove) {
-                mAlbums.remove(key);
+        }
+    }
+
+    /**
+     * Removes the songs, albums and artists of a provider that aren't part of the library it
+     * exported. This should be called after a complete full export, which lists the whole
+     * library of the provider. Playlists are left out as they are synced separately, and the
+     * songs listed in playlists are kept along with their albums and artists.
+     * @param provider The provider
+     * @param libraryRefs The references of all the entities of the export
+     * @return The references of the entries removed
+     */
+    List<String> retainProviderLibrary(final ProviderIdentifier provider,
+                                       final Set<String> libraryRefs) {
+        final Set<String> providerRefs = provider != null ? mProviderRefs.get(provider) : null;
+        if (providerRefs == null) {
+            return Collections.emptyList();
+        }
+
+        final Set<String> playlistsRefs = new HashSet<>();
+        for (Playlist playlist : mPlaylists.values()) {
+            addPlaylistRefs(playlist, playlistsRefs);
+        }
+        for (Playlist playlist : mMultiProviderPlaylists) {
+            addPlaylistRefs(playlist, playlistsRefs);
+        }
+
+        final List<String> stale = new ArrayList<>();
+        for (String ref : providerRefs) {
+            if (!libraryRefs.contains(ref) && !playlistsRefs.contains(ref)
+                    && !mPlaylists.containsKey(ref)) {
+                stale.add(ref);
             }
         }
 
-        // Artists
-        synchronized (mArtists) {
-            Set<Map.Entry<String, Artist>> artists = mArtists.entrySet();
-            keysToRemove.clear();
+        return stale.isEmpty() ? Collections.<String>emptyList() : removeRefs(provider, stale);
+    }
 
-            for (Map.Entry<String, Artist> item : artists) {
-                if (item.getValue().getProvider().equals(id)) {
-                    keysToRemove.add(item.getKey());
-                }
+    private void addPlaylistRefs(final Playlist playlist, final Set<String> refs) {
+        final List<String> songRefs = playlist.songsList();
+        if (songRefs == null) {
+            return;
+        }
+
+        for (String songRef : songRefs) {
+            if (songRef == null) {
+                continue;
             }
+            refs.add(songRef);
 
-            for (String key : keysToRemove) {
-                mArtists.remove(key);
+            final Song song = mSongs.get(songRef);
+            if (song != null) {
+                refs.add(song.getAlbum());
+                refs.add(song.getArtist());
             }
         }
     }
 
+    /**
+     * Removes entries a provider no longer has
+     * @param provider The provider
+     * @param refs The references of the entries. References of other providers are ignored.
+     * @return The references of the entries removed
+     */
+    List<String> removeRefs(final ProviderIdentifier provider, final Collection<String> refs) {
+        final Set<String> providerRefs = provider != null ? mProviderRefs.get(provider) : null;
+        if (providerRefs == null) {
+            return Collections.emptyList();
+        }
+
+        final List<String> removed = new ArrayList<>();
+        for (String ref : refs) {
+            if (ref != null && providerRefs.remove(ref)) {
+                mPlaylists.remove(ref);
+                mSongs.remove(ref);
+                mAlbums.remove(ref);
+                mArtists.remove(ref);
+                mRefProvider.remove(ref);
+                mRestoredRefs.remove(ref);
+                removed.add(ref);
+            }
+        }
+
+        if (!removed.isEmpty()) {
+            mSongsSnapshot.invalidate();
+            mAlbumsSnapshot.invalidate();
+            mArtistsSnapshot.invalidate();
+        }
+
+        return removed;
+    }
+
+    /**
+     * @param provider The provider
+     * @return The token of the last complete library sync of the provider, or null if the next
+     * sync must be a full one
+     */
+    String getSyncToken(final ProviderIdentifier provider) {
+        return provider != null ? mSyncTokens.get(provider) : null;
+    }
+
+    /**
+     * Records the token of the last complete library sync of a provider
+     * @param provider The provider
+     * @param token The token, or null to force a full sync next time
+     */
+    void setSyncToken(final ProviderIdentifier provider, final String token) {
+        if (provider == null) {
+            return;
+        }
+
+        if (token != null) {
+            mSyncTokens.put(provider, token);
+        } else {
+            mSyncTokens.remove(provider);
+        }
+    }
+
+    /**
+     * @return A copy of the sync tokens of all the providers
+     */
+    Map<ProviderIdentifier, String> getSyncTokens() {
+        return new HashMap<>(mSyncTokens);
+    }
+
+    /**
+     * @param provider The provider
+     * @return The number of references currently cached for the provider
+     */
+    public int getProviderRefCount(final ProviderIdentifier provider) {
+        Set<String> refs = mProviderRefs.get(provider);
+        return refs != null ? refs.size() : 0;
+    }
+
     public ProviderIdentifier getRefProvider(final String ref) {
-        return mRefProvider.get(ref);
+        return ref != null ? mRefProvider.get(ref) : null;
     }
 
     public void putPlaylist(final ProviderIdentifier provider, final Playlist pl) {
-        synchronized (mPlaylists) {
-            mPlaylists.put(pl.getRef(), pl);
+        if (pl == null || pl.getRef() == null) {
+            return;
         }
-        mRefProvider.put(pl.getRef(), provider);
+
+        mPlaylists.put(pl.getRef(), pl);
+        indexRef(provider, pl.getProvider(), pl.getRef());
     }
 
     public void putAllProviderPlaylist(List<Playlist> playlists) {
@@ -123,20 +469,26 @@ public class ProviderCache {
     }
 
     Playlist getPlaylist(final String ref) {
-        synchronized(mPlaylists) {
-            return mPlaylists.get(ref);
-        }
+        return ref != null ? mPlaylists.get(ref) : null;
     }
 
     public List<Playlist> getAllPlaylists() {
-        synchronized (mPlaylists) {
-            return new ArrayList<>(mPlaylists.values());
-        }
+        // Playlists are few and callers may sort the list, so we keep returning a copy
+        return new ArrayList<>(mPlaylists.values());
     }
 
     public void removePlaylist(String ref) {
-        synchronized (mPlaylists) {
-            mPlaylists.remove(ref);
+        if (ref == null) {
+            return;
+        }
+
+        mPlaylists.remove(ref);
+        final ProviderIdentifier provider = mRefProvider.remove(ref);
+        if (provider != null) {
+            Set<String> refs = mProviderRefs.get(provider);
+            if (refs != null) {
+                refs.remove(ref);
+            }
         }
     }
 
@@ -144,59 +496,109 @@ public class ProviderCache {
         return mMultiProviderPlaylists;
     }
 
+    /**
+     * @return A read-only snapshot of all the cached songs. The snapshot is shared between calls
+     * until the cache is modified.
+     */
     public List<Song> getAllSongs() {
-        return new ArrayList<>(mSongs.values());
+        return mSongsSnapshot.get();
     }
 
+    /**
+     * @return A read-only snapshot of all the cached artists. The snapshot is shared between
+     * calls until the cache is modified.
+     */
     public List<Artist> getAllArtists() {
-        synchronized (mArtists) {
-            return new ArrayList<>(mArtists.values());
-        }
+        return mArtistsSnapshot.get();
     }
 
+    /**
+     * @return A read-only snapshot of all the cached albums. The snapshot is shared between calls
+     * until the cache is modified.
+     */
     public List<Album> getAllAlbums() {
-        synchronized (mAlbums) {
-            return new ArrayList<>(mAlbums.values());
-        }
+        return mAlbumsSnapshot.get();
     }
 
     public void putSong(final ProviderIdentifier provider, final Song song) {
-        synchronized (mSongs) {
-            mSongs.put(song.getRef(), song);
+        if (song == null || song.getRef() == null) {
+            return;
         }
-        mRefProvider.put(song.getRef(), provider);
+
+        mSongs.put(song.getRef(), song);
+        indexRef(provider, song.getProvider(), song.getRef());
+        mSongsSnapshot.invalidate();
     }
 
     Song getSong(final String ref) {
-        synchronized (mSongs) {
-            return mSongs.get(ref);
+        return ref != null ? mSongs.get(ref) : null;
+    }
+
+    /**
+     * Looks up several songs at once
+     * @param refs The references of the songs
+     * @return A list the same size as refs, with null entries for songs not in cache
+     */
+    List<Song> getSongs(final List<String> refs) {
+        final List<Song> output = new ArrayList<>(refs.size());
+        for (String ref : refs) {
+            output.add(ref != null ? mSongs.get(ref) : null);
         }
+        return output;
     }
 
     public void putAlbum(final ProviderIdentifier provider, final Album album) {
-        synchronized (mAlbums) {
-            mAlbums.put(album.getRef(), album);
-            mRefProvider.put(album.getRef(), provider);
+        if (album == null || album.getRef() == null) {
+            return;
         }
+
+        mAlbums.put(album.getRef(), album);
+        indexRef(provider, album.getProvider(), album.getRef());
+        mAlbumsSnapshot.invalidate();
     }
 
     Album getAlbum(final String ref) {
-        synchronized (mAlbums) {
-            return mAlbums.get(ref);
+        return ref != null ? mAlbums.get(ref) : null;
+    }
+
+    /**
+     * Looks up several albums at once
+     * @param refs The references of the albums
+     * @return A list the same size as refs, with null entries for albums not in cache
+     */
+    List<Album> getAlbums(final List<String> refs) {
+        final List<Album> output = new ArrayList<>(refs.size());
+        for (String ref : refs) {
+            output.add(ref != null ? mAlbums.get(ref) : null);
         }
+        return output;
     }
 
     public void putArtist(final ProviderIdentifier provider, final Artist artist) {
-        synchronized (mArtists) {
-            mArtists.put(artist.getRef(), artist);
-            mRefProvider.put(artist.getRef(), provider);
+        if (artist == null || artist.getRef() == null) {
+            return;
         }
+
+        mArtists.put(artist.getRef(), artist);
+        indexRef(provider, artist.getProvider(), artist.getRef());
+        mArtistsSnapshot.invalidate();
     }
 
     Artist getArtist(final String ref) {
-        synchronized (mArtists) {
-            return mArtists.get(ref);
+        return ref != null ? mArtists.get(ref) : null;
+    }
+
+    /**
+     * Looks up several artists at once
+     * @param refs The references of the artists
+     * @return A list the same size as refs, with null entries for artists not in cache
+     */
+    List<Artist> getArtists(final List<String> refs) {
+        final List<Artist> output = new ArrayList<>(refs.size());
+        for (String ref : refs) {
+            output.add(ref != null ? mArtists.get(ref) : null);
         }
+        return output;
     }
 
 }
@@ -0,0 +1,416 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.Song;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persists a snapshot of the {@link ProviderCache} on disk, so that the library can be shown
+ * right away on a cold start while the providers are being queried again.
+ *
+ * The file is a compact binary dump: a header (magic and version), a table of the providers
+ * identifiers, then the songs, albums, artists and playlists, each entity referencing its
+ * provider by index in the table, and finally the library sync token of each provider. If the
+ * version isn't supported, the file is ignored.
+ */
+public class ProviderCacheStore {
+    private static final String TAG = "ProviderCacheStore";
+    private static final boolean DEBUG = false;
+
+    private static final String FILE_NAME = "provider_cache.bin";
+    private static final int MAGIC = 0x454e4343; // "ENCC"
+    private static final int VERSION = 2;
+    // Snapshots without sync tokens are still read, the next syncs are just full ones
+    private static final int MIN_VERSION = 1;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final int FLAG_LOADED = 0x1;
+    private static final int FLAG_AVAILABLE = 0x2;
+    private static final int FLAG_OFFLINE_CAPABLE = 0x4;
+
+    private final File mFile;
+
+    public ProviderCacheStore(Context ctx) {
+        mFile = new File(ctx.getCacheDir(), FILE_NAME);
+    }
+
+    /**
+     * Reads the snapshot from disk into the provided cache. Restored entries are flagged as such
+     * in the cache until a provider confirms them. Entries a provider already reported are more
+     * recent than the snapshot and are kept.
+     *
+     * @param cache The cache to fill
+     * @return true if a snapshot was restored, false otherwise
+     */
+    public boolean load(final ProviderCache cache) {
+        if (!mFile.exists()) {
+            return false;
+        }
+
+        final long startTime = SystemClock.uptimeMillis();
+        DataInputStream in = null;
+
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile),
+                    BUFFER_SIZE));
+
+            final int magic = in.readInt();
+            final int version = in.readInt();
+            if (magic != MAGIC || version < MIN_VERSION || version > VERSION) {
+                Log.i(TAG, "Discarding provider cache snapshot with an unknown format");
+                in.close();
+                in = null;
+                clear();
+                return false;
+            }
+
+            // Providers table
+            final int providersCount = in.readInt();
+            final List<ProviderIdentifier> providers = new ArrayList<>(providersCount);
+            for (int i = 0; i < providersCount; ++i) {
+                providers.add(ProviderIdentifier.fromSerialized(in.readUTF()));
+            }
+
+            // Songs
+            final int songsCount = in.readInt();
+            for (int i = 0; i < songsCount; ++i) {
+                final Song song = new Song(in.readUTF());
+                final ProviderIdentifier provider = readProvider(in, providers);
+                song.setProvider(provider);
+                song.setTitle(readString(in));
+                song.setArtist(readString(in));
+                song.setAlbum(readString(in));
+                song.setSourceLogo(readString(in));
+                song.setDuration(in.readInt());
+                song.setYear(in.readInt());
+                song.setOfflineStatus(in.readInt());
+
+                final int flags = in.readByte();
+                song.setIsLoaded((flags & FLAG_LOADED) != 0);
+                song.setAvailable((flags & FLAG_AVAILABLE) != 0);
+
+                cache.restoreSong(provider, song);
+            }
+
+            // Albums
+            final int albumsCount = in.readInt();
+            for (int i = 0; i < albumsCount; ++i) {
+                final Album album = new Album(in.readUTF());
+                final ProviderIdentifier provider = readProvider(in, providers);
+                album.setProvider(provider);
+                album.setName(readString(in));
+                album.setSourceLogo(readString(in));
+                album.setYear(in.readInt());
+                album.setIsLoaded((in.readByte() & FLAG_LOADED) != 0);
+
+                final int count = in.readInt();
+                for (int j = 0; j < count; ++j) {
+                    album.addSong(in.readUTF());
+                }
+
+                cache.restoreAlbum(provider, album);
+            }
+
+            // Artists
+            final int artistsCount = in.readInt();
+            for (int i = 0; i < artistsCount; ++i) {
+                final Artist artist = new Artist(in.readUTF());
+                final ProviderIdentifier provider = readProvider(in, providers);
+                artist.setProvider(provider);
+                artist.setName(readString(in));
+                artist.setSourceLogo(readString(in));
+                artist.setIsLoaded((in.readByte() & FLAG_LOADED) != 0);
+
+                final int count = in.readInt();
+                for (int j = 0; j < count; ++j) {
+                    artist.addAlbum(in.readUTF());
+                }
+
+                cache.restoreArtist(provider, artist);
+            }
+
+            // Playlists
+            final int playlistsCount = in.readInt();
+            for (int i = 0; i < playlistsCount; ++i) {
+                final Playlist playlist = new Playlist(in.readUTF());
+                final ProviderIdentifier provider = readProvider(in, providers);
+                playlist.setProvider(provider);
+                playlist.setName(readString(in));
+                playlist.setSourceLogo(readString(in));
+                playlist.setOfflineStatus(in.readInt());
+
+                final int flags = in.readByte();
+                playlist.setIsLoaded((flags & FLAG_LOADED) != 0);
+                playlist.setOfflineCapable((flags & FLAG_OFFLINE_CAPABLE) != 0);
+
+                final int count = in.readInt();
+                for (int j = 0; j < count; ++j) {
+                    playlist.addSong(in.readUTF());
+                }
+
+                cache.restorePlaylist(provider, playlist);
+            }
+
+            // Sync tokens
+            if (version >= 2) {
+                final int tokensCount = in.readInt();
+                for (int i = 0; i < tokensCount; ++i) {
+                    final ProviderIdentifier provider
+                            = ProviderIdentifier.fromSerialized(in.readUTF());
+                    cache.setSyncToken(provider, in.readUTF());
+                }
+            }
+
+            Log.i(TAG, "Restored " + songsCount + " songs, " + albumsCount + " albums, "
+                    + artistsCount + " artists and " + playlistsCount + " playlists in "
+                    + (SystemClock.uptimeMillis() - startTime) + "ms");
+            return true;
+        } catch (IOException | RuntimeException e) {
+            // A truncated or corrupted file is not fatal: we'll just get everything from providers
+            Log.e(TAG, "Cannot restore provider cache snapshot", e);
+            clear();
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes a snapshot of the provided cache to disk. The file is written to a temporary file
+     * first, then renamed, so that a crash while saving never leaves a partial snapshot.
+     *
+     * @param cache The cache to save
+     */
+    public void save(final ProviderCache cache) {
+        final long startTime = SystemClock.uptimeMillis();
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+
+        // Tokens are read first: entities synced after that are saved along with an older token,
+        // so at worst the next delta sync sends them again
+        final Map<ProviderIdentifier, String> tokens = cache.getSyncTokens();
+        final List<Song> songs = cache.getAllSongs();
+        final List<Album> albums = cache.getAllAlbums();
+        final List<Artist> artists = cache.getAllArtists();
+        final List<Playlist> playlists = cache.getAllPlaylists();
+
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile),
+                    BUFFER_SIZE));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            // Build the providers table
+            final Map<ProviderIdentifier, Integer> providers = new HashMap<>();
+            final List<String> serializedProviders = new ArrayList<>();
+            indexProviders(cache, songs, providers, serializedProviders);
+            indexProviders(cache, albums, providers, serializedProviders);
+            indexProviders(cache, artists, providers, serializedProviders);
+            indexProviders(cache, playlists, providers, serializedProviders);
+
+            out.writeInt(serializedProviders.size());
+            for (String provider : serializedProviders) {
+                out.writeUTF(provider);
+            }
+
+            // Songs
+            out.writeInt(songs.size());
+            for (Song song : songs) {
+                out.writeUTF(song.getRef());
+                writeProvider(out, cache, song.getRef(), song.getProvider(), providers);
+                writeString(out, song.getTitle());
+                writeString(out, song.getArtist());
+                writeString(out, song.getAlbum());
+                writeString(out, song.getLogo());
+                out.writeInt(song.getDuration());
+                out.writeInt(song.getYear());
+                out.writeInt(song.getOfflineStatus());
+                out.writeByte((song.isLoaded() ? FLAG_LOADED : 0)
+                        | (song.isAvailable() ? FLAG_AVAILABLE : 0));
+            }
+
+            // Albums
+            out.writeInt(albums.size());
+            for (Album album : albums) {
+                out.writeUTF(album.getRef());
+                writeProvider(out, cache, album.getRef(), album.getProvider(), providers);
+                writeString(out, album.getName());
+                writeString(out, album.getLogo());
+                out.writeInt(album.getYear());
+                out.writeByte(album.isLoaded() ? FLAG_LOADED : 0);
+
+                final List<String> albumSongs = new ArrayList<>();
+                Iterator<String> it = album.songs();
+                while (it.hasNext()) {
+                    albumSongs.add(it.next());
+                }
+                writeRefs(out, albumSongs);
+            }
+
+            // Artists
+            out.writeInt(artists.size());
+            for (Artist artist : artists) {
+                out.writeUTF(artist.getRef());
+                writeProvider(out, cache, artist.getRef(), artist.getProvider(), providers);
+                writeString(out, artist.getName());
+                writeString(out, artist.getLogo());
+                out.writeByte(artist.isLoaded() ? FLAG_LOADED : 0);
+                writeRefs(out, new ArrayList<>(artist.getAlbums()));
+            }
+
+            // Playlists
+            out.writeInt(playlists.size());
+            for (Playlist playlist : playlists) {
+                out.writeUTF(playlist.getRef());
+                writeProvider(out, cache, playlist.getRef(), playlist.getProvider(), providers);
+                writeString(out, playlist.getName());
+                writeString(out, playlist.getLogo());
+                out.writeInt(playlist.getOfflineStatus());
+                out.writeByte((playlist.isLoaded() ? FLAG_LOADED : 0)
+                        | (playlist.isOfflineCapable() ? FLAG_OFFLINE_CAPABLE : 0));
+                writeRefs(out, new ArrayList<>(playlist.songsList()));
+            }
+
+            // Sync tokens
+            out.writeInt(tokens.size());
+            for (Map.Entry<ProviderIdentifier, String> entry : tokens.entrySet()) {
+                out.writeUTF(entry.getKey().serialize());
+                out.writeUTF(entry.getValue());
+            }
+
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(mFile)) {
+                Log.e(TAG, "Cannot move provider cache snapshot in place");
+                tmpFile.delete();
+            } else if (DEBUG) {
+                Log.d(TAG, "Saved provider cache snapshot in "
+                        + (SystemClock.uptimeMillis() - startTime) + "ms");
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Cannot save provider cache snapshot", e);
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the snapshot from disk
+     */
+    public void clear() {
+        if (mFile.exists() && !mFile.delete()) {
+            Log.w(TAG, "Cannot delete provider cache snapshot");
+        }
+    }
+
+    private static void indexProviders(ProviderCache cache, List<? extends BoundEntity> entities,
+                                       Map<ProviderIdentifier, Integer> providers,
+                                       List<String> serialized) {
+        for (BoundEntity entity : entities) {
+            ProviderIdentifier provider = cache.getRefProvider(entity.getRef());
+            if (provider == null) {
+                provider = entity.getProvider();
+            }
+
+            if (provider != null && !providers.containsKey(provider)) {
+                providers.put(provider, serialized.size());
+                serialized.add(provider.serialize());
+            }
+        }
+    }
+
+    private static void writeProvider(DataOutputStream out, ProviderCache cache, String ref,
+                                      ProviderIdentifier fallback,
+                                      Map<ProviderIdentifier, Integer> providers)
+            throws IOException {
+        ProviderIdentifier provider = cache.getRefProvider(ref);
+        if (provider == null) {
+            provider = fallback;
+        }
+
+        Integer index = provider != null ? providers.get(provider) : null;
+        out.writeShort(index != null ? index : -1);
+    }
+
+    private static ProviderIdentifier readProvider(DataInputStream in,
+                                                   List<ProviderIdentifier> providers)
+            throws IOException {
+        final int index = in.readShort();
+        return index >= 0 ? providers.get(index) : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeRefs(DataOutputStream out, List<String> refs) throws IOException {
+        int count = 0;
+        for (String ref : refs) {
+            if (ref != null) {
+                ++count;
+            }
+        }
+
+        out.writeInt(count);
+        for (String ref : refs) {
+            if (ref != null) {
+                out.writeUTF(ref);
+            }
+        }
+    }
+}
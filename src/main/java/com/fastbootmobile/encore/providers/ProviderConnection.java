@@ -16,15 +16,25 @@
 package com.fastbootmobile.encore.providers;
 
 import android.content.ComponentName;
+import android.content.ContentResolver;
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Bundle;
 import android.os.DeadObjectException;
 import android.os.IBinder;
 import android.os.Looper;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
 import com.fastbootmobile.encore.service.NativeHub;
 
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Represents a connection to an audio provider (music source) service
  */
@@ -37,6 +47,18 @@ public class ProviderConnection extends AbstractProviderConnection
     private static final boolean ALLOW_BINDER_ON_UI_THREAD = true;
 
     private IMusicProvider mBinder;
+    private String mLibraryAuthority;
+
+    // The provider notifies a change of its library URI when its library changed
+    private final ContentObserver mLibraryObserver = new ContentObserver(null) {
+        @Override
+        public void onChange(boolean selfChange) {
+            final ProviderIdentifier id = getIdentifier();
+            if (id != null) {
+                ProviderAggregator.getDefault().onLibraryChanged(id);
+            }
+        }
+    };
 
     /**
      * Constructor
@@ -61,6 +83,7 @@ public class ProviderConnection extends AbstractProviderConnection
     @Override
     public void unbindService(NativeHub hub) {
         if (mIsBound) {
+            setLibraryAuthority(null);
             ProviderAggregator.getDefault().unregisterProvider(this);
             if (mAudioSocketName != null) {
                 hub.releaseHostSocket(mAudioSocketName);
@@ -95,6 +118,80 @@ public class ProviderConnection extends AbstractProviderConnection
         return mBinder;
     }
 
+    /**
+     * Sets the authority of the ContentProvider exporting the library of this provider, and
+     * watches the library for changes
+     * @param authority The authority, or null if the provider doesn't export its library
+     * @see LibraryStream
+     */
+    public void setLibraryAuthority(String authority) {
+        final ContentResolver resolver = getContext().getContentResolver();
+        if (mLibraryAuthority != null) {
+            resolver.unregisterContentObserver(mLibraryObserver);
+        }
+
+        mLibraryAuthority = authority;
+        if (authority != null) {
+            resolver.registerContentObserver(
+                    LibraryStream.getUri(authority, LibraryStream.PATH_LIBRARY), false,
+                    mLibraryObserver);
+        }
+    }
+
+    /**
+     * Opens a stream of the library of this provider
+     * @param path One of {@link LibraryStream#PATH_LIBRARY} or {@link LibraryStream#PATH_SONGS}
+     * @param sinceToken The sync token of the last library received, to only get the changes
+     *                   since then, or null
+     * @return The read side of the stream, or null if the provider doesn't export its library
+     * or the stream couldn't be opened
+     */
+    public ParcelFileDescriptor openLibraryStream(String path, String sinceToken) {
+        if (mLibraryAuthority == null) {
+            return null;
+        }
+
+        Uri uri = LibraryStream.getUri(mLibraryAuthority, path);
+        if (sinceToken != null) {
+            uri = uri.buildUpon().appendQueryParameter(LibraryStream.QUERY_SINCE, sinceToken)
+                    .build();
+        }
+
+        try {
+            return getContext().getContentResolver().openFileDescriptor(uri, "r");
+        } catch (FileNotFoundException | SecurityException e) {
+            Log.w(TAG, "Cannot open the library stream of " + getProviderName() + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens a stream of the songs, albums and artists of a list of references
+     * @param refs The references to export
+     * @return The read side of the stream, or null if the provider doesn't export its entities
+     * or the stream couldn't be opened
+     */
+    public ParcelFileDescriptor openEntitiesStream(List<String> refs) {
+        if (mLibraryAuthority == null) {
+            return null;
+        }
+
+        final Bundle opts = new Bundle();
+        opts.putStringArrayList(LibraryStream.EXTRA_REFS, new ArrayList<>(refs));
+
+        try {
+            final AssetFileDescriptor afd = getContext().getContentResolver()
+                    .openTypedAssetFileDescriptor(
+                            LibraryStream.getUri(mLibraryAuthority, LibraryStream.PATH_ENTITIES),
+                            LibraryStream.MIME_TYPE, opts);
+            return afd != null ? afd.getParcelFileDescriptor() : null;
+        } catch (FileNotFoundException | SecurityException e) {
+            if (DEBUG) Log.d(TAG, "Cannot open the entities stream of " + getProviderName()
+                    + ": " + e);
+            return null;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.SearchResult;
+import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs searches across all the providers. Each provider is queried in parallel and results are
+ * streamed to the listener as soon as a provider answers, merged with the results of the other
+ * providers and deduplicated by normalized artist and title or album name. Providers that
+ * didn't answer before the deadline are no longer waited for. The results of the most recent
+ * queries are kept so that running the same search again shows them right away.
+ */
+class SearchCoordinator {
+    private static final String TAG = "SearchCoordinator";
+    private static final boolean DEBUG = false;
+
+    private static final int PROVIDER_DEADLINE = 8000;
+    private static final int MAX_CACHED_QUERIES = 16;
+    private static final long CACHE_TTL = 5 * 60 * 1000;
+
+    /**
+     * Receives the merged results of a search each time they change
+     */
+    interface Listener {
+        void onSearchUpdate(String query, List<SearchResult> results);
+    }
+
+    private final Executor mExecutor;
+    private final Handler mHandler;
+    private final ProviderCache mCache;
+    private final Listener mListener;
+    private final Map<String, Search> mSearches;
+
+    /**
+     * State of a search, kept in the recent queries cache
+     */
+    private static class Search {
+        final String query;
+        final long startTime;
+        // Raw results of each provider, in order of arrival
+        final Map<ProviderIdentifier, SearchResult> results = new LinkedHashMap<>();
+        final Set<ProviderIdentifier> pending = new HashSet<>();
+        // Providers that answered since the search was (re)started
+        final Set<ProviderIdentifier> answered = new HashSet<>();
+        List<SearchResult> merged = Collections.emptyList();
+        volatile Runnable deadline;
+
+        Search(String query) {
+            this.query = query;
+            this.startTime = SystemClock.elapsedRealtime();
+        }
+    }
+
+    SearchCoordinator(Executor executor, Handler handler, ProviderCache cache,
+                      Listener listener) {
+        mExecutor = executor;
+        mHandler = handler;
+        mCache = cache;
+        mListener = listener;
+        mSearches = new LinkedHashMap<String, Search>(MAX_CACHED_QUERIES, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Entry<String, Search> eldest) {
+                return size() > MAX_CACHED_QUERIES;
+            }
+        };
+    }
+
+    /**
+     * Starts a search on the provided providers. Cached results for the same query are delivered
+     * right away; if they are recent enough and complete, providers aren't queried again.
+     *
+     * @param query     The terms to look for
+     * @param providers The providers to query
+     */
+    void startSearch(final String query, final List<ProviderConnection> providers) {
+        final Search search = new Search(query);
+        final Search previous;
+        final boolean fresh;
+
+        synchronized (mSearches) {
+            previous = mSearches.get(query);
+            fresh = previous != null && previous.pending.isEmpty()
+                    && !previous.results.isEmpty()
+                    && search.startTime - previous.startTime < CACHE_TTL;
+
+            if (!fresh) {
+                if (previous != null) {
+                    // Show the previous results while providers answer again
+                    mHandler.removeCallbacks(previous.deadline);
+                    search.results.putAll(previous.results);
+                    search.merged = previous.merged;
+                }
+
+                for (ProviderConnection conn : providers) {
+                    search.pending.add(conn.getIdentifier());
+                }
+                mSearches.put(query, search);
+            }
+        }
+
+        if (fresh) {
+            if (DEBUG) Log.d(TAG, "Serving '" + query + "' from cache");
+            dispatch(query, previous.merged);
+            return;
+        } else if (!search.merged.isEmpty()) {
+            dispatch(query, search.merged);
+        }
+
+        search.deadline = new Runnable() {
+            @Override
+            public void run() {
+                final List<SearchResult> merged;
+                synchronized (mSearches) {
+                    if (search.pending.isEmpty()) {
+                        return;
+                    }
+
+                    for (ProviderIdentifier id : search.pending) {
+                        Log.w(TAG, "Provider " + id.mName + " missed the deadline for '"
+                                + query + "'");
+                    }
+                    search.pending.clear();
+                    merged = search.merged;
+                }
+
+                // Let the listeners know that the search is over
+                dispatch(query, merged);
+            }
+        };
+        mHandler.postDelayed(search.deadline, PROVIDER_DEADLINE);
+
+        for (final ProviderConnection conn : providers) {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final IMusicProvider binder = conn.getBinder();
+                    try {
+                        if (binder != null) {
+                            binder.startSearch(query);
+                            return;
+                        } else {
+                            Log.e(TAG, "Null binder, cannot search on " + conn.getIdentifier());
+                        }
+                    } catch (RemoteException e) {
+                        Log.e(TAG, "Cannot run search on " + conn.getIdentifier(), e);
+                    }
+
+                    // The provider will never answer, don't wait for it
+                    onProviderDone(search, conn.getIdentifier());
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns whether or not providers are still expected to answer a search
+     *
+     * @param query The query of the search
+     * @return true if at least one provider didn't answer yet and the deadline isn't passed
+     */
+    boolean isSearchPending(final String query) {
+        synchronized (mSearches) {
+            final Search search = mSearches.get(query);
+            return search != null && !search.pending.isEmpty();
+        }
+    }
+
+    /**
+     * Feeds the result of a provider. Results that come after the deadline, or for searches that
+     * were started directly on a provider, are merged as well.
+     *
+     * @param result The result of the provider
+     */
+    void onSearchResult(final SearchResult result) {
+        final String query = result.getQuery();
+        final ProviderIdentifier id = result.getIdentifier();
+        final List<SearchResult> merged;
+
+        synchronized (mSearches) {
+            Search search = mSearches.get(query);
+            if (search == null) {
+                search = new Search(query);
+                mSearches.put(query, search);
+            }
+
+            final SearchResult cached = search.results.get(id);
+            if (cached == null || search.answered.add(id)) {
+                // First answer of this provider: it replaces what we had from a previous run
+                search.answered.add(id);
+                search.results.put(id, result);
+            } else {
+                appendMissing(cached.getSongsList(), result.getSongsList());
+                appendMissing(cached.getAlbumsList(), result.getAlbumsList());
+                appendMissing(cached.getArtistList(), result.getArtistList());
+                appendMissing(cached.getPlaylistList(), result.getPlaylistList());
+            }
+
+            search.pending.remove(id);
+            if (search.pending.isEmpty() && search.deadline != null) {
+                mHandler.removeCallbacks(search.deadline);
+            }
+
+            search.merged = merge(search);
+            merged = search.merged;
+
+            if (DEBUG) {
+                Log.d(TAG, "'" + query + "': " + id.mName + " answered after "
+                        + (SystemClock.elapsedRealtime() - search.startTime) + "ms, "
+                        + search.pending.size() + " providers pending");
+            }
+        }
+
+        dispatch(query, merged);
+    }
+
+    private void onProviderDone(final Search search, final ProviderIdentifier id) {
+        final boolean done;
+        synchronized (mSearches) {
+            done = search.pending.remove(id) && search.pending.isEmpty();
+            if (done) {
+                mHandler.removeCallbacks(search.deadline);
+            }
+        }
+
+        if (done) {
+            dispatch(search.query, search.merged);
+        }
+    }
+
+    private void dispatch(final String query, final List<SearchResult> results) {
+        mListener.onSearchUpdate(query, results);
+    }
+
+    private static void appendMissing(List<String> target, List<String> source) {
+        final Set<String> existing = new HashSet<>(target);
+        for (String ref : source) {
+            if (existing.add(ref)) {
+                target.add(ref);
+            }
+        }
+    }
+
+    /**
+     * Builds the merged results of a search: one result per provider, in order of arrival, where
+     * songs, albums and artists already returned by an earlier provider are left out. Entities
+     * that aren't loaded yet can't be compared and are always kept.
+     */
+    private List<SearchResult> merge(final Search search) {
+        final Set<String> songKeys = new HashSet<>();
+        final Set<String> albumKeys = new HashSet<>();
+        final Set<String> artistKeys = new HashSet<>();
+        final List<SearchResult> output = new ArrayList<>(search.results.size());
+
+        for (SearchResult result : search.results.values()) {
+            final SearchResult merged = new SearchResult(search.query);
+            merged.setIdentifier(result.getIdentifier());
+            merged.setPlaylistList(new ArrayList<>(result.getPlaylistList()));
+
+            final List<String> songs = new ArrayList<>(result.getSongsList().size());
+            for (String ref : result.getSongsList()) {
+                final String key = getSongKey(mCache.getSong(ref));
+                if (key == null || songKeys.add(key)) {
+                    songs.add(ref);
+                }
+            }
+            merged.setSongsList(songs);
+
+            final List<String> albums = new ArrayList<>(result.getAlbumsList().size());
+            for (String ref : result.getAlbumsList()) {
+                final String key = getAlbumKey(mCache.getAlbum(ref));
+                if (key == null || albumKeys.add(key)) {
+                    albums.add(ref);
+                }
+            }
+            merged.setAlbumsList(albums);
+
+            final List<String> artists = new ArrayList<>(result.getArtistList().size());
+            for (String ref : result.getArtistList()) {
+                final String key = getArtistKey(mCache.getArtist(ref));
+                if (key == null || artistKeys.add(key)) {
+                    artists.add(ref);
+                }
+            }
+            merged.setArtistList(artists);
+
+            output.add(merged);
+        }
+
+        return Collections.unmodifiableList(output);
+    }
+
+    private String getSongKey(final Song song) {
+        if (song == null || !song.isLoaded() || song.getTitle() == null) {
+            return null;
+        }
+
+        final String artistKey = getArtistKey(mCache.getArtist(song.getArtist()));
+        if (artistKey == null) {
+            return null;
+        }
+
+        return Utils.normalizeForSearch(song.getTitle()) + '\n' + artistKey;
+    }
+
+    private String getAlbumKey(final Album album) {
+        if (album == null || !album.isLoaded() || album.getName() == null) {
+            return null;
+        }
+
+        // The artist of the album is the one of its first song we know of
+        String artistKey = null;
+        final Iterator<String> it = album.songs();
+        while (artistKey == null && it.hasNext()) {
+            final Song song = mCache.getSong(it.next());
+            if (song != null) {
+                artistKey = getArtistKey(mCache.getArtist(song.getArtist()));
+            }
+        }
+        if (artistKey == null) {
+            return null;
+        }
+
+        return Utils.normalizeForSearch(album.getName()) + '\n' + artistKey;
+    }
+
+    private static String getArtistKey(final Artist artist) {
+        if (artist == null || !artist.isLoaded() || artist.getName() == null) {
+            return null;
+        }
+
+        return Utils.normalizeForSearch(artist.getName());
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
+import com.fastbootmobile.encore.model.Playlist;
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Update filters for the screens showing a single album, artist or playlist, so that they're
+ * only notified of the updates of the entities they display. The songs are looked up in the
+ * cache only, filters never query the providers.
+ */
+public final class UpdateFilters {
+    private UpdateFilters() {
+    }
+
+    /**
+     * @param albumRef The reference of the album
+     * @return A filter accepting the album and its songs
+     */
+    public static ProviderAggregator.UpdateFilter forAlbum(final String albumRef) {
+        return new ProviderAggregator.UpdateFilter() {
+            @Override
+            public boolean accept(BoundEntity entity) {
+                if (entity instanceof Song) {
+                    return albumRef.equals(((Song) entity).getAlbum());
+                } else if (entity instanceof Album) {
+                    return albumRef.equals(entity.getRef());
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param artistRef The reference of the artist
+     * @return A filter accepting the artist, its songs and the albums containing its songs
+     */
+    public static ProviderAggregator.UpdateFilter forArtist(final String artistRef) {
+        return new ProviderAggregator.UpdateFilter() {
+            @Override
+            public boolean accept(BoundEntity entity) {
+                if (entity instanceof Song) {
+                    return artistRef.equals(((Song) entity).getArtist());
+                } else if (entity instanceof Artist) {
+                    return artistRef.equals(entity.getRef());
+                } else if (entity instanceof Album) {
+                    final ProviderCache cache = ProviderAggregator.getDefault().getCache();
+                    final Iterator<String> songs = ((Album) entity).songs();
+                    while (songs.hasNext()) {
+                        final Song song = cache.getSong(songs.next());
+                        if (song != null && artistRef.equals(song.getArtist())) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param playlist The playlist
+     * @return A filter accepting the playlist, its songs and their artists
+     */
+    public static ProviderAggregator.UpdateFilter forPlaylist(final Playlist playlist) {
+        final String playlistRef = playlist.getRef();
+        return new ProviderAggregator.UpdateFilter() {
+            @Override
+            public boolean accept(BoundEntity entity) {
+                if (entity instanceof Playlist) {
+                    return playlistRef.equals(entity.getRef());
+                }
+
+                final List<String> songRefs = playlist.songsList();
+                if (songRefs == null) {
+                    return false;
+                } else if (entity instanceof Song) {
+                    return songRefs.contains(entity.getRef());
+                } else if (entity instanceof Artist) {
+                    final ProviderCache cache = ProviderAggregator.getDefault().getCache();
+                    for (String songRef : songRefs) {
+                        final Song song = cache.getSong(songRef);
+                        if (song != null && entity.getRef().equals(song.getArtist())) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            }
+        };
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import com.fastbootmobile.encore.model.BoundEntity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Queue of pending entity updates, coalesced by reference: if an entity is posted again before
+ * the queue is drained, only the last posted instance is kept, at the position of the first one.
+ */
+class UpdateQueue<T extends BoundEntity> {
+    private final Map<String, T> mPending = new LinkedHashMap<>();
+    private final Stats mStats;
+
+    /**
+     * Counters of the update propagation, shared by all the queues of the aggregator
+     */
+    public static class Stats {
+        private final AtomicLong mPosted = new AtomicLong();
+        private final AtomicLong mCoalesced = new AtomicLong();
+        private final AtomicLong mDropped = new AtomicLong();
+        private final AtomicLong mFiltered = new AtomicLong();
+        private final AtomicLong mDispatched = new AtomicLong();
+
+        /**
+         * @return The number of entities posted for update
+         */
+        public long getPosted() {
+            return mPosted.get();
+        }
+
+        /**
+         * @return The number of posted entities that replaced a pending update of the same entity
+         */
+        public long getCoalesced() {
+            return mCoalesced.get();
+        }
+
+        /**
+         * @return The number of posted entities that were dropped because they were invalid
+         */
+        public long getDropped() {
+            return mDropped.get();
+        }
+
+        /**
+         * @return The number of entity updates not delivered to a callback because of its filter
+         */
+        public long getFiltered() {
+            return mFiltered.get();
+        }
+
+        /**
+         * @return The number of entity updates delivered to callbacks
+         */
+        public long getDispatched() {
+            return mDispatched.get();
+        }
+
+        void onFiltered(int count) {
+            mFiltered.addAndGet(count);
+        }
+
+        void onDispatched(int count) {
+            mDispatched.addAndGet(count);
+        }
+
+        @Override
+        public String toString() {
+            return "posted=" + getPosted() + " coalesced=" + getCoalesced()
+                    + " dropped=" + getDropped() + " filtered=" + getFiltered()
+                    + " dispatched=" + getDispatched();
+        }
+    }
+
+    UpdateQueue(Stats stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Posts an entity for update
+     * @param entity The entity
+     */
+    void post(T entity) {
+        if (entity == null || entity.getRef() == null) {
+            mStats.mDropped.incrementAndGet();
+            return;
+        }
+
+        mStats.mPosted.incrementAndGet();
+
+        synchronized (mPending) {
+            if (mPending.put(entity.getRef(), entity) != null) {
+                mStats.mCoalesced.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Removes and returns all the pending updates
+     * @return A read-only list of the pending entities, in the order they were first posted
+     */
+    List<T> drain() {
+        final List<T> output;
+        synchronized (mPending) {
+            if (mPending.isEmpty()) {
+                return Collections.emptyList();
+            }
+
+            output = new ArrayList<>(mPending.values());
+            mPending.clear();
+        }
+        return Collections.unmodifiableList(output);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import android.content.ContentProvider;
+import android.content.ContentValues;
+import android.content.res.AssetFileDescriptor;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import com.fastbootmobile.encore.providers.LibraryStream;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Exports the library of the local provider as a {@link LibraryStream}, so that the app reads
+ * it in one go instead of paging through the binder. Runs in the process of the local provider.
+ */
+public class LibraryExportProvider extends ContentProvider
+        implements ContentProvider.PipeDataWriter<String> {
+    private static final String TAG = "LibraryExportProvider";
+
+    static final String AUTHORITY = "com.fastbootmobile.encore.providers.localprovider.library";
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return LibraryStream.MIME_TYPE;
+    }
+
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("The library is read-only");
+        }
+
+        final String path = uri.getLastPathSegment();
+        if (!LibraryStream.PATH_LIBRARY.equals(path) && !LibraryStream.PATH_SONGS.equals(path)) {
+            throw new FileNotFoundException("Unknown library stream: " + uri);
+        }
+        if (PluginService.getRunningInstance() == null) {
+            // The app will page through the binder, which starts the service
+            throw new FileNotFoundException("Local provider not running");
+        }
+
+        return openPipeHelper(uri, LibraryStream.MIME_TYPE, null, path, this);
+    }
+
+    @Override
+    public AssetFileDescriptor openTypedAssetFile(Uri uri, String mimeTypeFilter, Bundle opts)
+            throws FileNotFoundException {
+        if (!LibraryStream.PATH_ENTITIES.equals(uri.getLastPathSegment())) {
+            return super.openTypedAssetFile(uri, mimeTypeFilter, opts);
+        }
+
+        if (opts == null || opts.getStringArrayList(LibraryStream.EXTRA_REFS) == null) {
+            throw new FileNotFoundException("No references to export");
+        }
+        if (PluginService.getRunningInstance() == null) {
+            // The app will fetch the entities through the binder, which starts the service
+            throw new FileNotFoundException("Local provider not running");
+        }
+
+        return new AssetFileDescriptor(openPipeHelper(uri, LibraryStream.MIME_TYPE, opts,
+                LibraryStream.PATH_ENTITIES, this), 0, AssetFileDescriptor.UNKNOWN_LENGTH);
+    }
+
+    @Override
+    public void writeDataToPipe(ParcelFileDescriptor output, Uri uri, String mimeType,
+                                Bundle opts, String path) {
+        final PluginService service = PluginService.getRunningInstance();
+        if (service == null) {
+            // Closing the pipe without the end record tells the app the library is incomplete
+            return;
+        }
+
+        try {
+            final LibraryStream.Writer writer = new LibraryStream.Writer(
+                    new FileOutputStream(output.getFileDescriptor()));
+            if (LibraryStream.PATH_ENTITIES.equals(path)) {
+                service.exportEntities(writer, opts.getStringArrayList(LibraryStream.EXTRA_REFS));
+            } else {
+                service.exportLibrary(writer, LibraryStream.PATH_LIBRARY.equals(path),
+                        uri.getQueryParameter(LibraryStream.QUERY_SINCE));
+            }
+            writer.finish();
+        } catch (IOException e) {
+            Log.w(TAG, "Library export interrupted: " + e);
+        }
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                        String sortOrder) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        return null;
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        return 0;
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        return 0;
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import android.os.Parcelable;
+import android.util.Log;
+
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
+import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.providers.LibraryStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Remembers what the last library export sent to the app, so that the next export only sends
+ * what changed: the token of the export and the fingerprint of each entity. The journal is kept
+ * on disk as the local provider process is often restarted between two syncs.
+ *
+ * The provider marks the references it changes or removes as dirty, so that a delta export only
+ * looks at those. The whole library is only fingerprinted again on full exports, and on the
+ * first export after the process started as the library may have changed in the meantime.
+ */
+class LibraryJournal {
+    private static final String TAG = "LibraryJournal";
+
+    private static final int MAGIC = 0x4c4a524e; // "LJRN"
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * The library being exported
+     */
+    interface Library {
+        List<Song> getSongs() throws IOException;
+
+        List<Album> getAlbums() throws IOException;
+
+        List<Artist> getArtists() throws IOException;
+
+        /**
+         * @return The song, album or artist of the reference, or null if the library has none
+         */
+        BoundEntity getEntity(String ref);
+    }
+
+    private final File mFile;
+    private String mToken;
+    private Map<String, Long> mFingerprints = new HashMap<>();
+    private boolean mLoaded;
+
+    // Changed since the last export, guarded by mDirtyLock
+    private final Object mDirtyLock = new Object();
+    private final Set<String> mDirtyRefs = new HashSet<>();
+    private boolean mAllDirty = true;
+
+    LibraryJournal(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Marks entities as changed or removed since the last export
+     * @param refs The references of the entities
+     */
+    void markDirty(Collection<String> refs) {
+        synchronized (mDirtyLock) {
+            mDirtyRefs.addAll(refs);
+        }
+    }
+
+    /**
+     * Marks an entity as changed or removed since the last export
+     * @param ref The reference of the entity
+     */
+    void markDirty(String ref) {
+        if (ref != null) {
+            synchronized (mDirtyLock) {
+                mDirtyRefs.add(ref);
+            }
+        }
+    }
+
+    /**
+     * Writes the library to the stream, as a delta if the app already has the state of the
+     * last export. The journal is then updated to the exported state.
+     * @param writer The stream
+     * @param library The library
+     * @param sinceToken The token of the last export received by the app, or null
+     */
+    synchronized void export(LibraryStream.Writer writer, Library library, String sinceToken)
+            throws IOException {
+        if (!mLoaded) {
+            load();
+        }
+
+        final Set<String> dirtyRefs;
+        final boolean allDirty;
+        synchronized (mDirtyLock) {
+            dirtyRefs = new HashSet<>(mDirtyRefs);
+            mDirtyRefs.clear();
+            allDirty = mAllDirty;
+            mAllDirty = false;
+        }
+
+        boolean exported = false;
+        try {
+            final String token = UUID.randomUUID().toString();
+            if (sinceToken == null || !sinceToken.equals(mToken)) {
+                exportFull(writer, library, token);
+            } else if (allDirty) {
+                // We don't know what changed, compare the whole library to the last export
+                final Set<String> refs = new HashSet<>(mFingerprints.keySet());
+                addRefs(refs, library.getSongs());
+                addRefs(refs, library.getAlbums());
+                addRefs(refs, library.getArtists());
+                exportDelta(writer, library, refs, token);
+            } else {
+                exportDelta(writer, library, dirtyRefs, token);
+            }
+            exported = true;
+        } finally {
+            if (!exported) {
+                // The app keeps its previous token, so the changes must be sent next time
+                synchronized (mDirtyLock) {
+                    mDirtyRefs.addAll(dirtyRefs);
+                    mAllDirty |= allDirty;
+                }
+            }
+        }
+
+        save();
+    }
+
+    private void exportFull(LibraryStream.Writer writer, Library library, String token)
+            throws IOException {
+        final Map<String, Long> fingerprints = new HashMap<>(mFingerprints.size());
+        writer.writeSyncToken(token, false);
+
+        for (Song song : library.getSongs()) {
+            if (putFingerprint(song, fingerprints)) {
+                writer.writeSong(song);
+            }
+        }
+        for (Album album : library.getAlbums()) {
+            if (putFingerprint(album, fingerprints)) {
+                writer.writeAlbum(album);
+            }
+        }
+        for (Artist artist : library.getArtists()) {
+            if (putFingerprint(artist, fingerprints)) {
+                writer.writeArtist(artist);
+            }
+        }
+
+        mToken = token;
+        mFingerprints = fingerprints;
+
+        Log.d(TAG, "Exported full library: " + fingerprints.size() + " entities");
+    }
+
+    private void exportDelta(LibraryStream.Writer writer, Library library, Set<String> dirtyRefs,
+                             String token) throws IOException {
+        final Map<String, Long> changed = new HashMap<>();
+        final List<String> removed = new ArrayList<>();
+        writer.writeSyncToken(token, true);
+
+        for (String ref : dirtyRefs) {
+            final BoundEntity entity = library.getEntity(ref);
+            if (entity == null) {
+                if (mFingerprints.containsKey(ref)) {
+                    writer.writeRemoved(ref);
+                    removed.add(ref);
+                }
+                continue;
+            }
+
+            final Long previous = mFingerprints.get(ref);
+            if (!putFingerprint(entity, changed) || changed.get(ref).equals(previous)) {
+                changed.remove(ref);
+                continue;
+            }
+
+            if (entity instanceof Song) {
+                writer.writeSong((Song) entity);
+            } else if (entity instanceof Album) {
+                writer.writeAlbum((Album) entity);
+            } else if (entity instanceof Artist) {
+                writer.writeArtist((Artist) entity);
+            }
+        }
+
+        // Only apply the changes once they have all been written
+        mToken = token;
+        mFingerprints.putAll(changed);
+        for (String ref : removed) {
+            mFingerprints.remove(ref);
+        }
+
+        Log.d(TAG, "Exported delta: " + changed.size() + " changed, " + removed.size()
+                + " removed");
+    }
+
+    private static void addRefs(Set<String> refs, List<? extends BoundEntity> entities) {
+        for (BoundEntity entity : entities) {
+            if (entity != null && entity.getRef() != null) {
+                refs.add(entity.getRef());
+            }
+        }
+    }
+
+    /**
+     * Records the fingerprint of an entity
+     * @return true if the entity can be exported
+     */
+    private static boolean putFingerprint(BoundEntity entity, Map<String, Long> fingerprints) {
+        if (!(entity instanceof Song || entity instanceof Album || entity instanceof Artist)
+                || entity.getRef() == null) {
+            return false;
+        }
+
+        fingerprints.put(entity.getRef(), LibraryStream.fingerprint((Parcelable) entity));
+        return true;
+    }
+
+    private void load() {
+        mLoaded = true;
+        if (!mFile.exists()) {
+            return;
+        }
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile),
+                    BUFFER_SIZE));
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+
+            final String token = in.readUTF();
+            final int count = in.readInt();
+            final Map<String, Long> fingerprints = new HashMap<>(count);
+            for (int i = 0; i < count; ++i) {
+                fingerprints.put(in.readUTF(), in.readLong());
+            }
+
+            mToken = token;
+            mFingerprints = fingerprints;
+        } catch (IOException e) {
+            // The app will just get a full export
+            Log.w(TAG, "Cannot read the library journal", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void save() {
+        final File tmpFile = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile),
+                    BUFFER_SIZE));
+            out.writeInt(MAGIC);
+            out.writeUTF(mToken);
+            out.writeInt(mFingerprints.size());
+            for (Map.Entry<String, Long> entry : mFingerprints.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            out.close();
+            out = null;
+
+            if (!tmpFile.renameTo(mFile)) {
+                Log.w(TAG, "Cannot move the library journal in place");
+                tmpFile.delete();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot save the library journal", e);
+            tmpFile.delete();
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+}
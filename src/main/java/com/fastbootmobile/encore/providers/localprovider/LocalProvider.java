@@ -4,17 +4,18 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.database.ContentObserver;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.media.MediaCodec;
-import android.media.MediaExtractor;
-import android.media.MediaFormat;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.provider.MediaStore;
+import android.text.TextUtils;
 import android.util.Log;
 
 import com.fastbootmobile.encore.model.Album;
@@ -26,16 +27,25 @@ import com.fastbootmobile.encore.model.SearchResult;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.IArtCallback;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
+import com.fastbootmobile.encore.utils.SettingsKeys;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 public class LocalProvider {
@@ -46,95 +56,204 @@ public class LocalProvider {
     private static final String PREFIX_ARTIST = "local:artist:";
     private static final String PREFIX_PLAYLIST = "local:playlist:";
 
+    private static final long PREFETCH_DELAY = 10 * 1000;
+    private static final long PRIME_TIMEOUT_US = 200 * 1000;
+    private static final long DECODE_TIMEOUT_US = 30 * 1000;
+    private static final long NO_PROGRESS_WAIT = 10;
+
     private Uri mUri;
-    private HashMap<String, LocalSong> mSongs;
+    // Concurrent as songs are fetched on the service threads while pages are read on binder ones
+    private ConcurrentHashMap<String, LocalSong> mSongs;
+    private LocalSongIndex mSongIndex;
     private ContentResolver mContentResolver;
     private HashMap<String, Playlist> mPlaylists;
-    private LocalSong mCurrentSong;
-    private MediaCodec mDecoder;
-    private MediaExtractor mExtractor;
-    private boolean mChangeMusic;
-    private MediaCodec.BufferInfo mInfo;
-    private ByteBuffer[] mOutputBuffers;
-    private ByteBuffer[] mInputBuffers;
     private Context mContext;
-    private MediaFormat mFormat;
     private LocalCallback mCallback;
 
-    private HashMap<String, Artist> mArtists;
-    private HashMap<String, Album> mAlbums;
+    // Concurrent as the library is refreshed on its own thread
+    private ConcurrentHashMap<String, Artist> mArtists;
+    private ConcurrentHashMap<String, Album> mAlbums;
     private HashMap<String, Genre> mGenres;
-    private HashMap<String, Long> mAlbumsId;
+    private HashMap<String, Long> mGenresId;
+    private ConcurrentHashMap<String, Long> mAlbumsId;
+    private ConcurrentHashMap<String, Long> mArtistsId;
     private Handler mHandler = new Handler();
     private boolean mSetup;
     private boolean mPaused;
-    private SearchResult mSearchResult;
+    private final LocalSearchIndex mSearchIndex = new LocalSearchIndex();
+    private final ExecutorService mSearchExecutor = Executors.newSingleThreadExecutor();
+    private final AtomicInteger mSearchGeneration = new AtomicInteger();
+    private Future<?> mPendingSearch;
     private boolean mIsEOS;
-    private int mPendingOutIndex = -1;
-    private int mPendingSize;
-
 
-    private final ContentObserver mAlbumContentObserver = new ContentObserver(mHandler) {
+    // Playback: the song being played, and the next one once prefetched
+    private TrackDecoder mCurrent;
+    private TrackDecoder mNext;
+    private String mAutoAdvancedRef;
+    private long mCrossfadeUs;
+    private byte[] mMixCurrent;
+    private byte[] mMixNext;
+    private ByteBuffer mMixOutput;
+
+
+    // MediaStore tables to read again on the next refresh, see scheduleRefresh(). The albums and
+    // artists are views of the media rows, they are refreshed along with the songs they contain.
+    private static final int DIRTY_SONGS = 0x1;
+    private static final int DIRTY_PLAYLISTS = 0x2;
+    private static final int DIRTY_GENRES = 0x4;
+
+    // Quiet time after the last change notification before refreshing, and maximum time a
+    // refresh is postponed by a continuous burst of notifications
+    private static final long REFRESH_DELAY = 1000;
+    private static final long REFRESH_MAX_DELAY = 5000;
+
+    // Maximum number of ids in the selection of a query
+    private static final int QUERY_IDS_CHUNK = 500;
+
+    private final HandlerThread mRefreshThread = new HandlerThread("LocalProviderRefresh");
+    private final Handler mRefreshHandler;
+    private final Object mRefreshLock = new Object();
+    private int mDirtyTables;
+    private final Set<Long> mDirtyPlaylistIds = new HashSet<>();
+    private final Set<Long> mDirtyGenreIds = new HashSet<>();
+    private boolean mAllGenresDirty;
+    private long mFirstDirtyTime;
+
+    // Held while reading the MediaStore. Guards the song generations below.
+    private final Object mScanLock = new Object();
+    // MediaStore _ID of the songs read -> DATE_MODIFIED and reference
+    private final Map<Long, Long> mSongGenerations = new HashMap<>();
+    private final Map<Long, String> mSongIdRefs = new HashMap<>();
+    // MediaStore _ID of the playlists read -> DATE_MODIFIED
+    private final Map<Long, Long> mPlaylistGenerations = new HashMap<>();
+
+    private final Runnable mRefreshRunnable = new Runnable() {
         @Override
-        public void onChange(boolean self) {
+        public void run() {
+            final int tables;
+            final Set<Long> playlistIds;
+            final Set<Long> genreIds;
+            synchronized (mRefreshLock) {
+                tables = mDirtyTables;
+                mDirtyTables = 0;
+                playlistIds = new HashSet<>(mDirtyPlaylistIds);
+                mDirtyPlaylistIds.clear();
+                genreIds = mAllGenresDirty || mDirtyGenreIds.isEmpty()
+                        ? null : new HashSet<>(mDirtyGenreIds);
+                mDirtyGenreIds.clear();
+                mAllGenresDirty = false;
+            }
+
             try {
-                fetchAlbums();
+                synchronized (mScanLock) {
+                    if ((tables & DIRTY_SONGS) != 0) {
+                        fetchSongs(true);
+                    }
+                    if ((tables & DIRTY_PLAYLISTS) != 0) {
+                        fetchPlaylists(playlistIds);
+                    }
+                    if ((tables & DIRTY_GENRES) != 0) {
+                        fetchGenres(genreIds);
+                    }
+                }
             } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read albums because of a security exception", e);
+                Log.e(TAG, "Cannot refresh the library because of a security exception", e);
             }
         }
+    };
 
-        @Override
-        public void onChange(boolean self, Uri uri) {
-            onChange(self);
+    /**
+     * Observes a MediaStore table, scheduling a refresh of that table on changes
+     */
+    private class RefreshObserver extends ContentObserver {
+        private final int mTables;
+
+        RefreshObserver(int tables) {
+            super(mHandler);
+            mTables = tables;
         }
-    };
 
-    private final ContentObserver mArtistContentObserver = new ContentObserver(mHandler) {
         @Override
         public void onChange(boolean self) {
-            try {
-                fetchArtists();
-            } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read artists because of a security exception", e);
-            }
+            scheduleRefresh(mTables);
         }
 
         @Override
         public void onChange(boolean self, Uri uri) {
             onChange(self);
         }
-    };
+    }
 
-    private final ContentObserver mGenreContentObserver = new ContentObserver(mHandler) {
+    private final ContentObserver mSongContentObserver = new RefreshObserver(DIRTY_SONGS);
+    private final ContentObserver mGenreContentObserver = new RefreshObserver(DIRTY_GENRES) {
         @Override
-        public void onChange(boolean self) {
-            try {
-                fetchGenres(null);
-            } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read genres because of a security exception", e);
+        public void onChange(boolean self, Uri uri) {
+            // Only read again the genre of the URI, or all of them if there is none
+            final long id = getRowId(uri, "genres");
+            synchronized (mRefreshLock) {
+                if (id >= 0) {
+                    mDirtyGenreIds.add(id);
+                } else {
+                    mAllGenresDirty = true;
+                }
             }
+            super.onChange(self, uri);
         }
-
+    };
+    private final ContentObserver mPlaylistContentObserver = new RefreshObserver(DIRTY_PLAYLISTS) {
         @Override
         public void onChange(boolean self, Uri uri) {
-            onChange(self);
+            // Changing the members of a playlist doesn't always touch its DATE_MODIFIED, read
+            // it again anyway
+            final long id = getRowId(uri, "playlists");
+            if (id >= 0) {
+                synchronized (mRefreshLock) {
+                    mDirtyPlaylistIds.add(id);
+                }
+            }
+            super.onChange(self, uri);
         }
     };
 
+    /**
+     * @param uri A MediaStore URI, eg. content://media/external/audio/playlists/12/members
+     * @param table The table of the row, eg. "playlists"
+     * @return The _ID of the row of the table in the URI, or -1 if there is none
+     */
+    private static long getRowId(Uri uri, String table) {
+        final List<String> segments = uri != null ? uri.getPathSegments() : null;
+        if (segments == null) {
+            return -1;
+        }
+
+        final int index = segments.indexOf(table);
+        if (index < 0 || index + 1 >= segments.size()) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(segments.get(index + 1));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
     public LocalProvider(Uri uri, ContentResolver cr, LocalCallback cb, Context context) {
         mCallback = cb;
         mContentResolver = cr;
         mUri = uri;
-        mSongs = new HashMap<>();
-        mAlbums = new HashMap<>();
-        mArtists = new HashMap<>();
+        mSongs = new ConcurrentHashMap<>();
+        mSongIndex = new LocalSongIndex(mSongs);
+        mAlbums = new ConcurrentHashMap<>();
+        mArtists = new ConcurrentHashMap<>();
         mPlaylists = new HashMap<>();
         mGenres = new HashMap<>();
-        mAlbumsId = new HashMap<>();
-        mChangeMusic = true;
+        mGenresId = new HashMap<>();
+        mAlbumsId = new ConcurrentHashMap<>();
+        mArtistsId = new ConcurrentHashMap<>();
         mContext = context;
         mAudioPushRunnable.start();
+        mRefreshThread.start();
+        mRefreshHandler = new Handler(mRefreshThread.getLooper());
         mSetup = false;
     }
 
@@ -176,218 +295,621 @@ public class LocalProvider {
         mContentResolver.registerContentObserver(mUri, true, mSongContentObserver);
         mContentResolver.registerContentObserver(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, true, mPlaylistContentObserver);
         mContentResolver.registerContentObserver(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI, true, mGenreContentObserver);
-        mContentResolver.registerContentObserver(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, true, mAlbumContentObserver);
-        mContentResolver.registerContentObserver(MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI, true, mArtistContentObserver);
         mSetup = true;
 
         try {
-            fetchAlbums();
-            fetchArtists();
-            fetchSongs();
-            fetchPlaylists(null);
-            fetchGenres(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI);
+            synchronized (mScanLock) {
+                fetchAlbums(null);
+                fetchArtists(null);
+                fetchSongs(false);
+                fetchPlaylists(null);
+                fetchGenres(null);
+            }
         } catch (SecurityException e) {
             // This happened once on a Nexus Player.
             Log.e(TAG, "Security exception when fetching local provider data! " + e.getMessage());
         }
     }
 
-    private void fetchAlbums() {
+    /**
+     * Schedules a refresh of MediaStore tables. Bursts of change notifications (eg. while files
+     * are being copied) are coalesced into a single refresh.
+     * @param tables The DIRTY_ flags of the tables to read again
+     */
+    private void scheduleRefresh(int tables) {
+        synchronized (mRefreshLock) {
+            final long now = SystemClock.uptimeMillis();
+            if (mDirtyTables == 0) {
+                mFirstDirtyTime = now;
+            }
+            mDirtyTables |= tables;
+
+            final long delay = Math.max(0,
+                    Math.min(REFRESH_DELAY, mFirstDirtyTime + REFRESH_MAX_DELAY - now));
+            mRefreshHandler.removeCallbacks(mRefreshRunnable);
+            mRefreshHandler.postDelayed(mRefreshRunnable, delay);
+        }
+    }
+
+    /**
+     * Reads albums from the MediaStore
+     * @param ids The _ID of the albums to read, or null to read them all. The albums of these ids
+     *            that are no longer in the MediaStore are removed.
+     */
+    private void fetchAlbums(Set<Long> ids) {
+        if (ids != null && ids.isEmpty()) {
+            return;
+        }
+
+        // Many changes: reading everything is cheaper than a huge selection
+        final Set<Long> selected = ids != null && ids.size() <= QUERY_IDS_CHUNK ? ids : null;
+        final String selection = selected != null
+                ? MediaStore.Audio.Albums._ID + " IN (" + TextUtils.join(",", selected) + ")"
+                : null;
+
         final String[] proj = {"*"};
-        final Cursor cur = mContentResolver.query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, proj, null, null, null);
-        if (cur != null) {
-            if (cur.moveToFirst()) {
-                final int albumName = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM);
-                final int artistName = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ARTIST);
-                final int albumKey = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM_KEY);
-                final int yearKey = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.LAST_YEAR);
-                final int idKey = cur.getColumnIndex(MediaStore.Audio.Albums._ID);
+        final Cursor cur = mContentResolver.query(MediaStore.Audio.Albums.EXTERNAL_CONTENT_URI, proj, selection, null, null);
+        if (cur == null) {
+            return;
+        }
 
-                do {
-                    Album album = new Album(PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistName)));
-                    album.setName(cur.getString(albumName));
-                    album.setIsLoaded(true);
-                    album.setSourceLogo(PluginService.LOGO_REF);
-                    album.setYear(cur.getInt(yearKey));
-
-                    // we get the contents of the album
-                    mAlbums.put(album.getRef(), album);
-                    mAlbumsId.put(album.getRef(), cur.getLong(idKey));
-                } while (cur.moveToNext());
+        final Set<String> seen = new HashSet<>();
+        if (cur.moveToFirst()) {
+            final int albumName = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM);
+            final int artistName = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ARTIST);
+            final int albumKey = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM_KEY);
+            final int yearKey = cur.getColumnIndex(MediaStore.Audio.AlbumColumns.LAST_YEAR);
+            final int idKey = cur.getColumnIndex(MediaStore.Audio.Albums._ID);
+
+            do {
+                Album album = new Album(PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistName)));
+                album.setName(cur.getString(albumName));
+                album.setIsLoaded(true);
+                album.setSourceLogo(PluginService.LOGO_REF);
+                album.setYear(cur.getInt(yearKey));
+                seen.add(album.getRef());
+
+                // The songs are attached by fetchSongs, keep those we already have
+                final Album previous = mAlbums.get(album.getRef());
+                if (previous != null) {
+                    album.setProvider(previous.getProvider());
+                    Iterator<String> songs = previous.songs();
+                    while (songs.hasNext()) {
+                        album.addSong(songs.next());
+                    }
+                }
+
+                mAlbums.put(album.getRef(), album);
+                mAlbumsId.put(album.getRef(), cur.getLong(idKey));
+                mSearchIndex.put(LocalSearchIndex.TYPE_ALBUM, album.getRef(), album.getName());
+
+                if (previous == null || !previous.isIdentical(album)) {
+                    mCallback.albumUpdated(album);
+                }
+            } while (cur.moveToNext());
+        }
+        cur.close();
+
+        final List<String> removed = new ArrayList<>();
+        for (String ref : new ArrayList<>(mAlbums.keySet())) {
+            if (!seen.contains(ref)
+                    && (selected == null || selected.contains(mAlbumsId.get(ref)))) {
+                mAlbums.remove(ref);
+                mAlbumsId.remove(ref);
+                mSearchIndex.remove(LocalSearchIndex.TYPE_ALBUM, ref);
+                removed.add(ref);
             }
-            cur.close();
         }
+        if (!removed.isEmpty()) {
+            mCallback.entitiesRemoved(removed);
+        }
+    }
 
-        // first we poll all the musics
-        mContentResolver.registerContentObserver(mUri, true, mSongContentObserver);
-        mContentResolver.registerContentObserver(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, true, mSongContentObserver);
+    /**
+     * Reads the songs that changed in the MediaStore since the last call. The _ID and
+     * DATE_MODIFIED of all the songs are read first and compared to those of the previous call,
+     * then only the rows added or modified are read entirely, and the songs whose rows are gone
+     * are removed.
+     * @param withAlbumsAndArtists true to also read again the albums and artists of the songs
+     *                             added, modified or removed, false if they have just been read
+     */
+    public void fetchSongs(boolean withAlbumsAndArtists) {
+        final String selection = MediaStore.Audio.Media.IS_MUSIC + " = 1";
+
+        // Current generation of each song
+        final Map<Long, Long> generations = new HashMap<>();
+        Cursor cur = mContentResolver.query(mUri,
+                new String[]{MediaStore.Audio.Media._ID, MediaStore.Audio.Media.DATE_MODIFIED},
+                selection, null, null);
+        if (cur == null) {
+            return;
+        }
+        while (cur.moveToNext()) {
+            generations.put(cur.getLong(0), cur.getLong(1));
+        }
+        cur.close();
+
+        final List<Long> changedIds = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : generations.entrySet()) {
+            final Long previous = mSongGenerations.get(entry.getKey());
+            if (previous == null || !previous.equals(entry.getValue())) {
+                changedIds.add(entry.getKey());
+            }
+        }
+
+        // References that may no longer be used: those of the rows deleted or modified
+        final Set<String> staleRefs = new HashSet<>();
+        for (Long id : new ArrayList<>(mSongIdRefs.keySet())) {
+            if (!generations.containsKey(id)) {
+                staleRefs.add(mSongIdRefs.remove(id));
+                mSongGenerations.remove(id);
+            }
+        }
+        for (Long id : changedIds) {
+            final String ref = mSongIdRefs.get(id);
+            if (ref != null) {
+                staleRefs.add(ref);
+            }
+        }
+
+        if (changedIds.isEmpty() && staleRefs.isEmpty()) {
+            return;
+        }
+
+        // Albums whose songs list must be rebuilt, and MediaStore albums and artists to read again
+        final Set<String> touchedAlbums = new HashSet<>();
+        final Set<Long> albumIds = new HashSet<>();
+        final Set<Long> artistIds = new HashSet<>();
+        final List<Song> updated = new ArrayList<>(changedIds.size());
+
+        if (changedIds.size() > QUERY_IDS_CHUNK || mSongGenerations.isEmpty()) {
+            // Many changes (or the first read): reading everything is cheaper than many queries
+            cur = mContentResolver.query(mUri, null, selection, null, null);
+            readSongs(cur, new HashSet<>(changedIds), generations, touchedAlbums, albumIds,
+                    artistIds, updated);
+        } else {
+            for (int i = 0; i < changedIds.size(); i += QUERY_IDS_CHUNK) {
+                final List<Long> chunk = changedIds.subList(i,
+                        Math.min(i + QUERY_IDS_CHUNK, changedIds.size()));
+                cur = mContentResolver.query(mUri, null, selection + " AND "
+                        + MediaStore.Audio.Media._ID + " IN (" + TextUtils.join(",", chunk) + ")",
+                        null, null);
+                readSongs(cur, null, generations, touchedAlbums, albumIds, artistIds, updated);
+            }
+        }
+
+        // Songs of rows deleted, or modified such that their reference changed. Several rows
+        // may share a reference, keep those still used. The values of the map would be scanned
+        // once per stale reference, look them up in a set.
+        if (!staleRefs.isEmpty()) {
+            staleRefs.removeAll(new HashSet<>(mSongIdRefs.values()));
+        }
+        final List<String> removed = new ArrayList<>(staleRefs);
+        for (String ref : removed) {
+            final LocalSong localSong = mSongs.remove(ref);
+            if (localSong != null) {
+                touchedAlbums.add(localSong.getSong().getAlbum());
+                albumIds.add(localSong.getAlbumId());
+                artistIds.add(localSong.getArtistId());
+            }
+            mSearchIndex.remove(LocalSearchIndex.TYPE_SONG, ref);
+        }
+
+        // Pages are served from the previous order until the changes have been read
+        mSongIndex.invalidate();
+
+        if (withAlbumsAndArtists) {
+            // Before rebuilding the songs of the albums, so that new albums get their songs
+            fetchAlbums(albumIds);
+        }
+        final List<Album> changedAlbums = rebuildAlbumsSongs(touchedAlbums);
+
+        for (Song song : updated) {
+            mCallback.songUpdated(song);
+        }
+        for (Album album : changedAlbums) {
+            mCallback.albumUpdated(album);
+        }
+        if (!removed.isEmpty()) {
+            mCallback.entitiesRemoved(removed);
+        }
+
+        if (withAlbumsAndArtists) {
+            fetchArtists(artistIds);
+        }
+
+        Log.d(TAG, "Songs refreshed: " + updated.size() + " added or modified, "
+                + removed.size() + " removed");
     }
 
-    public void fetchSongs() {
-        // First we poll all the songs
-        final Cursor cur = mContentResolver.query(mUri, null,
-                MediaStore.Audio.Media.IS_MUSIC + " = 1", null, null);
+    /**
+     * Reads songs rows into the songs map
+     * @param cur The rows, closed by this method
+     * @param ids The _ID of the rows to read, or null to read them all
+     * @param generations The DATE_MODIFIED of the rows, by _ID
+     * @param touchedAlbums Filled with the albums of the songs read
+     * @param albumIds Filled with the MediaStore _ID of the albums of the songs read, before and
+     *                 after the change
+     * @param artistIds Filled with the MediaStore _ID of the artists of the songs read, before
+     *                  and after the change
+     * @param updated Filled with the songs read that are new or changed
+     */
+    private void readSongs(Cursor cur, Set<Long> ids, Map<Long, Long> generations,
+                           Set<String> touchedAlbums, Set<Long> albumIds, Set<Long> artistIds,
+                           List<Song> updated) {
+        if (cur == null) {
+            return;
+        }
 
-        if (cur != null) {
-            if (cur.moveToFirst()) {
-                // Fetch all the columns we are interested in
-                int artistKey = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST_KEY);
-                int albumKey = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_KEY);
-                int titleKey = cur.getColumnIndex(MediaStore.Audio.Media.TITLE_KEY);
-                int artistColumn = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST);
-                int titleColumn = cur.getColumnIndex(MediaStore.Audio.Media.TITLE);
-                int albumIdColumn = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
-                int durationColumn = cur.getColumnIndex(MediaStore.Audio.Media.DURATION);
-                int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
-                int yearColumn = cur.getColumnIndex(MediaStore.Audio.Media.YEAR);
+        if (cur.moveToFirst()) {
+            // Fetch all the columns we are interested in
+            int artistKey = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST_KEY);
+            int albumKey = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_KEY);
+            int titleKey = cur.getColumnIndex(MediaStore.Audio.Media.TITLE_KEY);
+            int artistColumn = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST);
+            int titleColumn = cur.getColumnIndex(MediaStore.Audio.Media.TITLE);
+            int albumIdColumn = cur.getColumnIndex(MediaStore.Audio.Media.ALBUM_ID);
+            int artistIdColumn = cur.getColumnIndex(MediaStore.Audio.Media.ARTIST_ID);
+            int durationColumn = cur.getColumnIndex(MediaStore.Audio.Media.DURATION);
+            int idColumn = cur.getColumnIndex(MediaStore.Audio.Media._ID);
+            int yearColumn = cur.getColumnIndex(MediaStore.Audio.Media.YEAR);
+            int dateAddedColumn = cur.getColumnIndex(MediaStore.Audio.Media.DATE_ADDED);
 
-                do {
-                    // We create the unique ID the song have
-                    final String uniquename = getSongUniqueName(cur.getString(artistKey), cur.getString(albumKey), cur.getString(titleKey));
+            do {
+                final long id = cur.getLong(idColumn);
+                if (ids != null && !ids.contains(id)) {
+                    continue;
+                }
 
-                    Song s = new Song(PREFIX_SONG + uniquename);
-                    s.setAvailable(true);
-                    s.setTitle(cur.getString(titleColumn));
+                // We create the unique ID the song have
+                final String uniquename = getSongUniqueName(cur.getString(artistKey), cur.getString(albumKey), cur.getString(titleKey));
 
-                    String artistSrc = cur.getString(artistKey);
-                    if (artistSrc != null) {
-                        s.setArtist(PREFIX_ARTIST + getArtistUniqueName(artistSrc));
-                    }
-                    s.setDuration((int) cur.getLong(durationColumn));
-                    s.setAlbum(PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistColumn)));
+                Song s = new Song(PREFIX_SONG + uniquename);
+                s.setAvailable(true);
+                s.setTitle(cur.getString(titleColumn));
 
-                    Album album = mAlbums.get(s.getAlbum());
-                    if (album != null) {
-                        album.addSong(s.getRef());
-                    }
+                String artistSrc = cur.getString(artistKey);
+                if (artistSrc != null) {
+                    s.setArtist(PREFIX_ARTIST + getArtistUniqueName(artistSrc));
+                }
+                s.setDuration((int) cur.getLong(durationColumn));
+                s.setAlbum(PREFIX_ALBUM + getAlbumUniqueName(cur.getString(albumKey), cur.getString(artistColumn)));
 
-                    s.setYear(cur.getInt(yearColumn));
-                    s.setIsLoaded(true); // Local songs are always fully loaded
-                    s.setOfflineStatus(BoundEntity.OFFLINE_STATUS_READY); // Local songs are always offline
-                    s.setSourceLogo(PluginService.LOGO_REF);
+                s.setYear(cur.getInt(yearColumn));
+                s.setIsLoaded(true); // Local songs are always fully loaded
+                s.setOfflineStatus(BoundEntity.OFFLINE_STATUS_READY); // Local songs are always offline
+                s.setSourceLogo(PluginService.LOGO_REF);
+
+                // Keep the provider of the song we replace, if we already had it
+                final LocalSong previous = mSongs.get(s.getRef());
+                if (previous != null) {
+                    s.setProvider(previous.getSong().getProvider());
+                    touchedAlbums.add(previous.getSong().getAlbum());
+                    albumIds.add(previous.getAlbumId());
+                    artistIds.add(previous.getArtistId());
+                }
+
+                //we keep LocalSongs so we still have the id informations
+                final long albumId = cur.getLong(albumIdColumn);
+
+                final LocalSong localSong = new LocalSong(s, id, albumId);
+                localSong.setArtistId(cur.getLong(artistIdColumn));
+                localSong.setSortKeys(cur.getString(titleKey), cur.getString(artistKey),
+                        cur.getString(albumKey), cur.getLong(dateAddedColumn));
+                mSongs.put(s.getRef(), localSong);
+                mSongIdRefs.put(id, s.getRef());
+                final Long generation = generations.get(id);
+                if (generation != null) {
+                    mSongGenerations.put(id, generation);
+                }
+                mSearchIndex.put(LocalSearchIndex.TYPE_SONG, s.getRef(), s.getTitle());
+
+                touchedAlbums.add(s.getAlbum());
+                albumIds.add(albumId);
+                artistIds.add(localSong.getArtistId());
+                if (previous == null || !previous.getSong().isIdentical(s)) {
+                    updated.add(s);
+                }
+            } while (cur.moveToNext());
+        }
+        cur.close();
+    }
 
-                    //we keep LocalSongs so we still have the id informations
-                    final Long id = cur.getLong(idColumn);
-                    final Long albumId = cur.getLong(albumIdColumn);
+    /**
+     * Rebuilds the songs list of albums from the songs map
+     * @param albumRefs The references of the albums
+     * @return The albums whose songs changed
+     */
+    private List<Album> rebuildAlbumsSongs(Set<String> albumRefs) {
+        final List<Album> changed = new ArrayList<>();
+        if (albumRefs.isEmpty()) {
+            return changed;
+        }
 
-                    mSongs.put(s.getRef(), new LocalSong(s, id, albumId));
-                    mCallback.songUpdated(s);
-                } while (cur.moveToNext());
+        final Map<String, List<String>> albumsSongs = new HashMap<>();
+        for (LocalSong localSong : mSongs.values()) {
+            final String albumRef = localSong.getSong().getAlbum();
+            if (albumRefs.contains(albumRef)) {
+                List<String> songs = albumsSongs.get(albumRef);
+                if (songs == null) {
+                    songs = new ArrayList<>();
+                    albumsSongs.put(albumRef, songs);
+                }
+                songs.add(localSong.getSong().getRef());
             }
-            cur.close();
         }
 
-        for (Album album : mAlbums.values()) {
-            mCallback.albumUpdated(album);
+        for (String albumRef : albumRefs) {
+            final Album previous = albumRef != null ? mAlbums.get(albumRef) : null;
+            if (previous == null) {
+                continue;
+            }
+
+            final Album album = new Album(albumRef);
+            album.setName(previous.getName());
+            album.setYear(previous.getYear());
+            album.setIsLoaded(previous.isLoaded());
+            album.setSourceLogo(previous.getLogo());
+            album.setProvider(previous.getProvider());
+
+            final List<String> songs = albumsSongs.get(albumRef);
+            if (songs != null) {
+                for (String songRef : songs) {
+                    album.addSong(songRef);
+                }
+            }
+
+            if (!hasSameSongs(previous, album)) {
+                mAlbums.put(albumRef, album);
+                changed.add(album);
+            }
         }
+        return changed;
     }
 
-    public void fetchArtists() {
+    private static boolean hasSameSongs(Album lhs, Album rhs) {
+        if (lhs.getSongsCount() != rhs.getSongsCount()) {
+            return false;
+        }
+
+        final Set<String> songs = new HashSet<>();
+        final Iterator<String> lhsSongs = lhs.songs();
+        while (lhsSongs.hasNext()) {
+            songs.add(lhsSongs.next());
+        }
+        final Iterator<String> rhsSongs = rhs.songs();
+        while (rhsSongs.hasNext()) {
+            if (!songs.contains(rhsSongs.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads artists from the MediaStore
+     * @param ids The _ID of the artists to read, or null to read them all. The artists of these
+     *            ids that are no longer in the MediaStore are removed.
+     */
+    public void fetchArtists(Set<Long> ids) {
+        if (ids != null && ids.isEmpty()) {
+            return;
+        }
+
+        // Many changes: reading everything is cheaper than a huge selection
+        final Set<Long> selected = ids != null && ids.size() <= QUERY_IDS_CHUNK ? ids : null;
+        final String idsList = selected != null ? TextUtils.join(",", selected) : null;
+
+        // The albums of each artist, by MediaStore id of the artist. Read from the media in one
+        // query rather than querying the albums of each artist.
+        final Map<Long, Set<String>> artistsAlbumKeys = new HashMap<>();
+        final Cursor media = mContentResolver.query(MediaStore.Audio.Media.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Audio.Media.ARTIST_ID, MediaStore.Audio.Media.ALBUM_KEY},
+                idsList != null ? MediaStore.Audio.Media.ARTIST_ID + " IN (" + idsList + ")" : null,
+                null, null);
+        if (media != null) {
+            while (media.moveToNext()) {
+                Set<String> albumKeys = artistsAlbumKeys.get(media.getLong(0));
+                if (albumKeys == null) {
+                    albumKeys = new HashSet<>();
+                    artistsAlbumKeys.put(media.getLong(0), albumKeys);
+                }
+                albumKeys.add(media.getString(1));
+            }
+            media.close();
+        }
+
         final String[] proj = {"*"};
 
         // we poll the artists
-        final Cursor cur = mContentResolver.query(MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI, proj, null, null, null);
-        if (cur != null) {
-            if (cur.moveToFirst()) {
-                final int artistName = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.ARTIST);
-                final int artistKey = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.ARTIST_KEY);
-                final int artistId = cur.getColumnIndex(MediaStore.Audio.Artists._ID);
-                do {
-                    String artistKeyStr = cur.getString(artistKey);
-                    if (artistKeyStr == null || artistKeyStr.isEmpty()) {
-                        artistKeyStr = cur.getString(artistName);
-                    }
-                    if (artistKeyStr == null || artistKeyStr.isEmpty()) {
-                        artistKeyStr = String.valueOf(cur.getLong(artistId));
-                    }
+        final Cursor cur = mContentResolver.query(MediaStore.Audio.Artists.EXTERNAL_CONTENT_URI, proj,
+                idsList != null ? MediaStore.Audio.Artists._ID + " IN (" + idsList + ")" : null,
+                null, null);
+        if (cur == null) {
+            return;
+        }
+
+        final Set<String> seen = new HashSet<>();
+        if (cur.moveToFirst()) {
+            final int artistName = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.ARTIST);
+            final int artistKey = cur.getColumnIndex(MediaStore.Audio.ArtistColumns.ARTIST_KEY);
+            final int artistId = cur.getColumnIndex(MediaStore.Audio.Artists._ID);
+            do {
+                String artistKeyStr = cur.getString(artistKey);
+                if (artistKeyStr == null || artistKeyStr.isEmpty()) {
+                    artistKeyStr = cur.getString(artistName);
+                }
+                if (artistKeyStr == null || artistKeyStr.isEmpty()) {
+                    artistKeyStr = String.valueOf(cur.getLong(artistId));
+                }
 
-                    Artist artist = new Artist(PREFIX_ARTIST + getArtistUniqueName(artistKeyStr));
-                    artist.setName(cur.getString(artistName));
-                    artist.setIsLoaded(true);
+                Artist artist = new Artist(PREFIX_ARTIST + getArtistUniqueName(artistKeyStr));
+                artist.setName(cur.getString(artistName));
+                artist.setIsLoaded(true);
+                artist.setSourceLogo(PluginService.LOGO_REF);
 
-                    // we get the albums from this artist
-                    artist = getAlbumsArtists(artist, MediaStore.Audio.Artists.Albums.getContentUri("external", cur.getLong(artistId)));
-                    if (artist != null) {
-                        artist.setSourceLogo(PluginService.LOGO_REF);
-                        mArtists.put(artist.getRef(), artist);
-                        mCallback.artistUpdated(artist);
+                // we get the albums from this artist
+                final Set<String> albumKeys = artistsAlbumKeys.get(cur.getLong(artistId));
+                if (albumKeys != null) {
+                    for (String albumKey : albumKeys) {
+                        artist.addAlbum(PREFIX_ALBUM + getAlbumUniqueName(albumKey, artist.getName()));
                     }
-                } while (cur.moveToNext());
-            }
+                }
+                seen.add(artist.getRef());
 
-            cur.close();
+                final Artist previous = mArtists.get(artist.getRef());
+                if (previous != null) {
+                    artist.setProvider(previous.getProvider());
+                }
+                mArtists.put(artist.getRef(), artist);
+                mArtistsId.put(artist.getRef(), cur.getLong(artistId));
+                mSearchIndex.put(LocalSearchIndex.TYPE_ARTIST, artist.getRef(), artist.getName());
+
+                if (previous == null || !previous.isIdentical(artist)) {
+                    mCallback.artistUpdated(artist);
+                }
+            } while (cur.moveToNext());
+        }
+        cur.close();
+
+        final List<String> removed = new ArrayList<>();
+        for (String ref : new ArrayList<>(mArtists.keySet())) {
+            if (!seen.contains(ref)
+                    && (selected == null || selected.contains(mArtistsId.get(ref)))) {
+                mArtists.remove(ref);
+                mArtistsId.remove(ref);
+                mSearchIndex.remove(LocalSearchIndex.TYPE_ARTIST, ref);
+                removed.add(ref);
+            }
+        }
+        if (!removed.isEmpty()) {
+            mCallback.entitiesRemoved(removed);
         }
     }
 
-    public void fetchPlaylists(String idPlaylist) {
-        Uri uri;
-
-        uri = MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI;
-        String request = null;
-        if (idPlaylist != null) {
-            request = MediaStore.Audio.Playlists._ID + " = " + idPlaylist;
+    /**
+     * Reads the playlists that changed in the MediaStore since the last call. As for the songs,
+     * the _ID and DATE_MODIFIED of all the playlists are read first and compared to those of the
+     * previous call, then only the playlists added or modified are read with their members, and
+     * the playlists whose rows are gone are removed.
+     * @param dirtyIds The _ID of playlists to read again even if their DATE_MODIFIED didn't
+     *                 change, or null
+     */
+    public void fetchPlaylists(Set<Long> dirtyIds) {
+        final Uri uri = MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI;
+
+        // Current generation of each playlist
+        final Map<Long, Long> generations = new HashMap<>();
+        Cursor cur = mContentResolver.query(uri,
+                new String[]{MediaStore.Audio.Playlists._ID, MediaStore.Audio.Playlists.DATE_MODIFIED},
+                null, null, null);
+        if (cur == null) {
+            return;
+        }
+        while (cur.moveToNext()) {
+            generations.put(cur.getLong(0), cur.getLong(1));
+        }
+        cur.close();
+
+        final List<Long> changedIds = new ArrayList<>();
+        for (Map.Entry<Long, Long> entry : generations.entrySet()) {
+            final Long previous = mPlaylistGenerations.get(entry.getKey());
+            if (previous == null || !previous.equals(entry.getValue())
+                    || (dirtyIds != null && dirtyIds.contains(entry.getKey()))) {
+                changedIds.add(entry.getKey());
+            }
         }
-        Cursor cur;
-        String[] proj = {"*"};
 
-        // We now poll the playlists
-        cur = mContentResolver.query(uri, proj,
-                request, null, null);
+        for (Long id : new ArrayList<>(mPlaylistGenerations.keySet())) {
+            if (!generations.containsKey(id)) {
+                mPlaylistGenerations.remove(id);
+                final String ref = PREFIX_PLAYLIST + getPlaylistUniqueName(Long.toString(id));
+                if (mPlaylists.remove(ref) != null) {
+                    mSearchIndex.remove(LocalSearchIndex.TYPE_PLAYLIST, ref);
+                    mCallback.playlistRemoved(ref);
+                }
+            }
+        }
 
-        if (cur != null && cur.moveToFirst()) {
-            final int idKey = cur.getColumnIndex(MediaStore.Audio.Playlists._ID);
-            final int nameKey = cur.getColumnIndex(MediaStore.Audio.Playlists.NAME);
+        for (int i = 0; i < changedIds.size(); i += QUERY_IDS_CHUNK) {
+            final List<Long> chunk = changedIds.subList(i,
+                    Math.min(i + QUERY_IDS_CHUNK, changedIds.size()));
+            cur = mContentResolver.query(uri,
+                    new String[]{MediaStore.Audio.Playlists._ID, MediaStore.Audio.Playlists.NAME},
+                    MediaStore.Audio.Playlists._ID + " IN (" + TextUtils.join(",", chunk) + ")",
+                    null, null);
+            if (cur == null) {
+                continue;
+            }
 
-            do {
-                Long id = cur.getLong(idKey);
-                String name = cur.getString(nameKey);
+            while (cur.moveToNext()) {
+                final long id = cur.getLong(0);
                 Playlist play = new Playlist(PREFIX_PLAYLIST + getPlaylistUniqueName(Long.toString(id)));
-                play.setName(name);
+                play.setName(cur.getString(1));
                 play.setIsLoaded(true);
 
                 // we get the content of the playlist
                 play = getPlaylist(MediaStore.Audio.Playlists.Members.getContentUri("external", id), play);
                 if (play != null) {
+                    final Playlist previous = mPlaylists.get(play.getRef());
+                    if (previous != null) {
+                        play.setProvider(previous.getProvider());
+                    }
                     mPlaylists.put(play.getRef(), play);
-
-                    // we give to the app the new playlists when we finish polling it
+                    mPlaylistGenerations.put(id, generations.get(id));
+                    mSearchIndex.put(LocalSearchIndex.TYPE_PLAYLIST, play.getRef(), play.getName());
                     mCallback.playlistUpdated(play);
                 }
-            } while (cur.moveToNext());
-        }
-
-        if (cur != null) {
+            }
             cur.close();
         }
     }
 
-    public void fetchGenres(Uri uri) {
-        if (uri == null)
-            uri = MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI;
-        Cursor cur;
-        String[] proj = {"*"};
+    /**
+     * Reads genres from the MediaStore, with their members. Genres have no DATE_MODIFIED, the
+     * genres that changed are known from the URIs of the change notifications instead.
+     * @param ids The _ID of the genres to read, or null to read them all. The genres of these ids
+     *            that are no longer in the MediaStore are removed.
+     */
+    public void fetchGenres(Set<Long> ids) {
+        if (ids != null && ids.isEmpty()) {
+            return;
+        }
 
-        // now we poll the genre
-        cur = mContentResolver.query(uri, proj, null, null, null);
+        // Many changes: reading everything is cheaper than a huge selection
+        final Set<Long> selected = ids != null && ids.size() <= QUERY_IDS_CHUNK ? ids : null;
+        final Cursor cur = mContentResolver.query(MediaStore.Audio.Genres.EXTERNAL_CONTENT_URI,
+                new String[]{MediaStore.Audio.Genres._ID, MediaStore.Audio.Genres.NAME},
+                selected != null
+                        ? MediaStore.Audio.Genres._ID + " IN (" + TextUtils.join(",", selected) + ")"
+                        : null,
+                null, null);
+        if (cur == null) {
+            return;
+        }
 
-        if (cur != null) {
-            if (cur.moveToFirst()) {
-                final int idKey = cur.getColumnIndex(MediaStore.Audio.Genres._ID);
-                final int nameKey = cur.getColumnIndex(MediaStore.Audio.Genres.NAME);
-                do {
-                    Long id = cur.getLong(idKey);
-                    String name = cur.getString(nameKey);
-                    Genre genre = new Genre("local:genre:" + MD5(name));
-                    genre.setName(name);
-                    genre.setIsLoaded(true);
-                    getGenreSongs(MediaStore.Audio.Genres.Members.getContentUri("external", id), genre);
-                    genre.setSourceLogo(PluginService.LOGO_REF);
-                    mGenres.put(genre.getRef(), genre);
-                    mCallback.genreUpdated(genre);
-                } while (cur.moveToNext());
-            }
+        final Set<String> seen = new HashSet<>();
+        while (cur.moveToNext()) {
+            final long id = cur.getLong(0);
+            final String name = cur.getString(1);
+            Genre genre = new Genre("local:genre:" + MD5(name));
+            genre.setName(name);
+            genre.setIsLoaded(true);
+            getGenreSongs(MediaStore.Audio.Genres.Members.getContentUri("external", id), genre);
+            genre.setSourceLogo(PluginService.LOGO_REF);
+            mGenres.put(genre.getRef(), genre);
+            mGenresId.put(genre.getRef(), id);
+            seen.add(genre.getRef());
+            mCallback.genreUpdated(genre);
+        }
+        cur.close();
 
-            cur.close();
+        for (String ref : new ArrayList<>(mGenres.keySet())) {
+            if (!seen.contains(ref)
+                    && (selected == null || selected.contains(mGenresId.get(ref)))) {
+                mGenres.remove(ref);
+                mGenresId.remove(ref);
+            }
         }
     }
 
@@ -445,38 +967,6 @@ public class LocalProvider {
         }
     }
 
-    ContentObserver mSongContentObserver = new ContentObserver(mHandler) {
-        @Override
-        public void onChange(boolean self) {
-            try {
-                fetchSongs();
-            } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read songs because of a security exception", e);
-            }
-        }
-
-        @Override
-        public void onChange(boolean self, Uri uri) {
-            onChange(self);
-        }
-    };
-
-    ContentObserver mPlaylistContentObserver = new ContentObserver(mHandler) {
-        @Override
-        public void onChange(boolean self) {
-            onChange(self, null);
-        }
-
-        @Override
-        public void onChange(boolean self, Uri uri) {
-            try {
-                fetchPlaylists(null);
-            } catch (SecurityException e) {
-                Log.e(TAG, "Cannot read playlists because of a security exception", e);
-            }
-        }
-    };
-
     /**
      * @return if the provider finished polling the content
      */
@@ -507,31 +997,6 @@ public class LocalProvider {
         return MD5(playlistId);
     }
 
-    /**
-     * Get the albums by the given artist
-     *
-     * @param artist the artist
-     * @param uri    the uri of the artist
-     * @return the artist with all its albums
-     */
-    public Artist getAlbumsArtists(Artist artist, Uri uri) {
-        Cursor albums = mContentResolver.query(uri, null, null, null, null);
-
-        if (albums != null) {
-            // we only need the name of the album to generate the album local id
-            final int albumKey = albums.getColumnIndex(MediaStore.Audio.AlbumColumns.ALBUM_KEY);
-
-            if (albums.moveToFirst()) {
-                do {
-                    artist.addAlbum(PREFIX_ALBUM + getAlbumUniqueName(albums.getString(albumKey), artist.getName()));
-                } while (albums.moveToNext());
-            }
-
-            albums.close();
-        }
-        return artist;
-    }
-
     /**
      * Fetch the playlist content
      *
@@ -595,29 +1060,23 @@ public class LocalProvider {
     }
 
     /**
-     * @return returns a list of the songs
+     * @return returns a page of the songs, sorted by title
      */
     public List<Song> getSongs(int offset, int range) {
-        final ArrayList<Song> songs = new ArrayList<Song>();
-        final Collection<LocalSong> localSongs = new ArrayList<>(mSongs.values());
-
-        int index = 0;
-        for (LocalSong song : localSongs) {
-            if (index < offset) {
-                ++index;
-                continue;
-            }
-            Song s = song.getSong();
-            if (s != null) {
-                s.setSourceLogo(PluginService.LOGO_REF);
-                songs.add(s);
-            }
-
-            if (index >= offset + range) {
-                break;
-            }
+        return getSongs(offset, range, LocalSongIndex.SORT_TITLE);
+    }
 
-            ++index;
+    /**
+     * Returns a page of the songs. The order is stable until the MediaStore changes.
+     * @param offset The index of the first song
+     * @param range The maximum number of songs
+     * @param sort One of the LocalSongIndex.SORT_ constants
+     * @return The songs
+     */
+    public List<Song> getSongs(int offset, int range, int sort) {
+        final List<Song> songs = mSongIndex.getPage(sort, offset, range);
+        for (Song s : songs) {
+            s.setSourceLogo(PluginService.LOGO_REF);
         }
         return songs;
     }
@@ -686,7 +1145,6 @@ public class LocalProvider {
                 s = lS.getSong();
                 if (s != null) {
                     s.setSourceLogo(PluginService.LOGO_REF);
-                    mCallback.artistUpdated(mArtists.get(s.getArtist()));
                 }
             }
         } catch (Exception e) {
@@ -713,6 +1171,29 @@ public class LocalProvider {
     }
 
 
+    /**
+     * Looks up a song, album or artist of the library, without notifying the app
+     * @param ref The reference of the entity
+     * @return The entity, or null if the library has none with that reference
+     */
+    BoundEntity getEntity(String ref) {
+        if (ref == null) {
+            return null;
+        } else if (ref.startsWith(PREFIX_SONG)) {
+            final LocalSong localSong = mSongs.get(ref);
+            final Song song = localSong != null ? localSong.getSong() : null;
+            if (song != null) {
+                song.setSourceLogo(PluginService.LOGO_REF);
+            }
+            return song;
+        } else if (ref.startsWith(PREFIX_ALBUM)) {
+            return getAlbum(ref);
+        } else if (ref.startsWith(PREFIX_ARTIST)) {
+            return getArtist(ref);
+        }
+        return null;
+    }
+
     /**
      * @param ref the unique reference of the LocalSong wanted
      * @return the LocalSong wanted
@@ -817,6 +1298,7 @@ public class LocalProvider {
         mContentResolver.delete(MediaStore.Audio.Playlists.EXTERNAL_CONTENT_URI, where, whereVal);
 
         mPlaylists.remove(playlistRef);
+        mSearchIndex.remove(LocalSearchIndex.TYPE_PLAYLIST, playlistRef);
         mCallback.playlistRemoved(playlistRef);
 
         // Errors aren't supported for now
@@ -840,6 +1322,7 @@ public class LocalProvider {
 
         Playlist playlist = mPlaylists.get(playlistRef);
         playlist.setName(title);
+        mSearchIndex.put(LocalSearchIndex.TYPE_PLAYLIST, playlistRef, title);
 
         mCallback.playlistUpdated(playlist);
 
@@ -938,6 +1421,7 @@ public class LocalProvider {
             pl.setName(playlistName);
             pl.setIsLoaded(true);
             mPlaylists.put(ref, pl);
+            mSearchIndex.put(LocalSearchIndex.TYPE_PLAYLIST, ref, playlistName);
             mCallback.playlistUpdated(pl);
 
             return ref;
@@ -945,44 +1429,134 @@ public class LocalProvider {
     }
 
     /**
-     * Plays the given song
+     * Plays the given song. If the song has been prefetched, its decoder is already primed and
+     * playback starts right away. If the song is the one we already moved on to at the end of
+     * the previous song, playback just goes on.
      *
      * @param ref the unique reference of the song
      */
     public void playSong(String ref) {
-        // Pause the current song (if any), without notifying the app
-        pause(false);
+        synchronized (this) {
+            if (mCurrent != null && ref.equals(mAutoAdvancedRef)) {
+                // We're already playing it, the app is catching up with us
+                mAutoAdvancedRef = null;
+            } else {
+                mAutoAdvancedRef = null;
+                mMixOutput = null;
+                if (mCurrent != null) {
+                    mCurrent.release();
+                    mCurrent = null;
+                }
 
-        mCurrentSong = null;
-        mChangeMusic = true;//we say that we change music
-        mCurrentSong = getLocalSong(ref);//we set the new song
+                if (mNext != null && isDecoderFor(mNext, ref)) {
+                    mCurrent = mNext;
+                    mNext = null;
+                } else {
+                    if (mNext != null) {
+                        mNext.release();
+                        mNext = null;
+                    }
+                    mCurrent = openDecoder(ref);
+                }
 
-        synchronized (this) {
-            // We reset the decoder for this song
-            if (mDecoder != null) {
-                mDecoder.stop();
-                mDecoder.release();
+                // Drop the audio of the previous song that wasn't sent yet
+                mCallback.musicFlush();
             }
-            getCurrentDecoder();
-            mPendingOutIndex = -1;
+
+            mPaused = false;
+            mIsEOS = false;
         }
 
-        mPaused = false;
-        mIsEOS = false;
+        if (mCurrent == null) {
+            // The song can't be decoded, move on to the next one
+            Log.e(TAG, "Cannot play " + ref);
+            mCallback.songFinished();
+            return;
+        }
 
         // we resume the decoder thread
         synchronized (mAudioPushRunnable) {
             mAudioPushRunnable.notify();
-            mPendingOutIndex = -1;
         }
 
-
         mCallback.songPlaying();
+    }
 
+    /**
+     * Prepares the playback of a song: the decoder is opened and primed, so that the song starts
+     * without any gap when the current one ends.
+     *
+     * @param ref the unique reference of the song
+     */
+    public void prefetchSong(String ref) {
+        synchronized (this) {
+            if (mNext != null && isDecoderFor(mNext, ref)) {
+                return;
+            }
+        }
+
+        mCrossfadeUs = TimeUnit.MILLISECONDS.toMicros(getCrossfadeDuration());
+
+        // Opening and priming may take a while, don't block the playback meanwhile
+        final TrackDecoder next = openDecoder(ref);
+        if (next == null) {
+            return;
+        }
+        next.prime(PRIME_TIMEOUT_US);
+
+        synchronized (this) {
+            if (mNext != null) {
+                mNext.release();
+            }
+            mNext = next;
+        }
+    }
+
+    /**
+     * @return The time, in milliseconds, the app should call prefetchSong() before the end of
+     * the current song. This includes the crossfade duration, as the next song starts playing
+     * before the end of the current one.
+     */
+    public long getPrefetchDelay() {
+        return PREFETCH_DELAY + getCrossfadeDuration();
+    }
+
+    /**
+     * @return The crossfade duration set by the user, in milliseconds. 0 means gapless playback.
+     */
+    private long getCrossfadeDuration() {
+        // The settings are written by the app process
+        @SuppressWarnings("deprecation")
+        final SharedPreferences prefs = mContext.getSharedPreferences(SettingsKeys.PREF_SETTINGS,
+                Context.MODE_MULTI_PROCESS);
+        try {
+            return TimeUnit.SECONDS.toMillis(Integer.parseInt(
+                    prefs.getString(SettingsKeys.KEY_CROSSFADE_DURATION, "0")));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private TrackDecoder openDecoder(String ref) {
+        final LocalSong song = getLocalSong(ref);
+        if (song == null) {
+            return null;
+        }
+
+        final TrackDecoder decoder = new TrackDecoder(song);
+        if (!decoder.open(mContext)) {
+            decoder.release();
+            return null;
+        }
+        return decoder;
+    }
+
+    private static boolean isDecoderFor(TrackDecoder decoder, String ref) {
+        return ref.equals(decoder.getSong().getSong().getRef());
     }
 
     public void pause(boolean notify) {
-        if (mDecoder != null && !mPaused) {
+        if (mCurrent != null && !mPaused) {
             mPaused = true;
             if (notify) {
                 mCallback.songPaused();
@@ -991,12 +1565,15 @@ public class LocalProvider {
     }
 
     public void resume() {
-        if (mDecoder != null && mPaused) {
+        if (mCurrent != null && mPaused) {
             mPaused = false;
-            if (mIsEOS && mCurrentSong != null) {
-                playSong(mCurrentSong.getSong().getRef());
-            } else if (mCurrentSong != null) {
-                mDecoder.flush();
+            if (mIsEOS) {
+                playSong(mCurrent.getSong().getSong().getRef());
+            } else {
+                synchronized (this) {
+                    mCurrent.flush();
+                    mMixOutput = null;
+                }
 
                 synchronized (mAudioPushRunnable) {
                     mAudioPushRunnable.notifyAll();
@@ -1006,66 +1583,23 @@ public class LocalProvider {
         }
     }
 
-    /**
-     * Sets a new decoder if the music changed
-     */
-    private void getCurrentDecoder() {
+    public void seekTo(long timeMs) {
         synchronized (this) {
-            if (mChangeMusic) {
-                mChangeMusic = false;
-                mExtractor = new MediaExtractor();
-                try {
-                    mExtractor.setDataSource(mContext, mCurrentSong.getURI(), null);
-                } catch (Exception e) {
-                    Log.d("LocalProvider", "Data source error", e);
-                    return;
-                }
-
-                // if there is a track to play, use it as format info
-                if (mExtractor.getTrackCount() > 0) {
-                    mFormat = mExtractor.getTrackFormat(0);
-                } else {
-                    Log.e(TAG, "No track in the source file");
-                    return;
-                }
-
-                // we setup the codec with the type we got
-                try {
-                    mDecoder = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
-                } catch (Exception e) {
-                    // SDK > 19, an IOException might be thrown
-                    Log.e(TAG, "Unable to create decoder", e);
-                    return;
-                }
-                mDecoder.configure(mFormat, null, null, 0);
-
-                // get the sample rate to configure AudioTrack
-                Log.d(TAG, "Sample rate: " + mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-                mExtractor.selectTrack(0);
-
-                // we get the buffer information to get notified of changes
-                mInfo = new MediaCodec.BufferInfo();
-
-                // we start decoding
-                mDecoder.start();
-                mInputBuffers = mDecoder.getInputBuffers();
-                mOutputBuffers = mDecoder.getOutputBuffers();
+            if (mCurrent != null) {
+                mCurrent.seekTo(timeMs * 1000);
+                mMixOutput = null;
+                mCallback.musicFlush();
             }
         }
     }
 
-    public void seekTo(long timeMs) {
-        mExtractor.seekTo(timeMs * 1000, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
-    }
-
     private final Thread mAudioPushRunnable = new Thread() {
         public void run() {
             mIsEOS = false;
-            byte[] outArray = new byte[8192];
 
             while (!isInterrupted()) {
                 synchronized (mAudioPushRunnable) {
-                    if (mIsEOS || mCurrentSong == null || mPaused) {
+                    if (mIsEOS || mCurrent == null || mPaused) {
                         try {
                             mAudioPushRunnable.wait();
                         } catch (InterruptedException e) {
@@ -1073,131 +1607,20 @@ public class LocalProvider {
                         }
                     }
 
+                    boolean progress = true;
                     synchronized (LocalProvider.this) {
                         // if we did not finish the file
-                        if (!mIsEOS && !mPaused && mDecoder != null) {
-
-                            // Input decoding
-                            int inIndex = -2;
-                            try {
-                                // Try to dequeue an output buffer (timeout 30ms)
-                                inIndex = mDecoder.dequeueInputBuffer(TimeUnit.MILLISECONDS.toMicros(30));
-                            } catch (IllegalStateException ignored) {
-                            }
-
-                            // if we have a buffer available
-                            if (inIndex >= 0) {
-                                // we get the buffer
-                                ByteBuffer buffer = mInputBuffers[inIndex];
-
-                                // we retrieve the current encoded sample size
-                                int sampleSize;
-                                try {
-                                    sampleSize = mExtractor.readSampleData(buffer, 0);
-                                } catch (IllegalArgumentException e) {
-                                    Log.w(TAG, "Got illegal argument while reading sample data from buffer", e);
-                                    sampleSize = 0;
-                                }
-
-                                if (sampleSize < 0) {
-                                    // we are at the end of the file
-                                    mDecoder.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                                    mIsEOS = true;
-                                    mCallback.songFinished();
-                                } else if (sampleSize > 0) {
-                                    //we queue the encoded sample in the decoder
-                                    try {
-                                        mDecoder.queueInputBuffer(inIndex, 0, sampleSize, 0, 0);
-                                        mExtractor.advance();
-                                    } catch (Exception e) {
-                                        Log.d(TAG, e.toString());
-                                        continue;
-                                    }
-                                } else {
-                                    // We already error'd out when reading, so if we can't advance,
-                                    // assume song is EOS
-                                    try {
-                                        mExtractor.advance();
-                                    } catch(Exception e) {
-                                        mIsEOS = true;
-                                        mCallback.songFinished();
-                                    }
-                                }
-                            }
-
-                            // Output processing
-                            int outIndex = -1;
-                            if (mPendingOutIndex >= 0) {
-                                // We have a pending buffer, we'll dequeue later, but for now try
-                                // to write the sample again
-                                outIndex = MediaCodec.INFO_TRY_AGAIN_LATER;
-                            } else {
-                                try {
-                                    // Try to dequeue an output buffer (timeout 30ms)
-                                    outIndex = mDecoder.dequeueOutputBuffer(mInfo, TimeUnit.MILLISECONDS.toMicros(30));
-                                } catch (IllegalStateException ignored) {
-                                }
-                            }
-
-                            switch (outIndex) {//we act according to the decoder output
-                                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                                    mOutputBuffers = mDecoder.getOutputBuffers();
-                                    break;
-
-                                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                                    mFormat = mDecoder.getOutputFormat();
-                                    break;
-
-                                case MediaCodec.INFO_TRY_AGAIN_LATER:
-                                    // No buffer is available. This might be due to the upstream
-                                    // app buffers being full and returning 0 on write operations.
-                                    // We ping it and retry to write what we had.
-                                    if (mPendingOutIndex >= 0) {
-                                        int written = mCallback.musicDelivery(outArray, mPendingSize,
-                                                mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
-                                                mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-
-                                        if (written > 0 || written == -1) {
-                                            try {
-                                                // We don't need this buffer anymore
-                                                mDecoder.releaseOutputBuffer(mPendingOutIndex, true);
-                                            } catch (IllegalStateException ignored) {
-                                            }
-                                            mPendingOutIndex = -1;
-                                        }
-                                    }
-                                    break;
-
-                                default:
-                                    ByteBuffer out = mOutputBuffers[outIndex];
-                                    int size = mInfo.size;
-                                    if (size > 0) {
-                                        if (outArray.length < mInfo.offset + mInfo.size) {
-                                            outArray = new byte[mInfo.offset + mInfo.size];
-                                        }
-
-                                        out.position(mInfo.offset);
-                                        out.limit(mInfo.offset + mInfo.size);
-                                        out.get(outArray, 0, mInfo.size);
-
-                                        // We deliver the array
-                                        int written = mCallback.musicDelivery(outArray, size,
-                                                mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT),
-                                                mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
-
-                                        if (written > 0) {
-                                            try {
-                                                // We don't need this buffer anymore
-                                                mDecoder.releaseOutputBuffer(outIndex, true);
-                                            } catch (IllegalStateException ignored) {
-                                            }
-                                        } else {
-                                            mPendingOutIndex = outIndex;
-                                            mPendingSize = mInfo.size;
-                                        }
-                                    }
-                                    break;
-                            }
+                        if (!mIsEOS && !mPaused && mCurrent != null) {
+                            progress = decodeStep();
+                        }
+                    }
+
+                    if (!progress) {
+                        // The service couldn't take the data, don't spin
+                        try {
+                            mAudioPushRunnable.wait(NO_PROGRESS_WAIT);
+                        } catch (InterruptedException e) {
+                            Log.e(TAG, e.getMessage());
                         }
                     }
                 }
@@ -1205,82 +1628,157 @@ public class LocalProvider {
         }
     };
 
-    public void startSearch(final String query) {
-        Log.d(TAG, "Starting search for " + query);
+    /**
+     * Decodes and delivers one buffer of the current song. Must be called with the provider lock
+     * held.
+     *
+     * @return false if there was data to deliver but the service didn't take any of it
+     */
+    private boolean decodeStep() {
+        // Finish delivering the last mixed chunk first
+        if (mMixOutput != null) {
+            final int written = deliver(mMixOutput, mCurrent);
+            if (mMixOutput.hasRemaining()) {
+                return written > 0;
+            }
+            mMixOutput = null;
+        }
 
-        final Thread searchThread = new Thread() {
-            public void run() {
-                mSearchResult = new SearchResult(query);
+        final ByteBuffer out = mCurrent.getOutput(DECODE_TIMEOUT_US);
+        if (out != null) {
+            if (shouldCrossfade()) {
+                mixWithNext(out);
+                mCurrent.releaseOutput();
+                return true;
+            }
 
-                final List<String> songsList = new ArrayList<>();
-                final List<String> albumList = new ArrayList<>();
-                final List<String> playlistList = new ArrayList<>();
-                final List<String> artistList = new ArrayList<>();
+            final int written = deliver(out, mCurrent);
+            mCurrent.releaseOutput();
+            return written > 0;
+        } else if (mCurrent.isFinished()) {
+            onCurrentFinished();
+        }
 
-                final String queryUpper = query.toUpperCase();
+        return true;
+    }
 
-                for (LocalSong song : mSongs.values()) {
-                    String title = song.getSong().getTitle();
+    private int deliver(ByteBuffer data, TrackDecoder decoder) {
+        return mCallback.musicDelivery(data, decoder.getChannelCount(), decoder.getSampleRate());
+    }
 
-                    if (title != null) {
-                        if (title.equalsIgnoreCase(query)) {
-                            songsList.add(0, song.getSong().getRef());
-                        } else if (title.toUpperCase().contains(queryUpper)) {
-                            songsList.add(song.getSong().getRef());
-                        }
-                    }
-                }
+    /**
+     * Called when all the data of the current song has been delivered. If the next song has been
+     * prefetched, we move on to it right away so that there's no gap between them; the app will
+     * confirm it with playSong() when it gets notified that the song finished.
+     */
+    private void onCurrentFinished() {
+        if (mNext != null) {
+            mCurrent.release();
+            mCurrent = mNext;
+            mNext = null;
+            mAutoAdvancedRef = mCurrent.getSong().getSong().getRef();
+        } else {
+            mIsEOS = true;
+        }
 
-                for (Album album : mAlbums.values()) {
-                    String name = album.getName();
+        mCallback.songFinished();
+    }
 
-                    if (name != null) {
-                        if (name.equalsIgnoreCase(query)) {
-                            albumList.add(0, album.getRef());
-                        } else if (name.toUpperCase().contains(queryUpper)) {
-                            albumList.add(album.getRef());
-                        }
-                    }
-                }
-                for (Playlist playlist : mPlaylists.values()) {
-                    String name = playlist.getName();
-
-                    if (name != null) {
-                        if (name.equalsIgnoreCase(query)) {
-                            playlistList.add(0, playlist.getRef());
-                        } else if (name.toUpperCase().contains(queryUpper)) {
-                            playlistList.add(playlist.getRef());
-                        }
-                    }
-                }
-                for (Artist artist : mArtists.values()) {
-                    String name = artist.getName();
-
-                    if (name != null) {
-                        if (name.equalsIgnoreCase(query)) {
-                            artistList.add(0, artist.getRef());
-                        } else if (name.toUpperCase().contains(queryUpper)) {
-                            artistList.add(artist.getRef());
-                        }
+    /**
+     * @return true if the end of the current song should be mixed with the beginning of the next
+     */
+    private boolean shouldCrossfade() {
+        if (mCrossfadeUs <= 0 || mNext == null
+                || mNext.getSampleRate() != mCurrent.getSampleRate()
+                || mNext.getChannelCount() != mCurrent.getChannelCount()) {
+            return false;
+        }
+
+        final long remaining = mCurrent.getRemainingUs();
+        return remaining >= 0 && remaining < mCrossfadeUs;
+    }
+
+    /**
+     * Mixes an output buffer of the current song with the same amount of data from the next song,
+     * fading the current song out and the next one in. The result is stored in mMixOutput.
+     */
+    private void mixWithNext(ByteBuffer out) {
+        final int length = out.remaining();
+        if (mMixCurrent == null || mMixCurrent.length < length) {
+            mMixCurrent = new byte[length];
+            mMixNext = new byte[length];
+        }
+
+        out.get(mMixCurrent, 0, length);
+        final int read = mNext.read(mMixNext, 0, length, DECODE_TIMEOUT_US);
+        Arrays.fill(mMixNext, read, length, (byte) 0);
+
+        // Fade linearly over the chunk, from the gain at its start to the gain at its end
+        final int channels = mCurrent.getChannelCount();
+        final int frames = length / (2 * channels);
+        final long chunkUs = frames * 1000000L / mCurrent.getSampleRate();
+        final long remaining = mCurrent.getRemainingUs();
+        final float startGain = Math.min(1.0f, (float) remaining / mCrossfadeUs);
+        final float endGain = Math.max(0.0f, (float) (remaining - chunkUs) / mCrossfadeUs);
+
+        for (int frame = 0; frame < frames; ++frame) {
+            final float gain = startGain + (endGain - startGain) * frame / frames;
+            for (int channel = 0; channel < channels; ++channel) {
+                final int i = (frame * channels + channel) * 2;
+                final int current = (short) ((mMixCurrent[i] & 0xff) | (mMixCurrent[i + 1] << 8));
+                final int next = (short) ((mMixNext[i] & 0xff) | (mMixNext[i + 1] << 8));
+                int mixed = (int) (current * gain + next * (1.0f - gain));
+                mixed = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, mixed));
+                mMixCurrent[i] = (byte) mixed;
+                mMixCurrent[i + 1] = (byte) (mixed >> 8);
+            }
+        }
+
+        mMixOutput = ByteBuffer.wrap(mMixCurrent, 0, frames * 2 * channels);
+    }
+
+    /**
+     * Starts a search over the local library. Searches run one at a time on a dedicated thread
+     * and use the search index; a new query supersedes any search that hasn't completed yet.
+     *
+     * @param query The query
+     */
+    public void startSearch(final String query) {
+        Log.d(TAG, "Starting search for " + query);
+
+        final int generation = mSearchGeneration.incrementAndGet();
+
+        synchronized (mSearchExecutor) {
+            if (mPendingSearch != null) {
+                mPendingSearch.cancel(false);
+            }
+
+            mPendingSearch = mSearchExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    if (generation != mSearchGeneration.get()) {
+                        // A newer query came in meanwhile
+                        return;
                     }
-                }
 
-                if (mSearchResult.getQuery().equals(query)) {
-                    Log.d(TAG, "Sending result size: "
-                            + (songsList.size() + albumList.size() + artistList.size() + playlistList.size()));
+                    final SearchResult result = new SearchResult(query);
+                    result.setSongsList(mSearchIndex.search(LocalSearchIndex.TYPE_SONG, query));
+                    result.setAlbumsList(mSearchIndex.search(LocalSearchIndex.TYPE_ALBUM, query));
+                    result.setArtistList(mSearchIndex.search(LocalSearchIndex.TYPE_ARTIST, query));
+                    result.setPlaylistList(mSearchIndex.search(LocalSearchIndex.TYPE_PLAYLIST, query));
 
-                    mSearchResult.setSongsList(songsList);
-                    mSearchResult.setAlbumsList(albumList);
-                    mSearchResult.setArtistList(artistList);
-                    mSearchResult.setPlaylistList(playlistList);
+                    if (generation == mSearchGeneration.get()) {
+                        Log.d(TAG, "Sending result size: " + (result.getSongsList().size()
+                                + result.getAlbumsList().size() + result.getArtistList().size()
+                                + result.getPlaylistList().size()));
 
-                    mCallback.searchFinished(mSearchResult);
-                } else {
-                    Log.d(TAG, "Query results dumped - outdated");
+                        mCallback.searchFinished(result);
+                    } else {
+                        Log.d(TAG, "Query results dumped - outdated");
+                    }
                 }
-            }
-        };
-        searchThread.start();
+            });
+        }
     }
 
 
@@ -1291,6 +1789,11 @@ public class LocalProvider {
         private Song mSong;
         private long mId;
         private long mAlbumId;
+        private long mArtistId;
+        private String mTitleKey;
+        private String mArtistKey;
+        private String mAlbumKey;
+        private long mDateAdded;
 
         public LocalSong(Song song, long id, long albumId) {
             mSong = song;
@@ -1298,6 +1801,40 @@ public class LocalProvider {
             mAlbumId = albumId;
         }
 
+        /**
+         * Sets the MediaStore collation keys used to sort the songs
+         */
+        void setSortKeys(String titleKey, String artistKey, String albumKey, long dateAdded) {
+            mTitleKey = titleKey;
+            mArtistKey = artistKey;
+            mAlbumKey = albumKey;
+            mDateAdded = dateAdded;
+        }
+
+        void setArtistId(long artistId) {
+            mArtistId = artistId;
+        }
+
+        long getArtistId() {
+            return mArtistId;
+        }
+
+        String getTitleKey() {
+            return mTitleKey;
+        }
+
+        String getArtistKey() {
+            return mArtistKey;
+        }
+
+        String getAlbumKey() {
+            return mAlbumKey;
+        }
+
+        long getDateAdded() {
+            return mDateAdded;
+        }
+
         /**
          * @return the id of the song
          */
@@ -1332,10 +1869,25 @@ public class LocalProvider {
      * Callback interface to communicate with the service
      */
     public interface LocalCallback {
-        int musicDelivery(byte[] data, int frames, int channels, int sampleRate);
+        /**
+         * Delivers decoded PCM data. The position of data is advanced by the number of bytes
+         * accepted, which may be less than the remaining bytes if the output is full.
+         * @return The number of bytes accepted
+         */
+        int musicDelivery(ByteBuffer data, int channels, int sampleRate);
+
+        /**
+         * Discards the audio delivered so far that hasn't been played yet
+         */
+        void musicFlush();
         void artistUpdated(final Artist artist);
         void albumUpdated(final Album album);
         void songUpdated(final Song song);
+
+        /**
+         * Called when songs, albums or artists are no longer in the library
+         */
+        void entitiesRemoved(final List<String> refs);
         void playlistUpdated(final Playlist playlist);
         void playlistRemoved(final String playlistRef);
         void genreUpdated(final Genre genre);
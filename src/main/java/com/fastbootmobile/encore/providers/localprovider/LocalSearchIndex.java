@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import com.fastbootmobile.encore.utils.Utils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Token index over the names of the local library entities, used to answer search queries
+ * without scanning the whole library. Names are normalized (lower case, accents folded,
+ * punctuation removed) and split into words; a query matches an entity when each word of the
+ * query is a prefix of one of the words of the entity name.
+ */
+class LocalSearchIndex {
+    static final int TYPE_SONG = 0;
+    static final int TYPE_ALBUM = 1;
+    static final int TYPE_ARTIST = 2;
+    static final int TYPE_PLAYLIST = 3;
+    private static final int TYPE_COUNT = 4;
+
+    private final TypeIndex[] mIndexes;
+    private final ReadWriteLock mLock;
+
+    /**
+     * Index of one type of entity
+     */
+    private static class TypeIndex {
+        // Word -> references of the entities containing that word
+        final TreeMap<String, Set<String>> words = new TreeMap<>();
+        // Reference -> normalized name
+        final Map<String, String> names = new HashMap<>();
+    }
+
+    LocalSearchIndex() {
+        mIndexes = new TypeIndex[TYPE_COUNT];
+        for (int i = 0; i < TYPE_COUNT; ++i) {
+            mIndexes[i] = new TypeIndex();
+        }
+        mLock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Normalizes a string for indexing or querying: lower case, no accents, and words separated
+     * by a single space.
+     *
+     * @param input The string to normalize
+     * @return The normalized string, or an empty string if input is null
+     */
+    static String normalize(String input) {
+        return Utils.normalizeForSearch(input);
+    }
+
+    private static String[] split(String normalized) {
+        if (normalized.isEmpty()) {
+            return new String[0];
+        }
+        return normalized.split(" ");
+    }
+
+    /**
+     * Adds or updates an entity in the index
+     *
+     * @param type The type of the entity
+     * @param ref  The reference of the entity
+     * @param name The displayed name of the entity
+     */
+    void put(int type, String ref, String name) {
+        if (ref == null) {
+            return;
+        }
+
+        final String normalized = normalize(name);
+        final TypeIndex index = mIndexes[type];
+
+        mLock.writeLock().lock();
+        try {
+            final String previous = index.names.get(ref);
+            if (normalized.equals(previous)) {
+                return;
+            }
+
+            if (previous != null) {
+                removeWords(index, ref, previous);
+            }
+
+            index.names.put(ref, normalized);
+            for (String word : split(normalized)) {
+                Set<String> refs = index.words.get(word);
+                if (refs == null) {
+                    refs = new HashSet<>();
+                    index.words.put(word, refs);
+                }
+                refs.add(ref);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes an entity from the index
+     *
+     * @param type The type of the entity
+     * @param ref  The reference of the entity
+     */
+    void remove(int type, String ref) {
+        final TypeIndex index = mIndexes[type];
+
+        mLock.writeLock().lock();
+        try {
+            final String previous = index.names.remove(ref);
+            if (previous != null) {
+                removeWords(index, ref, previous);
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    private static void removeWords(TypeIndex index, String ref, String normalized) {
+        for (String word : split(normalized)) {
+            Set<String> refs = index.words.get(word);
+            if (refs != null) {
+                refs.remove(ref);
+                if (refs.isEmpty()) {
+                    index.words.remove(word);
+                }
+            }
+        }
+    }
+
+    /**
+     * Looks up the entities of the provided type matching the query. Results are ranked: exact
+     * name matches first, then names starting with the query, then other matches, shorter names
+     * first within each group.
+     *
+     * @param type  The type of entities to look for
+     * @param query The query, as typed by the user
+     * @return The references of the matching entities, best match first
+     */
+    List<String> search(int type, String query) {
+        final String normalizedQuery = normalize(query);
+        final String[] queryWords = split(normalizedQuery);
+        if (queryWords.length == 0) {
+            return Collections.emptyList();
+        }
+
+        final TypeIndex index = mIndexes[type];
+        final List<String> output;
+        final Map<String, String> names = new HashMap<>();
+
+        mLock.readLock().lock();
+        try {
+            Set<String> candidates = null;
+
+            for (String word : queryWords) {
+                final Set<String> matches = new HashSet<>();
+                for (Set<String> refs : index.words.subMap(word, true,
+                        word + Character.MAX_VALUE, false).values()) {
+                    matches.addAll(refs);
+                }
+
+                if (candidates == null) {
+                    candidates = matches;
+                } else {
+                    candidates.retainAll(matches);
+                }
+
+                if (candidates.isEmpty()) {
+                    return Collections.emptyList();
+                }
+            }
+
+            output = new ArrayList<>(candidates);
+            for (String ref : output) {
+                names.put(ref, index.names.get(ref));
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        Collections.sort(output, new Comparator<String>() {
+            @Override
+            public int compare(String lhs, String rhs) {
+                final String lhsName = names.get(lhs);
+                final String rhsName = names.get(rhs);
+
+                int diff = rank(lhsName, normalizedQuery) - rank(rhsName, normalizedQuery);
+                if (diff == 0) {
+                    diff = lhsName.length() - rhsName.length();
+                }
+                if (diff == 0) {
+                    diff = lhsName.compareTo(rhsName);
+                }
+                return diff;
+            }
+        });
+
+        return output;
+    }
+
+    private static int rank(String name, String query) {
+        if (name.equals(query)) {
+            return 0;
+        } else if (name.startsWith(query)) {
+            return 1;
+        } else {
+            return 2;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import com.fastbootmobile.encore.model.Song;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Sorted, array-backed views of the local songs, so that pages of the library are served in
+ * O(range) and in a stable order. Each sort order is built on first use and kept until the songs
+ * change, which callers signal with {@link #invalidate()}.
+ */
+class LocalSongIndex {
+    static final int SORT_TITLE = 0;
+    static final int SORT_ARTIST = 1;
+    static final int SORT_ALBUM = 2;
+    static final int SORT_DATE_ADDED = 3;
+    private static final int SORT_COUNT = 4;
+
+    private final Map<String, LocalProvider.LocalSong> mSongs;
+    private final LocalProvider.LocalSong[][] mSorted;
+
+    private static final Comparator<LocalProvider.LocalSong> COMPARATOR_TITLE
+            = new Comparator<LocalProvider.LocalSong>() {
+        @Override
+        public int compare(LocalProvider.LocalSong lhs, LocalProvider.LocalSong rhs) {
+            int result = compareKeys(lhs.getTitleKey(), rhs.getTitleKey());
+            if (result == 0) {
+                result = compareKeys(lhs.getSong().getRef(), rhs.getSong().getRef());
+            }
+            return result;
+        }
+    };
+
+    private static final Comparator<LocalProvider.LocalSong> COMPARATOR_ARTIST
+            = new Comparator<LocalProvider.LocalSong>() {
+        @Override
+        public int compare(LocalProvider.LocalSong lhs, LocalProvider.LocalSong rhs) {
+            int result = compareKeys(lhs.getArtistKey(), rhs.getArtistKey());
+            if (result == 0) {
+                result = compareKeys(lhs.getAlbumKey(), rhs.getAlbumKey());
+            }
+            if (result == 0) {
+                result = COMPARATOR_TITLE.compare(lhs, rhs);
+            }
+            return result;
+        }
+    };
+
+    private static final Comparator<LocalProvider.LocalSong> COMPARATOR_ALBUM
+            = new Comparator<LocalProvider.LocalSong>() {
+        @Override
+        public int compare(LocalProvider.LocalSong lhs, LocalProvider.LocalSong rhs) {
+            int result = compareKeys(lhs.getAlbumKey(), rhs.getAlbumKey());
+            if (result == 0) {
+                result = COMPARATOR_TITLE.compare(lhs, rhs);
+            }
+            return result;
+        }
+    };
+
+    // Most recent first
+    private static final Comparator<LocalProvider.LocalSong> COMPARATOR_DATE_ADDED
+            = new Comparator<LocalProvider.LocalSong>() {
+        @Override
+        public int compare(LocalProvider.LocalSong lhs, LocalProvider.LocalSong rhs) {
+            if (lhs.getDateAdded() != rhs.getDateAdded()) {
+                return lhs.getDateAdded() > rhs.getDateAdded() ? -1 : 1;
+            }
+            return COMPARATOR_TITLE.compare(lhs, rhs);
+        }
+    };
+
+    /**
+     * @param songs The songs of the provider, by reference. Must be safe to iterate while it is
+     *              being modified.
+     */
+    LocalSongIndex(Map<String, LocalProvider.LocalSong> songs) {
+        mSongs = songs;
+        mSorted = new LocalProvider.LocalSong[SORT_COUNT][];
+    }
+
+    /**
+     * Drops the sorted views, to be called when the songs changed
+     */
+    synchronized void invalidate() {
+        Arrays.fill(mSorted, null);
+    }
+
+    /**
+     * Returns a page of songs
+     * @param sort One of the SORT_ constants
+     * @param offset The index of the first song
+     * @param range The maximum number of songs to return
+     * @return The songs, empty past the end of the library
+     */
+    List<Song> getPage(int sort, int offset, int range) {
+        final LocalProvider.LocalSong[] sorted = getSorted(sort);
+        if (offset < 0 || offset >= sorted.length || range <= 0) {
+            return Collections.emptyList();
+        }
+
+        // range is often Integer.MAX_VALUE to get everything, don't overflow
+        final int end = (int) Math.min((long) offset + range, sorted.length);
+        final List<Song> page = new ArrayList<>(end - offset);
+        for (int i = offset; i < end; ++i) {
+            page.add(sorted[i].getSong());
+        }
+        return page;
+    }
+
+    private synchronized LocalProvider.LocalSong[] getSorted(int sort) {
+        if (sort < 0 || sort >= SORT_COUNT) {
+            throw new IllegalArgumentException("Unknown sort order " + sort);
+        }
+
+        LocalProvider.LocalSong[] sorted = mSorted[sort];
+        if (sorted == null) {
+            final List<LocalProvider.LocalSong> songs = new ArrayList<>(mSongs.size());
+            for (LocalProvider.LocalSong song : mSongs.values()) {
+                if (song.getSong() != null) {
+                    songs.add(song);
+                }
+            }
+
+            sorted = songs.toArray(new LocalProvider.LocalSong[songs.size()]);
+            Arrays.sort(sorted, getComparator(sort));
+            mSorted[sort] = sorted;
+        }
+        return sorted;
+    }
+
+    private static Comparator<LocalProvider.LocalSong> getComparator(int sort) {
+        switch (sort) {
+            case SORT_ARTIST:
+                return COMPARATOR_ARTIST;
+            case SORT_ALBUM:
+                return COMPARATOR_ALBUM;
+            case SORT_DATE_ADDED:
+                return COMPARATOR_DATE_ADDED;
+            case SORT_TITLE:
+            default:
+                return COMPARATOR_TITLE;
+        }
+    }
+
+    /**
+     * Compares MediaStore sort keys, the missing ones last
+     */
+    private static int compareKeys(String lhs, String rhs) {
+        if (lhs == null) {
+            return rhs == null ? 0 : 1;
+        } else if (rhs == null) {
+            return -1;
+        }
+        return lhs.compareTo(rhs);
+    }
+}
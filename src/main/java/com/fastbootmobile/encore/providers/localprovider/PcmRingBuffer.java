@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer of PCM data, between the decoder thread
+ * and the thread writing to the audio socket. The decoder copies its output buffers directly
+ * into the ring, and the writer sends slices of the backing array to the socket without any
+ * other copy. Each side only wakes the other one up when it is actually waiting.
+ *
+ * A format change is queued along with the data: the writer is told about it when it reaches
+ * the position at which it was queued.
+ */
+class PcmRingBuffer {
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    // Positions are absolute byte counts; only the producer moves mWritePos and only the consumer
+    // moves mReadPos.
+    private volatile long mWritePos;
+    private volatile long mReadPos;
+    // Data before this position has been flushed and must be skipped by the consumer
+    private volatile long mFlushPos;
+
+    // Pending format change, applied when the consumer reaches mFormatPos
+    private volatile long mFormatPos = -1;
+    private volatile int mFormatChannels;
+    private volatile int mFormatRate;
+
+    private volatile Thread mWaitingProducer;
+    private volatile Thread mWaitingConsumer;
+
+    /**
+     * @param capacity The capacity of the ring, in bytes. Rounded up to a power of two.
+     */
+    PcmRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 1024) - 1) << 1;
+        mBuffer = new byte[size];
+        mMask = size - 1;
+    }
+
+    /**
+     * @return The backing array, to be used with {@link #getReadOffset()}
+     */
+    byte[] array() {
+        return mBuffer;
+    }
+
+    // Producer side
+
+    /**
+     * Copies as much as possible of the remaining bytes of src into the ring. If the ring is full,
+     * waits up to timeoutMs for the consumer to free some space.
+     *
+     * @param src       The data to copy. Its position is advanced by the number of bytes copied.
+     * @param timeoutMs The maximum time to wait for space, in milliseconds
+     * @return The number of bytes copied
+     */
+    int write(ByteBuffer src, long timeoutMs) {
+        int free = awaitWritable(timeoutMs);
+        final int length = Math.min(free, src.remaining());
+        if (length == 0) {
+            return 0;
+        }
+
+        final long writePos = mWritePos;
+        final int offset = (int) (writePos & mMask);
+        final int first = Math.min(length, mBuffer.length - offset);
+        src.get(mBuffer, offset, first);
+        if (first < length) {
+            src.get(mBuffer, 0, length - first);
+        }
+
+        mWritePos = writePos + length;
+        LockSupport.unpark(mWaitingConsumer);
+        return length;
+    }
+
+    /**
+     * Queues a format change at the current write position. Only one format change can be
+     * pending at a time.
+     *
+     * @return true if the change was queued, false if a previous change is still pending
+     */
+    boolean queueFormat(int channels, int sampleRate) {
+        if (mFormatPos >= 0) {
+            return false;
+        }
+
+        mFormatChannels = channels;
+        mFormatRate = sampleRate;
+        mFormatPos = mWritePos;
+        LockSupport.unpark(mWaitingConsumer);
+        return true;
+    }
+
+    /**
+     * Discards all the data written so far. Can be called from any thread; data written after
+     * this call is kept.
+     */
+    void flush() {
+        mFlushPos = mWritePos;
+        LockSupport.unpark(mWaitingConsumer);
+    }
+
+    private int awaitWritable(long timeoutMs) {
+        int free = mBuffer.length - (int) (mWritePos - mReadPos);
+        if (free > 0 || timeoutMs <= 0) {
+            return free;
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        mWaitingProducer = Thread.currentThread();
+        try {
+            long remaining;
+            while ((free = mBuffer.length - (int) (mWritePos - mReadPos)) == 0
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            mWaitingProducer = null;
+        }
+        return free;
+    }
+
+    // Consumer side
+
+    /**
+     * Returns the number of bytes that can be read in one contiguous slice of the backing array,
+     * waiting up to timeoutMs if the ring is empty. Flushed data is skipped, and the slice never
+     * spans over a pending format change.
+     *
+     * @param max       The maximum number of bytes wanted
+     * @param timeoutMs The maximum time to wait for data, in milliseconds
+     * @return The length of the slice starting at {@link #getReadOffset()}, or 0
+     */
+    int awaitReadable(int max, long timeoutMs) {
+        int available = readable(max);
+        if (available > 0 || timeoutMs <= 0) {
+            return available;
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        mWaitingConsumer = Thread.currentThread();
+        try {
+            long remaining;
+            while ((available = readable(max)) == 0 && !hasPendingFormat()
+                    && (remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            mWaitingConsumer = null;
+        }
+        return available;
+    }
+
+    private int readable(int max) {
+        long readPos = mReadPos;
+        final long flushPos = mFlushPos;
+        if (readPos < flushPos) {
+            readPos = flushPos;
+            mReadPos = readPos;
+            LockSupport.unpark(mWaitingProducer);
+        }
+
+        long end = mWritePos;
+        final long formatPos = mFormatPos;
+        if (formatPos >= readPos && formatPos < end) {
+            end = formatPos;
+        }
+
+        final int offset = (int) (readPos & mMask);
+        return (int) Math.min(Math.min(end - readPos, mBuffer.length - offset), max);
+    }
+
+    /**
+     * @return The offset in the backing array of the next byte to read
+     */
+    int getReadOffset() {
+        return (int) (mReadPos & mMask);
+    }
+
+    /**
+     * Marks bytes as read, freeing their space for the producer
+     *
+     * @param length The number of bytes read
+     */
+    void consume(int length) {
+        mReadPos += length;
+        LockSupport.unpark(mWaitingProducer);
+    }
+
+    /**
+     * @return true if a format change is due at the current read position. Use
+     * {@link #getFormatChannels()} and {@link #getFormatRate()} to get the new format, then
+     * {@link #clearFormat()}.
+     */
+    boolean hasPendingFormat() {
+        final long formatPos = mFormatPos;
+        return formatPos >= 0 && formatPos <= Math.max(mReadPos, mFlushPos);
+    }
+
+    int getFormatChannels() {
+        return mFormatChannels;
+    }
+
+    int getFormatRate() {
+        return mFormatRate;
+    }
+
+    void clearFormat() {
+        mFormatPos = -1;
+    }
+}
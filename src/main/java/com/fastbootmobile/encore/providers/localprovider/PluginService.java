@@ -24,9 +24,13 @@ import com.fastbootmobile.encore.providers.Constants;
 import com.fastbootmobile.encore.providers.IArtCallback;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.IProviderCallback;
+import com.fastbootmobile.encore.providers.LibraryStream;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -36,6 +40,20 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
     private static final String TAG = "OmniMusic-LocalService";
     public static final String LOGO_REF = "LOCAL_PROVIDER";
 
+    private static final int AUDIO_RING_SIZE = 64 * 1024;
+    private static final int AUDIO_CHUNK_SIZE = 8192;
+    private static final int AUDIO_IDLE_WAIT = 1000;
+    private static final int AUDIO_RETRY_DELAY = 10;
+    private static final int AUDIO_DELIVERY_WAIT = 20;
+
+    private static final String LIBRARY_JOURNAL_FILE = "library_journal.bin";
+
+    // Library changes are notified to the app together, see notifyLibraryChanged()
+    private static final long LIBRARY_CHANGE_DELAY = 300;
+
+
+    // The running service, for the library export of LibraryExportProvider
+    private static WeakReference<PluginService> sInstance = new WeakReference<>(null);
 
     Handler mHandler = new Handler();
     private ProviderIdentifier mIdentifier;
@@ -43,34 +61,80 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
     private final List<IProviderCallback> mCallbacksRemoval;
     private AudioClientSocket mAudioSocket;
     private LocalProvider mLocalProvider;
+    private LibraryJournal mLibraryJournal;
+    private final Object mLibraryChangeLock = new Object();
+    private boolean mLibraryChangeScheduled;
     private int mRate;
+    private int mChannels;
     private int mAudioWritten;
     private final Object mAudioWrittenLock = new Object();
-    private byte[] mAudioBuffer;
-    private int mAudioBufferIndex = 0;
+    // Notified when an audio socket is set
+    private final Object mAudioSocketLock = new Object();
+    // ~370ms of 16-bit stereo audio at 44.1kHz
+    private final PcmRingBuffer mAudioRing = new PcmRingBuffer(AUDIO_RING_SIZE);
 
     private final Thread mWriteAudioThread = new Thread() {
         @Override
         public void run() {
             android.os.Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
             while (!isInterrupted()) {
-                synchronized (mWriteAudioThread) {
-                    try {
-                        mWriteAudioThread.wait();
-                    } catch (InterruptedException e) {
+                final AudioClientSocket socket = mAudioSocket;
+
+                try {
+                    if (mAudioRing.hasPendingFormat()) {
+                        if (socket != null) {
+                            socket.writeFormatData(mAudioRing.getFormatChannels(),
+                                    mAudioRing.getFormatRate());
+                        }
+                        mAudioRing.clearFormat();
                         continue;
                     }
-                    try {
-                        try {
-                            mAudioSocket.writeAudioData(mAudioBuffer, 0, mAudioBufferIndex);
-                        } catch (IOException e) {
-                            e.printStackTrace();
+
+                    if (socket == null) {
+                        // Nobody to send the audio to: drop it rather than spinning on it, and
+                        // sleep until the app gives us a socket
+                        mAudioRing.flush();
+                        synchronized (mAudioSocketLock) {
+                            while (mAudioSocket == null) {
+                                mAudioSocketLock.wait();
+                            }
                         }
-                    } catch (Exception e) {
-                        Log.e(TAG, "Error while writing audio data", e);
-                        mAudioSocket = null;
-                        mLocalProvider.pause(false);
+                        continue;
                     }
+
+                    final int length = mAudioRing.awaitReadable(AUDIO_CHUNK_SIZE,
+                            AUDIO_IDLE_WAIT);
+                    if (length == 0) {
+                        continue;
+                    }
+
+                    synchronized (mAudioWrittenLock) {
+                        mAudioWritten = -1;
+                    }
+
+                    socket.writeAudioData(mAudioRing.array(), mAudioRing.getReadOffset(), length);
+
+                    final int written;
+                    synchronized (mAudioWrittenLock) {
+                        if (mAudioWritten == -1) {
+                            // Wait 500ms for a reply
+                            mAudioWrittenLock.wait(500);
+                        }
+                        written = mAudioWritten;
+                    }
+
+                    if (written > 0) {
+                        mAudioRing.consume(length);
+                    } else {
+                        // The app buffers are full (or it didn't reply in time), retry later
+                        Thread.sleep(AUDIO_RETRY_DELAY);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                } catch (Exception e) {
+                    Log.e(TAG, "Error while writing audio data", e);
+                    mAudioSocket = null;
+                    mLocalProvider.pause(false);
                 }
             }
         }
@@ -88,8 +152,11 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
 
         Uri uri = android.provider.MediaStore.Audio.Media.EXTERNAL_CONTENT_URI;
         Context context = getApplicationContext();
+        // The journal records the changes the provider reports, create it first
+        mLibraryJournal = new LibraryJournal(new File(getFilesDir(), LIBRARY_JOURNAL_FILE));
         mLocalProvider = new LocalProvider(uri, getContentResolver(), providerCallback, context);
         mWriteAudioThread.start();
+        sInstance = new WeakReference<>(this);
 
 
         new Thread() {
@@ -103,6 +170,90 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
     public void onDestroy() {
         super.onDestroy();
         mWriteAudioThread.interrupt();
+        sInstance.clear();
+    }
+
+    /**
+     * @return The running instance of the service, or null if it isn't running
+     */
+    static PluginService getRunningInstance() {
+        return sInstance.get();
+    }
+
+    /**
+     * Writes the library to a stream, as returned by the binder. The whole library is written
+     * as a delta against the last export if the app still has it.
+     * @param writer The stream
+     * @param withAlbumsAndArtists false to only write the songs
+     * @param sinceToken The sync token sent by the app, or null
+     */
+    void exportLibrary(LibraryStream.Writer writer, boolean withAlbumsAndArtists,
+                       String sinceToken) throws IOException {
+        if (withAlbumsAndArtists) {
+            mLibraryJournal.export(writer, mExportedLibrary, sinceToken);
+        } else {
+            for (Song song : mExportedLibrary.getSongs()) {
+                writer.writeSong(song);
+            }
+        }
+    }
+
+    private final LibraryJournal.Library mExportedLibrary = new LibraryJournal.Library() {
+        @Override
+        public List<Song> getSongs() throws IOException {
+            try {
+                return mBinder.getSongs(0, Integer.MAX_VALUE);
+            } catch (RemoteException e) {
+                // Local calls, cannot happen
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public List<Album> getAlbums() throws IOException {
+            try {
+                return mBinder.getAlbums();
+            } catch (RemoteException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public List<Artist> getArtists() throws IOException {
+            try {
+                return mBinder.getArtists();
+            } catch (RemoteException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public BoundEntity getEntity(String ref) {
+            final BoundEntity entity = mLocalProvider.getEntity(ref);
+            if (entity != null && entity.getProvider() == null && mIdentifier != null) {
+                entity.setProvider(mIdentifier);
+            }
+            return entity;
+        }
+    };
+
+    /**
+     * Writes the songs, albums and artists of the provided references to a library stream.
+     * Called from {@link LibraryExportProvider} on a pipe thread.
+     * @param writer The stream
+     * @param refs The references to export. Unknown ones are left out.
+     */
+    void exportEntities(LibraryStream.Writer writer, List<String> refs) throws IOException {
+        for (String ref : refs) {
+            final BoundEntity entity = mLocalProvider.getEntity(ref);
+            if (entity instanceof Song) {
+                writer.writeSong((Song) entity);
+            } else if (entity instanceof Album) {
+                writer.writeAlbum((Album) entity);
+            } else if (entity instanceof Artist) {
+                writer.writeArtist((Artist) entity);
+            }
+        }
     }
 
     private void removeCallback(final IProviderCallback cb) {
@@ -116,6 +267,32 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
         });
     }
 
+    /**
+     * Tells the app that the library changed, a short while after the first change so that the
+     * changes made in the meantime are read together. The app reads them as a delta of the
+     * library stream, in a single transfer, instead of one binder call per entity.
+     */
+    private void notifyLibraryChanged() {
+        synchronized (mLibraryChangeLock) {
+            if (!mLibraryChangeScheduled) {
+                mLibraryChangeScheduled = true;
+                mHandler.postDelayed(mLibraryChangeRunnable, LIBRARY_CHANGE_DELAY);
+            }
+        }
+    }
+
+    private final Runnable mLibraryChangeRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLibraryChangeLock) {
+                mLibraryChangeScheduled = false;
+            }
+
+            getContentResolver().notifyChange(LibraryStream.getUri(
+                    LibraryExportProvider.AUTHORITY, LibraryStream.PATH_LIBRARY), null);
+        }
+    };
+
     private Runnable mRemoveCallbackRunnable = new Runnable() {
         @Override
         public void run() {
@@ -131,90 +308,41 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
 
     private LocalProvider.LocalCallback providerCallback = new LocalProvider.LocalCallback() {
         @Override
-        public int musicDelivery(byte[] data, int frames, int channels, int sampleRate) {
+        public int musicDelivery(ByteBuffer data, int channels, int sampleRate) {
             if (mAudioSocket == null) {
                 Log.w(TAG, "Got music delivery without an audio socket set!");
                 return 0;
             }
 
-            // If the sample rate changed, update it
-            if (mRate != sampleRate) {
-                mRate = sampleRate;
-
-                try {
-                    mAudioSocket.writeFormatData(channels, sampleRate);
-                } catch (IOException e) {
-                    Log.e(TAG, "IO error while pushing audio data", e);
-                    // Error while pushing audio to the socket, we stop the playback and
-                    // turn off the socket
-                    mAudioSocket = null;
+            // If the format changed, queue the change before the data. If a previous change is
+            // still pending, the decoder will retry later.
+            if (mRate != sampleRate || mChannels != channels) {
+                if (!mAudioRing.queueFormat(channels, sampleRate)) {
                     return 0;
                 }
+                mRate = sampleRate;
+                mChannels = channels;
             }
 
+            // Copy what fits in the ring; the decoder keeps the rest of the buffer for later.
+            // If the ring is full, wait a bit for the writer rather than spinning.
+            return mAudioRing.write(data, AUDIO_DELIVERY_WAIT);
+        }
 
-            // First, we try to copy the frames to our local buffer. If the local buffer is full,
-            // try to send it and empty it - and retry to write the current frames into the buffer
-            // on next loop.
-            //if (mAudioBufferIndex + frames < mAudioBuffer.length) {
-            mAudioBuffer = data;
-            mAudioBufferIndex = frames;
-
-            // There's enough data in the buffer, try to send it over to the app
-            mAudioWritten = -1;
-
-            synchronized (mWriteAudioThread) {
-                mWriteAudioThread.notifyAll();
-            }
-
-            synchronized (mAudioWrittenLock) {
-                if (mAudioWritten == -1) {
-                    // Wait 500ms for a reply
-                    try {
-                        mAudioWrittenLock.wait(500);
-                    } catch (InterruptedException e) {
-                        Log.e(TAG, "Interrupted while waiting for audio written response");
-                    }
-                }
-            }
-
-            // No response in time, assume the audio wasn't written
-            if (mAudioWritten == -1) {
-                mAudioWritten = 0;
-            }
-
-            if (mAudioWritten > 0) {
-                // We could write it, so reset our local buffer
-                mAudioBufferIndex = 0;
-            }
-
-            return mAudioWritten;
+        @Override
+        public void musicFlush() {
+            mAudioRing.flush();
         }
 
         @Override
         public void artistUpdated(final Artist artist) {
+            mLibraryJournal.markDirty(artist.getRef());
             if (mIdentifier == null) {
                 return;
             }
 
             artist.setProvider(mIdentifier);
-
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (mCallbacks) {
-                        for (IProviderCallback cb : mCallbacks) {
-                            try {
-                                cb.onArtistUpdate(mIdentifier, artist);
-                            } catch (DeadObjectException e) {
-                                removeCallback(cb);
-                            } catch (RemoteException e) {
-                                Log.e(TAG, "RemoteException when notifying a callback", e);
-                            }
-                        }
-                    }
-                }
-            });
+            notifyLibraryChanged();
         }
 
         @Override
@@ -265,28 +393,13 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
 
         @Override
         public void albumUpdated(final Album album) {
+            mLibraryJournal.markDirty(album.getRef());
             if (mIdentifier == null) {
                 return;
             }
 
             album.setProvider(mIdentifier);
-
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (mCallbacks) {
-                        for (IProviderCallback cb : mCallbacks) {
-                            try {
-                                cb.onAlbumUpdate(mIdentifier, album);
-                            } catch (DeadObjectException e) {
-                                removeCallback(cb);
-                            } catch (RemoteException e) {
-                                Log.e(TAG, "RemoteException when notifying a callback", e);
-                            }
-                        }
-                    }
-                }
-            });
+            notifyLibraryChanged();
         }
 
         @Override
@@ -294,28 +407,23 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
             if (song == null) {
                 throw new IllegalArgumentException("Song cannot be null");
             }
+            mLibraryJournal.markDirty(song.getRef());
             if (mIdentifier == null) {
                 return;
             }
 
             song.setProvider(mIdentifier);
+            notifyLibraryChanged();
+        }
 
-            mHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (mCallbacks) {
-                        for (IProviderCallback cb : mCallbacks) {
-                            try {
-                                cb.onSongUpdate(mIdentifier, song);
-                            } catch (DeadObjectException e) {
-                                removeCallback(cb);
-                            } catch (RemoteException e) {
-                                Log.e(TAG, "RemoteException when notifying a callback", e);
-                            }
-                        }
-                    }
-                }
-            });
+        @Override
+        public void entitiesRemoved(final List<String> refs) {
+            mLibraryJournal.markDirty(refs);
+            if (mIdentifier == null) {
+                return;
+            }
+
+            notifyLibraryChanged();
         }
 
         @Override
@@ -734,6 +842,10 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
                 mAudioSocket.connect(socketName);
                 mAudioSocket.writeFormatData(2, 44100);
                 mAudioSocket.setCallback(PluginService.this);
+
+                synchronized (mAudioSocketLock) {
+                    mAudioSocketLock.notifyAll();
+                }
             } catch (IOException e) {
                 Log.e(TAG, "Unable to open the audio socket!", e);
             }
@@ -747,8 +859,7 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
          */
         @Override
         public long getPrefetchDelay() throws RemoteException {
-            // Let's say 10 seconds
-            return 10 * 1000;
+            return mLocalProvider.getPrefetchDelay();
         }
 
         /**
@@ -761,7 +872,7 @@ public class PluginService extends Service implements AudioSocket.ISocketCallbac
          */
         @Override
         public void prefetchSong(String ref) throws RemoteException {
-            // TODO
+            mLocalProvider.prefetchSong(ref);
         }
 
         /**
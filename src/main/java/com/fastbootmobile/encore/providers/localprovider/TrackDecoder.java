@@ -0,0 +1,339 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import android.content.Context;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a local song to 16-bit PCM. Decoded data is read one output buffer at a time with
+ * {@link #getOutput(long)}: the buffer is kept until all its bytes have been consumed, so it can
+ * be handed over partially. A decoder can be opened and primed ahead of time, so that the next
+ * song is ready to be played as soon as the current one ends.
+ *
+ * This class isn't thread-safe, callers must hold the provider lock.
+ */
+class TrackDecoder {
+    private static final String TAG = "TrackDecoder";
+
+    private final LocalProvider.LocalSong mSong;
+    private MediaExtractor mExtractor;
+    private MediaCodec mCodec;
+    private MediaFormat mFormat;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private long mDurationUs;
+    private int mOutIndex = -1;
+    private boolean mInputEOS;
+    private boolean mOutputEOS;
+
+    TrackDecoder(LocalProvider.LocalSong song) {
+        mSong = song;
+    }
+
+    /**
+     * Opens the song and starts the decoder
+     *
+     * @param context The context used to open the song
+     * @return true if the decoder is ready, false if the song can't be decoded
+     */
+    boolean open(Context context) {
+        mExtractor = new MediaExtractor();
+        try {
+            mExtractor.setDataSource(context, mSong.getURI(), null);
+        } catch (Exception e) {
+            Log.d(TAG, "Data source error", e);
+            return false;
+        }
+
+        // if there is a track to play, use it as format info
+        if (mExtractor.getTrackCount() > 0) {
+            mFormat = mExtractor.getTrackFormat(0);
+        } else {
+            Log.e(TAG, "No track in the source file");
+            return false;
+        }
+
+        // we setup the codec with the type we got
+        try {
+            mCodec = MediaCodec.createDecoderByType(mFormat.getString(MediaFormat.KEY_MIME));
+        } catch (Exception e) {
+            // SDK > 19, an IOException might be thrown
+            Log.e(TAG, "Unable to create decoder", e);
+            return false;
+        }
+        mCodec.configure(mFormat, null, null, 0);
+
+        Log.d(TAG, "Sample rate: " + mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE));
+        mDurationUs = mFormat.containsKey(MediaFormat.KEY_DURATION)
+                ? mFormat.getLong(MediaFormat.KEY_DURATION) : -1;
+        mExtractor.selectTrack(0);
+
+        // we start decoding
+        mCodec.start();
+        mInputBuffers = mCodec.getInputBuffers();
+        mOutputBuffers = mCodec.getOutputBuffers();
+        return true;
+    }
+
+    /**
+     * Decodes until the first output buffer is available, so that playback can start right away
+     *
+     * @param timeoutUs The maximum time to spend, in microseconds
+     */
+    void prime(long timeoutUs) {
+        final long deadline = System.nanoTime() / 1000 + timeoutUs;
+        while (mOutIndex < 0 && !mOutputEOS && System.nanoTime() / 1000 < deadline) {
+            getOutput(5000);
+        }
+    }
+
+    /**
+     * Releases the decoder and the extractor
+     */
+    void release() {
+        if (mCodec != null) {
+            try {
+                mCodec.stop();
+            } catch (IllegalStateException ignored) {
+            }
+            mCodec.release();
+            mCodec = null;
+        }
+        if (mExtractor != null) {
+            mExtractor.release();
+            mExtractor = null;
+        }
+        mOutIndex = -1;
+    }
+
+    LocalProvider.LocalSong getSong() {
+        return mSong;
+    }
+
+    int getChannelCount() {
+        return mFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+    }
+
+    int getSampleRate() {
+        return mFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+    }
+
+    /**
+     * @return The time left to decode after the current output buffer, in microseconds, or -1 if
+     * the duration of the song isn't known
+     */
+    long getRemainingUs() {
+        if (mDurationUs < 0) {
+            return -1;
+        }
+        return Math.max(0, mDurationUs - mInfo.presentationTimeUs);
+    }
+
+    /**
+     * @return true once all the decoded data has been consumed
+     */
+    boolean isFinished() {
+        return mOutputEOS && mOutIndex < 0;
+    }
+
+    /**
+     * Moves the decoding to the provided time. The data being decoded is dropped, and decoding
+     * starts over even if the end of the song had already been reached.
+     *
+     * @param timeUs The time to seek to, in microseconds
+     */
+    void seekTo(long timeUs) {
+        mExtractor.seekTo(timeUs, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+        mCodec.flush();
+        mOutIndex = -1;
+        mInputEOS = false;
+        mOutputEOS = false;
+        mInfo.set(0, 0, timeUs, 0);
+    }
+
+    /**
+     * Drops the data being decoded, eg. after a pause. Decoding starts over from the last output
+     * buffer, as the input queued in the decoder (possibly up to the end of stream) is dropped too.
+     */
+    void flush() {
+        if (isFinished()) {
+            return;
+        }
+        seekTo(mInfo.presentationTimeUs);
+    }
+
+    /**
+     * Returns the current output buffer, decoding more data if the previous one has been
+     * consumed. The position and limit of the buffer delimit the bytes not consumed yet.
+     *
+     * @param timeoutUs The maximum time to wait for the input and output buffers of the decoder
+     * @return The output buffer, or null if no data is available yet or the song is finished
+     */
+    ByteBuffer getOutput(long timeoutUs) {
+        if (mOutIndex >= 0) {
+            return mOutputBuffers[mOutIndex];
+        }
+
+        if (!mInputEOS) {
+            feedInput(timeoutUs);
+        }
+
+        if (mOutputEOS) {
+            return null;
+        }
+
+        int outIndex = MediaCodec.INFO_TRY_AGAIN_LATER;
+        try {
+            outIndex = mCodec.dequeueOutputBuffer(mInfo, timeoutUs);
+        } catch (IllegalStateException ignored) {
+        }
+
+        switch (outIndex) {
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                mOutputBuffers = mCodec.getOutputBuffers();
+                return null;
+
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                mFormat = mCodec.getOutputFormat();
+                return null;
+
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                return null;
+
+            default:
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                    mOutputEOS = true;
+                }
+
+                if (mInfo.size <= 0) {
+                    releaseIndex(outIndex);
+                    return null;
+                }
+
+                final ByteBuffer out = mOutputBuffers[outIndex];
+                out.position(mInfo.offset);
+                out.limit(mInfo.offset + mInfo.size);
+                mOutIndex = outIndex;
+                return out;
+        }
+    }
+
+    /**
+     * Gives back the current output buffer to the decoder if all its bytes have been consumed
+     */
+    void releaseOutput() {
+        if (mOutIndex >= 0 && !mOutputBuffers[mOutIndex].hasRemaining()) {
+            releaseIndex(mOutIndex);
+            mOutIndex = -1;
+        }
+    }
+
+    /**
+     * Reads decoded bytes into an array, waiting for the decoder if needed
+     *
+     * @param dst       The destination array
+     * @param offset    The offset in dst
+     * @param length    The number of bytes wanted
+     * @param timeoutUs The maximum time to wait for data, in microseconds
+     * @return The number of bytes read
+     */
+    int read(byte[] dst, int offset, int length, long timeoutUs) {
+        final long deadline = System.nanoTime() / 1000 + timeoutUs;
+        int read = 0;
+
+        while (read < length && !isFinished()) {
+            final ByteBuffer out = getOutput(5000);
+            if (out == null) {
+                if (System.nanoTime() / 1000 >= deadline) {
+                    break;
+                }
+                continue;
+            }
+
+            final int count = Math.min(out.remaining(), length - read);
+            out.get(dst, offset + read, count);
+            read += count;
+            releaseOutput();
+        }
+
+        return read;
+    }
+
+    private void feedInput(long timeoutUs) {
+        int inIndex = -1;
+        try {
+            inIndex = mCodec.dequeueInputBuffer(timeoutUs);
+        } catch (IllegalStateException ignored) {
+        }
+
+        if (inIndex < 0) {
+            return;
+        }
+
+        // we retrieve the current encoded sample size
+        int sampleSize;
+        try {
+            sampleSize = mExtractor.readSampleData(mInputBuffers[inIndex], 0);
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Got illegal argument while reading sample data from buffer", e);
+            sampleSize = 0;
+        }
+
+        if (sampleSize < 0) {
+            // we are at the end of the file
+            mCodec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+            mInputEOS = true;
+        } else if (sampleSize > 0) {
+            // we queue the encoded sample in the decoder, with its timestamp so that we know
+            // how much is left to play
+            try {
+                mCodec.queueInputBuffer(inIndex, 0, sampleSize, mExtractor.getSampleTime(), 0);
+                mExtractor.advance();
+            } catch (Exception e) {
+                Log.d(TAG, e.toString());
+            }
+        } else {
+            // We already error'd out when reading, so if we can't advance, assume song is EOS
+            boolean advanced;
+            try {
+                advanced = mExtractor.advance();
+            } catch (Exception e) {
+                advanced = false;
+            }
+
+            if (advanced) {
+                mCodec.queueInputBuffer(inIndex, 0, 0, 0, 0);
+            } else {
+                mCodec.queueInputBuffer(inIndex, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                mInputEOS = true;
+            }
+        }
+    }
+
+    private void releaseIndex(int index) {
+        try {
+            mCodec.releaseOutputBuffer(index, false);
+        } catch (IllegalStateException ignored) {
+        }
+    }
+}
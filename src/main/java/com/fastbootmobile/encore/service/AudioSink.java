@@ -43,12 +43,32 @@ public interface AudioSink {
     int write(byte[] frames, int numframes);
 
     /**
-     * Returns the number of samples written since the last call to flushSamples() has been made
-     * (or since the first written sample).
-     * @return A number of short samples written
+     * Returns the number of samples written to the audio output since the sink was created. This
+     * counter never goes back, but samples that were flushed before being played aren't counted.
+     * @return A number of samples per channel (frames)
      */
     long getWrittenSamples();
 
+    /**
+     * Returns the number of samples written to the audio output that haven't been played yet
+     * @return A number of samples per channel (frames)
+     */
+    int getLatencySamples();
+
+    /**
+     * Returns the number of samples played by the audio output since the sink was created, ie.
+     * the written samples minus the latency, both taken at the same time
+     * @return A number of samples per channel (frames)
+     */
+    long getPlayedSamples();
+
+    /**
+     * Returns the sample rate of the audio output, which may differ from the one passed to
+     * setup() if the sink resamples the audio
+     * @return The sample rate, in number of samples per second
+     */
+    int getSampleRate();
+
     /**
      * Returns the number of dropouts/stutters (buffer underflow) that occurred since the last flush
      * @return Number of dropouts
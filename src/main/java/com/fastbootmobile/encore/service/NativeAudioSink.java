@@ -15,12 +15,15 @@
 
 package com.fastbootmobile.encore.service;
 
+import com.fastbootmobile.encore.framework.Metrics;
+
 /**
  * Implementation of the native (OpenSL, JNI) audio sink
  */
 public class NativeAudioSink implements AudioSink {
 
     private NativePlayer mPlayer;
+    private final Metrics.Counter mUnderflows = Metrics.getDefault().getCounter("sink.underflows");
 
     public NativeAudioSink() {
         mPlayer = new NativePlayer();
@@ -32,6 +35,7 @@ public class NativeAudioSink implements AudioSink {
 
     @Override
     public void release() {
+        mUnderflows.add(mPlayer.getUnderflowCount());
         mPlayer.shutdown();
     }
 
@@ -48,7 +52,22 @@ public class NativeAudioSink implements AudioSink {
 
     @Override
     public long getWrittenSamples() {
-        return mPlayer.getTotalWrittenSamples();
+        return mPlayer.getWrittenFrames();
+    }
+
+    @Override
+    public int getLatencySamples() {
+        return mPlayer.getLatencyFrames();
+    }
+
+    @Override
+    public long getPlayedSamples() {
+        return mPlayer.getPlayedFrames();
+    }
+
+    @Override
+    public int getSampleRate() {
+        return mPlayer.getSampleRate();
     }
 
     @Override
@@ -58,6 +77,8 @@ public class NativeAudioSink implements AudioSink {
 
     @Override
     public void flushSamples() {
+        // The underflow count of the player restarts at each flush, keep the total
+        mUnderflows.add(mPlayer.getUnderflowCount());
         mPlayer.flush();
     }
 
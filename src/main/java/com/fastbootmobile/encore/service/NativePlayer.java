@@ -77,6 +77,37 @@ public class NativePlayer {
         return nativeGetTotalWrittenSamples();
     }
 
+    /**
+     * @return The number of frames handed to the audio output since the player was created. Frames
+     * that were flushed before being played aren't counted.
+     */
+    public long getWrittenFrames() {
+        return nativeGetWrittenFrames();
+    }
+
+    /**
+     * @return The number of frames handed to the audio output that haven't been played yet
+     */
+    public int getLatencyFrames() {
+        return nativeGetLatencyFrames();
+    }
+
+    /**
+     * @return The number of frames played by the audio output since the player was created. The
+     * written and latency frames it is computed from are published together, so it is never torn
+     * by a buffer being written.
+     */
+    public long getPlayedFrames() {
+        return nativeGetPlayedFrames();
+    }
+
+    /**
+     * @return The sample rate of the audio output, in hertz
+     */
+    public int getSampleRate() {
+        return nativeGetSampleRate();
+    }
+
     /**
      * Flushes the output (clears all pending buffers, etc).
      */
@@ -113,6 +144,10 @@ public class NativePlayer {
     private native int nativeGetBufferedCount();
     private native int nativeGetUnderflowCount();
     private native long nativeGetTotalWrittenSamples();
+    private native long nativeGetWrittenFrames();
+    private native int nativeGetLatencyFrames();
+    private native long nativeGetPlayedFrames();
+    private native int nativeGetSampleRate();
     private native void nativeFlush();
     private native void nativeSetPaused(boolean pause);
     private native void nativeShutdown();
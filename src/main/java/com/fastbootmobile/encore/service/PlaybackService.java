@@ -37,6 +37,7 @@ import com.echonest.api.v4.EchoNestException;
 import com.fastbootmobile.encore.api.echonest.AutoMixManager;
 import com.fastbootmobile.encore.app.OmniMusic;
 import com.fastbootmobile.encore.framework.ListenLogger;
+import com.fastbootmobile.encore.framework.Metrics;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Album;
 import com.fastbootmobile.encore.model.Artist;
@@ -56,6 +57,8 @@ import com.fastbootmobile.encore.utils.SettingsKeys;
 import com.fastbootmobile.encore.utils.Utils;
 import com.squareup.leakcanary.RefWatcher;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -66,7 +69,7 @@ import java.util.List;
  */
 public class PlaybackService extends Service
         implements PluginsLookup.ConnectionListener, ILocalCallback,
-        AudioManager.OnAudioFocusChangeListener, NativeHub.OnSampleWrittenListener {
+        AudioManager.OnAudioFocusChangeListener {
 
     private static final String TAG = "PlaybackService";
 
@@ -81,6 +84,9 @@ public class PlaybackService extends Service
     private static final String PREF_KEY_REPEAT = "repeatMode";
     private static final String PREF_KEY_SHUFFLE = "shuffleMode";
 
+    // Skips taking longer than this to play audio are counted as slow, in milliseconds
+    private static final long SLOW_SKIP_THRESHOLD = 2000;
+
     public static final String ACTION_COMMAND = "command";
     public static final String EXTRA_COMMAND_NAME = "command_name";
     public static final int COMMAND_NEXT = 1;
@@ -101,6 +107,9 @@ public class PlaybackService extends Service
                 }
             }
 
+            // The upcoming tracks may have changed
+            onUpcomingTracksChanged();
+
             // Save the queue as well
             savePlaybackQueue();
         }
@@ -127,7 +136,8 @@ public class PlaybackService extends Service
     private List<IPlaybackCallback> mCallbacks;
     private ServiceNotification mNotification;
     private int mCurrentTrack = -1;
-    private long mCurrentTrackElapsedMs;
+    private final List<Integer> mShuffleUpcoming = new ArrayList<>();
+    private volatile TrackPosition mTrackPosition = new TrackPosition(0, 0);
     private int mState = STATE_STOPPED;
     private boolean mIsResuming;
     private boolean mIsStopping;
@@ -150,6 +160,8 @@ public class PlaybackService extends Service
     private PlaybackServiceBinder mBinder = new PlaybackServiceBinder(new WeakReference<>(this));
     private PlaybackProviderCallback mProviderCallback = new PlaybackProviderCallback(new WeakReference<>(this));
     private boolean mShouldFlushBuffers = false;
+    private volatile long mPlayRequestTime = -1;
+    private volatile long mSkipRequestTime = -1;
 
     private static class CommandHandler extends Handler {
         private WeakReference<PlaybackService> mService;
@@ -223,6 +235,7 @@ public class PlaybackService extends Service
         super.onCreate();
         mListenLogger = new ListenLogger(this);
         mPrefetcher = new Prefetcher(this);
+        Metrics.getDefault().registerStats("playback.prefetch", mPrefetcher.getStats());
 
         mCommandsHandlerThread = new HandlerThread("PlaybackServiceCommandsHandler");
         mCommandsHandlerThread.start();
@@ -254,8 +267,13 @@ public class PlaybackService extends Service
         // Native playback initialization
         mNativeHub = new NativeHub(getApplicationContext());
         mNativeSink = new NativeAudioSink();
+        Metrics.getDefault().registerGauge("sink.dropouts_since_flush", new Metrics.Gauge() {
+            @Override
+            public Object getValue() {
+                return mNativeSink.getDropouts();
+            }
+        });
         mNativeHub.setSinkPointer(mNativeSink.getPlayer().getHandle());
-        mNativeHub.setOnAudioWrittenListener(this);
         mNativeHub.onStart();
 
         mDSPProcessor = new DSPProcessor(this);
@@ -351,9 +369,10 @@ public class PlaybackService extends Service
         mRemoteMetadata.release();
 
         // Cancel prefetching
-        mHandler.removeCallbacks(mPrefetcher);
-        mPrefetcher.cancel();
-        mPrefetcher = null;
+        Log.d(TAG, "Prefetching stats: " + mPrefetcher.getStats());
+        mPrefetcher.shutdown();
+        Metrics.getDefault().unregisterGauge("playback.prefetch");
+        Metrics.getDefault().unregisterGauge("sink.dropouts_since_flush");
 
         if (mHasAudioFocus) {
             abandonAudioFocus();
@@ -383,7 +402,6 @@ public class PlaybackService extends Service
 
         // Shutdown DSP chain
         mNativeHub.onStop();
-        mNativeHub.setOnAudioWrittenListener(null);
         mNativeSink.release();
 
         mCommandsHandlerThread.interrupt();
@@ -409,10 +427,12 @@ public class PlaybackService extends Service
                 && intent.getAction().equals(ACTION_COMMAND)) {
             switch (intent.getIntExtra(EXTRA_COMMAND_NAME, -1)) {
                 case COMMAND_NEXT:
+                    notifySkipRequested();
                     nextImpl();
                     break;
 
                 case COMMAND_PREVIOUS:
+                    notifySkipRequested();
                     previousImpl();
                     break;
 
@@ -444,6 +464,21 @@ public class PlaybackService extends Service
         return mBinder;
     }
 
+    /**
+     * Writes the playback state and the performance metrics, for
+     * "adb shell dumpsys activity service PlaybackService"
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("State: " + mState + ", track " + mCurrentTrack + "/"
+                + mPlaybackQueue.size() + ", provider " + mCurrentPlayingProvider);
+        writer.println("Sink: " + mNativeSink.getSampleRate() + "Hz, latency "
+                + mNativeSink.getLatencySamples() + " frames, "
+                + mNativeSink.getDropouts() + " dropouts since flush");
+        writer.println();
+        Metrics.getDefault().dump(writer);
+    }
+
     @Override
     public void onRebind(Intent intent) {
         Log.i(TAG, "Client rebound");
@@ -711,7 +746,9 @@ public class PlaybackService extends Service
                             mCurrentPlayingProvider = providerId;
 
                             requestAudioFocus();
+                            mPrefetcher.onSongStarted(next);
 
+                            mPlayRequestTime = SystemClock.elapsedRealtime();
                             try {
                                 provider.playSong(next.getRef());
                             } catch (RemoteException e) {
@@ -784,6 +821,44 @@ public class PlaybackService extends Service
         }
     }
 
+    /**
+     * Records that the user asked to skip the current track, to measure the time until the audio
+     * of the new track plays
+     */
+    private void notifySkipRequested() {
+        mSkipRequestTime = SystemClock.elapsedRealtime();
+        Metrics.getDefault().getCounter("playback.skips").increment();
+    }
+
+    /**
+     * Records the time taken to play audio once a song was requested, when a provider starts
+     * playing a song
+     */
+    private void onFirstAudio(ProviderIdentifier provider) {
+        final Metrics metrics = Metrics.getDefault();
+        final long now = SystemClock.elapsedRealtime();
+
+        final long playRequestTime = mPlayRequestTime;
+        if (playRequestTime >= 0) {
+            mPlayRequestTime = -1;
+            metrics.getHistogram("playback.time_to_first_audio_ms").record(now - playRequestTime);
+            metrics.getHistogram("provider." + provider.mName + ".time_to_first_audio_ms")
+                    .record(now - playRequestTime);
+        }
+
+        final long skipRequestTime = mSkipRequestTime;
+        if (skipRequestTime >= 0) {
+            mSkipRequestTime = -1;
+            final long skipTime = now - skipRequestTime;
+            metrics.getHistogram("playback.skip_ms").record(skipTime);
+            metrics.getHistogram("provider." + provider.mName + ".skip_ms").record(skipTime);
+            if (skipTime > SLOW_SKIP_THRESHOLD) {
+                metrics.getCounter("playback.slow_skips").increment();
+                Log.w(TAG, "Slow skip: " + skipTime + "ms to play audio from " + provider);
+            }
+        }
+    }
+
     /**
      * Moves to the next track
      */
@@ -791,10 +866,7 @@ public class PlaybackService extends Service
         boolean hasNext = mCurrentTrack < mPlaybackQueue.size() - 1;
         if (mPlaybackQueue.size() > 1 && mShuffleMode) {
             // Shuffle mode is enabled, play any track but not the one we just played
-            int previousTrack = mCurrentTrack;
-            while (previousTrack == mCurrentTrack) {
-                mCurrentTrack = Utils.getRandom(mPlaybackQueue.size());
-            }
+            mCurrentTrack = takeNextShuffleTrack();
 
             mNativeSink.setPaused(true);
             mShouldFlushBuffers = true;
@@ -836,7 +908,9 @@ public class PlaybackService extends Service
         boolean shouldRestart = (getCurrentTrackPositionImpl() > 4000 || (!mRepeatMode && mCurrentTrack == 0))
                 && mCurrentTrackLoaded;
         if (shouldRestart) {
-            // Restart playback
+            // Restart playback. The provider keeps playing the same song, so there's no skip time
+            // to measure.
+            mSkipRequestTime = -1;
             mNativeSink.setPaused(true);
             mShouldFlushBuffers = true;
 
@@ -876,6 +950,10 @@ public class PlaybackService extends Service
      * Pauses the playback
      */
     void pauseImpl() {
+        // A skip interrupted by a pause isn't measured
+        mSkipRequestTime = -1;
+        mPlayRequestTime = -1;
+
         final Song currentSong = getCurrentSong();
         if (currentSong != null) {
             Log.d(TAG, "onSongPaused: Pausing...");
@@ -1004,19 +1082,152 @@ public class PlaybackService extends Service
     }
 
     /**
-     * @return The reference to the next track in the queue
+     * @return The reference to the track that will be played when the current one ends
      */
     public Song getNextTrack() {
-        if (mCurrentTrack < mPlaybackQueue.size() - 1) {
-            return mPlaybackQueue.get(mCurrentTrack + 1);
+        final int next = getNextTrackIndex();
+        if (next >= 0) {
+            return mPlaybackQueue.get(next);
         } else {
             // No more tracks
             return null;
         }
     }
 
+    /**
+     * Returns the tracks that will be played after the current one, in order
+     * @param depth The maximum number of tracks to return
+     * @return The upcoming songs. Songs that are no longer available are null.
+     */
+    public List<Song> getUpcomingTracks(int depth) {
+        final List<Song> output = new ArrayList<>(depth);
+        synchronized (mPlaybackQueue) {
+            final int size = mPlaybackQueue.size();
+            for (int index : getUpcomingTrackIndexes(depth)) {
+                if (index < size) {
+                    output.add(mPlaybackQueue.get(index));
+                }
+            }
+        }
+        return output;
+    }
+
+    /**
+     * Returns the indexes of the tracks that will be played after the current one. In shuffle
+     * mode, the tracks are picked in advance so that the prefetched tracks are the ones that play.
+     * @param depth The maximum number of tracks to return
+     * @return The indexes in the playback queue, in playing order
+     */
+    private List<Integer> getUpcomingTrackIndexes(int depth) {
+        final int size = mPlaybackQueue.size();
+        final List<Integer> output = new ArrayList<>(depth);
+
+        if (size > 1 && mShuffleMode) {
+            synchronized (mShuffleUpcoming) {
+                // Drop the picks that are no longer valid
+                Iterator<Integer> it = mShuffleUpcoming.iterator();
+                while (it.hasNext()) {
+                    final int index = it.next();
+                    if (index >= size || index == mCurrentTrack) {
+                        it.remove();
+                    }
+                }
+
+                // Play any track but not the one we're playing, avoiding repeats when possible
+                while (mShuffleUpcoming.size() < depth) {
+                    int index;
+                    do {
+                        index = Utils.getRandom(size);
+                    } while (index == mCurrentTrack
+                            || (mShuffleUpcoming.size() < size - 1 && mShuffleUpcoming.contains(index)));
+                    mShuffleUpcoming.add(index);
+                }
+
+                output.addAll(mShuffleUpcoming.subList(0, depth));
+            }
+        } else {
+            int index = mCurrentTrack;
+            while (output.size() < depth) {
+                if (index < size - 1) {
+                    index++;
+                } else if (mRepeatMode && size > 0) {
+                    index = 0;
+                } else {
+                    break;
+                }
+
+                output.add(index);
+                if (index == mCurrentTrack) {
+                    // We went through the whole queue
+                    break;
+                }
+            }
+        }
+
+        return output;
+    }
+
+    /**
+     * Returns the index of the track that will be played when the current one ends
+     * @return The index in the playback queue, or -1 if playback will stop
+     */
+    private int getNextTrackIndex() {
+        final List<Integer> upcoming = getUpcomingTrackIndexes(1);
+        return upcoming.isEmpty() ? -1 : upcoming.get(0);
+    }
+
+    /**
+     * Moves on to the next track picked in shuffle mode
+     * @return The index of the track to play in the playback queue
+     */
+    private int takeNextShuffleTrack() {
+        synchronized (mShuffleUpcoming) {
+            final int next = getNextTrackIndex();
+            if (!mShuffleUpcoming.isEmpty()) {
+                mShuffleUpcoming.remove(0);
+            }
+            return next;
+        }
+    }
+
+    /**
+     * Drops the tracks picked in advance and reschedules prefetching, after the playback queue or
+     * the playback modes changed
+     */
+    private void onUpcomingTracksChanged() {
+        synchronized (mShuffleUpcoming) {
+            mShuffleUpcoming.clear();
+        }
+
+        if (mState == STATE_PLAYING) {
+            mPrefetcher.schedule(getCurrentSong());
+        }
+    }
+
     public int getCurrentTrackPositionImpl() {
-        return (int) mCurrentTrackElapsedMs;
+        final TrackPosition position = mTrackPosition;
+        final int sampleRate = mNativeSink.getSampleRate();
+        if (sampleRate <= 0) {
+            return (int) position.timeMs;
+        }
+
+        final long frames = Math.max(0, getPlayedFrames() - position.frame);
+        return (int) (position.timeMs + frames * 1000 / sampleRate);
+    }
+
+    /**
+     * Sets the current position in the track, from the audio currently coming out of the sink
+     * @param timeMs The position, in milliseconds
+     */
+    private void setCurrentTrackPosition(long timeMs) {
+        mTrackPosition = new TrackPosition(getPlayedFrames(), timeMs);
+    }
+
+    /**
+     * @return The number of frames actually played by the sink
+     */
+    private long getPlayedFrames() {
+        return mNativeSink.getPlayedSamples();
     }
 
     void seekImpl(final long timeMs) {
@@ -1035,7 +1246,7 @@ public class PlaybackService extends Service
                     try {
                         provider.seek(timeMs);
                         success = true;
-                        mCurrentTrackElapsedMs = timeMs;
+                        setCurrentTrackPosition(timeMs);
                     } catch (RemoteException e) {
                         Log.e(TAG, "Cannot seek to time", e);
                     } catch (Exception e) {
@@ -1062,6 +1273,20 @@ public class PlaybackService extends Service
     }
 
 
+    /**
+     * Position in the current track at a given count of played frames. Published as a whole so
+     * that readers never see a half-updated position.
+     */
+    private static class TrackPosition {
+        final long frame;
+        final long timeMs;
+
+        TrackPosition(long frame, long timeMs) {
+            this.frame = frame;
+            this.timeMs = timeMs;
+        }
+    }
+
     private static class PlaybackServiceBinder extends IPlaybackService.Stub {
         private WeakReference<PlaybackService> mParent;
 
@@ -1204,6 +1429,7 @@ public class PlaybackService extends Service
                 } else {
                     service.mPlaybackQueue.add(0, s);
                 }
+                service.onUpcomingTracksChanged();
             }
         }
 
@@ -1344,6 +1570,7 @@ public class PlaybackService extends Service
             PlaybackService service = mParent.get();
 
             if (service != null) {
+                service.notifySkipRequested();
                 service.nextImpl();
             }
         }
@@ -1353,6 +1580,7 @@ public class PlaybackService extends Service
             PlaybackService service = mParent.get();
 
             if (service != null) {
+                service.notifySkipRequested();
                 service.previousImpl();
             }
         }
@@ -1381,6 +1609,7 @@ public class PlaybackService extends Service
 
             if (service != null) {
                 service.mRepeatMode = repeat;
+                service.onUpcomingTracksChanged();
                 SharedPreferences prefs = service.getSharedPreferences(SERVICE_SHARED_PREFS, MODE_PRIVATE);
                 SharedPreferences.Editor editor = prefs.edit();
                 editor.putBoolean(PREF_KEY_REPEAT, repeat);
@@ -1405,6 +1634,7 @@ public class PlaybackService extends Service
 
             if (service != null) {
                 service.mShuffleMode = shuffle;
+                service.onUpcomingTracksChanged();
                 SharedPreferences prefs = service.getSharedPreferences(SERVICE_SHARED_PREFS, MODE_PRIVATE);
                 SharedPreferences.Editor editor = prefs.edit();
                 editor.putBoolean(PREF_KEY_SHUFFLE, shuffle);
@@ -1431,6 +1661,7 @@ public class PlaybackService extends Service
                 synchronized (service.mPlaybackQueue) {
                     service.mPlaybackQueue.clear();
                 }
+                service.onUpcomingTracksChanged();
             }
         }
 
@@ -1499,6 +1730,10 @@ public class PlaybackService extends Service
     public void onPlaylistRemoved(String ref) {
     }
 
+    @Override
+    public void onEntitiesRemoved(List<String> refs) {
+    }
+
     @Override
     public void onArtistUpdate(List<Artist> a) {
 
@@ -1529,13 +1764,13 @@ public class PlaybackService extends Service
                 if (wasPaused) {
                     service.mIsResuming = false;
                 } else {
-                    service.mCurrentTrackElapsedMs = 0;
-
                     // Flush and unpause the sink to clear previous track data (if from user action)
                     if (service.mShouldFlushBuffers) {
                         service.mNativeSink.flushSamples();
                     }
                     service.mNativeSink.setPaused(false);
+                    service.setCurrentTrackPosition(0);
+                    service.onFirstAudio(provider);
                 }
 
                 service.mState = STATE_PLAYING;
@@ -1563,22 +1798,8 @@ public class PlaybackService extends Service
                 service.mNotification.setPlayPauseAction(false);
                 service.mRemoteMetadata.notifyPlaying(0);
 
-                // Prepare pre-fetching the next song
-                // Note: We don't take care of the delay being too early when it's paused, as long
-                // as it matches the next track.
-                ProviderConnection conn = PluginsLookup.getDefault().getProvider(provider);
-                if (conn != null) {
-                    IMusicProvider binder = conn.getBinder();
-                    if (binder != null) {
-                        try {
-                            service.mHandler.removeCallbacks(service.mPrefetcher);
-                            service.mHandler.postDelayed(service.mPrefetcher,
-                                    currentSong.getDuration() - binder.getPrefetchDelay());
-                        } catch (RemoteException e) {
-                            Log.e(TAG, "Cannot get prefetch delay from provider", e);
-                        }
-                    }
-                }
+                // Prepare pre-fetching the upcoming songs
+                service.mPrefetcher.schedule(currentSong);
 
                 // Save the queue as we started playing a new song (maybe)
                 service.savePlaybackQueue();
@@ -1628,11 +1849,8 @@ public class PlaybackService extends Service
                 // callback.
 
                 if (service.mPlaybackQueue.size() > 1 && service.mShuffleMode) {
-                    // Shuffle mode is enabled, play any track but not the one we just played
-                    int previousTrack = service.mCurrentTrack;
-                    while (previousTrack == service.mCurrentTrack) {
-                        service.mCurrentTrack = Utils.getRandom(service.mPlaybackQueue.size());
-                    }
+                    // Shuffle mode is enabled, play the track we picked (and prefetched) for it
+                    service.mCurrentTrack = service.takeNextShuffleTrack();
 
                     service.mShouldFlushBuffers = false;
                     service.requestStartPlayback();
@@ -1694,12 +1912,4 @@ public class PlaybackService extends Service
                 break;
         }
     }
-
-
-    @Override
-    public void onSampleWritten(byte[] bytes, int len, int sampleRate, int channels) {
-        len = len / 2; // first, we want the number of samples, and we assume 16 bits audio
-        len = len / channels; // then, we count "mono"
-        mCurrentTrackElapsedMs += len * 1000 / sampleRate;
-    }
 }
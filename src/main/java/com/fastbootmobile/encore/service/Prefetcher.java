@@ -15,56 +15,304 @@
 
 package com.fastbootmobile.encore.service;
 
+import android.os.Handler;
 import android.os.RemoteException;
 import android.util.Log;
 
+import com.fastbootmobile.encore.app.R;
+import com.fastbootmobile.encore.framework.LyricsManager;
 import com.fastbootmobile.encore.framework.PluginsLookup;
 import com.fastbootmobile.encore.model.Song;
 import com.fastbootmobile.encore.providers.IMusicProvider;
 import com.fastbootmobile.encore.providers.ProviderConnection;
+import com.fastbootmobile.encore.providers.ProviderIdentifier;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Runnable handling the pre-fetch of the next track
+ * Asks providers to prepare the upcoming tracks of the playback queue. Requests run on a small
+ * pool of threads, nearest tracks first, as providers may block while preparing a song.
+ *
+ * Providers prepare one song at a time, so each provider is only asked for its nearest upcoming
+ * track. The track right after the current one is requested as late as its provider allows
+ * (see IMusicProvider.getPrefetchDelay()); tracks further away are requested right away, so that
+ * a provider that needs time to download a song gets it early. The provider of the current song
+ * is never asked for anything but the next track, as it may move on to the prefetched song by
+ * itself at the end of the current one.
+ *
+ * Scheduled requests are dropped whenever the upcoming tracks change.
  */
-public class Prefetcher implements Runnable {
+public class Prefetcher {
     private static final String TAG = "Prefetcher";
+    private static final boolean DEBUG = false;
+
+    private static final int POOL_SIZE = 2;
+    private static final int MAX_PREFETCHED_REFS = 32;
+    private static final int LYRICS_LOOKAHEAD_DEPTH = 3;
+
+    private final PlaybackService mService;
+    private final Handler mHandler;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private final AtomicLong mSequence = new AtomicLong();
+    private final Set<String> mPrefetchedRefs = new LinkedHashSet<>();
+    private final Stats mStats = new Stats();
+    private int mLookaheadDepth;
+    private Runnable mNextTrackRunnable;
+
+    /**
+     * Prefetching counters, to tune the lookahead depth
+     */
+    public static class Stats {
+        private final AtomicLong mRequested = new AtomicLong();
+        private final AtomicLong mFailed = new AtomicLong();
+        private final AtomicLong mCancelled = new AtomicLong();
+        private final AtomicLong mHits = new AtomicLong();
+        private final AtomicLong mMisses = new AtomicLong();
+
+        /**
+         * @return The number of songs providers were asked to prefetch
+         */
+        public long getRequested() {
+            return mRequested.get();
+        }
+
+        /**
+         * @return The number of prefetch requests that failed
+         */
+        public long getFailed() {
+            return mFailed.get();
+        }
+
+        /**
+         * @return The number of scheduled prefetches dropped because the queue changed
+         */
+        public long getCancelled() {
+            return mCancelled.get();
+        }
+
+        /**
+         * @return The number of songs started that had been prefetched
+         */
+        public long getHits() {
+            return mHits.get();
+        }
+
+        /**
+         * @return The number of songs started that hadn't been prefetched
+         */
+        public long getMisses() {
+            return mMisses.get();
+        }
 
-    private PlaybackService mService;
+        @Override
+        public String toString() {
+            return "requested=" + getRequested() + " failed=" + getFailed()
+                    + " cancelled=" + getCancelled() + " hits=" + getHits()
+                    + " misses=" + getMisses();
+        }
+    }
+
+    /**
+     * A prefetch request. Requests are ordered by distance from the current track, then by
+     * scheduling order.
+     */
+    private class PrefetchTask implements Runnable, Comparable<PrefetchTask> {
+        private final Song mSong;
+        private final int mDistance;
+        private final int mGenerationId;
+        private final long mSequenceId;
+
+        PrefetchTask(Song song, int distance, int generation) {
+            mSong = song;
+            mDistance = distance;
+            mGenerationId = generation;
+            mSequenceId = mSequence.incrementAndGet();
+        }
+
+        @Override
+        public int compareTo(PrefetchTask another) {
+            if (mDistance != another.mDistance) {
+                return mDistance < another.mDistance ? -1 : 1;
+            }
+            return mSequenceId < another.mSequenceId ? -1 : (mSequenceId == another.mSequenceId ? 0 : 1);
+        }
 
+        @Override
+        public void run() {
+            if (mGenerationId != mGeneration.get()) {
+                mStats.mCancelled.incrementAndGet();
+                return;
+            }
+
+            final ProviderConnection conn = PluginsLookup.getDefault().getProvider(mSong.getProvider());
+            final IMusicProvider provider = conn != null ? conn.getBinder() : null;
+            if (provider == null) {
+                mStats.mFailed.incrementAndGet();
+                return;
+            }
+
+            if (DEBUG) Log.d(TAG, "Prefetching " + mSong.getRef() + " (distance " + mDistance + ")");
+
+            mStats.mRequested.incrementAndGet();
+            try {
+                provider.prefetchSong(mSong.getRef());
+                synchronized (mPrefetchedRefs) {
+                    mPrefetchedRefs.remove(mSong.getRef());
+                    mPrefetchedRefs.add(mSong.getRef());
+                    if (mPrefetchedRefs.size() > MAX_PREFETCHED_REFS) {
+                        Iterator<String> it = mPrefetchedRefs.iterator();
+                        it.next();
+                        it.remove();
+                    }
+                }
+            } catch (RemoteException e) {
+                mStats.mFailed.incrementAndGet();
+                Log.e(TAG, "Cannot pre-fetch song", e);
+            }
+        }
+    }
 
     public Prefetcher(PlaybackService service) {
         mService = service;
+        mHandler = new Handler();
+        mLookaheadDepth = service.getResources().getInteger(R.integer.prefetch_lookahead_depth);
+        mExecutor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 30, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Sets the number of upcoming tracks considered for prefetching
+     * @param depth The number of tracks, at least 1
+     */
+    public void setLookaheadDepth(int depth) {
+        mLookaheadDepth = Math.max(1, depth);
+    }
+
+    /**
+     * @return The prefetching counters
+     */
+    public Stats getStats() {
+        return mStats;
     }
 
-    @Override
-    public void run() {
-        if (mService == null) {
+    /**
+     * Schedules the prefetching of the upcoming tracks of the queue, replacing any previously
+     * scheduled request. This must be called when a song starts playing and whenever the
+     * upcoming tracks change.
+     *
+     * @param current The song currently playing, or null if nothing is playing
+     */
+    public synchronized void schedule(final Song current) {
+        final int generation = cancelScheduled();
+        if (current == null) {
             return;
         }
 
-        // If we're still expecting this song next, pre-fetch it
-        final Song nextSong = mService.getNextTrack();
-        if (nextSong != null) {
-            final ProviderConnection conn = PluginsLookup.getDefault().getProvider(nextSong.getProvider());
-            if (conn != null) {
-                final IMusicProvider provider = conn.getBinder();
-                if (provider != null) {
-                    // We prefetch in a thread, as if the provider blocks, this is blocking the UI
-                    new Thread() {
-                        public void run() {
-                            try {
-                                provider.prefetchSong(nextSong.getRef());
-                            } catch (RemoteException e) {
-                                Log.e(TAG, "Cannot pre-fetch song", e);
-                            }
-                        }
-                    }.start();
-                }
+        final List<Song> upcoming = mService.getUpcomingTracks(mLookaheadDepth);
+        if (upcoming.isEmpty()) {
+            return;
+        }
+
+        // Get the lyrics of the current and next songs, so that they're available offline
+        final List<Song> lyricsSongs = new ArrayList<>();
+        lyricsSongs.add(current);
+        lyricsSongs.addAll(upcoming.subList(0, Math.min(LYRICS_LOOKAHEAD_DEPTH, upcoming.size())));
+        LyricsManager.getDefault().prefetch(lyricsSongs);
+
+        // Only ask each provider for its nearest track
+        final Set<ProviderIdentifier> providers = new HashSet<>();
+        providers.add(current.getProvider());
+
+        final Song next = upcoming.get(0);
+        if (next != null && next.getProvider() != null) {
+            providers.add(next.getProvider());
+        }
+
+        for (int i = 1; i < upcoming.size(); ++i) {
+            final Song song = upcoming.get(i);
+            if (song != null && song.getProvider() != null && providers.add(song.getProvider())) {
+                mExecutor.execute(new PrefetchTask(song, i + 1, generation));
             }
         }
+
+        if (next == null) {
+            return;
+        }
+
+        // Note: We don't take care of the delay being too early when it's paused, as long
+        // as it matches the next track.
+        long delay = current.getDuration() - mService.getCurrentTrackPositionImpl();
+        final ProviderConnection conn = PluginsLookup.getDefault().getProvider(next.getProvider());
+        final IMusicProvider binder = conn != null ? conn.getBinder() : null;
+        if (binder != null) {
+            try {
+                delay -= binder.getPrefetchDelay();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Cannot get prefetch delay from provider", e);
+            }
+        }
+
+        mNextTrackRunnable = new Runnable() {
+            @Override
+            public void run() {
+                mExecutor.execute(new PrefetchTask(next, 1, generation));
+            }
+        };
+        mHandler.postDelayed(mNextTrackRunnable, Math.max(0, delay));
     }
 
-    public void cancel() {
-        mService = null;
+    /**
+     * Notifies that a song started playing, to keep track of prefetching hits and misses
+     * @param song The song
+     */
+    public void onSongStarted(Song song) {
+        final boolean hit;
+        synchronized (mPrefetchedRefs) {
+            hit = mPrefetchedRefs.remove(song.getRef());
+        }
+
+        if (hit) {
+            mStats.mHits.incrementAndGet();
+        } else {
+            mStats.mMisses.incrementAndGet();
+        }
+    }
+
+    /**
+     * Drops all the scheduled requests and stops the worker threads
+     */
+    public synchronized void shutdown() {
+        cancelScheduled();
+        LyricsManager.getDefault().cancelPrefetch();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Drops the scheduled requests
+     * @return The generation to use for new requests
+     */
+    private int cancelScheduled() {
+        if (mNextTrackRunnable != null) {
+            mHandler.removeCallbacks(mNextTrackRunnable);
+            mNextTrackRunnable = null;
+        }
+
+        final List<Runnable> dropped = new ArrayList<>();
+        mExecutor.getQueue().drainTo(dropped);
+        mStats.mCancelled.addAndGet(dropped.size());
+
+        return mGeneration.incrementAndGet();
     }
 }
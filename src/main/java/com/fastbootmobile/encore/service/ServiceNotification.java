@@ -285,7 +285,7 @@ public class ServiceNotification implements AlbumArtHelper.AlbumArtListener {
     private void updateAlbumArt() {
         if (mCurrentSong != null) {
             if (mArtTask != null) {
-                mArtTask.cancel(true);
+                mArtTask.cancelRequest();
             }
 
             final int artSize = mContext.getResources().getDimensionPixelSize(R.dimen.notification_expanded_art_size);
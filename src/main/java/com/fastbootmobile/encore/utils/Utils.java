@@ -56,13 +56,16 @@ import com.fastbootmobile.encore.providers.ProviderAggregator;
 import com.fastbootmobile.encore.providers.ProviderIdentifier;
 
 import java.lang.reflect.Method;
+import java.text.Normalizer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Random;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
 /**
  * Utilities class used throughout the app
@@ -72,6 +75,9 @@ public class Utils {
 
     private static final Map<String, Bitmap> mBitmapQueue = new HashMap<>();
 
+    private static final Pattern DIACRITICS = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
     /**
      * Format milliseconds into an human-readable track length.
      * Examples:
@@ -666,6 +672,25 @@ public class Utils {
         return 1.0f - ((float) distance(a, b)) / max;
     }
 
+    /**
+     * Normalizes a string for search matching: lower case, no accents, and words separated by a
+     * single space. Two names that only differ by case, accents or punctuation normalize to the
+     * same string.
+     *
+     * @param input The string to normalize
+     * @return The normalized string, or an empty string if input is null
+     */
+    public static String normalizeForSearch(String input) {
+        if (input == null) {
+            return "";
+        }
+
+        String output = Normalizer.normalize(input, Normalizer.Form.NFD);
+        output = DIACRITICS.matcher(output).replaceAll("");
+        output = SEPARATORS.matcher(output.toLowerCase(Locale.ROOT)).replaceAll(" ");
+        return output.trim();
+    }
+
     public static List<Song> refIteratorToSongList(Iterator<String> it, ProviderIdentifier id) {
         ProviderAggregator aggr = ProviderAggregator.getDefault();
         List<Song> output = new ArrayList<>();
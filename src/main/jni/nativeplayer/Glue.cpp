@@ -38,6 +38,14 @@ static JNINativeMethod gMethodsNativePlayer[] = {
             reinterpret_cast<void*>(om_NativePlayer_getUnderflowCount)},
     {"nativeGetTotalWrittenSamples", "()J",
             reinterpret_cast<void*>(om_NativePlayer_getTotalWrittenSamples)},
+    {"nativeGetWrittenFrames", "()J",
+            reinterpret_cast<void*>(om_NativePlayer_getWrittenFrames)},
+    {"nativeGetLatencyFrames", "()I",
+            reinterpret_cast<void*>(om_NativePlayer_getLatencyFrames)},
+    {"nativeGetPlayedFrames", "()J",
+            reinterpret_cast<void*>(om_NativePlayer_getPlayedFrames)},
+    {"nativeGetSampleRate", "()I",
+            reinterpret_cast<void*>(om_NativePlayer_getSampleRate)},
     {"nativeFlush", "()V",
             reinterpret_cast<void*>(om_NativePlayer_flush)},
     {"nativeSetPaused", "(Z)V",
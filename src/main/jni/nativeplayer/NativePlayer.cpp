@@ -32,7 +32,8 @@
 NativePlayer::NativePlayer() : m_pEngineObj(nullptr), m_pEngine(nullptr),
         m_pOutputMixObj(nullptr), m_pPlayerObj(nullptr), m_pPlayer(nullptr), m_pPlayerVol(nullptr),
         m_pBufferQueue(nullptr), m_iSampleRate(-1), m_iChannels(-1), m_iSampleFormat(-1),
-        m_iWrittenSamples(0), m_iUnderflowCount(0),
+        m_iWrittenSamples(0), m_iFramesSeq(0), m_iWrittenFrames(0), m_iLatencyFrames(0),
+        m_iUnderflowCount(0),
         m_pPlayingBuffer(nullptr), m_iActiveBuffersTotalSize(0), m_fVolume(1.0f),
         m_pNativeHub(nullptr), m_bUseResampler(false), m_LastBuffersCheckUfCount(0),
         m_bPaused(false), m_bMuted(false) {
@@ -415,6 +416,7 @@ uint32_t NativePlayer::enqueue(const void* data, uint32_t len) {
                 SLresult result = (*m_pBufferQueue)->Enqueue(m_pBufferQueue, data, len);
                 // ALOGE("Enqueued directly %d bytes", len);
                 m_iWrittenSamples += len;
+                setFrames(m_iWrittenFrames + bytesToFrames(len), bytesToFrames(len));
                 if (m_pNativeHub) {
                     om_NativeHub_onAudioMirrorWritten(m_pNativeHub,
                         reinterpret_cast<const uint8_t*>(data), len, m_iSampleRate, m_iChannels);
@@ -459,12 +461,57 @@ int64_t NativePlayer::getTotalWrittenSamples() const {
     return m_iWrittenSamples;
 }
 // -------------------------------------------------------------------------------------
+int64_t NativePlayer::getWrittenFrames() const {
+    return m_iWrittenFrames;
+}
+// -------------------------------------------------------------------------------------
+int32_t NativePlayer::getLatencyFrames() const {
+    return m_iLatencyFrames;
+}
+// -------------------------------------------------------------------------------------
+int64_t NativePlayer::getPlayedFrames() const {
+    while (true) {
+        const uint32_t seq = m_iFramesSeq.load(std::memory_order_acquire);
+        if (seq & 1) {
+            // An update is in progress
+            continue;
+        }
+
+        const int64_t written = m_iWrittenFrames.load(std::memory_order_relaxed);
+        const int32_t latency = m_iLatencyFrames.load(std::memory_order_relaxed);
+
+        std::atomic_thread_fence(std::memory_order_acquire);
+        if (m_iFramesSeq.load(std::memory_order_relaxed) == seq) {
+            return written - latency;
+        }
+    }
+}
+// -------------------------------------------------------------------------------------
+void NativePlayer::setFrames(int64_t written, int32_t latency) {
+    // Writers are serialized by m_QueueMutex
+    const uint32_t seq = m_iFramesSeq.load(std::memory_order_relaxed);
+    m_iFramesSeq.store(seq + 1, std::memory_order_relaxed);
+    std::atomic_thread_fence(std::memory_order_release);
+
+    m_iWrittenFrames.store(written, std::memory_order_relaxed);
+    m_iLatencyFrames.store(latency, std::memory_order_relaxed);
+
+    m_iFramesSeq.store(seq + 2, std::memory_order_release);
+}
+// -------------------------------------------------------------------------------------
+uint32_t NativePlayer::bytesToFrames(uint32_t len) const {
+    const uint32_t frame_size = m_iChannels * (m_iSampleFormat / 8);
+    return frame_size > 0 ? len / frame_size : 0;
+}
+// -------------------------------------------------------------------------------------
 void NativePlayer::flush() {
     std::lock_guard<std::mutex> lock(m_QueueMutex);
 
     setPlayState(SL_PLAYSTATE_STOPPED);
     (*m_pBufferQueue)->Clear(m_pBufferQueue);
     m_iWrittenSamples = 0;
+    // The frames in the OpenSL queue won't be played
+    setFrames(m_iWrittenFrames - m_iLatencyFrames, 0);
     m_iUnderflowCount = 0;
     m_LastBuffersCheckUfCount = 0;
     m_iActiveBuffersTotalSize = 0;
@@ -494,6 +541,9 @@ void NativePlayer::bufferPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void*
     (*p->m_pBufferQueue)->GetState(p->m_pBufferQueue, &qstate);
 
     if (qstate.count == 0) {
+        // The previously enqueued buffer has been played
+        p->setFrames(p->m_iWrittenFrames, 0);
+
         // If we have audio buffers to play, play them
         if (p->m_ActiveBuffers.size() > 0) {
             AudioBuffer* buffer = p->m_ActiveBuffers.front();
@@ -517,6 +567,8 @@ void NativePlayer::bufferPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void*
                         buffer->iLength, p->m_iSampleRate, p->m_iChannels);
                 }
                 p->m_iWrittenSamples += buffer->iLength;
+                const uint32_t frames = p->bytesToFrames(buffer->iLength);
+                p->setFrames(p->m_iWrittenFrames + frames, frames);
 
 
                 // ALOGE("== BUFFERING OUT (%d/%d bytes)", p->m_iActiveBuffersTotalSize, p->m_iBufferMaxSize);
@@ -74,6 +74,17 @@ class NativePlayer : public INativeSink {
     // Returns the number of samples written since the last flush operation (or start if none)
     int64_t getTotalWrittenSamples() const;
 
+    // Returns the number of frames handed to OpenSL since the player was created. Frames that
+    // were flushed before being played aren't counted.
+    int64_t getWrittenFrames() const;
+
+    // Returns the number of frames handed to OpenSL that haven't been played yet
+    int32_t getLatencyFrames() const;
+
+    // Returns the number of frames played since the player was created, ie. the written frames
+    // minus the latency, both read from the same update
+    int64_t getPlayedFrames() const;
+
     // Flush the audio output
     void flush();
 
@@ -95,6 +106,8 @@ class NativePlayer : public INativeSink {
  private:
     bool createAudioPlayer();
     void setPlayState(SLuint32 state);
+    uint32_t bytesToFrames(uint32_t len) const;
+    void setFrames(int64_t written, int32_t latency);
 
     static void bufferPlayerCallback(SLAndroidSimpleBufferQueueItf bq, void* context);
 
@@ -112,6 +125,11 @@ class NativePlayer : public INativeSink {
     std::atomic<uint32_t> m_iSampleFormat;
     std::atomic<uint32_t> m_iChannels;
     std::atomic<int64_t> m_iWrittenSamples;
+    // Written and latency frames are updated together under m_QueueMutex, and published to the
+    // readers through a sequence lock: the sequence is odd while an update is in progress
+    std::atomic<uint32_t> m_iFramesSeq;
+    std::atomic<int64_t> m_iWrittenFrames;
+    std::atomic<int32_t> m_iLatencyFrames;
     std::atomic<int32_t> m_iUnderflowCount;
     std::atomic<float> m_fVolume;
     std::atomic<bool> m_bMuted;
@@ -117,6 +117,26 @@ jlong om_NativePlayer_getTotalWrittenSamples(JNIEnv* env, jobject thiz) {
     return player->getTotalWrittenSamples();
 }
 // -------------------------------------------------------------------------------------
+jlong om_NativePlayer_getWrittenFrames(JNIEnv* env, jobject thiz) {
+    NativePlayer* player = get_layer_from_object(env, thiz);
+    return player->getWrittenFrames();
+}
+// -------------------------------------------------------------------------------------
+jint om_NativePlayer_getLatencyFrames(JNIEnv* env, jobject thiz) {
+    NativePlayer* player = get_layer_from_object(env, thiz);
+    return player->getLatencyFrames();
+}
+// -------------------------------------------------------------------------------------
+jlong om_NativePlayer_getPlayedFrames(JNIEnv* env, jobject thiz) {
+    NativePlayer* player = get_layer_from_object(env, thiz);
+    return player->getPlayedFrames();
+}
+// -------------------------------------------------------------------------------------
+jint om_NativePlayer_getSampleRate(JNIEnv* env, jobject thiz) {
+    NativePlayer* player = get_layer_from_object(env, thiz);
+    return player->getSampleRate();
+}
+// -------------------------------------------------------------------------------------
 void om_NativePlayer_flush(JNIEnv* env, jobject thiz) {
     NativePlayer* player = get_layer_from_object(env, thiz);
     player->flush();
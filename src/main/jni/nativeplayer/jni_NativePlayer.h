@@ -47,6 +47,18 @@ jint om_NativePlayer_getBufferedCount(JNIEnv* env, jobject thiz);
 // NativePlayer.nativeGetTotalWrittenSamples ==> NativePlayer::getTotalWrittenSamples
 jlong om_NativePlayer_getTotalWrittenSamples(JNIEnv* env, jobject thiz);
 
+// NativePlayer.nativeGetWrittenFrames ==> NativePlayer::getWrittenFrames
+jlong om_NativePlayer_getWrittenFrames(JNIEnv* env, jobject thiz);
+
+// NativePlayer.nativeGetLatencyFrames ==> NativePlayer::getLatencyFrames
+jint om_NativePlayer_getLatencyFrames(JNIEnv* env, jobject thiz);
+
+// NativePlayer.nativeGetPlayedFrames ==> NativePlayer::getPlayedFrames
+jlong om_NativePlayer_getPlayedFrames(JNIEnv* env, jobject thiz);
+
+// NativePlayer.nativeGetSampleRate ==> NativePlayer::getSampleRate
+jint om_NativePlayer_getSampleRate(JNIEnv* env, jobject thiz);
+
 // NativePlayer.nativeGetUnderflowCount ==> NativePlayer::getUnderflowCount
 jint om_NativePlayer_getUnderflowCount(JNIEnv* env, jobject thiz);
 
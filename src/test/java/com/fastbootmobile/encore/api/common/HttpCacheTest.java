@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class HttpCacheTest {
+    private static final String URL_A = "http://example.com/a";
+    private static final String URL_B = "http://example.com/b";
+    private static final String URL_C = "http://example.com/c";
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static HttpCache.Entry entry(long storedAt, String etag, String lastModified,
+                                         int bytes) {
+        final HttpCache.Entry entry = new HttpCache.Entry();
+        entry.storedAt = storedAt;
+        entry.etag = etag;
+        entry.lastModified = lastModified;
+        entry.body = new byte[bytes];
+        for (int i = 0; i < bytes; ++i) {
+            entry.body[i] = (byte) i;
+        }
+        return entry;
+    }
+
+    private File getDirectory() {
+        return new File(mFolder.getRoot(), "endpoint");
+    }
+
+    private void setAllLastModified(long time) {
+        final File[] files = getDirectory().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.setLastModified(time);
+            }
+        }
+    }
+
+    @Test
+    public void returnsNullForUnknownUrl() {
+        final HttpCache cache = new HttpCache(getDirectory(), 1024 * 1024);
+        assertNull(cache.get(URL_A));
+    }
+
+    @Test
+    public void readsBackStoredEntry() {
+        final HttpCache cache = new HttpCache(getDirectory(), 1024 * 1024);
+        final HttpCache.Entry stored = entry(1234L, "\"etag\"", "Mon, 01 Jan 2024 00:00:00 GMT",
+                100);
+        cache.put(URL_A, stored);
+
+        final HttpCache.Entry read = new HttpCache(getDirectory(), 1024 * 1024).get(URL_A);
+        assertNotNull(read);
+        assertEquals(1234L, read.storedAt);
+        assertEquals("\"etag\"", read.etag);
+        assertEquals("Mon, 01 Jan 2024 00:00:00 GMT", read.lastModified);
+        assertArrayEquals(stored.body, read.body);
+    }
+
+    @Test
+    public void keepsMissingValidatorsNull() {
+        final HttpCache cache = new HttpCache(getDirectory(), 1024 * 1024);
+        cache.put(URL_A, entry(1L, null, null, 0));
+
+        final HttpCache.Entry read = cache.get(URL_A);
+        assertNotNull(read);
+        assertNull(read.etag);
+        assertNull(read.lastModified);
+        assertEquals(0, read.body.length);
+    }
+
+    @Test
+    public void replacesPreviousEntry() {
+        final HttpCache cache = new HttpCache(getDirectory(), 1024 * 1024);
+        cache.put(URL_A, entry(1L, "old", null, 10));
+        cache.put(URL_A, entry(2L, "new", null, 20));
+
+        final HttpCache.Entry read = cache.get(URL_A);
+        assertEquals(2L, read.storedAt);
+        assertEquals("new", read.etag);
+        assertEquals(20, read.body.length);
+        assertEquals(1, getDirectory().listFiles().length);
+    }
+
+    @Test
+    public void dropsUnreadableEntry() throws IOException {
+        final HttpCache cache = new HttpCache(getDirectory(), 1024 * 1024);
+        cache.put(URL_A, entry(1L, null, null, 100));
+
+        final File file = getDirectory().listFiles()[0];
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(new byte[]{0x48, 0x43, 0x50, 0x31, 0x00});
+        } finally {
+            out.close();
+        }
+
+        assertNull(cache.get(URL_A));
+        assertEquals(0, getDirectory().listFiles().length);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverBudget() {
+        final HttpCache cache = new HttpCache(getDirectory(), 2200);
+        cache.put(URL_A, entry(1L, null, null, 1000));
+        cache.put(URL_B, entry(1L, null, null, 1000));
+        setAllLastModified(System.currentTimeMillis() - 60000);
+
+        // Reading A makes B the least recently used entry
+        assertNotNull(cache.get(URL_A));
+        cache.put(URL_C, entry(1L, null, null, 100));
+
+        assertNotNull(cache.get(URL_A));
+        assertNull(cache.get(URL_B));
+        assertNotNull(cache.get(URL_C));
+    }
+
+    @Test
+    public void deletesLeftoverTemporaryFiles() throws IOException {
+        getDirectory().mkdirs();
+        final File leftover = new File(getDirectory(), "deadbeef.tmp");
+        new FileOutputStream(leftover).close();
+
+        final HttpCache cache = new HttpCache(getDirectory(), 1024 * 1024);
+        cache.put(URL_A, entry(1L, null, null, 10));
+
+        assertEquals(1, getDirectory().listFiles().length);
+        assertNotNull(cache.get(URL_A));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.api.common;
+
+import android.os.SystemClock;
+
+import com.fastbootmobile.encore.app.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The clock is frozen under Robolectric: SystemClock.sleep() advances it without waiting
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class TokenBucketTest {
+    private static void drain(TokenBucket bucket, int count) {
+        for (int i = 0; i < count; ++i) {
+            assertTrue(bucket.acquire(0));
+        }
+        assertFalse(bucket.acquire(0));
+    }
+
+    @Test
+    public void allowsBurstsUpToTheCapacity() {
+        final TokenBucket bucket = new TokenBucket(3, 1000);
+        drain(bucket, 3);
+    }
+
+    @Test
+    public void givesTokensBackOverTime() {
+        final TokenBucket bucket = new TokenBucket(3, 1000);
+        drain(bucket, 3);
+
+        SystemClock.sleep(500);
+        assertFalse(bucket.acquire(0));
+
+        SystemClock.sleep(500);
+        drain(bucket, 1);
+    }
+
+    @Test
+    public void refillIsCappedToTheCapacity() {
+        final TokenBucket bucket = new TokenBucket(3, 1000);
+        drain(bucket, 3);
+
+        SystemClock.sleep(60000);
+        drain(bucket, 3);
+    }
+
+    @Test
+    public void doesNotWaitPastTheDeadline() {
+        final TokenBucket bucket = new TokenBucket(1, 1000);
+        drain(bucket, 1);
+
+        // The next token comes in 1000 ms, so this returns right away
+        assertFalse(bucket.acquire(999));
+    }
+
+    @Test
+    public void backOffEmptiesAndBlocksTheBucket() {
+        final TokenBucket bucket = new TokenBucket(3, 1000);
+        bucket.backOff(5000);
+
+        assertTrue(bucket.isBlocked());
+        assertFalse(bucket.acquire(0));
+
+        SystemClock.sleep(4999);
+        assertTrue(bucket.isBlocked());
+
+        SystemClock.sleep(1);
+        assertFalse(bucket.isBlocked());
+
+        // Tokens are only given back from the end of the back off
+        assertFalse(bucket.acquire(0));
+        SystemClock.sleep(1000);
+        drain(bucket, 1);
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.fastbootmobile.encore.app.BuildConfig;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class BitmapPoolTest {
+    private static Bitmap create(int width, int height, Bitmap.Config config) {
+        return Bitmap.createBitmap(width, height, config);
+    }
+
+    private static BitmapFactory.Options decodeOptions(int width, int height, int sampleSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.outWidth = width;
+        options.outHeight = height;
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return options;
+    }
+
+    @Test
+    public void reusesABitmapOfTheSameSize() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap bitmap = create(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertSame(bitmap, pool.getForDecode(decodeOptions(100, 100, 1)));
+        assertNull(pool.getForDecode(decodeOptions(100, 100, 1)));
+    }
+
+    @Test
+    public void reusesALargerBitmapOfTheNextSizeClass() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap bitmap = create(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertSame(bitmap, pool.getForDecode(decodeOptions(90, 90, 1)));
+    }
+
+    @Test
+    public void doesNotReuseASmallerBitmap() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        pool.put(create(100, 100, Bitmap.Config.ARGB_8888));
+
+        assertNull(pool.getForDecode(decodeOptions(101, 101, 1)));
+    }
+
+    @Test
+    public void doesNotReuseAnotherConfig() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        pool.put(create(100, 100, Bitmap.Config.RGB_565));
+
+        assertNull(pool.getForDecode(decodeOptions(100, 100, 1)));
+    }
+
+    @Test
+    public void leavesAMarginWhenSubsampling() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        pool.put(create(50, 50, Bitmap.Config.ARGB_8888));
+
+        // 100x100 / 2 needs 51x51 in case the decoder rounds up
+        assertNull(pool.getForDecode(decodeOptions(100, 100, 2)));
+        assertEquals(1, pool.getStats().getMisses());
+    }
+
+    @Test
+    public void evictsTheOldestBitmapsOverBudget() {
+        final BitmapPool pool = new BitmapPool(100 * 100 * 4 * 2);
+        final Bitmap first = create(100, 100, Bitmap.Config.ARGB_8888);
+        final Bitmap second = create(100, 100, Bitmap.Config.ARGB_8888);
+        final Bitmap third = create(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(first);
+        pool.put(second);
+        pool.put(third);
+
+        assertEquals(1, pool.getStats().getEvictions());
+        assertSame(third, pool.getForDecode(decodeOptions(100, 100, 1)));
+        assertSame(second, pool.getForDecode(decodeOptions(100, 100, 1)));
+        assertNull(pool.getForDecode(decodeOptions(100, 100, 1)));
+    }
+
+    @Test
+    public void ignoresBitmapsThatCannotBeReused() {
+        final BitmapPool pool = new BitmapPool(100 * 100 * 4);
+
+        final Bitmap recycled = create(10, 10, Bitmap.Config.ARGB_8888);
+        recycled.recycle();
+        pool.put(recycled);
+        pool.put(null);
+        // Larger than the whole pool
+        pool.put(create(101, 100, Bitmap.Config.ARGB_8888));
+
+        assertEquals(0, pool.getStats().getPuts());
+    }
+
+    @Test
+    public void keepsABitmapOnceWhenPutTwice() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap bitmap = create(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+        pool.put(bitmap);
+
+        assertEquals(1, pool.getStats().getPuts());
+        assertSame(bitmap, pool.getForDecode(decodeOptions(100, 100, 1)));
+        assertNull(pool.getForDecode(decodeOptions(100, 100, 1)));
+    }
+
+    @Test
+    public void clearDropsAllTheBitmaps() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        pool.put(create(100, 100, Bitmap.Config.ARGB_8888));
+        pool.put(create(10, 10, Bitmap.Config.RGB_565));
+
+        pool.clear();
+
+        assertEquals(2, pool.getStats().getEvictions());
+        assertNull(pool.getForDecode(decodeOptions(100, 100, 1)));
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        pool.put(create(100, 100, Bitmap.Config.ARGB_8888));
+        pool.getForDecode(decodeOptions(100, 100, 1));
+        pool.getForDecode(decodeOptions(100, 100, 1));
+
+        assertEquals(1, pool.getStats().getHits());
+        assertEquals(1, pool.getStats().getMisses());
+        assertEquals(0.5f, pool.getStats().getHitRate(), 0.001f);
+    }
+
+    @Test
+    @Config(constants = BuildConfig.class, sdk = 18)
+    public void onlyReusesTheExactSizeBeforeKitKat() {
+        final BitmapPool pool = new BitmapPool(1024 * 1024);
+        final Bitmap bitmap = create(100, 100, Bitmap.Config.ARGB_8888);
+        pool.put(bitmap);
+
+        assertNull(pool.get(90, 90, Bitmap.Config.ARGB_8888));
+        assertNull(pool.getForDecode(decodeOptions(200, 200, 2)));
+        assertSame(bitmap, pool.get(100, 100, Bitmap.Config.ARGB_8888));
+    }
+}
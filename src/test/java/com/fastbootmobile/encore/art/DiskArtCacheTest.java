@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.art;
+
+import android.graphics.Bitmap;
+
+import com.fastbootmobile.encore.app.BuildConfig;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class DiskArtCacheTest {
+    private static final int BUCKETS = 3;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private File createFile(String name, int bytes) throws IOException {
+        final FileOutputStream out = new FileOutputStream(new File(mFolder.getRoot(), name));
+        try {
+            out.write(new byte[bytes]);
+        } finally {
+            out.close();
+        }
+        return new File(mFolder.getRoot(), name);
+    }
+
+    private void writeJournal(String... lines) throws IOException {
+        final Writer writer = new OutputStreamWriter(
+                new FileOutputStream(new File(mFolder.getRoot(), "journal")), "UTF-8");
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private DiskArtCache open(long maxSize) {
+        final DiskArtCache cache = new DiskArtCache(mFolder.getRoot(), maxSize, BUCKETS);
+        cache.open();
+        return cache;
+    }
+
+    @Test
+    public void importsFilesWithoutJournalAsLargestBucket() throws IOException {
+        createFile("a", 100);
+
+        final DiskArtCache cache = open(10000);
+
+        assertTrue(cache.contains("a"));
+        final DiskArtCache.Entry entry = cache.get("a", 0);
+        assertEquals("a.2", entry.name);
+        assertEquals(100, entry.bytes);
+        assertTrue(cache.getFile(entry).exists());
+        assertTrue(new File(mFolder.getRoot(), "journal").exists());
+    }
+
+    @Test
+    public void replaysTheJournal() throws IOException {
+        createFile("a", 100);
+        createFile("b", 100);
+        open(10000).remove("a");
+
+        final DiskArtCache cache = open(10000);
+
+        assertFalse(cache.contains("a"));
+        assertFalse(new File(mFolder.getRoot(), "a.2").exists());
+        assertTrue(cache.contains("b"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedFiles() throws IOException {
+        createFile("a.2", 100);
+        createFile("b.2", 100);
+        createFile("c.2", 100);
+        writeJournal("encore.art.journal 1",
+                "CLEAN a.2 100 0 0 1",
+                "CLEAN b.2 100 0 0 1",
+                "CLEAN c.2 100 0 0 1",
+                "READ a.2");
+
+        final DiskArtCache cache = open(250);
+
+        assertFalse(cache.contains("b"));
+        assertFalse(new File(mFolder.getRoot(), "b.2").exists());
+        assertTrue(cache.contains("a"));
+        assertTrue(cache.contains("c"));
+    }
+
+    @Test
+    public void skipsAPartialLastLine() throws IOException {
+        createFile("a.1", 100);
+        writeJournal("encore.art.journal 1",
+                "CLEAN a.1 100 10 10 1",
+                "CLEAN b.1 1");
+
+        final DiskArtCache cache = open(10000);
+
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+    }
+
+    @Test
+    public void dropsTheCacheOnAnUnknownJournal() throws IOException {
+        final File file = createFile("a.1", 100);
+        writeJournal("some.other.journal 3",
+                "CLEAN a.1 100 10 10 1");
+
+        final DiskArtCache cache = open(10000);
+
+        assertFalse(cache.contains("a"));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void prefersLargerBucketsThenSmallerOnes() throws IOException {
+        createFile("x.0", 10);
+        createFile("x.2", 100);
+        createFile("y.0", 10);
+        writeJournal("encore.art.journal 1",
+                "CLEAN x.0 10 10 10 1",
+                "CLEAN x.2 100 100 100 1",
+                "CLEAN y.0 10 10 10 1");
+
+        final DiskArtCache cache = open(10000);
+
+        assertEquals("x.0", cache.get("x", 0).name);
+        assertEquals("x.2", cache.get("x", 1).name);
+        assertEquals("y.0", cache.get("y", 2).name);
+        assertNull(cache.get("z", 1));
+    }
+
+    @Test
+    public void expiresOnlyOldMatchingKeys() throws IOException {
+        createFile("artist_1.2", 10);
+        createFile("album_1.2", 10);
+        writeJournal("encore.art.journal 1",
+                "CLEAN artist_1.2 10 0 0 1",
+                "CLEAN album_1.2 10 0 0 1");
+
+        final DiskArtCache cache = open(10000);
+        cache.expire("artist", 1000);
+
+        assertFalse(cache.contains("artist_1"));
+        assertTrue(cache.contains("album_1"));
+    }
+
+    @Test
+    public void storesBitmapsWithTheirSize() {
+        DiskArtCache cache = open(1024 * 1024);
+        final Bitmap bitmap = Bitmap.createBitmap(10, 20, Bitmap.Config.ARGB_8888);
+
+        assertTrue(cache.put("k", 1, bitmap, Bitmap.CompressFormat.PNG));
+
+        cache = open(1024 * 1024);
+        final DiskArtCache.Entry entry = cache.get("k", 1);
+        assertNotNull(entry);
+        assertEquals("k.1", entry.name);
+        assertEquals(10, entry.width);
+        assertEquals(20, entry.height);
+        assertTrue(cache.getFile(entry).exists());
+    }
+
+    @Test
+    public void clearRemovesEverything() throws IOException {
+        createFile("a", 100);
+        final DiskArtCache cache = open(10000);
+
+        cache.clear();
+
+        assertFalse(cache.contains("a"));
+        assertFalse(new File(mFolder.getRoot(), "a.2").exists());
+        assertFalse(open(10000).contains("a"));
+    }
+}
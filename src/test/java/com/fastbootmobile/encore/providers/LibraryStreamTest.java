@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers;
+
+import com.fastbootmobile.encore.app.BuildConfig;
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.Song;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class LibraryStreamTest {
+    private static class RecordingListener implements LibraryStream.Listener {
+        final List<Song> mSongs = new ArrayList<>();
+        final List<Album> mAlbums = new ArrayList<>();
+        final List<Artist> mArtists = new ArrayList<>();
+        final List<String> mRemoved = new ArrayList<>();
+        int mSongBatches;
+
+        @Override
+        public void onSongs(List<Song> songs) {
+            mSongs.addAll(songs);
+            ++mSongBatches;
+        }
+
+        @Override
+        public void onAlbums(List<Album> albums) {
+            mAlbums.addAll(albums);
+        }
+
+        @Override
+        public void onArtists(List<Artist> artists) {
+            mArtists.addAll(artists);
+        }
+
+        @Override
+        public void onRemoved(List<String> refs) {
+            mRemoved.addAll(refs);
+        }
+    }
+
+    private static Song createSong(String ref) {
+        final Song song = new Song(ref);
+        song.setTitle("Title of " + ref);
+        song.setArtist("artist:" + ref);
+        song.setAlbum("album:" + ref);
+        song.setDuration(180000);
+        song.setIsLoaded(true);
+        return song;
+    }
+
+    private static LibraryStream.Result read(byte[] data, LibraryStream.Listener listener)
+            throws IOException {
+        return LibraryStream.read(new ByteArrayInputStream(data), listener);
+    }
+
+    @Test
+    public void roundTripsEntities() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LibraryStream.Writer writer = new LibraryStream.Writer(out);
+        writer.writeSong(createSong("song:1"));
+        writer.writeSong(createSong("song:2"));
+
+        final Album album = new Album("album:1");
+        album.setName("An album");
+        album.setYear(1999);
+        writer.writeAlbum(album);
+
+        final Artist artist = new Artist("artist:1");
+        artist.setName("An artist");
+        writer.writeArtist(artist);
+        writer.finish();
+
+        final RecordingListener listener = new RecordingListener();
+        final LibraryStream.Result result = read(out.toByteArray(), listener);
+
+        assertTrue(result.isComplete());
+        assertFalse(result.isDelta());
+        assertNull(result.getSyncToken());
+
+        assertEquals(2, listener.mSongs.size());
+        final Song song = listener.mSongs.get(0);
+        assertEquals("song:1", song.getRef());
+        assertEquals("Title of song:1", song.getTitle());
+        assertEquals("artist:song:1", song.getArtist());
+        assertEquals("album:song:1", song.getAlbum());
+        assertEquals(180000, song.getDuration());
+        assertEquals("song:2", listener.mSongs.get(1).getRef());
+
+        assertEquals(1, listener.mAlbums.size());
+        assertEquals("album:1", listener.mAlbums.get(0).getRef());
+        assertEquals("An album", listener.mAlbums.get(0).getName());
+        assertEquals(1999, listener.mAlbums.get(0).getYear());
+
+        assertEquals(1, listener.mArtists.size());
+        assertEquals("artist:1", listener.mArtists.get(0).getRef());
+        assertEquals("An artist", listener.mArtists.get(0).getName());
+    }
+
+    @Test
+    public void skipsNullEntities() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LibraryStream.Writer writer = new LibraryStream.Writer(out);
+        writer.writeSong(null);
+        writer.writeAlbum(null);
+        writer.writeArtist(null);
+        writer.finish();
+
+        final RecordingListener listener = new RecordingListener();
+        assertTrue(read(out.toByteArray(), listener).isComplete());
+        assertEquals(0, listener.mSongs.size());
+        assertEquals(0, listener.mAlbums.size());
+        assertEquals(0, listener.mArtists.size());
+    }
+
+    @Test
+    public void deliversSongsInBatches() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LibraryStream.Writer writer = new LibraryStream.Writer(out);
+        for (int i = 0; i < 450; ++i) {
+            writer.writeSong(createSong("song:" + i));
+        }
+        writer.finish();
+
+        final RecordingListener listener = new RecordingListener();
+        assertTrue(read(out.toByteArray(), listener).isComplete());
+        assertEquals(450, listener.mSongs.size());
+        assertEquals(3, listener.mSongBatches);
+        assertEquals("song:449", listener.mSongs.get(449).getRef());
+    }
+
+    @Test
+    public void readsSyncTokenAndRemovals() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LibraryStream.Writer writer = new LibraryStream.Writer(out);
+        writer.writeSyncToken("token", true);
+        writer.writeSong(createSong("song:1"));
+        writer.writeRemoved("song:2");
+        writer.writeRemoved("album:2");
+        writer.finish();
+
+        final RecordingListener listener = new RecordingListener();
+        final LibraryStream.Result result = read(out.toByteArray(), listener);
+
+        assertTrue(result.isComplete());
+        assertTrue(result.isDelta());
+        assertEquals("token", result.getSyncToken());
+        assertEquals(1, listener.mSongs.size());
+        assertEquals(Arrays.asList("song:2", "album:2"), listener.mRemoved);
+    }
+
+    @Test
+    public void failsOnTruncatedStream() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LibraryStream.Writer writer = new LibraryStream.Writer(out);
+        writer.writeSong(createSong("song:1"));
+        writer.finish();
+
+        // Drop the end record
+        final byte[] data = Arrays.copyOf(out.toByteArray(), out.size() - 1);
+        final RecordingListener listener = new RecordingListener();
+        try {
+            read(data, listener);
+            fail("Truncated stream read as complete");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void failsOnInvalidRecordLength() throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LibraryStream.Writer writer = new LibraryStream.Writer(out);
+        writer.writeSong(createSong("song:1"));
+        writer.finish();
+
+        // The length of the first record follows the header and the record type
+        final byte[] data = out.toByteArray();
+        data[9] = (byte) 0xff;
+        try {
+            read(data, new RecordingListener());
+            fail("Negative record length accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsOtherStreams() {
+        try {
+            read(new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 0}, new RecordingListener());
+            fail("Stream without header accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void fingerprintTracksChanges() {
+        final Song song = createSong("song:1");
+        final long fingerprint = LibraryStream.fingerprint(song);
+
+        assertEquals(fingerprint, LibraryStream.fingerprint(createSong("song:1")));
+
+        song.setTitle("Another title");
+        assertFalse(fingerprint == LibraryStream.fingerprint(song));
+    }
+}
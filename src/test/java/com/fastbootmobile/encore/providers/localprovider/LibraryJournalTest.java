@@ -0,0 +1,323 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import com.fastbootmobile.encore.app.BuildConfig;
+import com.fastbootmobile.encore.model.Album;
+import com.fastbootmobile.encore.model.Artist;
+import com.fastbootmobile.encore.model.BoundEntity;
+import com.fastbootmobile.encore.model.Song;
+import com.fastbootmobile.encore.providers.LibraryStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class LibraryJournalTest {
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static class Export implements LibraryStream.Listener {
+        final List<String> mRefs = new ArrayList<>();
+        final List<String> mRemoved = new ArrayList<>();
+        LibraryStream.Result mResult;
+
+        @Override
+        public void onSongs(List<Song> songs) {
+            for (Song song : songs) {
+                mRefs.add(song.getRef());
+            }
+        }
+
+        @Override
+        public void onAlbums(List<Album> albums) {
+            for (Album album : albums) {
+                mRefs.add(album.getRef());
+            }
+        }
+
+        @Override
+        public void onArtists(List<Artist> artists) {
+            for (Artist artist : artists) {
+                mRefs.add(artist.getRef());
+            }
+        }
+
+        @Override
+        public void onRemoved(List<String> refs) {
+            mRemoved.addAll(refs);
+        }
+    }
+
+    private File getFile() {
+        return new File(mFolder.getRoot(), "journal");
+    }
+
+    private static Song createSong(String ref, String title) {
+        final Song song = new Song(ref);
+        song.setTitle(title);
+        return song;
+    }
+
+    private static Album createAlbum(String ref, String name) {
+        final Album album = new Album(ref);
+        album.setName(name);
+        return album;
+    }
+
+    private static Artist createArtist(String ref, String name) {
+        final Artist artist = new Artist(ref);
+        artist.setName(name);
+        return artist;
+    }
+
+    private static class TestLibrary implements LibraryJournal.Library {
+        final List<Song> mSongs;
+        final List<Album> mAlbums;
+        final List<Artist> mArtists;
+        int mLookups;
+
+        TestLibrary(List<Song> songs, List<Album> albums, List<Artist> artists) {
+            mSongs = songs;
+            mAlbums = albums;
+            mArtists = artists;
+        }
+
+        @Override
+        public List<Song> getSongs() {
+            return mSongs;
+        }
+
+        @Override
+        public List<Album> getAlbums() {
+            return mAlbums;
+        }
+
+        @Override
+        public List<Artist> getArtists() {
+            return mArtists;
+        }
+
+        @Override
+        public BoundEntity getEntity(String ref) {
+            ++mLookups;
+            final List<BoundEntity> entities = new ArrayList<>();
+            entities.addAll(mSongs);
+            entities.addAll(mAlbums);
+            entities.addAll(mArtists);
+            for (BoundEntity entity : entities) {
+                if (entity != null && ref.equals(entity.getRef())) {
+                    return entity;
+                }
+            }
+            return null;
+        }
+    }
+
+    private static Export export(LibraryJournal journal, List<Song> songs, List<Album> albums,
+                                 List<Artist> artists, String sinceToken) throws IOException {
+        return export(journal, new TestLibrary(songs, albums, artists), sinceToken);
+    }
+
+    private static Export export(LibraryJournal journal, LibraryJournal.Library library,
+                                 String sinceToken) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final LibraryStream.Writer writer = new LibraryStream.Writer(out);
+        journal.export(writer, library, sinceToken);
+        writer.finish();
+
+        final Export export = new Export();
+        export.mResult = LibraryStream.read(new ByteArrayInputStream(out.toByteArray()), export);
+        return export;
+    }
+
+    @Test
+    public void firstExportIsFull() throws IOException {
+        final LibraryJournal journal = new LibraryJournal(getFile());
+        final Export export = export(journal,
+                Arrays.asList(createSong("song:1", "One"), createSong("song:2", "Two")),
+                Collections.singletonList(createAlbum("album:1", "Album")),
+                Collections.singletonList(createArtist("artist:1", "Artist")), null);
+
+        assertTrue(export.mResult.isComplete());
+        assertFalse(export.mResult.isDelta());
+        assertNotNull(export.mResult.getSyncToken());
+        assertEquals(Arrays.asList("song:1", "song:2", "album:1", "artist:1"), export.mRefs);
+        assertTrue(export.mRemoved.isEmpty());
+    }
+
+    @Test
+    public void sendsOnlyChangesSinceKnownToken() throws IOException {
+        final LibraryJournal journal = new LibraryJournal(getFile());
+        final List<Album> albums = Collections.singletonList(createAlbum("album:1", "Album"));
+        final List<Artist> artists = Collections.singletonList(createArtist("artist:1", "Artist"));
+        final Export first = export(journal,
+                Arrays.asList(createSong("song:1", "One"), createSong("song:2", "Two")),
+                albums, artists, null);
+
+        journal.markDirty(Arrays.asList("song:1", "song:2", "song:3"));
+        final TestLibrary library = new TestLibrary(
+                Arrays.asList(createSong("song:1", "One, remastered"),
+                        createSong("song:3", "Three")),
+                albums, artists);
+        final Export delta = export(journal, library, first.mResult.getSyncToken());
+
+        assertTrue(delta.mResult.isDelta());
+        assertFalse(first.mResult.getSyncToken().equals(delta.mResult.getSyncToken()));
+        assertEquals(new HashSet<>(Arrays.asList("song:1", "song:3")),
+                new HashSet<>(delta.mRefs));
+        assertEquals(Collections.singletonList("song:2"), delta.mRemoved);
+        // Only the dirty references are looked at
+        assertEquals(3, library.mLookups);
+    }
+
+    @Test
+    public void ignoresChangesNotMarkedDirty() throws IOException {
+        final LibraryJournal journal = new LibraryJournal(getFile());
+        final Export first = export(journal,
+                Collections.singletonList(createSong("song:1", "One")),
+                Collections.<Album>emptyList(), Collections.<Artist>emptyList(), null);
+
+        journal.markDirty("song:2");
+        final Export delta = export(journal,
+                Arrays.asList(createSong("song:1", "One, remastered"),
+                        createSong("song:2", "Two")),
+                Collections.<Album>emptyList(), Collections.<Artist>emptyList(),
+                first.mResult.getSyncToken());
+
+        assertTrue(delta.mResult.isDelta());
+        assertEquals(Collections.singletonList("song:2"), delta.mRefs);
+    }
+
+    @Test
+    public void skipsDirtyEntitiesThatDidNotChange() throws IOException {
+        final LibraryJournal journal = new LibraryJournal(getFile());
+        final Export first = export(journal,
+                Collections.singletonList(createSong("song:1", "One")),
+                Collections.<Album>emptyList(), Collections.<Artist>emptyList(), null);
+
+        journal.markDirty("song:1");
+        // Removed before the app ever received it
+        journal.markDirty("song:2");
+        final Export delta = export(journal,
+                Collections.singletonList(createSong("song:1", "One")),
+                Collections.<Album>emptyList(), Collections.<Artist>emptyList(),
+                first.mResult.getSyncToken());
+
+        assertTrue(delta.mResult.isDelta());
+        assertTrue(delta.mRefs.isEmpty());
+        assertTrue(delta.mRemoved.isEmpty());
+    }
+
+    @Test
+    public void sendsNothingWhenUnchanged() throws IOException {
+        final LibraryJournal journal = new LibraryJournal(getFile());
+        final List<Song> songs = Collections.singletonList(createSong("song:1", "One"));
+        final Export first = export(journal, songs, Collections.<Album>emptyList(),
+                Collections.<Artist>emptyList(), null);
+
+        final Export delta = export(journal, songs, Collections.<Album>emptyList(),
+                Collections.<Artist>emptyList(), first.mResult.getSyncToken());
+
+        assertTrue(delta.mResult.isDelta());
+        assertTrue(delta.mRefs.isEmpty());
+        assertTrue(delta.mRemoved.isEmpty());
+    }
+
+    @Test
+    public void sendsFullLibraryForUnknownToken() throws IOException {
+        final LibraryJournal journal = new LibraryJournal(getFile());
+        final List<Song> songs = Arrays.asList(createSong("song:1", "One"),
+                createSong("song:2", "Two"));
+        export(journal, songs, Collections.<Album>emptyList(), Collections.<Artist>emptyList(),
+                null);
+
+        final Export export = export(journal, songs, Collections.<Album>emptyList(),
+                Collections.<Artist>emptyList(), "unknown");
+
+        assertFalse(export.mResult.isDelta());
+        assertEquals(Arrays.asList("song:1", "song:2"), export.mRefs);
+        assertTrue(export.mRemoved.isEmpty());
+    }
+
+    @Test
+    public void keepsStateAcrossInstances() throws IOException {
+        final Export first = export(new LibraryJournal(getFile()),
+                Arrays.asList(createSong("song:1", "One"), createSong("song:2", "Two")),
+                Collections.<Album>emptyList(), Collections.<Artist>emptyList(), null);
+
+        final Export delta = export(new LibraryJournal(getFile()),
+                Collections.singletonList(createSong("song:1", "One")),
+                Collections.<Album>emptyList(), Collections.<Artist>emptyList(),
+                first.mResult.getSyncToken());
+
+        assertTrue(delta.mResult.isDelta());
+        assertTrue(delta.mRefs.isEmpty());
+        assertEquals(Collections.singletonList("song:2"), delta.mRemoved);
+    }
+
+    @Test
+    public void sendsFullLibraryWhenJournalIsUnreadable() throws IOException {
+        final Export first = export(new LibraryJournal(getFile()),
+                Collections.singletonList(createSong("song:1", "One")),
+                Collections.<Album>emptyList(), Collections.<Artist>emptyList(), null);
+
+        final FileOutputStream out = new FileOutputStream(getFile());
+        try {
+            out.write(new byte[]{1, 2, 3});
+        } finally {
+            out.close();
+        }
+
+        final Export export = export(new LibraryJournal(getFile()),
+                Collections.singletonList(createSong("song:1", "One")),
+                Collections.<Album>emptyList(), Collections.<Artist>emptyList(),
+                first.mResult.getSyncToken());
+
+        assertFalse(export.mResult.isDelta());
+        assertEquals(Collections.singletonList("song:1"), export.mRefs);
+    }
+
+    @Test
+    public void ignoresNullEntities() throws IOException {
+        final Export export = export(new LibraryJournal(getFile()),
+                Arrays.asList(createSong("song:1", "One"), null),
+                Collections.<Album>emptyList(), Collections.<Artist>emptyList(), null);
+
+        assertEquals(Collections.singletonList("song:1"), export.mRefs);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import com.fastbootmobile.encore.model.Song;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LocalSongIndexTest {
+    private Map<String, LocalProvider.LocalSong> mSongs;
+    private LocalSongIndex mIndex;
+
+    @Before
+    public void setUp() {
+        mSongs = new ConcurrentHashMap<>();
+        mIndex = new LocalSongIndex(mSongs);
+
+        add("song:a", "b title", "y artist", "m album", 10);
+        add("song:b", "a title", "z artist", "n album", 30);
+        add("song:c", "c title", "y artist", "l album", 20);
+    }
+
+    private void add(String ref, String titleKey, String artistKey, String albumKey,
+                     long dateAdded) {
+        final LocalProvider.LocalSong song = new LocalProvider.LocalSong(new Song(ref), 0, 0);
+        song.setSortKeys(titleKey, artistKey, albumKey, dateAdded);
+        mSongs.put(ref, song);
+    }
+
+    private static List<String> refs(List<Song> songs) {
+        final List<String> refs = new ArrayList<>(songs.size());
+        for (Song song : songs) {
+            refs.add(song.getRef());
+        }
+        return refs;
+    }
+
+    private List<String> getAll(int sort) {
+        return refs(mIndex.getPage(sort, 0, Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void sortsByTitle() {
+        assertEquals(Arrays.asList("song:b", "song:a", "song:c"),
+                getAll(LocalSongIndex.SORT_TITLE));
+    }
+
+    @Test
+    public void sortsByArtistThenAlbum() {
+        assertEquals(Arrays.asList("song:c", "song:a", "song:b"),
+                getAll(LocalSongIndex.SORT_ARTIST));
+    }
+
+    @Test
+    public void sortsByAlbum() {
+        assertEquals(Arrays.asList("song:c", "song:a", "song:b"),
+                getAll(LocalSongIndex.SORT_ALBUM));
+    }
+
+    @Test
+    public void sortsByDateAddedMostRecentFirst() {
+        assertEquals(Arrays.asList("song:b", "song:c", "song:a"),
+                getAll(LocalSongIndex.SORT_DATE_ADDED));
+    }
+
+    @Test
+    public void breaksTiesWithTheReference() {
+        add("song:e", "same", null, null, 0);
+        add("song:d", "same", null, null, 0);
+        mIndex.invalidate();
+
+        assertEquals(Arrays.asList("song:b", "song:a", "song:c", "song:d", "song:e"),
+                getAll(LocalSongIndex.SORT_TITLE));
+    }
+
+    @Test
+    public void sortsMissingKeysLast() {
+        add("song:0", null, null, null, 0);
+        mIndex.invalidate();
+
+        assertEquals(Arrays.asList("song:b", "song:a", "song:c", "song:0"),
+                getAll(LocalSongIndex.SORT_TITLE));
+        assertEquals("song:0", getAll(LocalSongIndex.SORT_ARTIST).get(3));
+    }
+
+    @Test
+    public void returnsPages() {
+        assertEquals(Arrays.asList("song:b", "song:a"),
+                refs(mIndex.getPage(LocalSongIndex.SORT_TITLE, 0, 2)));
+        assertEquals(Arrays.asList("song:c"),
+                refs(mIndex.getPage(LocalSongIndex.SORT_TITLE, 2, 2)));
+    }
+
+    @Test
+    public void returnsEmptyPageOutOfBounds() {
+        assertTrue(mIndex.getPage(LocalSongIndex.SORT_TITLE, 3, 10).isEmpty());
+        assertTrue(mIndex.getPage(LocalSongIndex.SORT_TITLE, -1, 10).isEmpty());
+        assertTrue(mIndex.getPage(LocalSongIndex.SORT_TITLE, 0, 0).isEmpty());
+    }
+
+    @Test
+    public void doesNotOverflowWithLargeRange() {
+        assertEquals(Arrays.asList("song:c"),
+                refs(mIndex.getPage(LocalSongIndex.SORT_TITLE, 2, Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void keepsSortedViewUntilInvalidated() {
+        getAll(LocalSongIndex.SORT_TITLE);
+        add("song:d", "0 title", null, null, 0);
+
+        assertEquals(3, getAll(LocalSongIndex.SORT_TITLE).size());
+
+        mIndex.invalidate();
+        assertEquals("song:d", getAll(LocalSongIndex.SORT_TITLE).get(0));
+    }
+
+    @Test
+    public void skipsSongsNotLoaded() {
+        final LocalProvider.LocalSong song = new LocalProvider.LocalSong(null, 0, 0);
+        song.setSortKeys("0 title", null, null, 0);
+        mSongs.put("song:d", song);
+        mIndex.invalidate();
+
+        assertEquals(3, getAll(LocalSongIndex.SORT_TITLE).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsUnknownSortOrder() {
+        mIndex.getPage(42, 0, 10);
+    }
+}
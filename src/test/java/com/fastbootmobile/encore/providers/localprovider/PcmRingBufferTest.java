@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Fastboot Mobile, LLC.
+ *
+ * This program is free software; you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation; either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See
+ * the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with this program;
+ * if not, see <http://www.gnu.org/licenses>.
+ */
+
+package com.fastbootmobile.encore.providers.localprovider;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PcmRingBufferTest {
+    private static ByteBuffer sequence(int start, int length) {
+        final ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; ++i) {
+            buffer.put((byte) (start + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void assertSlice(PcmRingBuffer ring, int length, int start) {
+        final byte[] array = ring.array();
+        final int offset = ring.getReadOffset();
+        for (int i = 0; i < length; ++i) {
+            assertEquals((byte) (start + i), array[offset + i]);
+        }
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertEquals(1024, new PcmRingBuffer(1).array().length);
+        assertEquals(1024, new PcmRingBuffer(1024).array().length);
+        assertEquals(4096, new PcmRingBuffer(3000).array().length);
+    }
+
+    @Test
+    public void writeStopsWhenFull() {
+        final PcmRingBuffer ring = new PcmRingBuffer(1024);
+        final ByteBuffer src = sequence(0, 1100);
+
+        assertEquals(1024, ring.write(src, 0));
+        assertEquals(76, src.remaining());
+        assertEquals(0, ring.write(src, 0));
+
+        ring.consume(ring.awaitReadable(100, 0));
+        assertEquals(76, ring.write(src, 0));
+    }
+
+    @Test
+    public void readSlicesStopAtTheEndOfTheArray() {
+        final PcmRingBuffer ring = new PcmRingBuffer(1024);
+        ring.write(sequence(0, 1000), 0);
+        ring.consume(ring.awaitReadable(1000, 0));
+
+        ring.write(sequence(0, 100), 0);
+
+        assertEquals(24, ring.awaitReadable(200, 0));
+        assertEquals(1000, ring.getReadOffset());
+        assertSlice(ring, 24, 0);
+        ring.consume(24);
+
+        assertEquals(76, ring.awaitReadable(200, 0));
+        assertEquals(0, ring.getReadOffset());
+        assertSlice(ring, 76, 24);
+        ring.consume(76);
+
+        assertEquals(0, ring.awaitReadable(200, 0));
+    }
+
+    @Test
+    public void readIsCappedToTheRequestedLength() {
+        final PcmRingBuffer ring = new PcmRingBuffer(1024);
+        ring.write(sequence(0, 100), 0);
+
+        assertEquals(40, ring.awaitReadable(40, 0));
+        ring.consume(40);
+        assertEquals(60, ring.awaitReadable(100, 0));
+        assertSlice(ring, 60, 40);
+    }
+
+    @Test
+    public void flushSkipsTheDataWrittenBefore() {
+        final PcmRingBuffer ring = new PcmRingBuffer(1024);
+        ring.write(sequence(0, 100), 0);
+        ring.flush();
+        ring.write(sequence(100, 10), 0);
+
+        assertEquals(10, ring.awaitReadable(100, 0));
+        assertSlice(ring, 10, 100);
+    }
+
+    @Test
+    public void flushFreesTheSpaceOnceTheConsumerCatchesUp() {
+        final PcmRingBuffer ring = new PcmRingBuffer(1024);
+        ring.write(sequence(0, 1024), 0);
+        ring.flush();
+
+        assertEquals(0, ring.awaitReadable(100, 0));
+        assertEquals(10, ring.write(sequence(0, 10), 0));
+    }
+
+    @Test
+    public void formatChangeSplitsTheData() {
+        final PcmRingBuffer ring = new PcmRingBuffer(1024);
+        ring.write(sequence(0, 10), 0);
+        assertTrue(ring.queueFormat(1, 22050));
+        assertFalse(ring.queueFormat(2, 44100));
+        ring.write(sequence(10, 10), 0);
+
+        assertFalse(ring.hasPendingFormat());
+        assertEquals(10, ring.awaitReadable(100, 0));
+        ring.consume(10);
+
+        assertTrue(ring.hasPendingFormat());
+        assertEquals(0, ring.awaitReadable(100, 0));
+        assertEquals(1, ring.getFormatChannels());
+        assertEquals(22050, ring.getFormatRate());
+        ring.clearFormat();
+
+        assertFalse(ring.hasPendingFormat());
+        assertEquals(10, ring.awaitReadable(100, 0));
+        assertSlice(ring, 10, 10);
+    }
+
+    @Test
+    public void formatChangeIsAppliedAfterAFlush() {
+        final PcmRingBuffer ring = new PcmRingBuffer(1024);
+        ring.write(sequence(0, 10), 0);
+        ring.queueFormat(2, 48000);
+        ring.flush();
+
+        assertTrue(ring.hasPendingFormat());
+    }
+
+    @Test(timeout = 5000)
+    public void waitingConsumerIsWokenUpByTheProducer() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(1024);
+        final int[] read = new int[1];
+        final Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                read[0] = ring.awaitReadable(100, 10000);
+            }
+        };
+        consumer.start();
+
+        // Let the consumer park
+        Thread.sleep(50);
+        ring.write(sequence(0, 10), 0);
+        consumer.join();
+
+        assertEquals(10, read[0]);
+    }
+
+    @Test(timeout = 5000)
+    public void waitingProducerIsWokenUpByTheConsumer() throws InterruptedException {
+        final PcmRingBuffer ring = new PcmRingBuffer(1024);
+        ring.write(sequence(0, 1024), 0);
+
+        final int[] written = new int[1];
+        final Thread producer = new Thread() {
+            @Override
+            public void run() {
+                written[0] = ring.write(sequence(0, 10), 10000);
+            }
+        };
+        producer.start();
+
+        Thread.sleep(50);
+        ring.consume(ring.awaitReadable(100, 0));
+        producer.join();
+
+        assertEquals(10, written[0]);
+    }
+}